@@ -413,7 +413,7 @@ public class AssetViewActivity
             environment.getApp().getRequests().sendAndReturn(
                 numberDatapointArrayMapper,
                 requestParams -> assetDatapointResource.getDatapoints(
-                    requestParams, this.asset.getId(), attributeName, interval, fromTimestamp, toTimestamp
+                    requestParams, this.asset.getId(), attributeName, interval, fromTimestamp, toTimestamp, 0, null
                 ),
                 200,
                 consumer
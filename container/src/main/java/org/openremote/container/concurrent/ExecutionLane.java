@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.container.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINEST;
+
+/**
+ * Serial execution of tasks on a shared executor: tasks {@link #submit}ted to a lane are queued in an inbox and
+ * executed one at a time in submission order, while different lanes execute their tasks concurrently. A lane owns a
+ * reentrant exclusive lock, held while tasks are executed and available to guard other access to the state owned by
+ * the lane with {@link #withLock} and {@link #withLockReturning}.
+ * <p>
+ * Code executed in a lane must not wait for the {@link GlobalLock}; the global lock may be held when the lane lock is
+ * obtained, never the other way around.
+ * <p>
+ * A lane occupies a thread of the executor while it executes its queued tasks, so lanes sharing an executor only
+ * progress independently as long as the executor has a free thread; a lane that is slow to execute its tasks delays
+ * the other lanes once all threads are busy.
+ */
+public class ExecutionLane {
+
+    private static final Logger LOG = Logger.getLogger(ExecutionLane.class.getName());
+
+    final protected String name;
+    final protected Executor executor;
+    final protected GlobalLock.CustomReentrantLock lock = new GlobalLock.CustomReentrantLock();
+    final protected Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    final protected AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    public ExecutionLane(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    /**
+     * Queue the task for execution in this lane, returns immediately.
+     */
+    public void submit(Runnable task) {
+        inbox.add(task);
+        scheduleDrain();
+    }
+
+    protected void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::executeDrain);
+            } catch (RejectedExecutionException ex) {
+                drainScheduled.set(false);
+                LOG.fine("Executor rejected task, queued tasks will be executed with the next lock of: " + name);
+            }
+        }
+    }
+
+    protected void executeDrain() {
+        try {
+            withLock(name + "::drain", this::drain);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Exception executing queued tasks of lane: " + name, ex);
+        } finally {
+            // If the lock couldn't be obtained the tasks are still queued
+            drainScheduled.set(false);
+            if (!inbox.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * Execute all queued tasks in the current thread, must be called while holding the lock of the lane. Exceptions
+     * thrown by tasks are logged, they don't stop the execution of other tasks.
+     */
+    public void drain() {
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Lock of lane must be held by current thread to execute tasks: " + name);
+        }
+        drainScheduled.set(false);
+        Runnable task;
+        while ((task = inbox.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, "Exception executing task in lane: " + name, ex);
+            }
+        }
+    }
+
+    /**
+     * @return the number of queued tasks.
+     */
+    public int getQueueSize() {
+        return inbox.size();
+    }
+
+    public boolean isHeldByCurrentThread() {
+        return lock.isHeldByCurrentThread();
+    }
+
+    /**
+     * Obtain the lock of the lane within {@link GlobalLock#getLockTimeoutMillis()} or throw
+     * {@link IllegalStateException}.
+     *
+     * @param info     An informal text that is printed in log messages.
+     * @param runnable The guarded code to execute while holding the lock.
+     */
+    public void withLock(String info, Runnable runnable) {
+        withLockReturning(info, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Obtain the lock of the lane within {@link GlobalLock#getLockTimeoutMillis()} or throw
+     * {@link IllegalStateException}.
+     *
+     * @param info     An informal text that is printed in log messages.
+     * @param supplier The guarded code to execute while holding the lock.
+     */
+    public <R> R withLockReturning(String info, Supplier<R> supplier) {
+        try {
+            if (lock.tryLock(info, GlobalLock.getLockTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                LOG.finest("+ Acquired lane lock (count: " + lock.getHoldCount() + "): " + info);
+                try {
+                    return supplier.get();
+                } finally {
+                    LOG.finest("- Releasing lane lock (count: " + lock.getHoldCount() + "): " + info);
+                    lock.unlock();
+                }
+            } else {
+                throw new IllegalStateException(
+                    "Could not acquire lock of lane '" + name + "' owned by " + lock.owner() + " after waiting " + GlobalLock.getLockTimeoutMillis() + "ms: " + Thread.currentThread().getName() + " executing " + info
+                );
+            }
+        } catch (InterruptedException ex) {
+            LOG.log(FINEST, "Interrupted while waiting for lane lock: " + info);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "name='" + name + '\'' +
+            ", queued=" + inbox.size() +
+            '}';
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.container.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINEST;
+
+/**
+ * A global read/write barrier between concurrent event processing and structural changes (such as linking
+ * protocol configurations or deploying rulesets). Any number of threads can hold the shared side of the barrier
+ * while processing events, the exclusive side waits until all of them are done and blocks new ones until the
+ * structural change is complete. Use convenience methods {@link #withShared} and {@link #withExclusive}.
+ * <p>
+ * The barrier must always be obtained before the {@link GlobalLock}, never while holding it.
+ */
+public class ProcessingBarrier {
+
+    private static final Logger LOG = Logger.getLogger(ProcessingBarrier.class.getName());
+
+    static protected final ReentrantReadWriteLock barrier = new ReentrantReadWriteLock(true);
+
+    protected ProcessingBarrier() {
+    }
+
+    /**
+     * Obtain the shared side of the barrier within {@link GlobalLock#getLockTimeoutMillis()} or throw
+     * {@link IllegalStateException}.
+     *
+     * @param info     An informal text that is printed in log messages.
+     * @param runnable The guarded code to execute while holding the shared side of the barrier.
+     */
+    static public void withShared(String info, Runnable runnable) {
+        withBarrier(barrier.readLock(), "shared", info, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Obtain the exclusive side of the barrier within {@link GlobalLock#getLockTimeoutMillis()} or throw
+     * {@link IllegalStateException}. A read lock can't be upgraded, calling this while the current thread holds the
+     * shared side of the barrier is a programming error and throws {@link IllegalStateException} instead of
+     * executing the guarded code unguarded or waiting until the timeout.
+     *
+     * @param info     An informal text that is printed in log messages.
+     * @param runnable The guarded code to execute while holding the exclusive side of the barrier.
+     */
+    static public void withExclusive(String info, Runnable runnable) {
+        if (barrier.getReadHoldCount() > 0) {
+            throw new IllegalStateException(
+                "Can't acquire exclusive barrier while holding shared barrier: " + Thread.currentThread().getName() + " executing " + info
+            );
+        }
+        withBarrier(barrier.writeLock(), "exclusive", info, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    static protected <R> R withBarrier(Lock lock, String type, String info, Supplier<R> supplier) {
+        try {
+            if (lock.tryLock(GlobalLock.getLockTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                LOG.finest("+ Acquired " + type + " barrier: " + info);
+                try {
+                    return supplier.get();
+                } finally {
+                    LOG.finest("- Releasing " + type + " barrier: " + info);
+                    lock.unlock();
+                }
+            } else {
+                throw new IllegalStateException(
+                    "Could not acquire " + type + " barrier after waiting " + GlobalLock.getLockTimeoutMillis() + "ms: " + Thread.currentThread().getName() + " executing " + info
+                );
+            }
+        } catch (InterruptedException ex) {
+            LOG.log(FINEST, "Interrupted while waiting for " + type + " barrier: " + info);
+            return null;
+        }
+    }
+}
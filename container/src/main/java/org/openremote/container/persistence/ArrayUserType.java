@@ -25,6 +25,7 @@ import org.hibernate.usertype.UserType;
 
 import java.io.Serializable;
 import java.sql.*;
+import java.util.Arrays;
 
 /**
  * Map Postgres/JDBC text array to Java String array.
@@ -43,10 +44,11 @@ public class ArrayUserType implements UserType {
 
     @Override
     public Object nullSafeGet(ResultSet resultSet, String[] names, SharedSessionContractImplementor session, Object owner) throws HibernateException, SQLException {
-        if (resultSet.wasNull()) {
+        Array array = resultSet.getArray(names[0]);
+        if (array == null) {
             return null;
         }
-        return resultSet.getArray(names[0]).getArray();
+        return array.getArray();
     }
 
     @Override
@@ -77,13 +79,14 @@ public class ArrayUserType implements UserType {
         } else if (x == null || y == null) {
             return false;
         } else {
-            return x.equals(y);
+            // Compare the elements, an equal array is not a modification
+            return Arrays.equals((Object[]) x, (Object[]) y);
         }
     }
 
     @Override
     public final int hashCode(final Object x) throws HibernateException {
-        return x.hashCode();
+        return Arrays.hashCode((Object[]) x);
     }
 
     @Override
@@ -72,6 +72,7 @@ import static org.openremote.agent.protocol.Protocol.ACTUATOR_TOPIC;
 import static org.openremote.agent.protocol.Protocol.SENSOR_QUEUE;
 import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
+import static org.openremote.container.concurrent.ProcessingBarrier.withExclusive;
 import static org.openremote.container.persistence.PersistenceEvent.*;
 import static org.openremote.manager.asset.AssetProcessingService.ASSET_QUEUE;
 import static org.openremote.manager.gateway.GatewayService.GATEWAY_SERVICE_PRIORITY;
@@ -184,12 +185,14 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
 
         /// For all agents, go through their protocol configurations and find
         // assets that are linked to them, to create the binding on startup
-        for (Asset agent : agents) {
-            linkProtocolConfigurations(agent.getAttributesStream()
-                .filter(ProtocolConfiguration::isProtocolConfiguration)
-                .collect(Collectors.toList())
-            );
-        }
+        withExclusive(getClass().getSimpleName() + "::start", () -> {
+            for (Asset agent : agents) {
+                linkProtocolConfigurations(agent.getAttributesStream()
+                    .filter(ProtocolConfiguration::isProtocolConfiguration)
+                    .collect(Collectors.toList())
+                );
+            }
+        });
     }
 
     @Override
@@ -201,7 +204,7 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
         from(PERSISTENCE_TOPIC)
             .routeId("AgentPersistenceChanges")
             .filter(isPersistenceEventForEntityType(Asset.class))
-            .process(exchange -> {
+            .process(exchange -> withExclusive(getClass().getSimpleName() + "::processPersistenceEvent", () -> {
                 @SuppressWarnings("unchecked")
                 PersistenceEvent<Asset> persistenceEvent = (PersistenceEvent<Asset>)exchange.getIn().getBody(PersistenceEvent.class);
                 Asset asset = persistenceEvent.getEntity();
@@ -210,7 +213,7 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
                 } else {
                     processAssetChange(asset, persistenceEvent);
                 }
-            });
+            }));
 
         // A protocol wants to write a new sensor value
         from(SENSOR_QUEUE)
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import org.openremote.model.asset.Asset;
+import org.openremote.model.value.ArrayValue;
+import org.openremote.model.value.ObjectValue;
+import org.openremote.model.value.Value;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A size-bounded LRU cache of completely loaded assets (with path and all attributes), keyed by asset identifier.
+ * Assets are copied when they are put into and read from the cache, callers can modify the returned instances.
+ * <p>
+ * Entries are invalidated when an asset is written; while an asset is being modified in an open transaction
+ * (see {@link #beginWrite} and {@link #endWrite}) the cache is bypassed for that asset. A load that started
+ * before the asset or one of its ancestors was invalidated, or before its attribute values were updated, is not
+ * cached, so a slow reader can't put stale state back into the cache. Loads of other assets are not affected, the
+ * generation of the last change is kept per asset for the most recently changed assets.
+ */
+public class AssetCache {
+
+    private static final Logger LOG = Logger.getLogger(AssetCache.class.getName());
+
+    final protected int maxSize;
+    final protected Map<String, Asset> assets;
+    final protected Map<String, Integer> writing = new HashMap<>();
+    // Identifiers of cached descendants (and children) by identifier of their ancestors
+    final protected Map<String, Set<String>> descendants = new HashMap<>();
+    // Generation of the last invalidation (affects descendants) and value update (affects the asset only) per asset
+    final protected Map<String, Long> invalidated;
+    final protected Map<String, Long> updated;
+    protected long generation;
+    // Loads older than this generation are rejected, the changes of their assets might not be known anymore
+    protected long forgottenGeneration;
+    protected long hits;
+    protected long misses;
+    protected long evictions;
+
+    public AssetCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.assets = new LinkedHashMap<String, Asset>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Asset> eldest) {
+                if (size() > AssetCache.this.maxSize) {
+                    evictions++;
+                    removeDescendant(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.invalidated = createGenerations();
+        this.updated = createGenerations();
+    }
+
+    /**
+     * @return a copy of the cached asset or <code>null</code> if the asset isn't cached.
+     */
+    synchronized public Asset get(String assetId) {
+        Asset asset = writing.containsKey(assetId) ? null : assets.get(assetId);
+        if (asset == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copyOf(asset);
+    }
+
+    /**
+     * @return <code>true</code> if the cached asset has the attribute, <code>false</code> if it doesn't, or
+     * <code>null</code> if the asset isn't cached.
+     */
+    synchronized public Boolean hasAttribute(String assetId, String attributeName) {
+        Asset asset = writing.containsKey(assetId) ? null : assets.get(assetId);
+        if (asset == null)
+            return null;
+        return asset.getAttributes() != null && asset.getAttributes().hasKey(attributeName);
+    }
+
+    /**
+     * @return the current generation, must be obtained before loading an asset that will be {@link #put}.
+     */
+    synchronized public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a copy of the completely loaded asset, unless the asset or one of its ancestors has been changed since
+     * the given generation.
+     */
+    synchronized public void put(Asset asset, long loadGeneration) {
+        if (loadGeneration < forgottenGeneration
+            || writing.containsKey(asset.getId())
+            || isChangedSince(updated, asset.getId(), loadGeneration)
+            || isChangedSince(invalidated, asset.getId(), loadGeneration))
+            return;
+        for (String ancestorId : getAncestorIds(asset)) {
+            if (isChangedSince(invalidated, ancestorId, loadGeneration))
+                return;
+        }
+        removeCached(asset.getId());
+        assets.put(asset.getId(), copyOf(asset));
+        for (String ancestorId : getAncestorIds(asset)) {
+            descendants.computeIfAbsent(ancestorId, id -> new HashSet<>()).add(asset.getId());
+        }
+    }
+
+    /**
+     * Updates the value and value timestamp of a cached asset attribute, as the database state of the attribute
+     * has been updated without changing the asset entity.
+     */
+    synchronized public void updateAttributeValue(String assetId, String attributeName, Value value, Value valueTimestamp) {
+        // Concurrent loads of the asset might have read the previous value
+        setChanged(updated, assetId);
+        Asset asset = assets.get(assetId);
+        if (asset == null || asset.getAttributes() == null)
+            return;
+        ObjectValue attribute = asset.getAttributes().getObject(attributeName).orElse(null);
+        if (attribute == null) {
+            // Shouldn't happen, we can't tell what the database has now
+            invalidate(assetId);
+            return;
+        }
+        attribute.put("value", copyOf(value));
+        attribute.put("valueTimestamp", valueTimestamp);
+    }
+
+    /**
+     * Bypass the cache for the given assets until {@link #endWrite} is called, must be called before an
+     * asset is modified in a transaction.
+     */
+    synchronized public void beginWrite(Collection<String> assetIds) {
+        for (String assetId : assetIds) {
+            writing.merge(assetId, 1, Integer::sum);
+            invalidate(assetId);
+        }
+    }
+
+    /**
+     * Must be called when the transaction that modified the assets has been completed.
+     */
+    synchronized public void endWrite(Collection<String> assetIds) {
+        for (String assetId : assetIds) {
+            writing.computeIfPresent(assetId, (id, count) -> count > 1 ? count - 1 : null);
+            invalidate(assetId);
+        }
+    }
+
+    /**
+     * Removes the asset and all cached descendants and children (their path and parent information depends
+     * on the asset).
+     */
+    synchronized public void invalidate(String assetId) {
+        setChanged(invalidated, assetId);
+        if (removeCached(assetId) != null) {
+            LOG.finest("Invalidated cached asset: " + assetId);
+        }
+        Set<String> descendantIds = descendants.remove(assetId);
+        if (descendantIds != null) {
+            for (String descendantId : descendantIds.toArray(new String[0])) {
+                removeCached(descendantId);
+            }
+        }
+    }
+
+    synchronized public void clear() {
+        generation++;
+        forgottenGeneration = generation;
+        assets.clear();
+        descendants.clear();
+        invalidated.clear();
+        updated.clear();
+    }
+
+    synchronized public int getSize() {
+        return assets.size();
+    }
+
+    synchronized public long getHits() {
+        return hits;
+    }
+
+    synchronized public long getMisses() {
+        return misses;
+    }
+
+    synchronized public long getEvictions() {
+        return evictions;
+    }
+
+    protected Asset removeCached(String assetId) {
+        Asset asset = assets.remove(assetId);
+        if (asset != null) {
+            removeDescendant(asset);
+        }
+        return asset;
+    }
+
+    protected void removeDescendant(Asset asset) {
+        for (String ancestorId : getAncestorIds(asset)) {
+            Set<String> descendantIds = descendants.get(ancestorId);
+            if (descendantIds != null && descendantIds.remove(asset.getId()) && descendantIds.isEmpty()) {
+                descendants.remove(ancestorId);
+            }
+        }
+    }
+
+    protected void setChanged(Map<String, Long> generations, String assetId) {
+        generation++;
+        // Re-insert so the least recently changed asset is the eldest entry
+        generations.remove(assetId);
+        generations.put(assetId, generation);
+    }
+
+    protected boolean isChangedSince(Map<String, Long> generations, String assetId, long loadGeneration) {
+        Long changedGeneration = generations.get(assetId);
+        return changedGeneration != null && changedGeneration > loadGeneration;
+    }
+
+    /**
+     * Only the changes of the most recently changed assets are remembered, loads that started before the
+     * forgotten changes are rejected.
+     */
+    protected Map<String, Long> createGenerations() {
+        return new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > AssetCache.this.maxSize) {
+                    forgottenGeneration = Math.max(forgottenGeneration, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the identifiers of the parent and other ancestors of the asset.
+     */
+    protected static Set<String> getAncestorIds(Asset asset) {
+        Set<String> ancestorIds = new HashSet<>();
+        if (asset.getParentId() != null) {
+            ancestorIds.add(asset.getParentId());
+        }
+        if (asset.getPath() != null) {
+            ancestorIds.addAll(Arrays.asList(asset.getPath()));
+            ancestorIds.remove(asset.getId());
+        }
+        return ancestorIds;
+    }
+
+    protected static Asset copyOf(Asset asset) {
+        return new Asset(
+            asset.getId(),
+            asset.getVersion(),
+            asset.getCreatedOn() != null ? new Date(asset.getCreatedOn().getTime()) : null,
+            asset.getName(),
+            asset.getType(),
+            asset.isAccessPublicRead(),
+            asset.getParentId(),
+            asset.getParentName(),
+            asset.getParentType(),
+            asset.getRealm(),
+            asset.getPath() != null ? asset.getPath().clone() : null,
+            asset.getAttributes() != null ? asset.getAttributes().deepCopy() : null
+        );
+    }
+
+    protected static Value copyOf(Value value) {
+        if (value instanceof ObjectValue) {
+            return ((ObjectValue) value).deepCopy();
+        }
+        if (value instanceof ArrayValue) {
+            return ((ArrayValue) value).deepCopy();
+        }
+        return value;
+    }
+}
@@ -25,6 +25,8 @@ import org.apache.camel.builder.RouteBuilder;
 import org.openremote.agent.protocol.Protocol;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
+import org.openremote.container.concurrent.GlobalLock;
+import org.openremote.container.concurrent.ProcessingBarrier;
 import org.openremote.container.message.MessageBrokerService;
 import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.security.AuthContext;
@@ -56,6 +58,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.container.concurrent.GlobalLock.withLock;
+import static org.openremote.container.concurrent.ProcessingBarrier.withShared;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.manager.asset.AssetProcessingException.Reason.*;
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_TOPIC;
 import static org.openremote.model.asset.agent.AgentLink.getAgentLink;
@@ -126,6 +130,18 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
     // Message topic for communicating individual asset attribute changes
     public static final String ASSET_QUEUE = "seda://AssetQueue?waitForTaskToComplete=IfReplyExpected&timeout=10000&purgeWhenStopping=true&discardIfNoConsumers=false&size=25000";
 
+    /**
+     * Number of ordered partitions attribute events from the {@link #ASSET_QUEUE} are distributed on, events are
+     * assigned to a partition by asset ID. With the default of a single partition, all events are processed by one
+     * consumer holding the {@link GlobalLock}; with more partitions, events of different assets are processed in
+     * parallel while holding the shared side of the {@link ProcessingBarrier}.
+     */
+    public static final String ASSET_QUEUE_PARTITIONS = "ASSET_QUEUE_PARTITIONS";
+    public static final int ASSET_QUEUE_PARTITIONS_DEFAULT = 1;
+    public static final String ASSET_QUEUE_PARTITION = "seda://AssetQueuePartition";
+    public static final String ASSET_QUEUE_PARTITION_OPTIONS = "waitForTaskToComplete=IfReplyExpected&timeout=10000&purgeWhenStopping=true&discardIfNoConsumers=false&size=25000";
+    public static final String HEADER_PARTITION = "AssetQueuePartition";
+
     protected TimerService timerService;
     protected ManagerIdentityService identityService;
     protected PersistenceService persistenceService;
@@ -138,7 +154,8 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
     protected MessageBrokerService messageBrokerService;
     protected ClientEventService clientEventService;
     // Used in testing to detect if initial/startup processing has completed
-    protected long lastProcessedEventTimestamp = System.currentTimeMillis();
+    protected volatile long lastProcessedEventTimestamp = System.currentTimeMillis();
+    protected int partitions;
 
     final protected List<AssetUpdateProcessor> processors = new ArrayList<>();
 
@@ -160,6 +177,11 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         assetAttributeLinkingService = container.getService(AssetAttributeLinkingService.class);
         messageBrokerService = container.getService(MessageBrokerService.class);
         clientEventService = container.getService(ClientEventService.class);
+        partitions = Math.max(getInteger(container.getConfig(), ASSET_QUEUE_PARTITIONS, ASSET_QUEUE_PARTITIONS_DEFAULT), 1);
+
+        if (partitions > 1) {
+            LOG.info("Processing attribute events on partitions: " + partitions);
+        }
 
         clientEventService.addSubscriptionAuthorizer((auth, subscription) -> {
             if (!subscription.isEventType(AttributeEvent.class) && !subscription.isEventType(AssetEvent.class)) {
@@ -257,173 +279,212 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
          - See pseudocode here: http://activemq.apache.org/should-i-use-xa.html
          - Do we want JMS/AMQP/WSS or SOME_API/MQTT/WSS? ActiveMQ or Moquette?
         */
-        from(ASSET_QUEUE)
-            .routeId("AssetQueueProcessor")
-            .filter(body().isInstanceOf(AttributeEvent.class))
-            .doTry()
-            // Lock the global context, we can only process attribute events when the
-            // context isn't locked. Agent- and RulesService lock the context while protocols
-            // or rulesets are modified.
-            .process(exchange -> withLock(getClass().getSimpleName() + "::processFromAssetQueue", () -> {
-
-                AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
-                LOG.finest("Processing: " + event);
-                if (event.getEntityId() == null || event.getEntityId().isEmpty())
-                    return;
-                if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
-                    return;
-                Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
-                if (source == null) {
-                    throw new AssetProcessingException(MISSING_SOURCE);
-                }
+        if (partitions > 1) {
+            // Distribute attribute events onto ordered partitions by asset ID, events of an asset are always
+            // processed in order by the same consumer while events of different assets are processed in parallel
+            from(ASSET_QUEUE)
+                .routeId("AssetQueuePartitioner")
+                .filter(body().isInstanceOf(AttributeEvent.class))
+                .process(exchange -> exchange.getIn().setHeader(
+                    HEADER_PARTITION,
+                    getPartition(exchange.getIn().getBody(AttributeEvent.class))
+                ))
+                .toD(ASSET_QUEUE_PARTITION + "${header." + HEADER_PARTITION + "}?" + ASSET_QUEUE_PARTITION_OPTIONS);
+
+            for (int i = 0; i < partitions; i++) {
+                from(ASSET_QUEUE_PARTITION + i + "?" + ASSET_QUEUE_PARTITION_OPTIONS)
+                    .routeId("AssetQueueProcessor" + i)
+                    .doTry()
+                    // Hold the shared side of the processing barrier, structural changes in Agent- and
+                    // RulesService wait for all partitions before protocols or rulesets are modified.
+                    .process(exchange -> withShared(getClass().getSimpleName() + "::processFromAssetQueue", () ->
+                        processFromAssetQueue(exchange)
+                    ))
+                    .endDoTry()
+                    .doCatch(AssetProcessingException.class)
+                    .process(handleAssetProcessingException(LOG));
+            }
+        } else {
+            from(ASSET_QUEUE)
+                .routeId("AssetQueueProcessor")
+                .filter(body().isInstanceOf(AttributeEvent.class))
+                .doTry()
+                // Lock the global context, we can only process attribute events when the
+                // context isn't locked. Agent- and RulesService lock the context while protocols
+                // or rulesets are modified.
+                .process(exchange -> withLock(getClass().getSimpleName() + "::processFromAssetQueue", () ->
+                    processFromAssetQueue(exchange)
+                ))
+                .endDoTry()
+                .doCatch(AssetProcessingException.class)
+                .process(handleAssetProcessingException(LOG));
+        }
+    }
 
-                // Process the asset update in a database transaction, this ensures that processors
-                // will see consistent database state and we only commit if no processor failed. This
-                // still won't make this procedure consistent with the message queue from which we consume!
-                persistenceService.doTransaction(em -> {
-                    Asset asset = assetStorageService.find(em, event.getEntityId(), true);
-                    if (asset == null)
-                        throw new AssetProcessingException(ASSET_NOT_FOUND);
-
-
-                    AssetAttribute oldAttribute = asset.getAttribute(event.getAttributeName()).orElse(null);
-                    if (oldAttribute == null)
-                        throw new AssetProcessingException(ATTRIBUTE_NOT_FOUND);
-
-                    switch (source) {
-                        case CLIENT:
-
-                            AuthContext authContext = exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class);
-                            if (authContext == null) {
-                                // Check attribute has public write flag
-                                if (!oldAttribute.getMetaItem(MetaItemType.ACCESS_PUBLIC_WRITE).isPresent()) {
-                                    throw new AssetProcessingException(NO_AUTH_CONTEXT);
-                                }
-                                // Check read-only
-                                if (oldAttribute.isReadOnly()) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-                            } else {
-                                // Check realm, must be accessible
-                                if (!identityService.getIdentityProvider().isTenantActiveAndAccessible(authContext,
-                                                                                                       asset.getRealm())) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Check read-only
-                                if (oldAttribute.isReadOnly() && !authContext.isSuperUser()) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Regular user must have write assets role
-                                if (!authContext.hasResourceRoleOrIsSuperUser(ClientRole.WRITE_ASSETS.getValue(),
-                                                                              Constants.KEYCLOAK_CLIENT_ID)) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Check restricted user
-                                if (identityService.getIdentityProvider().isRestrictedUser(authContext.getUserId())) {
-                                    // Must be asset linked to user
-                                    if (!assetStorageService.isUserAsset(authContext.getUserId(),
-                                                                         event.getEntityId())) {
-                                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                    }
-                                    // Must be writable by restricted client
-                                    if (!oldAttribute.isAccessRestrictedWrite()) {
-                                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                    }
-                                }
-                            }
-                            break;
+    protected int getPartition(AttributeEvent event) {
+        String assetId = event.getEntityId();
+        return assetId == null ? 0 : Math.floorMod(assetId.hashCode(), partitions);
+    }
+
+    protected void processFromAssetQueue(Exchange exchange) {
+        AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+        LOG.finest("Processing: " + event);
+        if (event.getEntityId() == null || event.getEntityId().isEmpty())
+            return;
+        if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
+            return;
+        Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
+        if (source == null) {
+            throw new AssetProcessingException(MISSING_SOURCE);
+        }
 
-                        case SENSOR:
-                            Optional<AssetAttribute> protocolConfiguration =
-                                getAgentLink(oldAttribute).flatMap(agentService::getProtocolConfiguration);
+        // Process the asset update in a database transaction, this ensures that processors
+        // will see consistent database state and we only commit if no processor failed. This
+        // still won't make this procedure consistent with the message queue from which we consume!
+        processAttributeEvent(event, source, exchange);
+    }
 
-                            // Sensor event must be for an attribute linked to a protocol configuration
-                            if (!protocolConfiguration.isPresent()) {
-                                throw new AssetProcessingException(INVALID_AGENT_LINK);
-                            }
-                            break;
-                    }
+    protected void processAttributeEvent(AttributeEvent event, Source source, Exchange exchange) {
+        persistenceService.doTransaction(em -> {
+            Asset asset = assetStorageService.find(em, event.getEntityId(), true);
+            if (asset == null)
+                throw new AssetProcessingException(ASSET_NOT_FOUND);
 
-                    // Agent attributes can't be updated with events
-                    if (asset.getWellKnownType() == AssetType.AGENT) {
-                        throw new AssetProcessingException(ILLEGAL_AGENT_UPDATE);
-                    }
 
-                    // For executable attributes, non-sensor sources can set a writable attribute execute status
-                    if (oldAttribute.isExecutable() && source != SENSOR) {
-                        Optional<AttributeExecuteStatus> status = event.getValue()
-                            .flatMap(Values::getString)
-                            .flatMap(AttributeExecuteStatus::fromString);
+            AssetAttribute oldAttribute = asset.getAttribute(event.getAttributeName()).orElse(null);
+            if (oldAttribute == null)
+                throw new AssetProcessingException(ATTRIBUTE_NOT_FOUND);
+
+            switch (source) {
+                case CLIENT:
+
+                    AuthContext authContext = exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class);
+                    if (authContext == null) {
+                        // Check attribute has public write flag
+                        if (!oldAttribute.getMetaItem(MetaItemType.ACCESS_PUBLIC_WRITE).isPresent()) {
+                            throw new AssetProcessingException(NO_AUTH_CONTEXT);
+                        }
+                        // Check read-only
+                        if (oldAttribute.isReadOnly()) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                        }
+                    } else {
+                        // Check realm, must be accessible
+                        if (!identityService.getIdentityProvider().isTenantActiveAndAccessible(authContext,
+                                                                                               asset.getRealm())) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                        }
 
-                        if (status.isPresent() && !status.get().isWrite()) {
-                            throw new AssetProcessingException(INVALID_ATTRIBUTE_EXECUTE_STATUS);
+                        // Check read-only
+                        if (oldAttribute.isReadOnly() && !authContext.isSuperUser()) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                        }
+
+                        // Regular user must have write assets role
+                        if (!authContext.hasResourceRoleOrIsSuperUser(ClientRole.WRITE_ASSETS.getValue(),
+                                                                      Constants.KEYCLOAK_CLIENT_ID)) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                        }
+
+                        // Check restricted user
+                        if (identityService.getIdentityProvider().isRestrictedUser(authContext.getUserId())) {
+                            // Must be asset linked to user
+                            if (!assetStorageService.isUserAsset(authContext.getUserId(),
+                                                                 event.getEntityId())) {
+                                throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                            }
+                            // Must be writable by restricted client
+                            if (!oldAttribute.isAccessRestrictedWrite()) {
+                                throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                            }
                         }
                     }
+                    break;
 
-                    // Check if attribute is well known and the value is valid
-                    AssetModelUtil.getAttributeDescriptor(oldAttribute.name).ifPresent(wellKnownAttribute -> {
-                        // Check if the value is valid
-                        wellKnownAttribute.getValueDescriptor()
-                            .getValidator().flatMap(v -> v.apply(event.getValue().orElse(null)))
-                            .ifPresent(validationFailure -> {
-                                throw new AssetProcessingException(
-                                    INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE
-                                );
-                            });
-                    });
+                case SENSOR:
+                    Optional<AssetAttribute> protocolConfiguration =
+                        getAgentLink(oldAttribute).flatMap(agentService::getProtocolConfiguration);
+
+                    // Sensor event must be for an attribute linked to a protocol configuration
+                    if (!protocolConfiguration.isPresent()) {
+                        throw new AssetProcessingException(INVALID_AGENT_LINK);
+                    }
+                    break;
+            }
 
-                    // Either use the timestamp of the event or set event time to processing time
-                    long processingTime = timerService.getCurrentTimeMillis();
-                    long eventTime = event.getTimestamp() > 0 ? event.getTimestamp() : processingTime;
+            // Agent attributes can't be updated with events
+            if (asset.getWellKnownType() == AssetType.AGENT) {
+                throw new AssetProcessingException(ILLEGAL_AGENT_UPDATE);
+            }
+
+            // For executable attributes, non-sensor sources can set a writable attribute execute status
+            if (oldAttribute.isExecutable() && source != SENSOR) {
+                Optional<AttributeExecuteStatus> status = event.getValue()
+                    .flatMap(Values::getString)
+                    .flatMap(AttributeExecuteStatus::fromString);
 
-                    // Ensure timestamp of event is not in the future as that would essentially block access to
-                    // the attribute until after that time (maybe that is desirable behaviour)
-                    if (eventTime - processingTime > 0) {
-                        // TODO: Decide how to handle update events in the future - ignore or change timestamp
+                if (status.isPresent() && !status.get().isWrite()) {
+                    throw new AssetProcessingException(INVALID_ATTRIBUTE_EXECUTE_STATUS);
+                }
+            }
+
+            // Check if attribute is well known and the value is valid
+            AssetModelUtil.getAttributeDescriptor(oldAttribute.name).ifPresent(wellKnownAttribute -> {
+                // Check if the value is valid
+                wellKnownAttribute.getValueDescriptor()
+                    .getValidator().flatMap(v -> v.apply(event.getValue().orElse(null)))
+                    .ifPresent(validationFailure -> {
                         throw new AssetProcessingException(
-                            EVENT_IN_FUTURE,
-                            "current time: " + new Date(processingTime) + "/" + processingTime
-                                + ", event time: " + new Date(eventTime) + "/" + eventTime
+                            INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE
                         );
-                    }
+                    });
+            });
 
-                    // Check the last update timestamp of the attribute, ignoring any event that is older than last update
-                    // TODO This means we drop out-of-sequence events but accept events with the same source timestamp
-                    // TODO Several attribute events can occur in the same millisecond, then order of application is undefined
-                    oldAttribute.getValueTimestamp().filter(t -> t >= 0 && eventTime < t).ifPresent(
-                        lastStateTime -> {
-                            throw new AssetProcessingException(
-                                EVENT_OUTDATED,
-                                "last asset state time: " + new Date(lastStateTime) + "/" + lastStateTime
-                                    + ", event time: " + new Date(eventTime) + "/" + eventTime);
-                        }
-                    );
+            // Either use the timestamp of the event or set event time to processing time
+            long processingTime = timerService.getCurrentTimeMillis();
+            long eventTime = event.getTimestamp() > 0 ? event.getTimestamp() : processingTime;
 
-                    // Create a copy of the attribute and set the new value and timestamp
-                    AssetAttribute updatedAttribute = oldAttribute.deepCopy();
-                    updatedAttribute.setValue(event.getValue().orElse(null), eventTime);
+            // Ensure timestamp of event is not in the future as that would essentially block access to
+            // the attribute until after that time (maybe that is desirable behaviour)
+            if (eventTime - processingTime > 0) {
+                // TODO: Decide how to handle update events in the future - ignore or change timestamp
+                throw new AssetProcessingException(
+                    EVENT_IN_FUTURE,
+                    "current time: " + new Date(processingTime) + "/" + processingTime
+                        + ", event time: " + new Date(eventTime) + "/" + eventTime
+                );
+            }
 
-                    // Validate constraints of attribute
-                    List<ValidationFailure> validationFailures = updatedAttribute.getValidationFailures();
-                    if (!validationFailures.isEmpty()) {
-                        throw new AssetProcessingException(ATTRIBUTE_VALIDATION_FAILURE, validationFailures.toString());
-                    }
+            // Check the last update timestamp of the attribute, ignoring any event that is older than last update
+            // TODO This means we drop out-of-sequence events but accept events with the same source timestamp
+            // TODO Several attribute events can occur in the same millisecond, then order of application is undefined
+            oldAttribute.getValueTimestamp().filter(t -> t >= 0 && eventTime < t).ifPresent(
+                lastStateTime -> {
+                    throw new AssetProcessingException(
+                        EVENT_OUTDATED,
+                        "last asset state time: " + new Date(lastStateTime) + "/" + lastStateTime
+                            + ", event time: " + new Date(eventTime) + "/" + eventTime);
+                }
+            );
 
-                    // Push through all processors
-                    boolean consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source);
+            // Create a copy of the attribute and set the new value and timestamp
+            AssetAttribute updatedAttribute = oldAttribute.deepCopy();
+            updatedAttribute.setValue(event.getValue().orElse(null), eventTime);
 
-                    // Publish a new event for clients if no processor consumed the update completely
-                    if (!consumedCompletely) {
-                        publishClientEvent(asset, updatedAttribute);
-                    }
-                });
-            }))
-            .endDoTry()
-            .doCatch(AssetProcessingException.class)
-            .process(handleAssetProcessingException(LOG));
+            // Validate constraints of attribute
+            List<ValidationFailure> validationFailures = updatedAttribute.getValidationFailures();
+            if (!validationFailures.isEmpty()) {
+                throw new AssetProcessingException(ATTRIBUTE_VALIDATION_FAILURE, validationFailures.toString());
+            }
+
+            // Push through all processors
+            boolean consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source);
+
+            // Publish a new event for clients if no processor consumed the update completely
+            if (!consumedCompletely) {
+                publishClientEvent(asset, updatedAttribute);
+            }
+        });
     }
 
     /**
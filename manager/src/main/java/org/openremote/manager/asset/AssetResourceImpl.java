@@ -19,6 +19,9 @@
  */
 package org.openremote.manager.asset;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.openremote.container.message.MessageBrokerService;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.security.ManagerIdentityService;
@@ -36,6 +39,7 @@ import org.openremote.model.query.filter.ParentPredicate;
 import org.openremote.model.query.filter.TenantPredicate;
 import org.openremote.model.security.Tenant;
 import org.openremote.model.util.AssetModelUtil;
+import org.openremote.model.util.Pair;
 import org.openremote.model.util.TextUtil;
 import org.openremote.model.value.Value;
 import org.openremote.model.value.ValueException;
@@ -44,10 +48,14 @@ import org.openremote.model.value.Values;
 import javax.persistence.OptimisticLockException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.logging.Logger;
 
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import static javax.ws.rs.core.Response.Status.*;
 import static org.openremote.container.Container.JSON;
 import static org.openremote.model.attribute.AttributeEvent.Source.CLIENT;
@@ -539,46 +547,100 @@ public class AssetResourceImpl extends ManagerWebResource implements AssetResour
     @Override
     public Asset[] queryAssets(RequestParams requestParams, AssetQuery query) {
         try {
+            query = prepareQuery(query);
             if (query == null) {
                 return EMPTY_ASSETS;
             }
 
-            if (isRestrictedUser()) {
-                // A restricted user can only query linked assets
-                query = query.userIds(getUserId());
+            List<Asset> result = assetStorageService.findAll(query);
 
-                // A restricted user may not query private asset data, only restricted or public
-                if (query.access == null || query.access == Access.PRIVATE)
-                    query.access(Access.PROTECTED);
-            }
+            // Compress response (the request attribute enables the interceptor)
+            request.setAttribute(HttpHeaders.CONTENT_ENCODING, "gzip");
 
-            String realm = query.tenant != null && !isNullOrEmpty(query.tenant.realm)
-                ? query.tenant.realm
-                : getAuthenticatedRealm();
+            return result.toArray(new Asset[result.size()]);
 
-            if (TextUtil.isNullOrEmpty(realm)) {
-                throw new WebApplicationException(NOT_FOUND);
-            }
+        } catch (IllegalStateException ex) {
+            throw new WebApplicationException(ex, BAD_REQUEST);
+        }
+    }
 
-            if (!isTenantActiveAndAccessible(realm)) {
-                return EMPTY_ASSETS;
-            }
+    @Override
+    public Response streamQueryAssets(RequestParams requestParams, AssetQuery query) {
+        AssetQuery preparedQuery;
+        Pair<AssetStorageService.PreparedAssetQuery, Boolean> preparedSql;
+        try {
+            preparedQuery = prepareQuery(query);
+            // Build the query before the response is committed, so an invalid query fails with 400 and not while streaming
+            preparedSql = preparedQuery != null ? assetStorageService.prepareQuery(preparedQuery) : null;
+        } catch (IllegalStateException | IllegalArgumentException | UnsupportedOperationException ex) {
+            throw new WebApplicationException(ex, BAD_REQUEST);
+        }
 
-            // This replicates behaviour of old getRoot and getChildren methods
-            if (!isSuperUser()) {
-                query.tenant(new TenantPredicate(realm));
+        // Each asset is written when it is read, the response is flushed when the generator buffer is full
+        ObjectWriter writer = JSON.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        StreamingOutput output = outputStream -> {
+            JsonGenerator generator = JSON.getFactory().createGenerator(outputStream);
+            generator.writeStartArray();
+            if (preparedQuery != null) {
+                try {
+                    assetStorageService.findAll(preparedQuery, preparedSql, asset -> {
+                        try {
+                            writer.writeValue(generator, asset);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
             }
+            generator.writeEndArray();
+            generator.flush();
+        };
 
-            List<Asset> result = assetStorageService.findAll(query);
+        // Compress response (the request attribute enables the interceptor)
+        request.setAttribute(HttpHeaders.CONTENT_ENCODING, "gzip");
 
-            // Compress response (the request attribute enables the interceptor)
-            request.setAttribute(HttpHeaders.CONTENT_ENCODING, "gzip");
+        return Response.ok(output, APPLICATION_JSON).build();
+    }
 
-            return result.toArray(new Asset[result.size()]);
+    /**
+     * Restricts the query to the assets the authenticated user may access.
+     *
+     * @return the query, or <code>null</code> if the user can't access any assets.
+     */
+    protected AssetQuery prepareQuery(AssetQuery query) {
+        if (query == null) {
+            return null;
+        }
 
-        } catch (IllegalStateException ex) {
-            throw new WebApplicationException(ex, BAD_REQUEST);
+        if (isRestrictedUser()) {
+            // A restricted user can only query linked assets
+            query = query.userIds(getUserId());
+
+            // A restricted user may not query private asset data, only restricted or public
+            if (query.access == null || query.access == Access.PRIVATE)
+                query.access(Access.PROTECTED);
+        }
+
+        String realm = query.tenant != null && !isNullOrEmpty(query.tenant.realm)
+            ? query.tenant.realm
+            : getAuthenticatedRealm();
+
+        if (TextUtil.isNullOrEmpty(realm)) {
+            throw new WebApplicationException(NOT_FOUND);
         }
+
+        if (!isTenantActiveAndAccessible(realm)) {
+            return null;
+        }
+
+        // This replicates behaviour of old getRoot and getChildren methods
+        if (!isSuperUser()) {
+            query.tenant(new TenantPredicate(realm));
+        }
+
+        return query;
     }
 
     @Override
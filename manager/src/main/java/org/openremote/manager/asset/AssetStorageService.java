@@ -20,6 +20,7 @@
 package org.openremote.manager.asset;
 
 import org.apache.camel.builder.RouteBuilder;
+import org.hibernate.BaseSessionEventListener;
 import org.hibernate.Session;
 import org.hibernate.jdbc.AbstractReturningWork;
 import org.openremote.container.Container;
@@ -29,7 +30,9 @@ import org.openremote.container.persistence.PersistenceEvent;
 import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.security.AuthContext;
 import org.openremote.container.timer.TimerService;
+import org.openremote.container.util.UniqueIdentifierGenerator;
 import org.openremote.manager.asset.console.ConsoleResourceImpl;
+import org.openremote.manager.concurrent.ManagerExecutorService;
 import org.openremote.manager.event.ClientEventService;
 import org.openremote.manager.gateway.GatewayService;
 import org.openremote.manager.rules.AssetQueryPredicate;
@@ -40,6 +43,7 @@ import org.openremote.model.Constants;
 import org.openremote.model.ValidationFailure;
 import org.openremote.model.asset.*;
 import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeType;
 import org.openremote.model.attribute.MetaItemDescriptor;
 import org.openremote.model.attribute.MetaItemType;
 import org.openremote.model.calendar.CalendarEvent;
@@ -65,11 +69,14 @@ import javax.ws.rs.WebApplicationException;
 import java.sql.*;
 import java.util.Date;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static java.util.stream.Collectors.groupingBy;
@@ -77,6 +84,7 @@ import static java.util.stream.Collectors.joining;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
 import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_TOPIC;
 import static org.openremote.manager.event.ClientEventService.getSessionKey;
 import static org.openremote.manager.rules.AssetQueryPredicate.asPredicate;
@@ -120,6 +128,25 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         void acceptStatement(PreparedStatement st) throws SQLException;
     }
 
+    public static final String ASSET_CACHE_SIZE = "ASSET_CACHE_SIZE";
+    public static final int ASSET_CACHE_SIZE_DEFAULT = 1000;
+    /**
+     * When set, attribute values are buffered and only the latest value of each attribute is written to the
+     * database at this interval, see {@link AttributeValueBuffer}.
+     */
+    public static final String ASSET_ATTRIBUTE_WRITE_FLUSH_MILLIS = "ASSET_ATTRIBUTE_WRITE_FLUSH_MILLIS";
+    public static final int ASSET_ATTRIBUTE_WRITE_FLUSH_MILLIS_DEFAULT = 0;
+    protected static final int ATTRIBUTE_VALUE_WRITE_BATCH_SIZE = 500;
+    // Buffered values of a batch that failed to be written are retried with the next flush, up to this many times
+    protected static final int ATTRIBUTE_VALUE_WRITE_ATTEMPTS_MAX = 5;
+    protected static final int ASSET_QUERY_FETCH_SIZE = 1000;
+    protected static final Pattern JSON_NUMBER_PATTERN = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+    // Merges the buffered attribute values into the stored attributes, unless the stored value is newer
+    protected static final String UPDATE_ATTRIBUTE_VALUES_SQL = "update ASSET A set ATTRIBUTES = A.ATTRIBUTES || coalesce((" +
+        "select jsonb_object_agg(P.key, (A.ATTRIBUTES -> P.key) || P.value) from jsonb_each(?::jsonb) P" +
+        " where A.ATTRIBUTES -> P.key is not null" +
+        " and coalesce((A.ATTRIBUTES -> P.key ->> 'valueTimestamp')::numeric, 0) <= (P.value ->> 'valueTimestamp')::numeric" +
+        "), '{}'::jsonb) where A.ID = ?";
     private static final Logger LOG = Logger.getLogger(AssetStorageService.class.getName());
     protected static String META_ITEM_RESTRICTED_READ_SQL_FRAGMENT;
     protected static String META_ITEM_PUBLIC_READ_SQL_FRAGMENT;
@@ -128,6 +155,13 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     protected ManagerIdentityService identityService;
     protected ClientEventService clientEventService;
     protected GatewayService gatewayService;
+    protected AssetCache assetCache;
+    protected ManagerExecutorService managerExecutorService;
+    protected AttributeValueBuffer attributeValueBuffer;
+    protected int attributeValueFlushMillis;
+    protected ScheduledFuture attributeValueFlushScheduledFuture;
+    protected final AtomicLong attributeValueFlushedCount = new AtomicLong();
+    protected volatile long attributeValueLastFlushMillis;
 
     /**
      * Will evaluate each {@link CalendarEventPredicate} and apply it depending on the {@link LogicGroup} type
@@ -213,6 +247,18 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         identityService = container.getService(ManagerIdentityService.class);
         clientEventService = container.getService(ClientEventService.class);
         gatewayService = container.getService(GatewayService.class);
+        managerExecutorService = container.getService(ManagerExecutorService.class);
+
+        int assetCacheSize = getInteger(container.getConfig(), ASSET_CACHE_SIZE, ASSET_CACHE_SIZE_DEFAULT);
+        if (assetCacheSize > 0) {
+            assetCache = new AssetCache(assetCacheSize);
+        }
+
+        attributeValueFlushMillis = getInteger(container.getConfig(), ASSET_ATTRIBUTE_WRITE_FLUSH_MILLIS, ASSET_ATTRIBUTE_WRITE_FLUSH_MILLIS_DEFAULT);
+        if (attributeValueFlushMillis > 0) {
+            LOG.info("Buffering attribute values, writing latest values every: " + attributeValueFlushMillis + "ms");
+            attributeValueBuffer = new AttributeValueBuffer();
+        }
 
         META_ITEM_RESTRICTED_READ_SQL_FRAGMENT =
             " ('" + Arrays.stream(AssetModelUtil.getMetaItemDescriptors()).filter(i -> i.getAccess().restrictedRead).map(MetaItemDescriptor::getUrn).collect(joining("','")) + "')";
@@ -255,11 +301,25 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
     @Override
     public void start(Container container) throws Exception {
+        if (attributeValueBuffer != null) {
+            attributeValueFlushScheduledFuture = managerExecutorService.scheduleWithFixedDelay(
+                this::flushAttributeValues,
+                attributeValueFlushMillis,
+                attributeValueFlushMillis
+            );
+        }
     }
 
     @Override
     public void stop(Container container) throws Exception {
+        if (attributeValueFlushScheduledFuture != null) {
+            attributeValueFlushScheduledFuture.cancel(false);
+        }
 
+        if (attributeValueBuffer != null) {
+            // Write whatever is still waiting in the buffer
+            flushAttributeValues();
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -269,7 +329,11 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         from(PERSISTENCE_TOPIC)
             .routeId("AssetPersistenceChanges")
             .filter(isPersistenceEventForEntityType(Asset.class))
-            .process(exchange -> publishModificationEvents(exchange.getIn().getBody(PersistenceEvent.class)));
+            .process(exchange -> {
+                PersistenceEvent<Asset> persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
+                invalidateCachedAsset(persistenceEvent.getEntity().getId());
+                publishModificationEvents(persistenceEvent);
+            });
 
         // React if a client wants to read assets and attributes
         from(CLIENT_EVENT_TOPIC)
@@ -311,18 +375,14 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     }
 
     public Asset find(String assetId) {
-        if (assetId == null)
-            throw new IllegalArgumentException("Can't query null asset identifier");
-        return find(new AssetQuery().ids(assetId));
+        return find(assetId, true);
     }
 
     /**
      * @param loadComplete If the whole asset data (including path and attributes) should be loaded.
      */
     public Asset find(String assetId, boolean loadComplete) {
-        if (assetId == null)
-            throw new IllegalArgumentException("Can't query null asset identifier");
-        return find(new AssetQuery().select(loadComplete ? null : Select.selectExcludePathAndAttributes()).ids(assetId));
+        return find(assetId, loadComplete, PRIVATE);
     }
 
     /**
@@ -339,12 +399,10 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     public Asset find(String assetId, boolean loadComplete, Access access) {
         if (assetId == null)
             throw new IllegalArgumentException("Can't query null asset identifier");
-        return find(new AssetQuery()
-            .select(loadComplete
-                ? null
-                : Select.selectExcludePathAndAttributes())
-            .ids(assetId)
-            .access(access));
+        Asset asset = findCached(assetId, loadComplete, access);
+        if (asset != null)
+            return asset;
+        return persistenceService.doReturningTransaction(em -> load(em, assetId, loadComplete, access));
     }
 
     public Asset find(AssetQuery query) {
@@ -365,6 +423,14 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         return persistenceService.doReturningTransaction(em -> findAll(em, query));
     }
 
+    /**
+     * Passes the assets of the query result to the consumer as they are read from the database, rows are fetched with
+     * a server side cursor in batches of {@link #ASSET_QUERY_FETCH_SIZE} so the result isn't held in memory.
+     */
+    public void findAll(AssetQuery query, Consumer<Asset> consumer) {
+        persistenceService.doTransaction(em -> findAll(em, query, consumer));
+    }
+
     public List<String> findNames(String... ids) {
         if (ids == null || ids.length == 0)
             return new ArrayList<>();
@@ -424,6 +490,20 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
      * @throws IllegalArgumentException if the realm or parent is illegal, or other asset constraint is violated.
      */
     public Asset merge(Asset asset, boolean overrideVersion, boolean skipGatewayCheck, String userName) {
+        List<String> cachedAssetIds = asset.getId() != null ? Collections.singletonList(asset.getId()) : Collections.emptyList();
+        if (assetCache != null) {
+            assetCache.beginWrite(cachedAssetIds);
+        }
+        try {
+            return doMerge(asset, overrideVersion, skipGatewayCheck, userName);
+        } finally {
+            if (assetCache != null) {
+                assetCache.endWrite(cachedAssetIds);
+            }
+        }
+    }
+
+    protected Asset doMerge(Asset asset, boolean overrideVersion, boolean skipGatewayCheck, String userName) {
         return persistenceService.doReturningTransaction(em -> {
 
             Asset existing = null;
@@ -461,9 +541,11 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             }
 
             // Validate parent
+            Asset parent = null;
+            String[] parentPath = null;
             if (asset.getParentId() != null) {
                 // If this is a not a root asset...
-                Asset parent = find(em, asset.getParentId(), true);
+                parent = find(em, asset.getParentId(), true);
 
                 // .. the parent must exist
                 if (parent == null) {
@@ -472,8 +554,17 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                     throw new IllegalStateException(msg);
                 }
 
+                // ... lock the parent so it can't be moved until this transaction completes, the path of a
+                // concurrently moved parent is read once the move has been committed
+                parentPath = lockPath(em, parent.getId());
+                if (parentPath == null) {
+                    String msg = "Asset parent not found: asset=" + asset;
+                    LOG.info(msg);
+                    throw new IllegalStateException(msg);
+                }
+
                 // ... the parent can not be a child of the asset
-                if (parent.pathContains(asset.getId())) {
+                if (asset.getId() != null && Arrays.asList(parentPath).contains(asset.getId())) {
                     String msg = "Asset parent cannot be a descendant of the asset: asset=" + asset;
                     LOG.info(msg);
                     throw new IllegalStateException(msg);
@@ -585,7 +676,18 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 LOG.fine("Sending asset merge request to gateway: Gateway ID=" + gatewayId);
                 updatedAsset = gatewayService.mergeGatewayAsset(gatewayId, asset);
             } else {
+                if (asset.getId() == null) {
+                    // The path starts with the identifier of the asset
+                    asset.setId(UniqueIdentifierGenerator.generateId());
+                }
+                boolean moved = existing != null && !Objects.equals(existing.getParentId(), asset.getParentId());
+                asset.setPath(getPath(asset.getId(), parentPath));
+
                 updatedAsset = em.merge(asset);
+
+                if (moved) {
+                    updateDescendantPaths(em, asset.getId(), asset.getPath());
+                }
             }
 
             if (user != null) {
@@ -596,6 +698,56 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         });
     }
 
+    /**
+     * @return the path of an asset with the given parent path, starting with the identifier of the asset.
+     */
+    protected static String[] getPath(String assetId, String[] parentPath) {
+        if (parentPath == null) {
+            return new String[]{assetId};
+        }
+        String[] path = new String[parentPath.length + 1];
+        path[0] = assetId;
+        System.arraycopy(parentPath, 0, path, 1, parentPath.length);
+        return path;
+    }
+
+    /**
+     * Lock the row of the asset until the transaction completes and read its current path; blocks while the asset
+     * is locked by another transaction, such as a move of the asset or one of its ancestors.
+     *
+     * @return the committed path of the asset or <code>null</code> if the asset doesn't exist.
+     */
+    protected String[] lockPath(EntityManager em, String assetId) {
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement st = connection.prepareStatement("select PATH from ASSET where ID = ? for update")) {
+                st.setString(1, assetId);
+                try (ResultSet rs = st.executeQuery()) {
+                    if (!rs.next() || rs.getArray(1) == null) {
+                        return null;
+                    }
+                    return (String[]) rs.getArray(1).getArray();
+                }
+            }
+        });
+    }
+
+    /**
+     * Replace the previous path of a moved asset in the stored paths of its descendants.
+     */
+    protected void updateDescendantPaths(EntityManager em, String assetId, String[] path) {
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement st = connection.prepareStatement(
+                "update ASSET set PATH = PATH[1:array_position(PATH, ?::text) - 1] || ? where PATH @> array[?::text] and ID <> ?")) {
+                st.setString(1, assetId);
+                st.setArray(2, connection.createArrayOf("text", path));
+                st.setString(3, assetId);
+                st.setString(4, assetId);
+                int updatedRows = st.executeUpdate();
+                LOG.fine("Updated path of " + updatedRows + " descendant(s) of moved asset: " + assetId);
+            }
+        });
+    }
+
     /**
      * @return <code>true</code> if the assets were deleted, false if any of the assets still have children and can't be deleted.
      */
@@ -672,6 +824,9 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             }
         }
 
+        if (assetCache != null) {
+            assetCache.beginWrite(ids);
+        }
         try {
             persistenceService.doTransaction(em -> {
                 LOG.fine("Removing: " + String.join(", ", ids));
@@ -687,8 +842,15 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 assets.sort(Comparator.comparingInt((Asset asset) -> asset.getPath() == null ? 0 : asset.getPath().length).reversed());
                 assets.forEach(em::remove);
             });
+            if (attributeValueBuffer != null) {
+                attributeValueBuffer.discard(ids);
+            }
         } catch (Exception e) {
             return false;
+        } finally {
+            if (assetCache != null) {
+                assetCache.endWrite(ids);
+            }
         }
 
         return true;
@@ -795,7 +957,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         return persistenceService.doReturningTransaction(entityManager -> entityManager.unwrap(Session.class).doReturningWork(new AbstractReturningWork<Boolean>() {
             @Override
             public Boolean execute(Connection connection) throws SQLException {
-                try (PreparedStatement st = connection.prepareStatement("select count(*) from Asset a where ? = ANY(get_asset_tree_path(a.ID)) AND a.id = ANY(?)")) {
+                try (PreparedStatement st = connection.prepareStatement("select count(*) from Asset a where ? = ANY(a.PATH) AND a.id = ANY(?)")) {
                     st.setString(1, parentAssetId);
                     st.setArray(2, st.getConnection().createArrayOf("text", assetIds.toArray()));
                     ResultSet rs = st.executeQuery();
@@ -865,7 +1027,17 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     protected Asset find(EntityManager em, String assetId, boolean loadComplete, Access access) {
         if (assetId == null)
             throw new IllegalArgumentException("Can't query null asset identifier");
-        return find(
+        Asset asset = findCached(assetId, loadComplete, access);
+        if (asset != null)
+            return asset;
+        return load(em, assetId, loadComplete, access);
+    }
+
+    protected Asset load(EntityManager em, String assetId, boolean loadComplete, Access access) {
+        // Only completely loaded assets with all data are cached
+        boolean cacheable = assetCache != null && loadComplete && access == PRIVATE;
+        long cacheGeneration = cacheable ? assetCache.getGeneration() : 0;
+        Asset asset = find(
             em,
             new AssetQuery()
                 .select(loadComplete
@@ -874,19 +1046,92 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 .ids(assetId)
                 .access(access)
         );
+        if (cacheable && asset != null) {
+            assetCache.put(asset, cacheGeneration);
+        }
+        return asset;
+    }
+
+    /**
+     * @return a copy of the cached asset with only the requested data, or <code>null</code> if the asset isn't
+     * cached or the requested access level isn't {@link Access#PRIVATE}.
+     */
+    protected Asset findCached(String assetId, boolean loadComplete, Access access) {
+        if (assetCache == null || access != PRIVATE)
+            return null;
+        Asset asset = assetCache.get(assetId);
+        if (asset != null && !loadComplete) {
+            asset.setPath(null);
+            asset.attributes = null;
+        }
+        return asset;
+    }
+
+    /**
+     * Removes the asset, its children and descendants from the asset cache, call this when the asset has been
+     * modified without {@link #merge} or {@link #delete}.
+     */
+    public void invalidateCachedAsset(String assetId) {
+        if (assetCache != null && assetId != null) {
+            assetCache.invalidate(assetId);
+        }
+    }
+
+    public AssetCache getAssetCache() {
+        return assetCache;
+    }
+
+    /**
+     * @return the buffer of attribute values that haven't been written yet, or <code>null</code> if attribute
+     * values are written immediately.
+     */
+    public AttributeValueBuffer getAttributeValueBuffer() {
+        return attributeValueBuffer;
+    }
+
+    public long getAttributeValueFlushedCount() {
+        return attributeValueFlushedCount.get();
+    }
+
+    public long getAttributeValueLastFlushMillis() {
+        return attributeValueLastFlushMillis;
     }
 
     protected List<Asset> findAll(EntityManager em, AssetQuery query) {
+        List<Asset> result = new ArrayList<>();
+        findAll(em, query, result::add);
+        return result;
+    }
+
+    protected void findAll(EntityManager em, AssetQuery query, Consumer<Asset> consumer) {
+        findAll(em, query, prepareQuery(query), consumer);
+    }
+
+    /**
+     * Passes the assets of a query prepared with {@link #prepareQuery} to the consumer, see
+     * {@link #findAll(AssetQuery, Consumer)}.
+     */
+    protected void findAll(AssetQuery query, Pair<PreparedAssetQuery, Boolean> preparedQuery, Consumer<Asset> consumer) {
+        persistenceService.doTransaction(em -> findAll(em, query, preparedQuery, consumer));
+    }
+
+    /**
+     * Applies the defaults of the query and builds its SQL, so an invalid query is rejected before any results are
+     * read.
+     *
+     * @throws IllegalArgumentException      if the query can't be executed.
+     * @throws UnsupportedOperationException if the query contains an unsupported predicate.
+     */
+    protected Pair<PreparedAssetQuery, Boolean> prepareQuery(AssetQuery query) {
 
         if (query.access == null)
             query.access = PRIVATE;
 
-        // Default to order by creation date if the query may return multiple results
-        if (query.orderBy == null && query.ids == null)
+        // Default to order by creation date if the query may return multiple results or is paginated
+        if (query.orderBy == null && (query.ids == null || query.after != null))
             query.orderBy = new OrderBy(OrderBy.Property.CREATED_ON);
 
         Pair<PreparedAssetQuery, Boolean> queryAndContainsCalendarPredicate = buildQuery(query);
-        PreparedAssetQuery querySql = queryAndContainsCalendarPredicate.key;
         boolean containsCalendarPredicate = queryAndContainsCalendarPredicate.value;
 
         if (containsCalendarPredicate && (query.select != null && (query.select.excludeAttributes || query.select.excludeAttributeValue || query.select.excludeAttributeType))) {
@@ -894,29 +1139,27 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             throw new IllegalArgumentException("Asset query contains a calendar event predicate which requires the attribute values and types to be included in the select (as calendar event predicate is applied post DB query)");
         }
 
-        return em.unwrap(Session.class).doReturningWork(new AbstractReturningWork<List<Asset>>() {
-            @Override
-            public List<Asset> execute(Connection connection) throws SQLException {
-                LOG.fine("Executing: " + querySql.querySql);
-                try (PreparedStatement st = connection.prepareStatement(querySql.querySql)) {
-                    querySql.apply(st);
-
-                    try (ResultSet rs = st.executeQuery()) {
-                        List<Asset> result = new ArrayList<>();
-                        if (containsCalendarPredicate) {
-                            while (rs.next()) {
-                                Asset asset = mapResultTuple(query, rs);
-                                // Apply calendar event filter here (difficult to translate this into a SQL query)
-                                if (calendarEventPredicateMatches(query, asset)) {
-                                    result.add(asset);
-                                }
-                            }
-                        } else {
-                            while (rs.next()) {
-                                result.add(mapResultTuple(query, rs));
-                            }
+        return queryAndContainsCalendarPredicate;
+    }
+
+    protected void findAll(EntityManager em, AssetQuery query, Pair<PreparedAssetQuery, Boolean> preparedQuery, Consumer<Asset> consumer) {
+        PreparedAssetQuery querySql = preparedQuery.key;
+        boolean containsCalendarPredicate = preparedQuery.value;
+
+        em.unwrap(Session.class).doWork(connection -> {
+            LOG.fine("Executing: " + querySql.querySql);
+            try (PreparedStatement st = connection.prepareStatement(querySql.querySql)) {
+                querySql.apply(st);
+                // Use a server side cursor so rows are streamed rather than loaded all at once
+                st.setFetchSize(ASSET_QUERY_FETCH_SIZE);
+
+                try (ResultSet rs = st.executeQuery()) {
+                    while (rs.next()) {
+                        Asset asset = mapResultTuple(query, rs);
+                        // Apply calendar event filter here (difficult to translate this into a SQL query)
+                        if (!containsCalendarPredicate || calendarEventPredicateMatches(query, asset)) {
+                            consumer.accept(asset);
                         }
-                        return result;
                     }
                 }
             }
@@ -974,10 +1217,13 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
         if (!query.recursive || level == 3) {
             if (select == null || !select.excludePath) {
-                sb.append(", get_asset_tree_path(A.ID) as PATH");
+                sb.append(", A.PATH as PATH");
             } else {
                 sb.append(", NULL as PATH");
             }
+        } else if (select == null || !select.excludePath) {
+            // Stored path is selected from the CTE
+            sb.append(", A.PATH as PATH");
         }
 
         if (select == null || !select.excludeAttributes) {
@@ -1130,34 +1376,73 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     protected String buildOrderByString(AssetQuery query) {
         StringBuilder sb = new StringBuilder();
 
-        if (query.ids != null && !query.recursive) {
+        if (query.ids != null && !query.recursive && query.after == null) {
             return sb.toString();
         }
 
         if (query.orderBy != null && query.orderBy.property != null) {
-            sb.append(" order by ");
+            String direction = query.orderBy.descending ? "desc " : "asc ";
+            sb.append(" order by A.");
+            sb.append(getOrderByColumn(query.orderBy.property));
+            sb.append(" ");
+            sb.append(direction);
+            // Assets with the same property value are ordered by identifier, so pages don't overlap or skip assets
+            sb.append(", A.ID ");
+            sb.append(direction);
+        }
 
-            switch (query.orderBy.property) {
-                case CREATED_ON:
-                    sb.append(" A.CREATED_ON ");
-                    break;
-                case ASSET_TYPE:
-                    sb.append(" A.ASSET_TYPE ");
-                    break;
-                case NAME:
-                    sb.append(" A.NAME ");
-                    break;
-                case PARENT_ID:
-                    sb.append(" A.PARENT_ID ");
-                    break;
-                case REALM:
-                    sb.append(" A.REALM ");
-                    break;
+        return sb.toString();
+    }
+
+    protected static String getOrderByColumn(OrderBy.Property property) {
+        switch (property) {
+            case ASSET_TYPE:
+                return "ASSET_TYPE";
+            case NAME:
+                return "NAME";
+            case PARENT_ID:
+                return "PARENT_ID";
+            case REALM:
+                return "REALM";
+            default:
+                return "CREATED_ON";
+        }
+    }
+
+    /**
+     * Restricts the result to the assets ordered after the {@link AssetQuery#after} asset, comparing the order by
+     * property and identifier of the asset with the values of the given asset (keyset pagination). The page is empty
+     * if the given asset doesn't exist anymore.
+     */
+    protected void appendAfterCondition(StringBuilder sb, AssetQuery query, List<ParameterBinder> binders) {
+        if (query.after == null || query.orderBy == null || query.orderBy.property == null)
+            return;
+
+        String column = getOrderByColumn(query.orderBy.property);
+        String comparison = query.orderBy.descending ? "<" : ">";
+        String afterAsset = " from ASSET K where K.ID = ?";
+
+        if (query.orderBy.property == OrderBy.Property.PARENT_ID) {
+            // Nullable column, assets without parent are ordered last (ascending) or first (descending)
+            sb.append(" and (case when not exists (select K.ID").append(afterAsset).append(") then false");
+            sb.append(" when (select K.PARENT_ID").append(afterAsset).append(") is null then ");
+            sb.append(query.orderBy.descending ? "A.PARENT_ID is not null or " : "A.PARENT_ID is null and ");
+            sb.append("A.ID ").append(comparison).append(" ?");
+            sb.append(" else ");
+            sb.append(query.orderBy.descending ? "" : "A.PARENT_ID is null or ");
+            sb.append("(A.PARENT_ID, A.ID) ").append(comparison).append(" (select K.PARENT_ID, K.ID").append(afterAsset).append(")");
+            sb.append(" end)");
+            for (int i = 0; i < 4; i++) {
+                final int pos = binders.size() + 1;
+                binders.add(st -> st.setString(pos, query.after));
             }
-            sb.append(query.orderBy.descending ? "desc " : "asc ");
+            return;
         }
 
-        return sb.toString();
+        sb.append(" and (A.").append(column).append(", A.ID) ").append(comparison);
+        sb.append(" (select K.").append(column).append(", K.ID").append(afterAsset).append(")");
+        final int pos = binders.size() + 1;
+        binders.add(st -> st.setString(pos, query.after));
     }
 
     protected String buildLimitString(AssetQuery query) {
@@ -1265,7 +1550,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 }
                 isFirst = false;
 
-                sb.append("? <@ get_asset_tree_path(A.ID)");
+                sb.append("A.PATH @> ?");
                 final int pos = binders.size() + 1;
                 binders.add(st -> st.setArray(pos, st.getConnection().createArrayOf("text", pred.path)));
             }
@@ -1320,6 +1605,10 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 sb.append(")");
             }
 
+            appendAfterCondition(sb, query, binders);
+
+            appendAttributeIndexConditions(sb, query, binders);
+
             if (query.attributeMeta != null) {
                 for (MetaPredicate attributeMetaPredicate : query.attributeMeta) {
                     String attributeMetaFilter = buildAttributeMetaFilter(binders, attributeMetaPredicate);
@@ -1424,6 +1713,144 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         return Arrays.stream(pathPredicates).anyMatch(p -> p.path != null);
     }
 
+    /**
+     * Appends conditions on the indexed ATTRIBUTE_NAMES, ATTRIBUTE_META and LOCATION columns (derived from ATTRIBUTES
+     * by a trigger) that are implied by the attribute and attribute meta predicates of the query, so candidate assets
+     * are found with an index scan; the predicates are still evaluated on the ATTRIBUTES of the candidates.
+     */
+    protected void appendAttributeIndexConditions(StringBuilder sb, AssetQuery query, List<ParameterBinder> binders) {
+        if (query.attributeMeta != null) {
+            for (MetaPredicate attributeMetaPredicate : query.attributeMeta) {
+                ObjectValue metaItem = getIndexedMetaItem(attributeMetaPredicate);
+                if (metaItem != null) {
+                    sb.append(" and A.ATTRIBUTE_META @> ?::jsonb");
+                    final int pos = binders.size() + 1;
+                    binders.add(st -> st.setString(pos, Values.createArray().add(metaItem).toJson()));
+                }
+            }
+        }
+
+        if (query.attributes != null) {
+            appendAttributeIndexConditions(sb, query.attributes, binders);
+        }
+    }
+
+    protected void appendAttributeIndexConditions(StringBuilder sb, LogicGroup<AttributePredicate> group, List<ParameterBinder> binders) {
+        if (group.operator == LogicGroup.Operator.OR) {
+            // At least one of the attributes must exist, if all are named and there are no nested groups
+            if (group.getItems().isEmpty() || (group.groups != null && !group.groups.isEmpty()))
+                return;
+            List<String> names = new ArrayList<>();
+            for (AttributePredicate attributePredicate : group.getItems()) {
+                if (attributePredicate.notExists || !isExactMatch(attributePredicate.name))
+                    return;
+                names.add(attributePredicate.name.value);
+            }
+            sb.append(" and A.ATTRIBUTE_NAMES && ?");
+            final int pos = binders.size() + 1;
+            binders.add(st -> st.setArray(pos, st.getConnection().createArrayOf("text", names.toArray())));
+            return;
+        }
+
+        // All items and nested groups must match
+        for (AttributePredicate attributePredicate : group.getItems()) {
+            if (attributePredicate.notExists || !isExactMatch(attributePredicate.name))
+                continue;
+            sb.append(" and A.ATTRIBUTE_NAMES @> array[?::text]");
+            final int pos = binders.size() + 1;
+            binders.add(st -> st.setString(pos, attributePredicate.name.value));
+
+            if (AttributeType.LOCATION.getAttributeName().equals(attributePredicate.name.value)) {
+                appendLocationIndexCondition(sb, attributePredicate.value);
+            }
+        }
+        if (group.groups != null) {
+            for (LogicGroup<AttributePredicate> childGroup : group.groups) {
+                appendAttributeIndexConditions(sb, childGroup, binders);
+            }
+        }
+    }
+
+    protected void appendLocationIndexCondition(StringBuilder sb, ValuePredicate valuePredicate) {
+        if (valuePredicate instanceof RadialGeofencePredicate) {
+            RadialGeofencePredicate location = (RadialGeofencePredicate) valuePredicate;
+            if (location.negated)
+                return;
+            // Bounding box of the circle in degrees, a degree of latitude is more than 111km on the sphere of ST_DistanceSphere
+            double latDelta = location.radius / 111000d;
+            double lngDelta = latDelta / Math.cos(Math.toRadians(Math.min(Math.abs(location.lat) + latDelta, 90)));
+            if (Double.isNaN(lngDelta) || Double.isInfinite(lngDelta)
+                || location.lat - latDelta < -90 || location.lat + latDelta > 90
+                || location.lng - lngDelta < -180 || location.lng + lngDelta > 180) {
+                // Don't handle boxes crossing the poles or the antimeridian
+                return;
+            }
+            appendLocationEnvelopeCondition(sb, location.lng - lngDelta, location.lat - latDelta, location.lng + lngDelta, location.lat + latDelta);
+        } else if (valuePredicate instanceof RectangularGeofencePredicate) {
+            RectangularGeofencePredicate location = (RectangularGeofencePredicate) valuePredicate;
+            if (location.negated)
+                return;
+            appendLocationEnvelopeCondition(sb, location.lngMin, location.latMin, location.lngMax, location.latMax);
+        }
+    }
+
+    protected void appendLocationEnvelopeCondition(StringBuilder sb, double lngMin, double latMin, double lngMax, double latMax) {
+        sb.append(" and A.LOCATION && ST_MakeEnvelope(")
+            .append(lngMin)
+            .append(",")
+            .append(latMin)
+            .append(",")
+            .append(lngMax)
+            .append(",")
+            .append(latMax)
+            .append(", 4326)");
+    }
+
+    /**
+     * @return the meta item that must be contained in the ATTRIBUTE_META of assets matching the predicate, or
+     * <code>null</code> if the predicate doesn't match an exact meta item name.
+     */
+    protected static ObjectValue getIndexedMetaItem(MetaPredicate attributeMetaPredicate) {
+        if (!isExactMatch(attributeMetaPredicate.itemNamePredicate))
+            return null;
+        ObjectValue metaItem = Values.createObject().put("name", attributeMetaPredicate.itemNamePredicate.value);
+        ValuePredicate valuePredicate = attributeMetaPredicate.itemValuePredicate;
+        if (valuePredicate instanceof StringPredicate && isExactJsonStringMatch((StringPredicate) valuePredicate)) {
+            metaItem.put("value", ((StringPredicate) valuePredicate).value);
+        } else if (valuePredicate instanceof BooleanPredicate) {
+            metaItem.put("value", ((BooleanPredicate) valuePredicate).value);
+        } else if (valuePredicate instanceof StringArrayPredicate
+            && ((StringArrayPredicate) valuePredicate).predicates.length > 0
+            && Arrays.stream(((StringArrayPredicate) valuePredicate).predicates).allMatch(AssetStorageService::isExactJsonStringMatch)) {
+            // Containment ignores the order of the elements, the predicate is evaluated on the candidates
+            metaItem.put("value", Values.createArray().addAll(
+                Arrays.stream(((StringArrayPredicate) valuePredicate).predicates).map(p -> p.value).toArray(String[]::new)
+            ));
+        }
+        return metaItem;
+    }
+
+    protected static boolean isExactMatch(StringPredicate predicate) {
+        return predicate != null
+            && predicate.value != null
+            && predicate.match == Match.EXACT
+            && predicate.caseSensitive
+            && !predicate.negate;
+    }
+
+    /**
+     * String predicates are evaluated on the text of JSON values, a value that is also the text of a number, boolean,
+     * object or array could match a JSON value that isn't a string.
+     */
+    protected static boolean isExactJsonStringMatch(StringPredicate predicate) {
+        return isExactMatch(predicate)
+            && !predicate.value.equals("true")
+            && !predicate.value.equals("false")
+            && !predicate.value.startsWith("{")
+            && !predicate.value.startsWith("[")
+            && !JSON_NUMBER_PATTERN.matcher(predicate.value).matches();
+    }
+
     protected String buildAttributeMetaFilter(List<ParameterBinder> binders, MetaPredicate...attributeMetaPredicates) {
         StringBuilder sb = new StringBuilder();
 
@@ -1774,7 +2201,8 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
         if (query.select == null || !query.select.excludeAttributes) {
             if (rs.getString("ATTRIBUTES") != null) {
-                asset.setAttributes(Values.instance().<ObjectValue>parse(rs.getString("ATTRIBUTES")).orElse(null));
+                // Attributes are only parsed when accessed, untouched attributes are serialised verbatim
+                asset.attributes = Values.parseObjectLazily(rs.getString("ATTRIBUTES")).orElse(null);
             }
         }
 
@@ -1785,10 +2213,47 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             }
         }
 
+        if (attributeValueBuffer != null && asset.attributes != null) {
+            attributeValueBuffer.apply(
+                asset,
+                query.select == null || !query.select.excludeAttributeValue,
+                query.select == null || !query.select.excludeAttributeTimestamp
+            );
+        }
+
         return asset;
     }
 
+    /**
+     * Stores the attribute value and value timestamp (as JSON) in the transaction of the given entity manager. When
+     * {@link #ASSET_ATTRIBUTE_WRITE_FLUSH_MILLIS} is set, the value is buffered when the transaction has been
+     * committed and written later; loaded assets include buffered values but attribute value predicates of asset
+     * queries are evaluated against the written values. A buffered value is only accepted if the asset attribute
+     * exists, a value older than the buffered value of the attribute is ignored.
+     */
     public boolean storeAttributeValue(EntityManager em, String assetId, String attributeName, Value value, String timestamp) {
+        if (attributeValueBuffer != null) {
+            if (!AssetAttribute.ATTRIBUTE_NAME_VALIDATOR.test(attributeName)) {
+                LOG.fine(
+                    "Invalid attribute name (must match '" + AssetAttribute.ATTRIBUTE_NAME_PATTERN + "'): " + attributeName
+                );
+                return false;
+            }
+            if (!attributeExists(em, assetId, attributeName)) {
+                LOG.fine("Asset '" + assetId + "' attribute '" + attributeName + "' not found, value not buffered");
+                return false;
+            }
+            em.unwrap(Session.class).addEventListeners(new BaseSessionEventListener() {
+                @Override
+                public void transactionCompletion(boolean successful) {
+                    if (successful) {
+                        bufferAttributeValue(assetId, attributeName, value, timestamp);
+                    }
+                }
+            });
+            return true;
+        }
+
         return em.unwrap(Session.class).doReturningWork(connection -> {
             String update =
                 "update ASSET" +
@@ -1832,6 +2297,19 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 statement.setString(6, attributeName);
 
                 int updatedRows = statement.executeUpdate();
+                if (updatedRows == 1 && assetCache != null) {
+                    // Readers must not see the value before it has been committed
+                    em.unwrap(Session.class).addEventListeners(new BaseSessionEventListener() {
+                        @Override
+                        public void transactionCompletion(boolean successful) {
+                            if (successful) {
+                                assetCache.updateAttributeValue(assetId, attributeName, value, Values.instance().parse(timestamp).orElse(null));
+                            } else {
+                                assetCache.invalidate(assetId);
+                            }
+                        }
+                    });
+                }
                 LOG.fine("Stored asset '" + assetId
                     + "' attribute '" + attributeName
                     + "' (affected rows: " + updatedRows + ") value: "
@@ -1841,6 +2319,113 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         });
     }
 
+    /**
+     * @return <code>true</code> if the asset has the attribute, the cached asset is used if available.
+     */
+    protected boolean attributeExists(EntityManager em, String assetId, String attributeName) {
+        Boolean cached = assetCache != null ? assetCache.hasAttribute(assetId, attributeName) : null;
+        if (cached != null) {
+            return cached;
+        }
+        return em.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement st = connection.prepareStatement("select 1 from ASSET where ID = ? and ATTRIBUTES -> ? is not null")) {
+                st.setString(1, assetId);
+                st.setString(2, attributeName);
+                try (ResultSet rs = st.executeQuery()) {
+                    return rs.next();
+                }
+            }
+        });
+    }
+
+    protected void bufferAttributeValue(String assetId, String attributeName, Value value, String timestamp) {
+        if (!attributeValueBuffer.put(assetId, attributeName, value, timestamp)) {
+            LOG.fine("Ignoring asset '" + assetId + "' attribute '" + attributeName
+                + "' value older than the buffered value: " + timestamp);
+            return;
+        }
+        if (assetCache != null) {
+            // Update the cache after the buffer, a concurrent load then either includes the buffered value or isn't cached
+            assetCache.updateAttributeValue(assetId, attributeName, value, Values.instance().parse(timestamp).orElse(null));
+        }
+        LOG.finest("Buffered asset '" + assetId + "' attribute '" + attributeName + "' value: "
+            + (value != null ? value.toJson() : "null"));
+    }
+
+    /**
+     * Writes the buffered attribute values, one update of the stored attributes per asset. When a batch fails, its
+     * assets are written one by one and the values of assets that still fail are retried with the next flush.
+     */
+    protected synchronized void flushAttributeValues() {
+        Map<String, Map<String, AttributeValueBuffer.PendingValue>> pending = attributeValueBuffer.drain();
+        try {
+            if (pending.isEmpty())
+                return;
+            long startMillis = System.currentTimeMillis();
+            List<Map.Entry<String, Map<String, AttributeValueBuffer.PendingValue>>> entries = new ArrayList<>(pending.entrySet());
+            for (int i = 0; i < entries.size(); i += ATTRIBUTE_VALUE_WRITE_BATCH_SIZE) {
+                List<Map.Entry<String, Map<String, AttributeValueBuffer.PendingValue>>> batch =
+                    entries.subList(i, Math.min(i + ATTRIBUTE_VALUE_WRITE_BATCH_SIZE, entries.size()));
+                try {
+                    writeAttributeValues(batch);
+                    batch.forEach(assetValues -> attributeValueFlushedCount.addAndGet(assetValues.getValue().size()));
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "Failed to write buffered attribute values of assets, writing them one by one: " + batch.size(), e);
+                    batch.forEach(this::writeAttributeValuesOrRequeue);
+                }
+            }
+            attributeValueLastFlushMillis = System.currentTimeMillis() - startMillis;
+            LOG.finest("Flushed attribute values of assets in " + attributeValueLastFlushMillis + "ms: " + pending.size());
+        } finally {
+            attributeValueBuffer.drainWritten();
+        }
+    }
+
+    protected void writeAttributeValues(List<Map.Entry<String, Map<String, AttributeValueBuffer.PendingValue>>> batch) {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement st = connection.prepareStatement(UPDATE_ATTRIBUTE_VALUES_SQL)) {
+                for (Map.Entry<String, Map<String, AttributeValueBuffer.PendingValue>> assetValues : batch) {
+                    st.setString(1, toAttributeValuesJson(assetValues.getValue()));
+                    st.setString(2, assetValues.getKey());
+                    st.addBatch();
+                }
+                st.executeBatch();
+            }
+        }));
+    }
+
+    /**
+     * Writes the buffered values of an asset in their own transaction, values that can't be written are retried with
+     * the next flush (unless a newer value has been buffered) until they failed too often.
+     */
+    protected void writeAttributeValuesOrRequeue(Map.Entry<String, Map<String, AttributeValueBuffer.PendingValue>> assetValues) {
+        try {
+            writeAttributeValues(Collections.singletonList(assetValues));
+            attributeValueFlushedCount.addAndGet(assetValues.getValue().size());
+        } catch (Exception e) {
+            boolean retry = assetValues.getValue().values().stream()
+                .allMatch(pendingValue -> pendingValue.getFailedWrites() + 1 < ATTRIBUTE_VALUE_WRITE_ATTEMPTS_MAX);
+            if (retry) {
+                LOG.log(Level.WARNING, "Failed to write buffered attribute values of asset, retrying: " + assetValues.getKey(), e);
+                attributeValueBuffer.requeue(assetValues.getKey(), assetValues.getValue());
+            } else {
+                LOG.log(Level.SEVERE, "Failed to write buffered attribute values of asset " + ATTRIBUTE_VALUE_WRITE_ATTEMPTS_MAX
+                    + " times, discarding: " + assetValues.getKey(), e);
+                // The cached asset has the discarded values
+                invalidateCachedAsset(assetValues.getKey());
+            }
+        }
+    }
+
+    protected static String toAttributeValuesJson(Map<String, AttributeValueBuffer.PendingValue> values) {
+        // Attribute names have been validated, the value and timestamp are JSON
+        return values.entrySet().stream()
+            .map(entry -> "\"" + entry.getKey() + "\":{\"value\":"
+                + (entry.getValue().getValue() != null ? entry.getValue().getValue().toJson() : "null")
+                + ",\"valueTimestamp\":" + entry.getValue().getTimestamp() + "}")
+            .collect(joining(",", "{", "}"));
+    }
+
     // TODO: Remove AssetTreeModifiedEvent once GWT client replaced
     protected void publishModificationEvents(PersistenceEvent<Asset> persistenceEvent) {
         Asset asset = persistenceEvent.getEntity();
@@ -33,6 +33,10 @@ import javax.persistence.EntityManager;
  * caller of this has already obtained the lock. Internal synchronization and thread-safety
  * must still be maintained if shared state of a processor can be modified by concurrent tasks
  * maintained by that processor.
+ * <p>
+ * When {@link AssetProcessingService#ASSET_QUEUE_PARTITIONS} is configured, the caller holds the
+ * shared side of the {@link org.openremote.container.concurrent.ProcessingBarrier} instead and
+ * updates of different assets can be processed concurrently.
  */
 public interface AssetUpdateProcessor {
 
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import org.openremote.model.asset.Asset;
+import org.openremote.model.value.ObjectValue;
+import org.openremote.model.value.Value;
+import org.openremote.model.value.Values;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the latest committed value and value timestamp of asset attributes that haven't been written to the
+ * database yet, keyed by asset identifier and attribute name. A newer value of an attribute replaces the pending
+ * value, so only the latest value of each attribute is written when the buffer is {@link #drain}ed; a value with an
+ * older timestamp than the pending or drained value is rejected. Drained values are still applied to loaded assets
+ * until {@link #drainWritten} is called, so readers don't see the previous database state while values are being
+ * written. Values that couldn't be written can be {@link #requeue}d.
+ */
+public class AttributeValueBuffer {
+
+    public static class PendingValue {
+        final protected Value value;
+        final protected String timestamp;
+        final protected Value timestampValue;
+        final protected double timestampMillis;
+        protected int failedWrites;
+
+        public PendingValue(Value value, String timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.timestampValue = Values.instance().parse(timestamp).orElse(null);
+            this.timestampMillis = Values.getNumber(timestampValue).orElse(0d);
+        }
+
+        public Value getValue() {
+            return value;
+        }
+
+        /**
+         * @return the value timestamp as JSON.
+         */
+        public String getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the number of times writing the value failed.
+         */
+        public int getFailedWrites() {
+            return failedWrites;
+        }
+
+        protected boolean isOlderThan(PendingValue other) {
+            return other != null && timestampMillis < other.timestampMillis;
+        }
+    }
+
+    protected Map<String, Map<String, PendingValue>> pending = new HashMap<>();
+    protected Map<String, Map<String, PendingValue>> writing = new HashMap<>();
+    protected int size;
+    protected long coalesced;
+
+    /**
+     * @return <code>false</code> if the value is older than the pending or drained value of the attribute and was
+     * rejected.
+     */
+    synchronized public boolean put(String assetId, String attributeName, Value value, String timestamp) {
+        PendingValue pendingValue = new PendingValue(value, timestamp);
+        Map<String, PendingValue> writingValues = writing.get(assetId);
+        if (writingValues != null && pendingValue.isOlderThan(writingValues.get(attributeName))) {
+            return false;
+        }
+        Map<String, PendingValue> values = pending.computeIfAbsent(assetId, id -> new HashMap<>());
+        PendingValue previous = values.get(attributeName);
+        if (pendingValue.isOlderThan(previous)) {
+            return false;
+        }
+        values.put(attributeName, pendingValue);
+        if (previous == null) {
+            size++;
+        } else {
+            coalesced++;
+        }
+        return true;
+    }
+
+    /**
+     * Puts drained values that couldn't be written back into the buffer, unless a newer value of the attribute has
+     * been put since the values were drained.
+     */
+    synchronized public void requeue(String assetId, Map<String, PendingValue> values) {
+        Map<String, PendingValue> assetValues = pending.computeIfAbsent(assetId, id -> new HashMap<>());
+        values.forEach((attributeName, failedValue) -> {
+            failedValue.failedWrites++;
+            PendingValue current = assetValues.get(attributeName);
+            if (current == null) {
+                assetValues.put(attributeName, failedValue);
+                size++;
+            } else if (current.isOlderThan(failedValue)) {
+                assetValues.put(attributeName, failedValue);
+            }
+        });
+        if (assetValues.isEmpty()) {
+            pending.remove(assetId);
+        }
+    }
+
+    /**
+     * Discards the pending values of the given assets, call this when the assets are stored or deleted.
+     */
+    synchronized public void discard(Collection<String> assetIds) {
+        for (String assetId : assetIds) {
+            Map<String, PendingValue> values = pending.remove(assetId);
+            if (values != null) {
+                size -= values.size();
+            }
+            writing.remove(assetId);
+        }
+    }
+
+    /**
+     * Replaces the value and value timestamp of the loaded asset attributes with pending values; attributes that
+     * weren't loaded or that have a newer value timestamp than the pending value (stored with the asset) are ignored.
+     */
+    synchronized public void apply(Asset asset, boolean includeValue, boolean includeTimestamp) {
+        if (asset.getAttributes() == null)
+            return;
+        apply(asset, writing.get(asset.getId()), includeValue, includeTimestamp);
+        apply(asset, pending.get(asset.getId()), includeValue, includeTimestamp);
+    }
+
+    protected void apply(Asset asset, Map<String, PendingValue> values, boolean includeValue, boolean includeTimestamp) {
+        if (values == null)
+            return;
+        values.forEach((attributeName, pendingValue) -> {
+            ObjectValue attribute = asset.getAttributes().getObject(attributeName).orElse(null);
+            if (attribute == null)
+                return;
+            double timestamp = Values.getNumber(pendingValue.timestampValue).orElse(0d);
+            if (attribute.getNumber("valueTimestamp").filter(loadedTimestamp -> loadedTimestamp > timestamp).isPresent())
+                return;
+            if (includeValue) {
+                attribute.put("value", AssetCache.copyOf(pendingValue.value));
+            }
+            if (includeTimestamp) {
+                attribute.put("valueTimestamp", pendingValue.timestampValue);
+            }
+        });
+    }
+
+    /**
+     * @return all pending values, {@link #drainWritten} must be called when they have been written.
+     */
+    synchronized public Map<String, Map<String, PendingValue>> drain() {
+        writing = pending;
+        pending = new HashMap<>();
+        size = 0;
+        return new HashMap<>(writing);
+    }
+
+    synchronized public void drainWritten() {
+        writing = new HashMap<>();
+    }
+
+    synchronized public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of values that were replaced by a newer value before they were written.
+     */
+    synchronized public long getCoalesced() {
+        return coalesced;
+    }
+}
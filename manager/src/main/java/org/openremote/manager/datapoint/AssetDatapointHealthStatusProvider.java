@@ -66,6 +66,20 @@ public class AssetDatapointHealthStatusProvider implements ContainerHealthStatus
     public Value getHealthStatus() {
         ObjectValue value = Values.createObject();
         value.put("totalDatapoints", assetDatapointService.getDatapointsCount());
+        if (assetDatapointService.isWriteBufferEnabled()) {
+            ObjectValue writeBuffer = Values.createObject();
+            writeBuffer.put("depth", assetDatapointService.getWriteBufferDepth());
+            writeBuffer.put("flushedDatapoints", assetDatapointService.getWriteBufferFlushedCount());
+            writeBuffer.put("lastFlushMillis", assetDatapointService.getWriteBufferLastFlushMillis());
+            writeBuffer.put("maxFlushMillis", assetDatapointService.getWriteBufferMaxFlushMillis());
+            value.put("writeBuffer", writeBuffer);
+        }
+        if (assetDatapointService.isRollupEnabled()) {
+            value.put("rollupWatermark", assetDatapointService.getRollupWatermark());
+        }
+        if (assetDatapointService.isPartitionEnabled()) {
+            value.put("partitions", assetDatapointService.getPartitionCount());
+        }
         return value;
     }
 }
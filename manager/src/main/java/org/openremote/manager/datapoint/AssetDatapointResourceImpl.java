@@ -26,6 +26,7 @@ import org.openremote.manager.web.ManagerWebResource;
 import org.openremote.model.asset.Asset;
 import org.openremote.model.asset.AssetAttribute;
 import org.openremote.model.datapoint.AssetDatapointResource;
+import org.openremote.model.datapoint.DatapointAlgorithm;
 import org.openremote.model.datapoint.DatapointInterval;
 import org.openremote.model.datapoint.ValueDatapoint;
 import org.openremote.model.http.RequestParams;
@@ -57,7 +58,9 @@ public class AssetDatapointResourceImpl extends ManagerWebResource implements As
                                                  String attributeName,
                                                  DatapointInterval interval,
                                                  long fromTimestamp,
-                                                 long toTimestamp) {
+                                                 long toTimestamp,
+                                                 int maxPoints,
+                                                 DatapointAlgorithm algorithm) {
         try {
 
             if (isRestrictedUser() && !assetStorageService.isUserAsset(getUserId(), assetId)) {
@@ -83,7 +86,9 @@ public class AssetDatapointResourceImpl extends ManagerWebResource implements As
                 attribute,
                 interval,
                 fromTimestamp,
-                toTimestamp
+                toTimestamp,
+                maxPoints,
+                algorithm
             );
         } catch (IllegalStateException ex) {
             throw new WebApplicationException(ex, Response.Status.BAD_REQUEST);
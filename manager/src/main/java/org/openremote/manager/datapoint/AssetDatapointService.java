@@ -1,5 +1,6 @@
 package org.openremote.manager.datapoint;
 
+import org.hibernate.BaseSessionEventListener;
 import org.hibernate.Session;
 import org.hibernate.jdbc.AbstractReturningWork;
 import org.openremote.container.Container;
@@ -18,6 +19,7 @@ import org.openremote.model.attribute.AttributeEvent.Source;
 import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.attribute.MetaItemType;
 import org.openremote.model.datapoint.AssetDatapoint;
+import org.openremote.model.datapoint.DatapointAlgorithm;
 import org.openremote.model.datapoint.DatapointInterval;
 import org.openremote.model.datapoint.ValueDatapoint;
 import org.openremote.model.query.AssetQuery;
@@ -32,29 +34,126 @@ import javax.persistence.TypedQuery;
 import java.sql.*;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import static java.time.temporal.ChronoUnit.DAYS;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
+import static org.openremote.container.util.MapAccess.getString;
 
 /**
  * Store and retrieve datapoints for asset attributes and periodically purge data points based on
  * {@link MetaItemType#DATA_POINTS_MAX_AGE_DAYS} {@link org.openremote.model.attribute.MetaItem}
  * and {@link #DATA_POINTS_MAX_AGE_DAYS} setting; storage duration defaults to {@value #DATA_POINTS_MAX_AGE_DAYS_DEFAULT}
  * days.
+ * <p>
+ * Datapoints are persisted in the attribute event transaction by default. When {@link #DATA_POINTS_WRITE_BUFFER_SIZE}
+ * is set, datapoints are queued in a bounded write-behind buffer instead and flushed with JDBC batch inserts whenever
+ * {@link #DATA_POINTS_WRITE_BATCH_SIZE} datapoints are waiting or every {@link #DATA_POINTS_WRITE_FLUSH_MILLIS}. A
+ * full buffer blocks the attribute event processing until a flush completes. Datapoints are only added to the buffer
+ * when the attribute event transaction commits; the datapoints of a batch that can't be written are written one by
+ * one, so only datapoints that can never be written are discarded.
+ * <p>
+ * When {@link #DATA_POINTS_ROLLUP} is enabled, numeric and boolean datapoints are aggregated in the background into
+ * per minute, hour and day rollups (count, min, max, sum and last value). Interval queries then read the coarsest
+ * rollup matching the requested {@link DatapointInterval} plus any raw datapoints that haven't been rolled up yet.
+ * Buckets of datapoints stored late, with a timestamp that has already been rolled up, are rolled up again on the next
+ * run.
+ * Rollups are kept for {@link #DATA_POINTS_ROLLUP_MAX_AGE_DAYS}, so {@link #DATA_POINTS_MAX_AGE_DAYS} can be reduced
+ * to purge raw datapoints earlier while charts of older data remain available.
+ * <p>
+ * When {@link #DATA_POINTS_PARTITION} is set to {@code DAY} or {@code MONTH}, new datapoints are written to child
+ * tables of {@code ASSET_DATAPOINT} per day or month, created ahead of time by a daily maintenance task; datapoints
+ * with a timestamp outside of the created partitions are written to the {@code ASSET_DATAPOINT} table itself, so
+ * writers never execute DDL. The daily purge drops whole partitions once they are older than
+ * {@link #DATA_POINTS_MAX_AGE_DAYS}, after copying the datapoints of attributes with a longer
+ * {@link MetaItemType#DATA_POINTS_MAX_AGE_DAYS} to the {@code ASSET_DATAPOINT} table. Datapoints of attributes with
+ * a custom max age are deleted individually.
  */
 public class AssetDatapointService implements ContainerService, AssetUpdateProcessor {
 
     public static final String DATA_POINTS_MAX_AGE_DAYS = "DATA_POINTS_MAX_AGE_DAYS";
     public static final String DATA_POINTS_MAX_AGE_DAYS_DEFAULT = "31";
+    public static final String DATA_POINTS_WRITE_BUFFER_SIZE = "DATA_POINTS_WRITE_BUFFER_SIZE";
+    public static final int DATA_POINTS_WRITE_BUFFER_SIZE_DEFAULT = 0;
+    public static final String DATA_POINTS_WRITE_BATCH_SIZE = "DATA_POINTS_WRITE_BATCH_SIZE";
+    public static final int DATA_POINTS_WRITE_BATCH_SIZE_DEFAULT = 500;
+    public static final String DATA_POINTS_WRITE_FLUSH_MILLIS = "DATA_POINTS_WRITE_FLUSH_MILLIS";
+    public static final int DATA_POINTS_WRITE_FLUSH_MILLIS_DEFAULT = 1000;
+    public static final int DATA_POINTS_WRITE_MAX_ATTEMPTS = 5;
+    public static final String DATA_POINTS_ROLLUP = "DATA_POINTS_ROLLUP";
+    public static final boolean DATA_POINTS_ROLLUP_DEFAULT = false;
+    public static final String DATA_POINTS_ROLLUP_MAX_AGE_DAYS = "DATA_POINTS_ROLLUP_MAX_AGE_DAYS";
+    public static final int DATA_POINTS_ROLLUP_MAX_AGE_DAYS_DEFAULT = 1825;
+    public static final String DATA_POINTS_ROLLUP_DELAY_MILLIS = "DATA_POINTS_ROLLUP_DELAY_MILLIS";
+    public static final int DATA_POINTS_ROLLUP_DELAY_MILLIS_DEFAULT = 60000;
+    public static final String DATA_POINTS_PARTITION = "DATA_POINTS_PARTITION";
+    public static final String DATA_POINTS_PARTITION_DEFAULT = "NONE";
+    public static final int DATA_POINTS_PARTITIONS_AHEAD = 2;
+    public static final int DATA_POINTS_FETCH_SIZE = 1000;
+    protected static final String DATAPOINT_TABLE = "ASSET_DATAPOINT";
+    // The numeric number column is null for datapoints written before it was added, also used for predicted datapoints
+    public static final String NUMBER_VALUE_COLUMN = "coalesce(NUMBER_VALUE, VALUE::text::numeric)";
+    public static final String BOOLEAN_VALUE_COLUMN = "coalesce(NUMBER_VALUE, case when VALUE::text::boolean is true then 1 else 0 end)";
+    protected static final String PARTITION_PREFIX = "asset_datapoint_";
+    protected static final DateTimeFormatter PARTITION_MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+    protected static final String ROLLUP_UPSERT_SQL = "insert into ASSET_DATAPOINT_ROLLUP " +
+        "(ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, TIMESTAMP, VALUE_COUNT, VALUE_MIN, VALUE_MAX, VALUE_SUM, VALUE_LAST) ";
+    protected static final String ROLLUP_CONFLICT_SQL = " on conflict (ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, TIMESTAMP) do update set " +
+        "VALUE_COUNT = excluded.VALUE_COUNT, VALUE_MIN = excluded.VALUE_MIN, VALUE_MAX = excluded.VALUE_MAX, " +
+        "VALUE_SUM = excluded.VALUE_SUM, VALUE_LAST = excluded.VALUE_LAST";
+    protected static final String ROLLUP_MINUTE_SQL = ROLLUP_UPSERT_SQL +
+        "select ENTITY_ID, ATTRIBUTE_NAME, 'MINUTE', date_trunc('minute', TIMESTAMP), count(*), min(N), max(N), sum(N), " +
+        "(array_agg(N order by TIMESTAMP desc))[1] from (" +
+        "  select ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP, case jsonb_typeof(VALUE) when 'number' then " + NUMBER_VALUE_COLUMN +
+        "  else " + BOOLEAN_VALUE_COLUMN + " end as N " +
+        "  from ASSET_DATAPOINT where TIMESTAMP >= date_trunc('minute', ?::timestamp) and TIMESTAMP < ? " +
+        "  and jsonb_typeof(VALUE) in ('number', 'boolean')" +
+        ") DP group by ENTITY_ID, ATTRIBUTE_NAME, date_trunc('minute', TIMESTAMP)" + ROLLUP_CONFLICT_SQL;
+    protected static final String ROLLUP_COARSE_SQL = ROLLUP_UPSERT_SQL +
+        "select ENTITY_ID, ATTRIBUTE_NAME, ?, date_trunc(?, TIMESTAMP), sum(VALUE_COUNT), min(VALUE_MIN), max(VALUE_MAX), " +
+        "sum(VALUE_SUM), (array_agg(VALUE_LAST order by TIMESTAMP desc))[1] from ASSET_DATAPOINT_ROLLUP " +
+        "where RESOLUTION = ? and TIMESTAMP >= date_trunc(?, ?::timestamp) and TIMESTAMP < ? " +
+        "group by ENTITY_ID, ATTRIBUTE_NAME, date_trunc(?, TIMESTAMP)" + ROLLUP_CONFLICT_SQL;
+    protected static final String INSERT_DATAPOINT_SQL = "insert into %s (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP, VALUE) " +
+        "values (?, ?, ?, ?::jsonb) on conflict do nothing";
+    protected static final String DELETE_DATAPOINTS_SQL = "delete from ASSET_DATAPOINT " +
+        "where ENTITY_ID = ? and ATTRIBUTE_NAME = ? and TIMESTAMP < ?";
+    // Deletes the datapoints of all attributes except those whose entity IDs and attribute names are bound as arrays
+    protected static final String DELETE_OTHER_DATAPOINTS_SQL = "delete from %s where TIMESTAMP < ? " +
+        "and (ENTITY_ID, ATTRIBUTE_NAME) <> all(select * from unnest(?::text[], ?::text[]))";
+    // Copies the datapoints of an attribute from a partition that is about to be dropped to the parent table
+    protected static final String RETAIN_DATAPOINTS_SQL = "insert into ASSET_DATAPOINT (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP, VALUE) " +
+        "select ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP, VALUE from %s " +
+        "where ENTITY_ID = ? and ATTRIBUTE_NAME = ? and TIMESTAMP >= ? on conflict do nothing";
     private static final Logger LOG = Logger.getLogger(AssetDatapointService.class.getName());
     protected PersistenceService persistenceService;
     protected AssetStorageService assetStorageService;
@@ -62,6 +161,33 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
     protected ManagerExecutorService managerExecutorService;
     protected int maxDatapointAgeDays;
     protected ScheduledFuture dataPointsPurgeScheduledFuture;
+    protected BlockingDeque<AssetDatapoint> writeBuffer;
+    // Buffer capacity, a permit is taken before the attribute event transaction commits and released when the
+    // datapoint has been written or the transaction was rolled back
+    protected Semaphore writeBufferPermits;
+    // Failed writes of datapoints that are retried, by identity as datapoints of the same value are equal
+    protected final Map<AssetDatapoint, Integer> writeBufferFailedWrites = new IdentityHashMap<>();
+    protected int writeBatchSize;
+    protected int writeFlushMillis;
+    protected ScheduledFuture writeBufferFlushScheduledFuture;
+    protected final AtomicBoolean writeBufferFlushPending = new AtomicBoolean();
+    protected final AtomicLong writeBufferFlushedCount = new AtomicLong();
+    protected volatile long writeBufferLastFlushMillis;
+    protected volatile long writeBufferMaxFlushMillis;
+    protected boolean rollupEnabled;
+    protected int rollupMaxAgeDays;
+    protected int rollupDelayMillis;
+    protected ScheduledFuture rollupScheduledFuture;
+    // Datapoints before this time (epoch millis) have been rolled up
+    protected volatile long rollupWatermark;
+    // The end of the range being rolled up, datapoints written before this time must be rolled up again
+    protected volatile long rollupHorizon;
+    // Start of the minute buckets (epoch millis) with datapoints written behind the watermark
+    protected final Set<Long> rollupDirtyMinutes = ConcurrentHashMap.newKeySet();
+    // Partition period or null when datapoints aren't partitioned
+    protected ChronoUnit partitionUnit;
+    protected ScheduledFuture partitionScheduledFuture;
+    protected final Set<String> partitions = ConcurrentHashMap.newKeySet();
 
     @Override
     public int getPriority() {
@@ -91,10 +217,46 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
         if (maxDatapointAgeDays <= 0) {
             LOG.warning(DATA_POINTS_MAX_AGE_DAYS + " value is not a valid value so data points won't be auto purged");
         }
+
+        int writeBufferSize = getInteger(container.getConfig(), DATA_POINTS_WRITE_BUFFER_SIZE, DATA_POINTS_WRITE_BUFFER_SIZE_DEFAULT);
+        writeBatchSize = Math.max(getInteger(container.getConfig(), DATA_POINTS_WRITE_BATCH_SIZE, DATA_POINTS_WRITE_BATCH_SIZE_DEFAULT), 1);
+        writeFlushMillis = Math.max(getInteger(container.getConfig(), DATA_POINTS_WRITE_FLUSH_MILLIS, DATA_POINTS_WRITE_FLUSH_MILLIS_DEFAULT), 1);
+
+        rollupEnabled = getBoolean(container.getConfig(), DATA_POINTS_ROLLUP, DATA_POINTS_ROLLUP_DEFAULT);
+        rollupMaxAgeDays = getInteger(container.getConfig(), DATA_POINTS_ROLLUP_MAX_AGE_DAYS, DATA_POINTS_ROLLUP_MAX_AGE_DAYS_DEFAULT);
+        rollupDelayMillis = Math.max(getInteger(container.getConfig(), DATA_POINTS_ROLLUP_DELAY_MILLIS, DATA_POINTS_ROLLUP_DELAY_MILLIS_DEFAULT), 0);
+
+        String partition = getString(container.getConfig(), DATA_POINTS_PARTITION, DATA_POINTS_PARTITION_DEFAULT);
+        switch (partition.toUpperCase(Locale.ROOT)) {
+            case "DAY":
+                partitionUnit = ChronoUnit.DAYS;
+                break;
+            case "MONTH":
+                partitionUnit = ChronoUnit.MONTHS;
+                break;
+            case "NONE":
+                break;
+            default:
+                LOG.warning(DATA_POINTS_PARTITION + " value is not a valid value so data points won't be partitioned: " + partition);
+        }
+
+        if (writeBufferSize > 0) {
+            LOG.info("Buffering data points for batch writes, buffer size: " + writeBufferSize + ", batch size: " + writeBatchSize);
+            writeBuffer = new LinkedBlockingDeque<>();
+            writeBufferPermits = new Semaphore(writeBufferSize);
+        }
     }
 
     @Override
     public void start(Container container) throws Exception {
+        if (partitionUnit != null) {
+            partitionScheduledFuture = managerExecutorService.scheduleAtFixedRate(
+                this::maintainPartitions,
+                0,
+                Duration.ofDays(1).toMillis()
+            );
+        }
+
         if (maxDatapointAgeDays > 0) {
             dataPointsPurgeScheduledFuture = managerExecutorService.scheduleAtFixedRate(
                     this::purgeDataPoints,
@@ -102,6 +264,22 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                 getFirstRunMillis(timerService.getNow()),
                 Duration.ofDays(1).toMillis());
         }
+
+        if (writeBuffer != null) {
+            writeBufferFlushScheduledFuture = managerExecutorService.scheduleWithFixedDelay(
+                this::flushWriteBuffer,
+                writeFlushMillis,
+                writeFlushMillis
+            );
+        }
+
+        if (rollupEnabled) {
+            rollupScheduledFuture = managerExecutorService.scheduleWithFixedDelay(
+                this::rollupDataPoints,
+                0,
+                Duration.ofMinutes(1).toMillis()
+            );
+        }
     }
 
     @Override
@@ -109,6 +287,23 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
         if (dataPointsPurgeScheduledFuture != null) {
             dataPointsPurgeScheduledFuture.cancel(true);
         }
+
+        if (writeBufferFlushScheduledFuture != null) {
+            writeBufferFlushScheduledFuture.cancel(false);
+        }
+
+        if (rollupScheduledFuture != null) {
+            rollupScheduledFuture.cancel(true);
+        }
+
+        if (partitionScheduledFuture != null) {
+            partitionScheduledFuture.cancel(true);
+        }
+
+        if (writeBuffer != null) {
+            // Write whatever is still waiting in the buffer
+            flushWriteBuffer();
+        }
     }
 
     @Override
@@ -121,11 +316,377 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                 && attribute.getStateEvent().get().getValue().isPresent()) { // Don't store datapoints with null value
             LOG.finest("Storing datapoint for: " + attribute);
             AssetDatapoint assetDatapoint = new AssetDatapoint(attribute.getStateEvent().get());
-            em.persist(assetDatapoint);
+            if (writeBuffer != null) {
+                reserveWriteBuffer();
+                em.unwrap(Session.class).addEventListeners(new BaseSessionEventListener() {
+                    @Override
+                    public void transactionCompletion(boolean successful) {
+                        if (successful) {
+                            bufferDatapoint(assetDatapoint);
+                        } else {
+                            writeBufferPermits.release();
+                        }
+                    }
+                });
+            } else {
+                if (partitionUnit != null) {
+                    em.unwrap(Session.class).doWork(connection ->
+                        insertDatapoints(connection, Collections.singletonList(assetDatapoint))
+                    );
+                } else {
+                    em.persist(assetDatapoint);
+                }
+                if (rollupEnabled) {
+                    em.unwrap(Session.class).addEventListeners(new BaseSessionEventListener() {
+                        @Override
+                        public void transactionCompletion(boolean successful) {
+                            if (successful) {
+                                markRollupDirty(Collections.singletonList(assetDatapoint));
+                            }
+                        }
+                    });
+                }
+            }
         }
         return false;
     }
 
+    /**
+     * Takes space in the write buffer for a datapoint of the current transaction, waits for a flush if the buffer is
+     * full; this pushes back on attribute event processing.
+     */
+    protected void reserveWriteBuffer() throws AssetProcessingException {
+        if (writeBufferPermits.tryAcquire())
+            return;
+
+        LOG.fine("Data point write buffer is full, waiting for flush");
+        scheduleFlushWriteBuffer();
+        try {
+            if (!writeBufferPermits.tryAcquire(writeFlushMillis * 10L, TimeUnit.MILLISECONDS)) {
+                throw new AssetProcessingException(
+                    AssetProcessingException.Reason.STATE_STORAGE_FAILED,
+                    "data point write buffer is full"
+                );
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssetProcessingException(
+                AssetProcessingException.Reason.STATE_STORAGE_FAILED,
+                "interrupted while waiting for data point write buffer"
+            );
+        }
+    }
+
+    /**
+     * Adds the datapoint of a committed transaction to the write buffer, space must have been reserved.
+     */
+    protected void bufferDatapoint(AssetDatapoint assetDatapoint) {
+        writeBuffer.offer(assetDatapoint);
+
+        if (writeBuffer.size() >= writeBatchSize) {
+            scheduleFlushWriteBuffer();
+        }
+    }
+
+    protected void scheduleFlushWriteBuffer() {
+        if (writeBufferFlushPending.compareAndSet(false, true)) {
+            managerExecutorService.execute(() -> {
+                writeBufferFlushPending.set(false);
+                flushWriteBuffer();
+            });
+        }
+    }
+
+    /**
+     * Writes all buffered datapoints in batches of {@link #DATA_POINTS_WRITE_BATCH_SIZE}. When a batch fails, its
+     * datapoints are written one by one: a datapoint that violates a constraint or has an invalid value (e.g. its
+     * asset has been deleted) is discarded, other failures are retried with the next flush up to
+     * {@link #DATA_POINTS_WRITE_MAX_ATTEMPTS} times. When the database can't be reached, the remaining datapoints are
+     * put back at the head of the buffer and the flush stops.
+     */
+    protected synchronized void flushWriteBuffer() {
+        List<AssetDatapoint> batch = new ArrayList<>(writeBatchSize);
+        List<AssetDatapoint> retry = new ArrayList<>();
+        try {
+            while (writeBuffer.drainTo(batch, writeBatchSize) > 0) {
+                long startMillis = System.currentTimeMillis();
+                try {
+                    writeDatapoints(batch);
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "Failed to write batch of data points, writing them one by one: " + batch.size(), e);
+                    if (!writeDatapointsOrRequeue(batch, retry)) {
+                        return;
+                    }
+                }
+                writeBufferLastFlushMillis = System.currentTimeMillis() - startMillis;
+                writeBufferMaxFlushMillis = Math.max(writeBufferMaxFlushMillis, writeBufferLastFlushMillis);
+                LOG.finest("Flushed data points in " + writeBufferLastFlushMillis + "ms: " + batch.size());
+                batch.clear();
+            }
+        } finally {
+            for (int i = retry.size() - 1; i >= 0; i--) {
+                writeBuffer.offerFirst(retry.get(i));
+            }
+        }
+    }
+
+    protected void writeDatapoints(List<AssetDatapoint> datapoints) {
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection ->
+            insertDatapoints(connection, datapoints)
+        ));
+        datapoints.forEach(writeBufferFailedWrites::remove);
+        writeBufferFlushedCount.addAndGet(datapoints.size());
+        markRollupDirty(datapoints);
+        writeBufferPermits.release(datapoints.size());
+    }
+
+    /**
+     * Writes the datapoints one by one, each in its own transaction. Datapoints that should be retried with the next
+     * flush are added to the given list.
+     *
+     * @return <code>false</code> if the database can't be reached, the datapoint that failed and all following
+     * datapoints have then been put back at the head of the buffer.
+     */
+    protected boolean writeDatapointsOrRequeue(List<AssetDatapoint> datapoints, List<AssetDatapoint> retry) {
+        for (int i = 0; i < datapoints.size(); i++) {
+            AssetDatapoint assetDatapoint = datapoints.get(i);
+            try {
+                writeDatapoints(Collections.singletonList(assetDatapoint));
+            } catch (Exception e) {
+                SQLException sqlException = getSQLException(e);
+                String sqlState = sqlException != null && sqlException.getSQLState() != null ? sqlException.getSQLState() : "";
+
+                if (sqlException instanceof SQLTransientConnectionException || sqlState.startsWith("08")) {
+                    LOG.log(Level.WARNING, "Failed to connect to write data points, retrying with next flush: " + (datapoints.size() - i), e);
+                    for (int j = datapoints.size() - 1; j >= i; j--) {
+                        writeBuffer.offerFirst(datapoints.get(j));
+                    }
+                    return false;
+                }
+
+                int failedWrites = writeBufferFailedWrites.merge(assetDatapoint, 1, Integer::sum);
+                if (sqlState.startsWith("22") || sqlState.startsWith("23") || failedWrites >= DATA_POINTS_WRITE_MAX_ATTEMPTS) {
+                    LOG.log(Level.SEVERE, "Failed to write data point (attempt " + failedWrites + "), discarding: " + assetDatapoint, e);
+                    writeBufferFailedWrites.remove(assetDatapoint);
+                    writeBufferPermits.release();
+                } else {
+                    LOG.log(Level.WARNING, "Failed to write data point (attempt " + failedWrites + "), retrying with next flush: " + assetDatapoint, e);
+                    retry.add(assetDatapoint);
+                }
+            }
+        }
+        return true;
+    }
+
+    protected static SQLException getSQLException(Throwable throwable) {
+        while (throwable != null) {
+            if (throwable instanceof SQLException) {
+                // The cause of a failed batch is the next exception
+                SQLException next = ((SQLException) throwable).getNextException();
+                return next != null ? next : (SQLException) throwable;
+            }
+            throwable = throwable.getCause();
+        }
+        return null;
+    }
+
+    /**
+     * Inserts the datapoints with JDBC batches, one per target table when datapoints are partitioned.
+     */
+    protected void insertDatapoints(Connection connection, List<AssetDatapoint> datapoints) throws SQLException {
+        Map<String, List<AssetDatapoint>> tableDatapoints = new LinkedHashMap<>();
+        for (AssetDatapoint assetDatapoint : datapoints) {
+            tableDatapoints.computeIfAbsent(getDatapointTable(assetDatapoint.getTimestamp()), table -> new ArrayList<>())
+                .add(assetDatapoint);
+        }
+
+        for (Map.Entry<String, List<AssetDatapoint>> entry : tableDatapoints.entrySet()) {
+            try (PreparedStatement st = connection.prepareStatement(String.format(INSERT_DATAPOINT_SQL, entry.getKey()))) {
+                for (AssetDatapoint assetDatapoint : entry.getValue()) {
+                    st.setString(1, assetDatapoint.getEntityId());
+                    st.setString(2, assetDatapoint.getAttributeName());
+                    st.setTimestamp(3, new Timestamp(assetDatapoint.getTimestamp()));
+                    st.setString(4, assetDatapoint.getValue().toJson());
+                    st.addBatch();
+                }
+                st.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * @return the partition to insert a datapoint with the given timestamp into, or the {@code ASSET_DATAPOINT} table if
+     * the partition hasn't been created by the maintenance task.
+     */
+    protected String getDatapointTable(long timestamp) {
+        if (partitionUnit == null) {
+            return DATAPOINT_TABLE;
+        }
+        String partition = getPartitionName(getPartitionStart(timestamp));
+        if (!partitions.contains(partition)) {
+            LOG.fine("No data point partition for timestamp, using " + DATAPOINT_TABLE + ": " + Instant.ofEpochMilli(timestamp));
+            return DATAPOINT_TABLE;
+        }
+        return partition;
+    }
+
+    /**
+     * Creates the current and the next {@link #DATA_POINTS_PARTITIONS_AHEAD} partitions and refreshes the known
+     * partitions.
+     */
+    protected void maintainPartitions() {
+        try {
+            LocalDateTime start = getPartitionStart(timerService.getCurrentTimeMillis());
+            List<String> existing = persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(connection -> {
+                for (int i = 0; i <= DATA_POINTS_PARTITIONS_AHEAD; i++) {
+                    LocalDateTime partitionStart = start.plus(i, partitionUnit);
+                    createPartition(connection, getPartitionName(partitionStart), partitionStart);
+                }
+                return getPartitions(connection);
+            }));
+            // Expired partitions are about to be dropped by the purge, don't write into them
+            existing.removeIf(this::isPartitionExpired);
+            partitions.retainAll(existing);
+            partitions.addAll(existing);
+            LOG.fine("Data point partitions: " + existing.size());
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Failed to create data point partitions", e);
+        }
+    }
+
+    protected void createPartition(Connection connection, String partition, LocalDateTime start) throws SQLException {
+        LOG.fine("Creating data point partition if missing: " + partition);
+        try (PreparedStatement st = connection.prepareStatement("select CREATE_ASSET_DATAPOINT_PARTITION(?, ?, ?)")) {
+            st.setString(1, partition);
+            st.setTimestamp(2, Timestamp.valueOf(start));
+            st.setTimestamp(3, Timestamp.valueOf(start.plus(1, partitionUnit)));
+            st.execute();
+        }
+    }
+
+    protected List<String> getPartitions(Connection connection) throws SQLException {
+        List<String> result = new ArrayList<>();
+        try (PreparedStatement st = connection.prepareStatement(
+            "select C.RELNAME from PG_INHERITS I join PG_CLASS C on C.OID = I.INHRELID " +
+                "where I.INHPARENT = 'ASSET_DATAPOINT'::regclass"
+        ); ResultSet rs = st.executeQuery()) {
+            while (rs.next()) {
+                result.add(rs.getString(1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops all partitions that only contain datapoints older than {@link #DATA_POINTS_MAX_AGE_DAYS}. The datapoints
+     * of the given attributes, which have a longer max age, that haven't expired yet are copied to the
+     * {@code ASSET_DATAPOINT} table first.
+     */
+    protected void dropExpiredPartitions(Map<Integer, List<AssetAttribute>> retainedAgeAttributes) {
+        Instant today = timerService.getNow().truncatedTo(DAYS);
+        List<String> expired = persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(connection ->
+            getPartitions(connection).stream().filter(this::isPartitionExpired).collect(toList())
+        ));
+
+        for (String partition : expired) {
+            // Stop using the partition before it is dropped, new datapoints of its range go to the parent table
+            partitions.remove(partition);
+            persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                for (Map.Entry<Integer, List<AssetAttribute>> entry : retainedAgeAttributes.entrySet()) {
+                    Timestamp retainedFrom = Timestamp.from(today.minus(entry.getKey(), DAYS));
+                    try (PreparedStatement st = connection.prepareStatement(String.format(RETAIN_DATAPOINTS_SQL, partition))) {
+                        for (AssetAttribute attribute : entry.getValue()) {
+                            AttributeRef attributeRef = attribute.getReferenceOrThrow();
+                            st.setString(1, attributeRef.getEntityId());
+                            st.setString(2, attributeRef.getAttributeName());
+                            st.setTimestamp(3, retainedFrom);
+                            st.addBatch();
+                        }
+                        st.executeBatch();
+                    }
+                }
+                LOG.fine("Dropping expired data point partition: " + partition);
+                try (Statement st = connection.createStatement()) {
+                    st.execute("drop table if exists " + partition);
+                }
+            }));
+        }
+    }
+
+    /**
+     * @return <code>true</code> if all datapoints of the partition are older than {@link #DATA_POINTS_MAX_AGE_DAYS}.
+     */
+    protected boolean isPartitionExpired(String partition) {
+        if (maxDatapointAgeDays <= 0)
+            return false;
+        LocalDateTime cutoff = LocalDateTime.ofInstant(
+            timerService.getNow().truncatedTo(DAYS).minus(maxDatapointAgeDays, DAYS), ZoneId.systemDefault()
+        );
+        LocalDateTime end = getPartitionEnd(partition);
+        return end != null && !end.isAfter(cutoff);
+    }
+
+    protected LocalDateTime getPartitionStart(long timestamp) {
+        LocalDateTime start = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()).truncatedTo(DAYS);
+        return partitionUnit == ChronoUnit.MONTHS ? start.withDayOfMonth(1) : start;
+    }
+
+    protected String getPartitionName(LocalDateTime start) {
+        return partitionUnit == ChronoUnit.MONTHS
+            ? PARTITION_PREFIX + "m" + start.format(PARTITION_MONTH_FORMAT)
+            : PARTITION_PREFIX + "d" + start.format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    /**
+     * @return the exclusive end of the partition's time range, independent of the current partition period so
+     * partitions are still dropped after changing {@link #DATA_POINTS_PARTITION}; <code>null</code> if the name is
+     * not a partition name.
+     */
+    protected static LocalDateTime getPartitionEnd(String partition) {
+        String suffix = partition.toLowerCase(Locale.ROOT).startsWith(PARTITION_PREFIX)
+            ? partition.substring(PARTITION_PREFIX.length()).toLowerCase(Locale.ROOT)
+            : "";
+        try {
+            if (suffix.matches("d\\d{8}")) {
+                return LocalDate.parse(suffix.substring(1), DateTimeFormatter.BASIC_ISO_DATE).plusDays(1).atStartOfDay();
+            }
+            if (suffix.matches("m\\d{6}")) {
+                return YearMonth.parse(suffix.substring(1), PARTITION_MONTH_FORMAT).plusMonths(1).atDay(1).atStartOfDay();
+            }
+        } catch (Exception e) {
+            LOG.log(Level.FINE, "Ignoring table with invalid data point partition name: " + partition, e);
+        }
+        return null;
+    }
+
+    public boolean isPartitionEnabled() {
+        return partitionUnit != null;
+    }
+
+    public int getPartitionCount() {
+        return partitions.size();
+    }
+
+    public boolean isWriteBufferEnabled() {
+        return writeBuffer != null;
+    }
+
+    public int getWriteBufferDepth() {
+        return writeBuffer != null ? writeBuffer.size() : 0;
+    }
+
+    public long getWriteBufferFlushedCount() {
+        return writeBufferFlushedCount.get();
+    }
+
+    public long getWriteBufferLastFlushMillis() {
+        return writeBufferLastFlushMillis;
+    }
+
+    public long getWriteBufferMaxFlushMillis() {
+        return writeBufferMaxFlushMillis;
+    }
+
     public List<AssetDatapoint> getDatapoints(AttributeRef attributeRef) {
         return persistenceService.doReturningTransaction(entityManager ->
                 entityManager.createQuery(
@@ -169,6 +730,15 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                                                DatapointInterval datapointInterval,
                                                long fromTimestamp,
                                                long toTimestamp) {
+        return getValueDatapoints(attributeRef, datapointInterval, fromTimestamp, toTimestamp, 0, null);
+    }
+
+    public ValueDatapoint[] getValueDatapoints(AttributeRef attributeRef,
+                                               DatapointInterval datapointInterval,
+                                               long fromTimestamp,
+                                               long toTimestamp,
+                                               int maxPoints,
+                                               DatapointAlgorithm algorithm) {
 
         Asset asset = assetStorageService.find(attributeRef.getEntityId());
         if (asset == null) {
@@ -177,13 +747,34 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
         AssetAttribute assetAttribute = asset.getAttribute(attributeRef.getAttributeName())
             .orElseThrow(() -> new IllegalStateException("Attribute not found: " + attributeRef.getAttributeName()));
 
-        return getValueDatapoints(assetAttribute, datapointInterval, fromTimestamp, toTimestamp);
+        return getValueDatapoints(assetAttribute, datapointInterval, fromTimestamp, toTimestamp, maxPoints, algorithm);
     }
 
     public ValueDatapoint[] getValueDatapoints(AssetAttribute attribute,
                                                DatapointInterval datapointInterval,
                                                long fromTimestamp,
                                                long toTimestamp) {
+        return getValueDatapoints(attribute, datapointInterval, fromTimestamp, toTimestamp, 0, null);
+    }
+
+    /**
+     * Get the datapoints of an attribute in the given time range. Without an algorithm and max points, numeric and
+     * boolean values are averaged per {@link DatapointInterval}. Otherwise the raw datapoints are streamed through a
+     * {@link DatapointDownsampler}; the number of points defaults to the number of intervals in the time range.
+     */
+    public ValueDatapoint[] getValueDatapoints(AssetAttribute attribute,
+                                               DatapointInterval datapointInterval,
+                                               long fromTimestamp,
+                                               long toTimestamp,
+                                               int maxPoints,
+                                               DatapointAlgorithm algorithm) {
+
+        if (maxPoints > 0 || algorithm != null) {
+            if (maxPoints <= 0) {
+                maxPoints = (int) Math.min((toTimestamp - fromTimestamp) / getIntervalMillis(datapointInterval) + 1, Integer.MAX_VALUE);
+            }
+            return getDownsampledValueDatapoints(attribute, fromTimestamp, toTimestamp, maxPoints, algorithm);
+        }
 
         AttributeRef attributeRef = attribute.getReferenceOrThrow();
         ValueType attributeValueType = attribute.getTypeOrThrow().getValueType();
@@ -229,36 +820,75 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
 
                         StringBuilder query = new StringBuilder();
                         boolean downsample = attributeValueType == ValueType.NUMBER || attributeValueType == ValueType.BOOLEAN;
+                        long watermark = rollupWatermark;
+                        DatapointInterval rollupResolution = downsample && rollupEnabled && watermark > 0
+                            ? getRollupResolution(truncateX)
+                            : null;
 
                         if (downsample) {
 
-                            // TODO: Change this to use something like this max min decimation algorithm https://knowledge.ni.com/KnowledgeArticleDetails?id=kA00Z0000019YLKSA2&l=en-GB)
+                            // Buckets of the time range [from, to), the first and last bucket can be partial
+                            if (rollupResolution != null) {
+                                // Rollups are only read for the complete rollup buckets in the time range
+                                query.append("with BOUNDS as (select FROM_TS, TO_TS, " +
+                                    "       case when date_trunc(?, FROM_TS) = FROM_TS then FROM_TS else date_trunc(?, FROM_TS) + ? end as ROLLUP_FROM, " +
+                                    "       date_trunc(?, TO_TS) as ROLLUP_TO " +
+                                    "       from (select to_timestamp(?)::timestamp as FROM_TS, to_timestamp(?)::timestamp as TO_TS) T) ");
+                            } else {
+                                query.append("with BOUNDS as (select to_timestamp(?)::timestamp as FROM_TS, to_timestamp(?)::timestamp as TO_TS) ");
+                            }
+
+                            // Max min decimation and other algorithms are available through DatapointAlgorithm
                             query.append("select TS as X, coalesce(AVG_VALUE, null) as Y " +
                                 " from ( " +
                                 "       select date_trunc(?, GS)::timestamp TS " +
-                                "       from generate_series(to_timestamp(?), to_timestamp(?), ?) GS " +
+                                "       from BOUNDS, generate_series(date_trunc(?, FROM_TS), TO_TS, ?) GS " +
+                                "       where GS < TO_TS " +
                                 "       ) TS " +
                                 "  left join ( " +
                                 "       select " +
                                 "           date_trunc(?, TIMESTAMP)::timestamp as TS, ");
 
-                            if (attributeValueType == ValueType.NUMBER) {
-                                query.append(" AVG(VALUE::text::numeric) as AVG_VALUE ");
+                            String numberColumn = attributeValueType == ValueType.NUMBER
+                                ? NUMBER_VALUE_COLUMN
+                                : BOOLEAN_VALUE_COLUMN;
+
+                            if (rollupResolution != null) {
+                                // Aggregate rollups up to the watermark and raw datapoints after it or outside of the
+                                // complete rollup buckets
+                                query.append(" sum(VALUE_SUM) / sum(VALUE_COUNT)::float8 as AVG_VALUE " +
+                                    "         from ( " +
+                                    "           select TIMESTAMP, VALUE_SUM, VALUE_COUNT from ASSET_DATAPOINT_ROLLUP, BOUNDS " +
+                                    "           where " +
+                                    "             ENTITY_ID = ? and ATTRIBUTE_NAME = ? and RESOLUTION = ? " +
+                                    "             and TIMESTAMP >= ROLLUP_FROM and TIMESTAMP < ROLLUP_TO " +
+                                    "             and TIMESTAMP < ? " +
+                                    "           union all " +
+                                    "           select TIMESTAMP, " + numberColumn + ", 1 from ASSET_DATAPOINT, BOUNDS " +
+                                    "           where " +
+                                    "             ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
+                                    "             and TIMESTAMP >= FROM_TS and TIMESTAMP < TO_TS " +
+                                    "             and (TIMESTAMP >= ? or TIMESTAMP < ROLLUP_FROM or TIMESTAMP >= ROLLUP_TO) " +
+                                    "         ) R " +
+                                    "         group by TS " +
+                                    "  ) DP using (TS) " +
+                                    " order by TS asc "
+                                );
                             } else {
-                                query.append(" AVG(case when VALUE::text::boolean is true then 1 else 0 end) as AVG_VALUE ");
-                            }
+                                query.append(" AVG(" + numberColumn + ") as AVG_VALUE ");
 
-                            query.append(" from ASSET_DATAPOINT " +
-                                "         where " +
-                                "           TIMESTAMP >= to_timestamp(?) " +
-                                "           and " +
-                                "           TIMESTAMP <= to_timestamp(?) " +
-                                "           and " +
-                                "           ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
-                                "         group by TS " +
-                                "  ) DP using (TS) " +
-                                " order by TS asc "
-                            );
+                                query.append(" from ASSET_DATAPOINT, BOUNDS " +
+                                    "         where " +
+                                    "           TIMESTAMP >= FROM_TS " +
+                                    "           and " +
+                                    "           TIMESTAMP < TO_TS " +
+                                    "           and " +
+                                    "           ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
+                                    "         group by TS " +
+                                    "  ) DP using (TS) " +
+                                    " order by TS asc "
+                                );
+                            }
                         } else {
                             query.append("select distinct TIMESTAMP AS X, value AS Y from ASSET_DATAPOINT " +
                                 "where " +
@@ -274,16 +904,34 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
 
                             long fromTimestampSeconds = fromTimestamp / 1000;
                             long toTimestampSeconds = toTimestamp / 1000;
-                            if (downsample) {
-                                st.setString(1, truncateX);
-                                st.setLong(2, fromTimestampSeconds);
-                                st.setLong(3, toTimestampSeconds);
-                                st.setObject(4, new PGInterval(interval));
-                                st.setString(5, truncateX);
-                                st.setLong(6, fromTimestampSeconds);
-                                st.setLong(7, toTimestampSeconds);
-                                st.setString(8, attributeRef.getEntityId());
-                                st.setString(9, attributeRef.getAttributeName());
+                            if (downsample && rollupResolution != null) {
+                                String rollupField = rollupResolution.name().toLowerCase(Locale.ROOT);
+                                st.setString(1, rollupField);
+                                st.setString(2, rollupField);
+                                st.setObject(3, new PGInterval("1 " + rollupField));
+                                st.setString(4, rollupField);
+                                st.setLong(5, fromTimestampSeconds);
+                                st.setLong(6, toTimestampSeconds);
+                                st.setString(7, truncateX);
+                                st.setString(8, truncateX);
+                                st.setObject(9, new PGInterval(interval));
+                                st.setString(10, truncateX);
+                                st.setString(11, attributeRef.getEntityId());
+                                st.setString(12, attributeRef.getAttributeName());
+                                st.setString(13, rollupResolution.name());
+                                st.setTimestamp(14, new Timestamp(watermark));
+                                st.setString(15, attributeRef.getEntityId());
+                                st.setString(16, attributeRef.getAttributeName());
+                                st.setTimestamp(17, new Timestamp(watermark));
+                            } else if (downsample) {
+                                st.setLong(1, fromTimestampSeconds);
+                                st.setLong(2, toTimestampSeconds);
+                                st.setString(3, truncateX);
+                                st.setString(4, truncateX);
+                                st.setObject(5, new PGInterval(interval));
+                                st.setString(6, truncateX);
+                                st.setString(7, attributeRef.getEntityId());
+                                st.setString(8, attributeRef.getAttributeName());
                             } else {
                                 st.setLong(1, fromTimestampSeconds);
                                 st.setLong(2, toTimestampSeconds);
@@ -305,6 +953,241 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
         );
     }
 
+    protected ValueDatapoint[] getDownsampledValueDatapoints(AssetAttribute attribute,
+                                                             long fromTimestamp,
+                                                             long toTimestamp,
+                                                             int maxPoints,
+                                                             DatapointAlgorithm algorithm) {
+
+        AttributeRef attributeRef = attribute.getReferenceOrThrow();
+        ValueType attributeValueType = attribute.getTypeOrThrow().getValueType();
+        boolean numeric = attributeValueType == ValueType.NUMBER || attributeValueType == ValueType.BOOLEAN;
+
+        LOG.fine("Getting datapoints downsampled with " + algorithm + " to " + maxPoints + " points for: " + attributeRef);
+
+        DatapointDownsampler downsampler = DatapointDownsampler.create(algorithm, numeric, fromTimestamp, toTimestamp, maxPoints);
+
+        return persistenceService.doReturningTransaction(entityManager ->
+            entityManager.unwrap(Session.class).doReturningWork(connection -> {
+
+                String valueColumn;
+                if (attributeValueType == ValueType.NUMBER) {
+                    valueColumn = NUMBER_VALUE_COLUMN;
+                } else if (attributeValueType == ValueType.BOOLEAN) {
+                    valueColumn = BOOLEAN_VALUE_COLUMN;
+                } else {
+                    valueColumn = "VALUE";
+                }
+
+                String query = "select TIMESTAMP, " + valueColumn + " from ASSET_DATAPOINT " +
+                    "where ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
+                    "and TIMESTAMP >= ? and TIMESTAMP <= ? " +
+                    "order by TIMESTAMP asc";
+
+                try (PreparedStatement st = connection.prepareStatement(query)) {
+                    // Use a server side cursor so rows are streamed rather than loaded all at once
+                    st.setFetchSize(DATA_POINTS_FETCH_SIZE);
+                    st.setString(1, attributeRef.getEntityId());
+                    st.setString(2, attributeRef.getAttributeName());
+                    st.setTimestamp(3, new Timestamp(fromTimestamp));
+                    st.setTimestamp(4, new Timestamp(toTimestamp));
+
+                    try (ResultSet rs = st.executeQuery()) {
+                        while (rs.next()) {
+                            long timestamp = rs.getTimestamp(1).getTime();
+                            if (numeric) {
+                                double number = rs.getDouble(2);
+                                downsampler.accept(timestamp, number, Values.create(number));
+                            } else {
+                                downsampler.accept(timestamp, null, rs.getObject(2) != null ? Values.parseOrNull(rs.getString(2)) : null);
+                            }
+                        }
+                    }
+                }
+                return downsampler.finish();
+            })
+        );
+    }
+
+    /**
+     * @return The coarsest rollup resolution that can be aggregated into buckets truncated to the given field.
+     */
+    protected static DatapointInterval getRollupResolution(String truncateField) {
+        switch (truncateField) {
+            case "minute":
+                return DatapointInterval.MINUTE;
+            case "hour":
+                return DatapointInterval.HOUR;
+            default:
+                return DatapointInterval.DAY;
+        }
+    }
+
+    /**
+     * Remembers the minute buckets of committed datapoints that were written behind the rollup watermark (or into the
+     * range currently being rolled up), so they are rolled up again on the next run.
+     */
+    protected void markRollupDirty(List<AssetDatapoint> datapoints) {
+        if (!rollupEnabled)
+            return;
+        long horizon = rollupHorizon;
+        for (AssetDatapoint datapoint : datapoints) {
+            if (datapoint.getTimestamp() < horizon) {
+                rollupDirtyMinutes.add(Instant.ofEpochMilli(datapoint.getTimestamp()).truncatedTo(ChronoUnit.MINUTES).toEpochMilli());
+            }
+        }
+    }
+
+    /**
+     * Rolls up all datapoints since the last run, in chunks of a day, after rolling up the buckets of late datapoints
+     * again. Buckets are recomputed from scratch so this is idempotent and partial buckets at the watermark are
+     * completed on the next run.
+     */
+    protected void rollupDataPoints() {
+        try {
+            rollupDirtyMinutes();
+
+            long until = timerService.getNow().minusMillis(rollupDelayMillis).truncatedTo(ChronoUnit.MINUTES).toEpochMilli();
+            long from = rollupWatermark > 0 ? rollupWatermark : getRollupStart();
+
+            if (from <= 0) {
+                // No datapoints yet
+                rollupHorizon = until;
+                rollupWatermark = until;
+                return;
+            }
+
+            while (from < until) {
+                long chunkFrom = from;
+                long chunkUntil = Math.min(from + Duration.ofDays(1).toMillis(), until);
+                LOG.fine("Rolling up data points from " + Instant.ofEpochMilli(chunkFrom) + " until " + Instant.ofEpochMilli(chunkUntil));
+                rollupHorizon = Math.max(rollupHorizon, chunkUntil);
+
+                persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                    try (PreparedStatement st = connection.prepareStatement(ROLLUP_MINUTE_SQL)) {
+                        st.setTimestamp(1, new Timestamp(chunkFrom));
+                        st.setTimestamp(2, new Timestamp(chunkUntil));
+                        st.executeUpdate();
+                    }
+                    rollupCoarse(connection, DatapointInterval.MINUTE, DatapointInterval.HOUR, chunkFrom, chunkUntil);
+                    rollupCoarse(connection, DatapointInterval.HOUR, DatapointInterval.DAY, chunkFrom, chunkUntil);
+                }));
+
+                rollupWatermark = chunkUntil;
+                from = chunkUntil;
+            }
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "An error occurred whilst rolling up data points", e);
+        }
+    }
+
+    /**
+     * Rolls up the minute buckets of late datapoints again, and the hour and day buckets containing them up to the
+     * watermark. Buckets at or after the watermark are rolled up by the regular run.
+     */
+    protected void rollupDirtyMinutes() {
+        if (rollupDirtyMinutes.isEmpty())
+            return;
+
+        long watermark = rollupWatermark;
+        SortedSet<Long> minutes = new TreeSet<>();
+        for (Long minute : rollupDirtyMinutes) {
+            rollupDirtyMinutes.remove(minute);
+            if (minute < watermark) {
+                minutes.add(minute);
+            }
+        }
+        if (minutes.isEmpty())
+            return;
+
+        LOG.fine("Rolling up minutes with late data points again: " + minutes.size());
+        try {
+            persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                Set<Long> hours = new TreeSet<>();
+                Set<Long> days = new TreeSet<>();
+                for (Long minute : minutes) {
+                    try (PreparedStatement st = connection.prepareStatement(ROLLUP_MINUTE_SQL)) {
+                        st.setTimestamp(1, new Timestamp(minute));
+                        st.setTimestamp(2, new Timestamp(minute + Duration.ofMinutes(1).toMillis()));
+                        st.executeUpdate();
+                    }
+                    LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(minute), ZoneId.systemDefault());
+                    hours.add(time.truncatedTo(ChronoUnit.HOURS).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                    days.add(time.truncatedTo(DAYS).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                }
+                for (Long hour : hours) {
+                    rollupCoarse(connection, DatapointInterval.MINUTE, DatapointInterval.HOUR, hour, Math.min(hour + Duration.ofHours(1).toMillis(), watermark));
+                }
+                for (Long day : days) {
+                    rollupCoarse(connection, DatapointInterval.HOUR, DatapointInterval.DAY, day, Math.min(day + Duration.ofDays(1).toMillis(), watermark));
+                }
+            }));
+        } catch (Exception e) {
+            // Try again on the next run
+            rollupDirtyMinutes.addAll(minutes);
+            throw e;
+        }
+    }
+
+    protected void rollupCoarse(Connection connection, DatapointInterval source, DatapointInterval target, long from, long until) throws SQLException {
+        String truncateField = target.name().toLowerCase(Locale.ROOT);
+        try (PreparedStatement st = connection.prepareStatement(ROLLUP_COARSE_SQL)) {
+            st.setString(1, target.name());
+            st.setString(2, truncateField);
+            st.setString(3, source.name());
+            st.setString(4, truncateField);
+            st.setTimestamp(5, new Timestamp(from));
+            st.setTimestamp(6, new Timestamp(until));
+            st.setString(7, truncateField);
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * @return The start of the last minute rollup or the oldest datapoint if there are no rollups yet, 0 if there are
+     * no datapoints.
+     */
+    protected long getRollupStart() {
+        return persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(connection -> {
+            try (Statement st = connection.createStatement();
+                 ResultSet rs = st.executeQuery(
+                     "select coalesce(" +
+                         "(select max(TIMESTAMP) from ASSET_DATAPOINT_ROLLUP where RESOLUTION = 'MINUTE'), " +
+                         "(select min(TIMESTAMP) from ASSET_DATAPOINT))"
+                 )) {
+                Timestamp start = rs.next() ? rs.getTimestamp(1) : null;
+                return start != null ? start.getTime() : 0L;
+            }
+        }));
+    }
+
+    public boolean isRollupEnabled() {
+        return rollupEnabled;
+    }
+
+    public long getRollupWatermark() {
+        return rollupWatermark;
+    }
+
+    protected static long getIntervalMillis(DatapointInterval datapointInterval) {
+        switch (datapointInterval) {
+            case MINUTE:
+                return Duration.ofMinutes(1).toMillis();
+            case HOUR:
+                return Duration.ofHours(1).toMillis();
+            case DAY:
+                return Duration.ofDays(1).toMillis();
+            case WEEK:
+                return Duration.ofDays(7).toMillis();
+            case MONTH:
+                return Duration.ofDays(30).toMillis();
+            case YEAR:
+                return Duration.ofDays(365).toMillis();
+            default:
+                throw new IllegalArgumentException("Can't handle interval: " + datapointInterval);
+        }
+    }
+
     protected void purgeDataPoints() {
         LOG.info("Starting data points purge daily task");
 
@@ -326,55 +1209,94 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                 .flatMap(List::stream)
                 .collect(toList());
 
-        // Purge data points not in the above list using default duration
-        LOG.fine("Purging data points of attributes that use default max age days of " + maxDatapointAgeDays);
+        Map<Integer, List<AssetAttribute>> ageAttributeRefMap = attributes.stream()
+                .collect(groupingBy(attribute ->
+                        attribute
+                                .getMetaItem(MetaItemType.DATA_POINTS_MAX_AGE_DAYS)
+                                .flatMap(metaItem ->
+                                        Values.getIntegerCoerced(metaItem.getValue().orElse(null)))
+                                .orElse(maxDatapointAgeDays)));
 
-        persistenceService.doTransaction(em -> em.createQuery(
-                "delete from AssetDatapoint dp " +
-                        "where dp.timestamp < :dt" + buildWhereClause(attributes, true)
-        ).setParameter("dt", Date.from(timerService.getNow().truncatedTo(DAYS).minus(maxDatapointAgeDays, DAYS))).executeUpdate());
+        Timestamp defaultCutoff = Timestamp.from(timerService.getNow().truncatedTo(DAYS).minus(maxDatapointAgeDays, DAYS));
 
-        if (!attributes.isEmpty()) {
-            // Purge data points that have specific age constraints
-            Map<Integer, List<AssetAttribute>> ageAttributeRefMap = attributes.stream()
-                    .collect(groupingBy(attribute ->
-                            attribute
-                                    .getMetaItem(MetaItemType.DATA_POINTS_MAX_AGE_DAYS)
-                                    .flatMap(metaItem ->
-                                            Values.getIntegerCoerced(metaItem.getValue().orElse(null)))
-                                    .orElse(maxDatapointAgeDays)));
+        if (partitionUnit != null) {
+            // Drop whole partitions at the default max age, keeping the data points of attributes with a longer max age
+            Map<Integer, List<AssetAttribute>> retainedAgeAttributes = new HashMap<>(ageAttributeRefMap);
+            retainedAgeAttributes.keySet().removeIf(age -> age <= maxDatapointAgeDays);
+            LOG.fine("Dropping data point partitions older than max age days of " + maxDatapointAgeDays);
+            try {
+                dropExpiredPartitions(retainedAgeAttributes);
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "An error occurred whilst dropping data point partitions", e);
+            }
 
-            ageAttributeRefMap.forEach((age, attrs) -> {
-                LOG.fine("Purging data points of " + attrs.size() + " attributes that use a max age of " + age);
+            // Only data points written before partitioning or outside of the partitions are left in the parent table
+            LOG.fine("Purging unpartitioned data points of attributes that use default max age days of " + maxDatapointAgeDays);
+            purgeOtherDataPoints("only ASSET_DATAPOINT", defaultCutoff, attributes);
+        } else {
+            // Purge data points not in the above list using default duration
+            LOG.fine("Purging data points of attributes that use default max age days of " + maxDatapointAgeDays);
+            purgeOtherDataPoints("ASSET_DATAPOINT", defaultCutoff, attributes);
+        }
 
-                try {
-                    persistenceService.doTransaction(em -> em.createQuery(
-                            "delete from AssetDatapoint dp " +
-                                    "where dp.timestamp < :dt" + buildWhereClause(attrs, false)
-                    ).setParameter("dt", Date.from(timerService.getNow().truncatedTo(DAYS).minus(age, DAYS))).executeUpdate());
-                } catch (Exception e) {
-                    LOG.log(Level.SEVERE, "An error occurred whilst deleting data points, this should not happen", e);
-                }
-            });
+        // Purge data points that have specific age constraints, one targeted delete per attribute
+        ageAttributeRefMap.forEach((age, attrs) -> {
+            LOG.fine("Purging data points of " + attrs.size() + " attributes that use a max age of " + age);
+
+            Timestamp dt = Timestamp.from(timerService.getNow().truncatedTo(DAYS).minus(age, DAYS));
+            try {
+                persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                    try (PreparedStatement st = connection.prepareStatement(DELETE_DATAPOINTS_SQL)) {
+                        for (AssetAttribute attribute : attrs) {
+                            AttributeRef attributeRef = attribute.getReferenceOrThrow();
+                            st.setString(1, attributeRef.getEntityId());
+                            st.setString(2, attributeRef.getAttributeName());
+                            st.setTimestamp(3, dt);
+                            st.addBatch();
+                        }
+                        st.executeBatch();
+                    }
+                }));
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "An error occurred whilst deleting data points, this should not happen", e);
+            }
+        });
+
+        if (rollupEnabled && rollupMaxAgeDays > 0) {
+            LOG.fine("Purging data point rollups older than max age days of " + rollupMaxAgeDays);
+            try {
+                persistenceService.doTransaction(em -> em.createNativeQuery(
+                    "delete from ASSET_DATAPOINT_ROLLUP where TIMESTAMP < :dt"
+                ).setParameter("dt", Timestamp.from(timerService.getNow().truncatedTo(DAYS).minus(rollupMaxAgeDays, DAYS))).executeUpdate());
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "An error occurred whilst deleting data point rollups", e);
+            }
         }
 
         LOG.info("Finished data points purge daily task");
     }
 
-    protected String buildWhereClause(List<AssetAttribute> attributes, boolean negate) {
-
-        if (attributes.isEmpty()) {
-            return "";
+    /**
+     * Delete the data points of the table older than the cutoff, except those of the given attributes; their references
+     * are bound as two arrays so the statement is the same for any number of attributes.
+     */
+    protected void purgeOtherDataPoints(String table, Timestamp cutoff, List<AssetAttribute> attributes) {
+        String[] entityIds = new String[attributes.size()];
+        String[] attributeNames = new String[attributes.size()];
+        for (int i = 0; i < attributes.size(); i++) {
+            AttributeRef attributeRef = attributes.get(i).getReferenceOrThrow();
+            entityIds[i] = attributeRef.getEntityId();
+            attributeNames[i] = attributeRef.getAttributeName();
         }
 
-        String whereStr = attributes.stream()
-                .map(assetAttribute -> {
-                    AttributeRef attributeRef = assetAttribute.getReferenceOrThrow();
-                    return "('" + attributeRef.getEntityId() + "','" + attributeRef.getAttributeName() + "')";
-                })
-                .collect(Collectors.joining(","));
-
-        return " and (dp.entityId, dp.attributeName) " + (negate ? "not " : "") + "in (" + whereStr + ")";
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement st = connection.prepareStatement(String.format(DELETE_OTHER_DATAPOINTS_SQL, table))) {
+                st.setTimestamp(1, cutoff);
+                st.setArray(2, connection.createArrayOf("text", entityIds));
+                st.setArray(3, connection.createArrayOf("text", attributeNames));
+                st.executeUpdate();
+            }
+        }));
     }
 
     protected long getFirstRunMillis(Instant currentTime) {
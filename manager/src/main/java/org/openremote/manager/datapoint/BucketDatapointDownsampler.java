@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.openremote.model.datapoint.DatapointAlgorithm;
+import org.openremote.model.datapoint.ValueDatapoint;
+import org.openremote.model.value.Value;
+import org.openremote.model.value.Values;
+
+/**
+ * Aggregates all datapoints of a bucket to one (or two for {@link DatapointAlgorithm#MIN_MAX}) datapoints.
+ */
+public class BucketDatapointDownsampler extends DatapointDownsampler {
+
+    protected final DatapointAlgorithm algorithm;
+    protected long bucket = -1;
+    protected int count;
+    protected double sum;
+    protected long firstTimestamp;
+    protected Value firstValue;
+    protected long lastTimestamp;
+    protected Value lastValue;
+    protected long minTimestamp;
+    protected double min;
+    protected long maxTimestamp;
+    protected double max;
+
+    public BucketDatapointDownsampler(DatapointAlgorithm algorithm, long fromTimestamp, long toTimestamp, int maxPoints) {
+        // Min max selects two datapoints per bucket
+        super(fromTimestamp, toTimestamp, algorithm == DatapointAlgorithm.MIN_MAX ? maxPoints / 2 : maxPoints);
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public void accept(long timestamp, Double number, Value value) {
+        long rowBucket = getBucket(timestamp);
+        if (rowBucket != bucket) {
+            flush();
+            bucket = rowBucket;
+            firstTimestamp = timestamp;
+            firstValue = value;
+        }
+
+        lastTimestamp = timestamp;
+        lastValue = value;
+
+        if (number == null) {
+            return;
+        }
+
+        if (count == 0 || number < min) {
+            min = number;
+            minTimestamp = timestamp;
+        }
+        if (count == 0 || number > max) {
+            max = number;
+            maxTimestamp = timestamp;
+        }
+        sum += number;
+        count++;
+    }
+
+    @Override
+    protected void flush() {
+        if (bucket < 0) {
+            return;
+        }
+
+        switch (algorithm) {
+            case FIRST:
+                result.add(new ValueDatapoint<>(firstTimestamp, firstValue));
+                break;
+            case LAST:
+                result.add(new ValueDatapoint<>(lastTimestamp, lastValue));
+                break;
+            case AVG:
+                if (count > 0) {
+                    result.add(new ValueDatapoint<>(fromTimestamp + bucket * bucketMillis, Values.create(sum / count)));
+                }
+                break;
+            case MIN:
+                if (count > 0) {
+                    result.add(new ValueDatapoint<>(minTimestamp, Values.create(min)));
+                }
+                break;
+            case MAX:
+                if (count > 0) {
+                    result.add(new ValueDatapoint<>(maxTimestamp, Values.create(max)));
+                }
+                break;
+            case MIN_MAX:
+                if (count > 0) {
+                    if (minTimestamp == maxTimestamp) {
+                        result.add(new ValueDatapoint<>(minTimestamp, Values.create(min)));
+                    } else if (minTimestamp < maxTimestamp) {
+                        result.add(new ValueDatapoint<>(minTimestamp, Values.create(min)));
+                        result.add(new ValueDatapoint<>(maxTimestamp, Values.create(max)));
+                    } else {
+                        result.add(new ValueDatapoint<>(maxTimestamp, Values.create(max)));
+                        result.add(new ValueDatapoint<>(minTimestamp, Values.create(min)));
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Can't handle algorithm: " + algorithm);
+        }
+
+        bucket = -1;
+        count = 0;
+        sum = 0;
+        firstValue = null;
+        lastValue = null;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.openremote.model.datapoint.DatapointAlgorithm;
+import org.openremote.model.datapoint.ValueDatapoint;
+import org.openremote.model.value.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reduces a time ordered stream of datapoints to a bounded number of datapoints, rows are passed in one at a time
+ * with {@link #accept} so the full series never has to be held in memory. The time range (including the end) is
+ * divided into buckets of equal duration, at most one per requested point.
+ */
+public abstract class DatapointDownsampler {
+
+    protected final long fromTimestamp;
+    protected final long bucketMillis;
+    protected final List<ValueDatapoint<?>> result = new ArrayList<>();
+
+    protected DatapointDownsampler(long fromTimestamp, long toTimestamp, int maxPoints) {
+        this.fromTimestamp = fromTimestamp;
+        // Round up so the buckets don't extend the range, the end of the range is included
+        long rangeMillis = Math.max(toTimestamp - fromTimestamp + 1, 1);
+        int buckets = Math.max(maxPoints, 1);
+        this.bucketMillis = Math.max((rangeMillis + buckets - 1) / buckets, 1);
+    }
+
+    /**
+     * @param numeric   <code>false</code> if the values can't be converted to numbers, only {@link DatapointAlgorithm#FIRST}
+     *                  and {@link DatapointAlgorithm#LAST} can be applied and other algorithms fall back to the latter.
+     * @param maxPoints The downsampled series has no more datapoints than this, {@link DatapointAlgorithm#MIN_MAX} and
+     *                  {@link DatapointAlgorithm#LTTB} fall back to {@link DatapointAlgorithm#AVG} for less than two.
+     */
+    public static DatapointDownsampler create(DatapointAlgorithm algorithm,
+                                              boolean numeric,
+                                              long fromTimestamp,
+                                              long toTimestamp,
+                                              int maxPoints) {
+        if (algorithm == null) {
+            algorithm = DatapointAlgorithm.AVG;
+        }
+        if (!numeric && algorithm != DatapointAlgorithm.FIRST) {
+            algorithm = DatapointAlgorithm.LAST;
+        }
+        if (maxPoints < 2 && (algorithm == DatapointAlgorithm.MIN_MAX || algorithm == DatapointAlgorithm.LTTB)) {
+            // Both select two datapoints at least
+            algorithm = DatapointAlgorithm.AVG;
+        }
+        if (algorithm == DatapointAlgorithm.LTTB) {
+            return new LttbDatapointDownsampler(fromTimestamp, toTimestamp, maxPoints);
+        }
+        return new BucketDatapointDownsampler(algorithm, fromTimestamp, toTimestamp, maxPoints);
+    }
+
+    /**
+     * @param timestamp Must not be smaller than the timestamp of the previous call.
+     * @param number    The numeric representation of the value or <code>null</code> if it is not numeric.
+     * @param value     The raw value.
+     */
+    public abstract void accept(long timestamp, Double number, Value value);
+
+    /**
+     * @return The downsampled datapoints, after all rows have been accepted.
+     */
+    public ValueDatapoint<?>[] finish() {
+        flush();
+        return result.toArray(new ValueDatapoint<?>[result.size()]);
+    }
+
+    protected abstract void flush();
+
+    protected long getBucket(long timestamp) {
+        return (timestamp - fromTimestamp) / bucketMillis;
+    }
+}
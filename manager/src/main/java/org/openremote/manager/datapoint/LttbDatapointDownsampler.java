@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.openremote.model.datapoint.ValueDatapoint;
+import org.openremote.model.value.Value;
+import org.openremote.model.value.Values;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling, see Sveinn Steinarsson, "Downsampling Time Series for Visual
+ * Representation". The first and last datapoints are always selected, from every bucket in between the datapoint is
+ * selected that forms the largest triangle with the previously selected datapoint and the average of the next
+ * bucket. Only the current and the next bucket are held in memory.
+ */
+public class LttbDatapointDownsampler extends DatapointDownsampler {
+
+    protected long selectedTimestamp;
+    protected double selectedNumber;
+    protected boolean first = true;
+    protected long currentBucket = -1;
+    protected List<Row> current = new ArrayList<>();
+    protected long nextBucket = -1;
+    protected List<Row> next = new ArrayList<>();
+
+    protected static class Row {
+        final long timestamp;
+        final double number;
+
+        Row(long timestamp, double number) {
+            this.timestamp = timestamp;
+            this.number = number;
+        }
+    }
+
+    public LttbDatapointDownsampler(long fromTimestamp, long toTimestamp, int maxPoints) {
+        // The first and last datapoints take a bucket each
+        super(fromTimestamp, toTimestamp, Math.max(maxPoints - 2, 1));
+    }
+
+    @Override
+    public void accept(long timestamp, Double number, Value value) {
+        if (number == null) {
+            return;
+        }
+
+        if (first) {
+            select(timestamp, number);
+            first = false;
+            return;
+        }
+
+        Row row = new Row(timestamp, number);
+        long bucket = getBucket(timestamp);
+
+        if (currentBucket < 0 || bucket == currentBucket) {
+            currentBucket = bucket;
+            current.add(row);
+        } else if (nextBucket < 0 || bucket == nextBucket) {
+            nextBucket = bucket;
+            next.add(row);
+        } else {
+            selectFromCurrent();
+            current = next;
+            currentBucket = nextBucket;
+            next = new ArrayList<>();
+            next.add(row);
+            nextBucket = bucket;
+        }
+    }
+
+    @Override
+    protected void flush() {
+        if (!next.isEmpty()) {
+            selectFromCurrent();
+            current = next;
+            next = new ArrayList<>();
+            nextBucket = -1;
+        }
+
+        // The last datapoint is always selected
+        if (!current.isEmpty()) {
+            Row last = current.get(current.size() - 1);
+            select(last.timestamp, last.number);
+            current.clear();
+            currentBucket = -1;
+        }
+    }
+
+    protected void selectFromCurrent() {
+        double avgTimestamp = 0;
+        double avgNumber = 0;
+        for (Row row : next) {
+            avgTimestamp += row.timestamp;
+            avgNumber += row.number;
+        }
+        avgTimestamp /= next.size();
+        avgNumber /= next.size();
+
+        Row selected = null;
+        double maxArea = -1;
+        for (Row row : current) {
+            double area = Math.abs(
+                (selectedTimestamp - avgTimestamp) * (row.number - selectedNumber)
+                    - (selectedTimestamp - row.timestamp) * (avgNumber - selectedNumber)
+            );
+            if (area > maxArea) {
+                maxArea = area;
+                selected = row;
+            }
+        }
+
+        if (selected != null) {
+            select(selected.timestamp, selected.number);
+        }
+    }
+
+    protected void select(long timestamp, double number) {
+        selectedTimestamp = timestamp;
+        selectedNumber = number;
+        result.add(new ValueDatapoint<>(timestamp, Values.create(number)));
+    }
+}
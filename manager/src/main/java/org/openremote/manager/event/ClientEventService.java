@@ -36,8 +36,8 @@ import org.openremote.model.event.shared.*;
 import org.openremote.model.syslog.SyslogEvent;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Logger;
 
@@ -128,11 +128,12 @@ public class ClientEventService implements ContainerService {
         identityService = container.getService(ManagerIdentityService.class);
         gatewayService = container.getService(GatewayService.class);
 
-        sessionKeyConnectionTypeMap = new HashMap<>();
+        sessionKeyConnectionTypeMap = new ConcurrentHashMap<>();
 
         eventSubscriptions = new EventSubscriptions(
             container.getService(TimerService.class),
-            container.getService(ManagerExecutorService.class)
+            container.getService(ManagerExecutorService.class),
+            this::sendToSession
         );
 
         messageBrokerService.getContext().getTypeConverterRegistry().addTypeConverters(
@@ -307,8 +308,13 @@ public class ClientEventService implements ContainerService {
 
     public void sendToSession(String sessionKey, Object data) {
         if (messageBrokerService != null && messageBrokerService.getProducerTemplate() != null) {
-            LOG.fine("Sending to session '" + sessionKey + "': " + data);
             String sessionConnectionType = sessionKeyConnectionTypeMap.get(sessionKey);
+            if (sessionConnectionType == null) {
+                // The session has been closed, e.g. while coalesced events were waiting for delivery
+                LOG.fine("Not sending to closed session '" + sessionKey + "': " + data);
+                return;
+            }
+            LOG.fine("Sending to session '" + sessionKey + "': " + data);
             if (sessionConnectionType.equals(HEADER_CONNECTION_TYPE_WEBSOCKET)) {
                 messageBrokerService.getProducerTemplate().sendBodyAndHeader(
                         "websocket://" + WEBSOCKET_EVENTS,
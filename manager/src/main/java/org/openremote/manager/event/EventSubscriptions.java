@@ -25,28 +25,77 @@ import org.apache.camel.impl.DefaultMessage;
 import org.openremote.container.timer.TimerService;
 import org.openremote.container.web.ConnectionConstants;
 import org.openremote.manager.concurrent.ManagerExecutorService;
+import org.openremote.model.asset.AssetFilter;
+import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.event.TriggeredEventSubscription;
-import org.openremote.model.event.shared.CancelEventSubscription;
-import org.openremote.model.event.shared.EventSubscription;
-import org.openremote.model.event.shared.SharedEvent;
+import org.openremote.model.event.shared.*;
 import org.openremote.model.util.TextUtil;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
 import static org.openremote.manager.event.ClientEventService.HEADER_ACCESS_RESTRICTED;
 
 /**
  * Manages subscriptions to events for WebSocket sessions.
+ * <p>
+ * Subscriptions are indexed by event type and by the asset identifiers or realm of their {@link AssetFilter} or
+ * {@link TenantFilter}, so the cost of matching an event depends on the number of sessions that might be interested
+ * in it and not on the total number of sessions. All messages created for an event share the serialised event, see
+ * {@link SharedTriggeredEventSubscription}.
+ * <p>
+ * Events of subscriptions with a {@link EventSubscription#getDeliveryIntervalMillis} are coalesced and delivered
+ * later, when the interval since the last delivery has passed.
  */
 public class EventSubscriptions {
 
     private static final Logger LOG = Logger.getLogger(EventSubscriptions.class.getName());
 
     final protected TimerService timerService;
+    final protected ManagerExecutorService executorService;
+    final protected BiConsumer<String, Object> sessionSender;
     final protected Map<String, SessionSubscriptions> sessionSubscriptionIdMap = new HashMap<>();
+    // Guarded by sessionSubscriptionIdMap
+    final protected Map<String, EventTypeSubscriptions> eventTypeSubscriptionsMap = new HashMap<>();
 
     class SessionSubscriptions extends HashSet<SessionSubscription> {
+
+        final String sessionKey;
+
+        SessionSubscriptions(String sessionKey) {
+            this.sessionKey = sessionKey;
+        }
+
+        @Override
+        public boolean add(SessionSubscription sessionSubscription) {
+            if (!super.add(sessionSubscription))
+                return false;
+            eventTypeSubscriptionsMap.computeIfAbsent(
+                sessionSubscription.subscription.getEventType(), eventType -> new EventTypeSubscriptions()
+            ).add(sessionSubscription);
+            return true;
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super SessionSubscription> filter) {
+            return super.removeIf(sessionSubscription -> {
+                if (!filter.test(sessionSubscription))
+                    return false;
+                removeFromIndex(sessionSubscription);
+                return true;
+            });
+        }
+
+        public void cancelAll() {
+            forEach(EventSubscriptions.this::removeFromIndex);
+            clear();
+        }
+
         public void removeExpired() {
             removeIf(sessionSubscription -> {
                     boolean expired = sessionSubscription.isExpired();
@@ -66,7 +115,7 @@ public class EventSubscriptions {
                 cancelById(eventSubscription.getSubscriptionId());
             }
 
-            add(new SessionSubscription(restrictedUser, timerService.getCurrentTimeMillis(), eventSubscription));
+            add(new SessionSubscription(sessionKey, restrictedUser, timerService.getCurrentTimeMillis(), eventSubscription));
         }
 
         public void update(boolean resstrictedUser, String[] subscriptionIds) {
@@ -89,16 +138,47 @@ public class EventSubscriptions {
     }
 
     class SessionSubscription {
-        boolean restrictedUser;
-        long timestamp;
+        final String sessionKey;
+        volatile boolean restrictedUser;
+        volatile long timestamp;
         final EventSubscription subscription;
         final String subscriptionId;
+        // Index keys derived from the filter, when neither is set the subscription must be tested for all events
+        final String[] assetIds;
+        final String realm;
+        // Coalesced delivery, guarded by this
+        final int deliveryIntervalMillis;
+        final Map<Object, SharedEvent> pendingEvents = new LinkedHashMap<>();
+        long lastDeliveryMillis;
+        boolean flushScheduled;
+        boolean cancelled;
 
-        public SessionSubscription(boolean restrictedUser, long timestamp, EventSubscription subscription) {
+        public SessionSubscription(String sessionKey, boolean restrictedUser, long timestamp, EventSubscription subscription) {
+            this.sessionKey = sessionKey;
             this.restrictedUser = restrictedUser;
             this.timestamp = timestamp;
             this.subscription = subscription;
             this.subscriptionId = subscription.getSubscriptionId();
+
+            String[] assetIds = null;
+            String realm = null;
+            EventFilter<?> filter = subscription.getFilter();
+            // Subclasses might match differently, only index the filters we know
+            if (filter != null && filter.getClass() == AssetFilter.class) {
+                AssetFilter<?> assetFilter = (AssetFilter<?>) filter;
+                if (assetFilter.getAssetIds() != null && assetFilter.getAssetIds().length > 0) {
+                    assetIds = assetFilter.getAssetIds().clone();
+                } else if (!TextUtil.isNullOrEmpty(assetFilter.getRealm())) {
+                    realm = assetFilter.getRealm();
+                }
+            } else if (filter != null && filter.getClass() == TenantFilter.class) {
+                realm = ((TenantFilter<?>) filter).getRealm();
+            }
+            this.assetIds = assetIds;
+            this.realm = realm;
+            this.deliveryIntervalMillis = subscription.getDeliveryIntervalMillis() != null
+                ? Math.max(0, subscription.getDeliveryIntervalMillis())
+                : 0;
         }
 
         public boolean matches(boolean accessibleForRestrictedUsers, SharedEvent event) {
@@ -114,9 +194,85 @@ public class EventSubscriptions {
         }
     }
 
-    public EventSubscriptions(TimerService timerService, ManagerExecutorService executorService) {
+    /**
+     * The subscriptions of all sessions for an event type, by the index keys of the subscriptions.
+     */
+    static class EventTypeSubscriptions {
+        final Map<String, Set<SessionSubscription>> byAssetId = new HashMap<>();
+        final Map<String, Set<SessionSubscription>> byRealm = new HashMap<>();
+        final Set<SessionSubscription> unindexed = new HashSet<>();
+        int size;
+
+        void add(SessionSubscription sessionSubscription) {
+            if (sessionSubscription.assetIds != null) {
+                for (String assetId : sessionSubscription.assetIds) {
+                    byAssetId.computeIfAbsent(assetId, id -> new HashSet<>()).add(sessionSubscription);
+                }
+            } else if (sessionSubscription.realm != null) {
+                byRealm.computeIfAbsent(sessionSubscription.realm, realm -> new HashSet<>()).add(sessionSubscription);
+            } else {
+                unindexed.add(sessionSubscription);
+            }
+            size++;
+        }
+
+        void remove(SessionSubscription sessionSubscription) {
+            if (sessionSubscription.assetIds != null) {
+                for (String assetId : sessionSubscription.assetIds) {
+                    removeFrom(byAssetId, assetId, sessionSubscription);
+                }
+            } else if (sessionSubscription.realm != null) {
+                removeFrom(byRealm, sessionSubscription.realm, sessionSubscription);
+            } else {
+                unindexed.remove(sessionSubscription);
+            }
+            size--;
+        }
+
+        /**
+         * Adds all subscriptions that might match the event to the given collection, each at most once.
+         */
+        void collectCandidates(SharedEvent event, Collection<SessionSubscription> candidates) {
+            candidates.addAll(unindexed);
+
+            String assetId = null;
+            String realm = null;
+            if (event instanceof AssetInfo) {
+                assetId = ((AssetInfo) event).getEntityId();
+                realm = ((AssetInfo) event).getRealm();
+            } else if (event instanceof TenantScopedEvent) {
+                realm = ((TenantScopedEvent) event).getRealm();
+            }
+
+            // Asset filters only match events with asset information
+            if (assetId != null && byAssetId.containsKey(assetId)) {
+                candidates.addAll(byAssetId.get(assetId));
+            }
+            if (realm != null && byRealm.containsKey(realm)) {
+                candidates.addAll(byRealm.get(realm));
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        static void removeFrom(Map<String, Set<SessionSubscription>> index, String key, SessionSubscription sessionSubscription) {
+            Set<SessionSubscription> subscriptions = index.get(key);
+            if (subscriptions != null && subscriptions.remove(sessionSubscription) && subscriptions.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @param sessionSender Sends coalesced events that are delivered after their subscription's interval to a session.
+     */
+    public EventSubscriptions(TimerService timerService, ManagerExecutorService executorService, BiConsumer<String, Object> sessionSender) {
         LOG.info("Starting background task checking for expired event subscriptions from clients");
         this.timerService = timerService;
+        this.executorService = executorService;
+        this.sessionSender = sessionSender;
         // This puts a burden on clients and generates noise; subscriptions are removed when the socket is closed
         // so clients should actively add/remove subscriptions as they require rather than let them expire and/or
         // have to renew them continually
@@ -134,7 +290,7 @@ public class EventSubscriptions {
             // TODO Check if the user can actually subscribe to the events it wants, how do we do that?
             LOG.fine("For session '" + sessionKey + "', creating/updating: " + subscription);
             SessionSubscriptions sessionSubscriptions =
-                this.sessionSubscriptionIdMap.computeIfAbsent(sessionKey, k -> new SessionSubscriptions());
+                this.sessionSubscriptionIdMap.computeIfAbsent(sessionKey, SessionSubscriptions::new);
             sessionSubscriptions.createOrUpdate(restrictedUser, subscription);
         }
     }
@@ -167,7 +323,7 @@ public class EventSubscriptions {
         synchronized (this.sessionSubscriptionIdMap) {
             if (this.sessionSubscriptionIdMap.containsKey(sessionKey)) {
                 LOG.fine("Cancelling all subscriptions for session: " + sessionKey);
-                this.sessionSubscriptionIdMap.remove(sessionKey);
+                this.sessionSubscriptionIdMap.remove(sessionKey).cancelAll();
             }
         }
     }
@@ -181,38 +337,117 @@ public class EventSubscriptions {
 
         boolean accessibleForRestrictedUsers = exchange.getIn().getHeader(HEADER_ACCESS_RESTRICTED, false, Boolean.class);
 
-        Set<Map.Entry<String, SessionSubscriptions>> sessionSubscriptionsSet;
+        List<SessionSubscription> candidates = new ArrayList<>();
         synchronized (this.sessionSubscriptionIdMap) {
-            sessionSubscriptionsSet = new HashSet<>(sessionSubscriptionIdMap.entrySet());
+            EventTypeSubscriptions eventTypeSubscriptions = eventTypeSubscriptionsMap.get(event.getEventType());
+            if (eventTypeSubscriptions == null)
+                return messageList;
+            eventTypeSubscriptions.collectCandidates(event, candidates);
         }
 
-        for (Map.Entry<String, SessionSubscriptions> entry : sessionSubscriptionsSet) {
-            String sessionKey = entry.getKey();
-            SessionSubscriptions subscriptions = entry.getValue();
+        SharedTriggeredEventSubscription.EventJson eventJson = new SharedTriggeredEventSubscription.EventJson(event);
+
+        for (SessionSubscription sessionSubscription : candidates) {
+
+            if (!sessionSubscription.matches(accessibleForRestrictedUsers, event))
+                continue;
 
-            for (SessionSubscription sessionSubscription : subscriptions) {
+            if (sessionSubscription.subscription.getFilter() == null
+                || sessionSubscription.subscription.getFilter().apply(event)) {
 
-                if (!sessionSubscription.matches(accessibleForRestrictedUsers, event))
+                if (sessionSubscription.deliveryIntervalMillis > 0 && !deliverNow(sessionSubscription, event))
                     continue;
 
-                if (sessionSubscription.subscription.getFilter() == null
-                    || sessionSubscription.subscription.getFilter().apply(event)) {
-                    LOG.fine("Creating message for subscribed session '" + sessionKey + "': " + event);
-                    List<SharedEvent> events = Collections.singletonList(event);
-                    TriggeredEventSubscription<?> triggeredEventSubscription = new TriggeredEventSubscription<>(events, sessionSubscription.subscriptionId);
-
-                    if (sessionSubscription.subscription.getInternalConsumer() == null) {
-                        Message msg = new DefaultMessage();
-                        msg.setBody(triggeredEventSubscription); // Don't copy the event, use same reference
-                        msg.setHeaders(new HashMap<>(exchange.getIn().getHeaders())); // Copy headers
-                        msg.setHeader(ConnectionConstants.SESSION_KEY, sessionKey);
-                        messageList.add(msg);
-                    } else {
-                        sessionSubscription.subscription.getInternalConsumer().accept(triggeredEventSubscription);
-                    }
+                if (LOG.isLoggable(FINE)) {
+                    LOG.fine("Creating message for subscribed session '" + sessionSubscription.sessionKey + "': " + event);
+                }
+                SharedTriggeredEventSubscription<?> triggeredEventSubscription =
+                    new SharedTriggeredEventSubscription<>(event, eventJson, sessionSubscription.subscriptionId);
+
+                if (sessionSubscription.subscription.getInternalConsumer() == null) {
+                    // Don't copy the event or the headers, only the session key is used when sending the message
+                    Message msg = new DefaultMessage();
+                    msg.setBody(triggeredEventSubscription);
+                    msg.setHeader(ConnectionConstants.SESSION_KEY, sessionSubscription.sessionKey);
+                    messageList.add(msg);
+                } else {
+                    sessionSubscription.subscription.getInternalConsumer().accept(triggeredEventSubscription);
                 }
             }
         }
         return messageList;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return <code>true</code> if the delivery interval of the subscription has passed and the event should be
+     * delivered now, otherwise the event is coalesced with the pending events of the subscription.
+     */
+    protected boolean deliverNow(SessionSubscription sessionSubscription, SharedEvent event) {
+        synchronized (sessionSubscription) {
+            long now = timerService.getCurrentTimeMillis();
+            if (!sessionSubscription.flushScheduled
+                && now - sessionSubscription.lastDeliveryMillis >= sessionSubscription.deliveryIntervalMillis) {
+                sessionSubscription.lastDeliveryMillis = now;
+                return true;
+            }
+
+            // Replace an earlier event of the same attribute, other events are never coalesced
+            Object key = event instanceof AttributeEvent ? ((AttributeEvent) event).getAttributeRef() : new Object();
+            sessionSubscription.pendingEvents.remove(key);
+            sessionSubscription.pendingEvents.put(key, event);
+
+            if (!sessionSubscription.flushScheduled) {
+                sessionSubscription.flushScheduled = true;
+                long delay = Math.max(0, sessionSubscription.lastDeliveryMillis + sessionSubscription.deliveryIntervalMillis - now);
+                executorService.schedule(() -> flush(sessionSubscription), delay);
+            }
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void flush(SessionSubscription sessionSubscription) {
+        List<SharedEvent> events;
+        synchronized (sessionSubscription) {
+            sessionSubscription.flushScheduled = false;
+            if (sessionSubscription.cancelled || sessionSubscription.pendingEvents.isEmpty()) {
+                sessionSubscription.pendingEvents.clear();
+                return;
+            }
+            events = new ArrayList<>(sessionSubscription.pendingEvents.values());
+            sessionSubscription.pendingEvents.clear();
+            sessionSubscription.lastDeliveryMillis = timerService.getCurrentTimeMillis();
+        }
+
+        if (LOG.isLoggable(FINE)) {
+            LOG.fine("Delivering " + events.size() + " coalesced event(s) to subscribed session '" + sessionSubscription.sessionKey + "'");
+        }
+        TriggeredEventSubscription<SharedEvent> triggeredEventSubscription =
+            new TriggeredEventSubscription<>(events, sessionSubscription.subscriptionId);
+        try {
+            if (sessionSubscription.subscription.getInternalConsumer() == null) {
+                sessionSender.accept(sessionSubscription.sessionKey, triggeredEventSubscription);
+            } else {
+                sessionSubscription.subscription.getInternalConsumer().accept(triggeredEventSubscription);
+            }
+        } catch (Exception ex) {
+            // The session might have been closed in the meantime
+            LOG.log(WARNING, "Failed to deliver coalesced events to session: " + sessionSubscription.sessionKey, ex);
+        }
+    }
+
+    protected void removeFromIndex(SessionSubscription sessionSubscription) {
+        synchronized (sessionSubscription) {
+            sessionSubscription.cancelled = true;
+            sessionSubscription.pendingEvents.clear();
+        }
+        String eventType = sessionSubscription.subscription.getEventType();
+        EventTypeSubscriptions eventTypeSubscriptions = eventTypeSubscriptionsMap.get(eventType);
+        if (eventTypeSubscriptions == null)
+            return;
+        eventTypeSubscriptions.remove(sessionSubscription);
+        if (eventTypeSubscriptions.isEmpty()) {
+            eventTypeSubscriptionsMap.remove(eventType);
+        }
+    }
+}
@@ -67,6 +67,9 @@ public class EventTypeConverters implements TypeConverters {
 
     @Converter
     public String writeTriggeredEventSubscription(TriggeredEventSubscription triggeredEventSubscription, Exchange exchange) throws Exception {
+        if (triggeredEventSubscription instanceof SharedTriggeredEventSubscription) {
+            return SharedEvent.MESSAGE_PREFIX + ((SharedTriggeredEventSubscription) triggeredEventSubscription).toJson();
+        }
         return SharedEvent.MESSAGE_PREFIX + Container.JSON.writeValueAsString(triggeredEventSubscription);
     }
 
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.event;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.openremote.container.Container;
+import org.openremote.model.event.TriggeredEventSubscription;
+import org.openremote.model.event.shared.SharedEvent;
+
+import java.util.Collections;
+
+/**
+ * A {@link TriggeredEventSubscription} of a single event that is delivered to many sessions. All instances
+ * created for the same event share the {@link EventJson}, so the event is serialised at most once no matter
+ * how many sessions receive it.
+ */
+public class SharedTriggeredEventSubscription<T extends SharedEvent> extends TriggeredEventSubscription<T> {
+
+    /**
+     * The lazily serialised JSON of an event.
+     */
+    public static class EventJson {
+
+        final protected SharedEvent event;
+        protected String json;
+
+        public EventJson(SharedEvent event) {
+            this.event = event;
+        }
+
+        synchronized public String get() throws JsonProcessingException {
+            if (json == null) {
+                json = Container.JSON.writeValueAsString(event);
+            }
+            return json;
+        }
+    }
+
+    @JsonIgnore
+    final protected EventJson eventJson;
+
+    public SharedTriggeredEventSubscription(T event, EventJson eventJson, String subscriptionId) {
+        super(Collections.singletonList(event), subscriptionId);
+        this.eventJson = eventJson;
+    }
+
+    public EventJson getEventJson() {
+        return eventJson;
+    }
+
+    /**
+     * @return the same JSON as {@link TriggeredEventSubscription} serialised with {@link Container#JSON}.
+     */
+    public String toJson() throws JsonProcessingException {
+        return "{\"events\":[" + eventJson.get() + "]"
+            + (subscriptionId != null ? ",\"subscriptionId\":" + Container.JSON.writeValueAsString(subscriptionId) : "")
+            + "}";
+    }
+}
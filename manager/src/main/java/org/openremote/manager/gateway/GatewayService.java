@@ -53,6 +53,7 @@ import javax.websocket.CloseReason;
 import javax.websocket.Session;
 import javax.ws.rs.core.Response;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -77,8 +78,8 @@ public class GatewayService extends RouteBuilder implements ContainerService, As
     protected ManagerKeycloakIdentityProvider identityProvider;
     protected ClientEventService clientEventService;
     protected ManagerExecutorService executorService;
-    protected final Map<String, GatewayConnector> gatewayConnectorMap = new HashMap<>();
-    protected final Map<String, String> assetIdGatewayIdMap = new HashMap<>();
+    protected final Map<String, GatewayConnector> gatewayConnectorMap = new ConcurrentHashMap<>();
+    protected final Map<String, String> assetIdGatewayIdMap = new ConcurrentHashMap<>();
     protected boolean active;
 
     public static final String GATEWAY_EVENT_TOPIC = "seda://GatewayEventTopic?multipleConsumers=false&waitForTaskToComplete=NEVER&purgeWhenStopping=true&discardIfNoConsumers=true&limitConcurrentConsumers=false&size=10000";
@@ -32,6 +32,7 @@ import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
 import org.openremote.container.message.MessageBrokerService;
 import org.openremote.manager.event.ClientEventService;
+import org.openremote.manager.event.SharedTriggeredEventSubscription;
 import org.openremote.manager.security.ManagerIdentityService;
 import org.openremote.manager.security.ManagerKeycloakIdentityProvider;
 import org.openremote.model.attribute.AttributeEvent;
@@ -112,12 +113,20 @@ public class MqttBrokerService implements ContainerService {
                             String sessionKey = getSessionKey(exchange);
                             @SuppressWarnings("unchecked")
                             TriggeredEventSubscription<AttributeEvent> triggeredEventSubscription = (TriggeredEventSubscription<AttributeEvent>) exchange.getIn().getBody(TriggeredEventSubscription.class);
+                            // Use the JSON serialised once for all subscribed sessions if available
+                            SharedTriggeredEventSubscription.EventJson eventJson = triggeredEventSubscription instanceof SharedTriggeredEventSubscription
+                                    ? ((SharedTriggeredEventSubscription<AttributeEvent>) triggeredEventSubscription).getEventJson()
+                                    : null;
                             triggeredEventSubscription.getEvents()
                                     .forEach(event -> {
                                         MqttConnection mqttConnection = mqttConnectionMap.get(sessionKey);
                                         if (mqttConnection != null) {
                                             if (mqttConnection.assetSubscriptions.containsKey(event.getEntityId()) || mqttConnection.assetAttributeSubscriptions.containsKey(event.getAttributeRef())) {
-                                                sendAttributeEvent(sessionKey, event);
+                                                if (eventJson != null) {
+                                                    sendAttributeEvent(sessionKey, event, eventJson);
+                                                } else {
+                                                    sendAttributeEvent(sessionKey, event);
+                                                }
                                             }
                                             if (mqttConnection.assetAttributeValueSubscriptions.containsKey(event.getAttributeRef())) {
                                                 sendAttributeValue(sessionKey, event);
@@ -148,8 +157,12 @@ public class MqttBrokerService implements ContainerService {
     }
 
     public void sendAttributeEvent(String clientId, AttributeEvent attributeEvent) {
+        sendAttributeEvent(clientId, attributeEvent, new SharedTriggeredEventSubscription.EventJson(attributeEvent));
+    }
+
+    protected void sendAttributeEvent(String clientId, AttributeEvent attributeEvent, SharedTriggeredEventSubscription.EventJson eventJson) {
         try {
-            ByteBuf payload = Unpooled.copiedBuffer(Container.JSON.writeValueAsString(attributeEvent), Charset.defaultCharset());
+            ByteBuf payload = Unpooled.copiedBuffer(eventJson.get(), Charset.defaultCharset());
 
             MqttPublishMessage publishMessage = MqttMessageBuilders.publish()
                     .qos(MqttQoS.AT_MOST_ONCE)
@@ -48,6 +48,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
+import static org.openremote.manager.datapoint.AssetDatapointService.BOOLEAN_VALUE_COLUMN;
+import static org.openremote.manager.datapoint.AssetDatapointService.NUMBER_VALUE_COLUMN;
+
 public class AssetPredictedDatapointService implements ContainerService, ProtocolPredictedAssetService {
 
     private static final Logger LOG = Logger.getLogger(AssetPredictedDatapointService.class.getName());
@@ -178,9 +181,9 @@ public class AssetPredictedDatapointService implements ContainerService, Protoco
                             "           date_trunc(?, TIMESTAMP)::timestamp as TS, ");
 
                         if (attributeValueType == ValueType.NUMBER) {
-                            query.append(" AVG(VALUE::text::numeric) as AVG_VALUE ");
+                            query.append(" AVG(" + NUMBER_VALUE_COLUMN + ") as AVG_VALUE ");
                         } else {
-                            query.append(" AVG(case when VALUE::text::boolean is true then 1 else 0 end) as AVG_VALUE ");
+                            query.append(" AVG(" + BOOLEAN_VALUE_COLUMN + ") as AVG_VALUE ");
                         }
 
                         query.append(" from ASSET_PREDICTED_DATAPOINT " +
@@ -25,6 +25,7 @@ import net.fortuna.ical4j.model.*;
 import org.geotools.referencing.GeodeticCalculator;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetStorageService;
+import org.openremote.manager.rules.geofence.GeofenceIndex;
 import org.openremote.model.attribute.Meta;
 import org.openremote.model.attribute.MetaItem;
 import org.openremote.model.calendar.CalendarEvent;
@@ -45,82 +46,100 @@ import org.openremote.model.value.Values;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.Date;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
- * Test an {@link AssetState} with a {@link AssetQuery}.
+ * Test an {@link AssetState} with a {@link AssetQuery}. The query is compiled once when the predicate is created, an
+ * instance can be reused to test any number of asset states as long as the query isn't modified.
+ * <p>
+ * Use {@link #getCandidates} to narrow down the asset states that have to be tested with the indexes of an
+ * {@link AssetStateStore}.
  */
 public class AssetQueryPredicate implements Predicate<AssetState> {
 
+    // Calculators are mutable and expensive to create, predicates may be tested concurrently
+    protected static final ThreadLocal<GeodeticCalculator> GEODETIC_CALCULATOR = ThreadLocal.withInitial(GeodeticCalculator::new);
+
+    /**
+     * The indexes of {@link AssetStateStore} that can be used to find candidates for a query.
+     */
+    protected enum Index {
+        ASSET_ID,
+        ASSET_TYPE,
+        PARENT_ID,
+        REALM,
+        ATTRIBUTE_NAME
+    }
+
     final protected AssetQuery query;
     final protected TimerService timerService;
     final protected AssetStorageService assetStorageService;
+    final protected Set<String> ids;
+    final protected List<Predicate<String>> namePredicates;
+    final protected List<Predicate<AssetState>> parentPredicates;
+    final protected List<Predicate<String>> typePredicates;
+    final protected List<Predicate<String[]>> pathPredicates;
+    final protected Predicate<AssetState> tenantPredicate;
+    final protected Predicate<AssetState> attributesPredicate;
+    final protected List<String> userIds;
+    // A matching asset state must have one of the keys of each index
+    final protected Map<Index, Collection<String>> indexKeys = new EnumMap<>(Index.class);
 
     public AssetQueryPredicate(TimerService timerService, AssetStorageService assetStorageService, AssetQuery query) {
         this.timerService = timerService;
         this.assetStorageService = assetStorageService;
         this.query = query;
+
+        ids = query.ids != null && query.ids.length > 0 ? new HashSet<>(Arrays.asList(query.ids)) : null;
+        namePredicates = compile(query.names, StringPredicate::asPredicate);
+        parentPredicates = compile(query.parents, AssetQueryPredicate::asPredicate);
+        typePredicates = compile(query.types, StringPredicate::asPredicate);
+        pathPredicates = compile(query.paths, AssetQueryPredicate::asPredicate);
+        tenantPredicate = query.tenant != null ? asPredicate(query.tenant) : null;
+        // TODO: LogicGroup AND doesn't make much sense when applying to a single asset state
+        attributesPredicate = query.attributes != null ? asPredicate(timerService::getCurrentTimeMillis, query.attributes) : null;
+        userIds = query.userIds != null && query.userIds.length > 0 ? Arrays.asList(query.userIds) : null;
+
+        planIndexKeys();
     }
 
     @Override
     public boolean test(AssetState assetState) {
 
-        if (query.ids != null && query.ids.length > 0) {
-            if (Arrays.stream(query.ids).noneMatch(id -> assetState.getId().equals(id))) {
-                return false;
-            }
+        if (ids != null && !ids.contains(assetState.getId())) {
+            return false;
         }
 
-        if (query.names != null && query.names.length > 0) {
-            if (Arrays.stream(query.names)
-                    .map(StringPredicate::asPredicate)
-                    .noneMatch(np -> np.test(assetState.getName()))) {
-                return false;
-            }
+        if (namePredicates != null && !anyMatch(namePredicates, assetState.getName())) {
+            return false;
         }
 
-        if (query.parents != null && query.parents.length > 0) {
-            if (Arrays.stream(query.parents)
-                    .map(AssetQueryPredicate::asPredicate)
-                    .noneMatch(np -> np.test(assetState))) {
-                return false;
-            }
+        if (parentPredicates != null && !anyMatch(parentPredicates, assetState)) {
+            return false;
         }
 
-        if (query.types != null && query.types.length > 0) {
-            if (Arrays.stream(query.types)
-                    .map(StringPredicate::asPredicate)
-                    .noneMatch(np -> np.test(assetState.getTypeString()))) {
-                return false;
-            }
+        if (typePredicates != null && !anyMatch(typePredicates, assetState.getTypeString())) {
+            return false;
         }
 
-        if (query.paths != null && query.paths.length > 0) {
-            if (Arrays.stream(query.paths)
-                    .map(AssetQueryPredicate::asPredicate)
-                    .noneMatch(np -> np.test(assetState.getPath()))) {
-                return false;
-            }
+        if (pathPredicates != null && !anyMatch(pathPredicates, assetState.getPath())) {
+            return false;
         }
 
-        if (query.tenant != null) {
-            if (!AssetQueryPredicate.asPredicate(query.tenant).test(assetState)) {
-                return false;
-            }
+        if (tenantPredicate != null && !tenantPredicate.test(assetState)) {
+            return false;
         }
 
-        if (query.attributes != null) {
-            // TODO: LogicGroup AND doesn't make much sense when applying to a single asset state
-            if (!asPredicate(timerService::getCurrentTimeMillis, query.attributes).test(assetState)) {
-                return false;
-            }
+        if (attributesPredicate != null && !attributesPredicate.test(assetState)) {
+            return false;
         }
 
         // Apply user ID predicate last as it is the most expensive
-        if (query.userIds != null && query.userIds.length > 0) {
-            if (!assetStorageService.isUserAsset(Arrays.asList(query.userIds), assetState.getId())) {
+        if (userIds != null) {
+            if (!assetStorageService.isUserAsset(userIds, assetState.getId())) {
                 return false;
             }
         }
@@ -128,6 +147,136 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
         return true;
     }
 
+    public AssetQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * @return the smallest collection of asset states that contains all asset states matching the query, by looking
+     * up the indexed values required by the query. These candidates still have to be tested with this predicate.
+     */
+    public Collection<AssetState> getCandidates(AssetStateStore assetStates) {
+        Collection<AssetState> candidates = assetStates;
+        for (Map.Entry<Index, Collection<String>> entry : indexKeys.entrySet()) {
+            List<Set<AssetState>> indexed = new ArrayList<>(entry.getValue().size());
+            int size = 0;
+            for (String key : entry.getValue()) {
+                Set<AssetState> keyAssetStates = lookup(assetStates, entry.getKey(), key);
+                indexed.add(keyAssetStates);
+                size += keyAssetStates.size();
+            }
+            if (size < candidates.size()) {
+                if (indexed.size() == 1) {
+                    candidates = indexed.get(0);
+                } else {
+                    // An asset state has only one value for each of these indexes, the sets are disjoint
+                    List<AssetState> union = new ArrayList<>(size);
+                    indexed.forEach(union::addAll);
+                    candidates = union;
+                }
+            }
+        }
+        return candidates;
+    }
+
+    protected void planIndexKeys() {
+        if (ids != null) {
+            indexKeys.put(Index.ASSET_ID, ids);
+        } else if (query.paths != null && query.paths.length > 0
+            && Arrays.stream(query.paths).allMatch(p -> p.path != null && p.path.length > 0)) {
+            // The first element of the path is the identifier of the asset
+            indexKeys.put(Index.ASSET_ID, Arrays.stream(query.paths).map(p -> p.path[0]).collect(Collectors.toSet()));
+        }
+
+        if (query.types != null && query.types.length > 0
+            && Arrays.stream(query.types).allMatch(AssetQueryPredicate::isExactMatch)) {
+            indexKeys.put(Index.ASSET_TYPE, Arrays.stream(query.types).map(p -> p.value).collect(Collectors.toSet()));
+        }
+
+        if (query.parents != null && query.parents.length > 0
+            && Arrays.stream(query.parents).allMatch(p -> p.id != null)) {
+            indexKeys.put(Index.PARENT_ID, Arrays.stream(query.parents).map(p -> p.id).collect(Collectors.toSet()));
+        }
+
+        if (query.tenant != null && query.tenant.realm != null) {
+            indexKeys.put(Index.REALM, Collections.singleton(query.tenant.realm));
+        }
+
+        Collection<String> attributeNames = getRequiredAttributeNames(query.attributes);
+        if (attributeNames != null) {
+            indexKeys.put(Index.ATTRIBUTE_NAME, attributeNames);
+        }
+    }
+
+    /**
+     * @return the attribute names of which an asset state must have one to match the group or <code>null</code>
+     * if that can't be determined.
+     */
+    protected static Collection<String> getRequiredAttributeNames(LogicGroup<AttributePredicate> group) {
+        if (group == null || groupIsEmpty(group)) {
+            return null;
+        }
+        List<AttributePredicate> items = group.getItems();
+        if (group.operator == null || group.operator == LogicGroup.Operator.AND) {
+            // All items must match, any exact name is required
+            return items.stream()
+                .filter(item -> isExactMatch(item.name))
+                .findFirst()
+                .map(item -> (Collection<String>) Collections.singleton(item.name.value))
+                .orElse(null);
+        }
+        // Any item or group may match, only usable if there are no groups and all names are exact
+        if ((group.groups != null && !group.groups.isEmpty())
+            || items.isEmpty()
+            || !items.stream().allMatch(item -> isExactMatch(item.name))) {
+            return null;
+        }
+        return items.stream().map(item -> item.name.value).collect(Collectors.toSet());
+    }
+
+    protected static boolean isExactMatch(StringPredicate predicate) {
+        return predicate != null
+            && predicate.value != null
+            && predicate.match == AssetQuery.Match.EXACT
+            && predicate.caseSensitive
+            && !predicate.negate;
+    }
+
+    protected static Set<AssetState> lookup(AssetStateStore assetStates, Index index, String key) {
+        switch (index) {
+            case ASSET_ID:
+                return assetStates.getByAssetId(key);
+            case ASSET_TYPE:
+                return assetStates.getByAssetType(key);
+            case PARENT_ID:
+                return assetStates.getByParentId(key);
+            case REALM:
+                return assetStates.getByRealm(key);
+            default:
+                return assetStates.getByAttributeName(key);
+        }
+    }
+
+    protected static <T, U> List<Predicate<U>> compile(T[] predicates, Function<T, Predicate<U>> compiler) {
+        if (predicates == null || predicates.length == 0) {
+            return null;
+        }
+        List<Predicate<U>> compiled = new ArrayList<>(predicates.length);
+        for (T predicate : predicates) {
+            compiled.add(compiler.apply(predicate));
+        }
+        return compiled;
+    }
+
+    protected static <T> boolean anyMatch(List<Predicate<T>> predicates, T value) {
+        for (Predicate<T> predicate : predicates) {
+            if (predicate.test(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static Predicate<ArrayValue> asPredicate(ArrayPredicate predicate) {
         return arrayValue ->  {
             if (arrayValue == null) {
@@ -184,6 +333,7 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
     }
 
     public static Predicate<String[]> asPredicate(StringArrayPredicate predicate) {
+        List<Predicate<String>> predicates = compile(predicate.predicates, StringPredicate::asPredicate);
         return strings -> {
             if (strings == null && predicate.predicates == null)
                 return true;
@@ -194,8 +344,7 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
             if (strings.length != predicate.predicates.length)
                 return false;
             for (int i = 0; i < predicate.predicates.length; i++) {
-                StringPredicate p = predicate.predicates[i];
-                if (!StringPredicate.asPredicate(p).test(strings[i]))
+                if (!predicates.get(i).test(strings[i]))
                     return false;
             }
             return true;
@@ -322,35 +471,49 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
     }
 
     public static Predicate<Coordinate> asPredicate(GeofencePredicate predicate) {
-        return coordinate -> {
-            if (coordinate == null) {
-                return false;
-            }
-
-            if (predicate instanceof RadialGeofencePredicate) {
+        Predicate<Coordinate> inside;
+
+        if (predicate instanceof RadialGeofencePredicate) {
+            RadialGeofencePredicate radialLocationPredicate = (RadialGeofencePredicate) predicate;
+            Envelope bounds = GeofenceIndex.getBounds(radialLocationPredicate);
+            // The spherical distance is within 0.5% of the orthodromic distance, only compute the exact distance
+            // when the location is close to the edge of the circle
+            double innerRadius = radialLocationPredicate.radius * 0.99;
+            double outerRadius = radialLocationPredicate.radius * 1.01;
+            inside = coordinate -> {
+                if (bounds != null && !bounds.contains(coordinate)) {
+                    return false;
+                }
+                double distance = GeofenceIndex.getHaversineDistance(radialLocationPredicate.lng, radialLocationPredicate.lat, coordinate.x, coordinate.y);
+                if (distance <= innerRadius) {
+                    return true;
+                }
+                if (distance > outerRadius) {
+                    return false;
+                }
                 //TODO geotools version to gradle properties
-                RadialGeofencePredicate radialLocationPredicate = (RadialGeofencePredicate) predicate;
-                GeodeticCalculator calculator = new GeodeticCalculator();
+                GeodeticCalculator calculator = GEODETIC_CALCULATOR.get();
                 calculator.setStartingGeographicPoint(radialLocationPredicate.lng, radialLocationPredicate.lat);
                 calculator.setDestinationGeographicPoint(coordinate.x, coordinate.y);
-                if (predicate.negated) {
-                    return calculator.getOrthodromicDistance() > radialLocationPredicate.radius;
-                }
                 return calculator.getOrthodromicDistance() <= radialLocationPredicate.radius;
-            } else if (predicate instanceof RectangularGeofencePredicate) {
-                // Again this is a euclidean plane so doesn't work perfectly for WGS lat/lng - the bigger the rectangle the less accurate it is)
-                RectangularGeofencePredicate rectangularLocationPredicate = (RectangularGeofencePredicate) predicate;
-                Envelope envelope = new Envelope(rectangularLocationPredicate.lngMin,
-                    rectangularLocationPredicate.lngMax,
-                    rectangularLocationPredicate.latMin,
-                    rectangularLocationPredicate.latMax);
-                if (predicate.negated) {
-                    return !envelope.contains(coordinate);
-                }
-                return envelope.contains(coordinate);
-            } else {
-                throw new UnsupportedOperationException("Location predicate '" + predicate.getClass().getSimpleName() + "' not supported in rules matching");
+            };
+        } else if (predicate instanceof RectangularGeofencePredicate) {
+            // Again this is a euclidean plane so doesn't work perfectly for WGS lat/lng - the bigger the rectangle the less accurate it is)
+            RectangularGeofencePredicate rectangularLocationPredicate = (RectangularGeofencePredicate) predicate;
+            Envelope envelope = new Envelope(rectangularLocationPredicate.lngMin,
+                rectangularLocationPredicate.lngMax,
+                rectangularLocationPredicate.latMin,
+                rectangularLocationPredicate.latMax);
+            inside = envelope::contains;
+        } else {
+            throw new UnsupportedOperationException("Location predicate '" + predicate.getClass().getSimpleName() + "' not supported in rules matching");
+        }
+
+        return coordinate -> {
+            if (coordinate == null) {
+                return false;
             }
+            return predicate.negated != inside.test(coordinate);
         };
     }
 
@@ -359,12 +522,8 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
         Predicate<String> namePredicate = predicate.name != null
                 ? StringPredicate.asPredicate(predicate.name) : str -> true;
 
-        Predicate<Value> valuePredicate = value -> {
-            if (predicate.value == null) {
-                return true;
-            }
-            return asPredicate(currentMillisProducer, predicate.value).test(value);
-        };
+        Predicate<Value> valuePredicate = predicate.value != null
+                ? asPredicate(currentMillisProducer, predicate.value) : value -> true;
 
         return assetState -> namePredicate.test(assetState.getAttributeName())
                 && valuePredicate.test(assetState.getValue().orElse(null));
@@ -374,26 +533,23 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
 
         Predicate<AssetState> attributePredicate = asPredicate(currentMillisProducer, (AttributePredicate)predicate);
 
+        List<Predicate<Meta>> metaPredicates = compile(predicate.meta, p -> asPredicate(currentMillisProducer, p));
         Predicate<Meta> metaPredicate = meta -> {
 
-            if (predicate.meta == null || predicate.meta.length == 0) {
+            if (metaPredicates == null) {
                 return true;
             }
 
-            for (MetaPredicate p : predicate.meta) {
-                if (!AssetQueryPredicate.asPredicate(currentMillisProducer, p).test(meta)) {
+            for (Predicate<Meta> p : metaPredicates) {
+                if (!p.test(meta)) {
                     return false;
                 }
             }
             return true;
         };
 
-        Predicate<Value> oldValuePredicate = value -> {
-            if (predicate.lastValue == null) {
-                return true;
-            }
-            return AssetQueryPredicate.asPredicate(currentMillisProducer, predicate.lastValue).test(value);
-        };
+        Predicate<Value> oldValuePredicate = predicate.lastValue != null
+                ? AssetQueryPredicate.asPredicate(currentMillisProducer, predicate.lastValue) : value -> true;
 
         return assetState -> attributePredicate.test(assetState)
                 && metaPredicate.test(assetState.getMeta())
@@ -401,66 +557,66 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
     }
 
     public static Predicate<Value> asPredicate(Supplier<Long> currentMillisProducer, ValuePredicate predicate) {
-        return value -> {
-            if (predicate == null)
-                return true;
+        if (predicate == null)
+            return value -> true;
 
-            if (predicate instanceof ValueEmptyPredicate) {
+        if (predicate instanceof ValueEmptyPredicate) {
 
-                return value == null;
-            } else if (predicate instanceof ValueNotEmptyPredicate) {
+            return value -> value == null;
+        } else if (predicate instanceof ValueNotEmptyPredicate) {
 
-                return value != null;
+            return value -> value != null;
 
-            } else if (predicate instanceof StringPredicate) {
+        } else if (predicate instanceof StringPredicate) {
 
-                StringPredicate p = (StringPredicate) predicate;
-                return StringPredicate.asPredicate(p).test(Values.getString(value).orElse(null));
+            Predicate<String> p = StringPredicate.asPredicate((StringPredicate) predicate);
+            return value -> p.test(Values.getString(value).orElse(null));
 
-            } else if (predicate instanceof BooleanPredicate) {
+        } else if (predicate instanceof BooleanPredicate) {
 
-                BooleanPredicate p = (BooleanPredicate) predicate;
-                return asPredicate(p).test(Values.getBoolean(value).orElse(null));
+            Predicate<Boolean> p = asPredicate((BooleanPredicate) predicate);
+            return value -> p.test(Values.getBoolean(value).orElse(null));
 
-            } else if (predicate instanceof NumberPredicate) {
+        } else if (predicate instanceof NumberPredicate) {
 
-                NumberPredicate p = (NumberPredicate) predicate;
-                return asPredicate(p).test(Values.getNumber(value).orElse(null));
+            Predicate<Double> p = asPredicate((NumberPredicate) predicate);
+            return value -> p.test(Values.getNumber(value).orElse(null));
 
-            } else if (predicate instanceof DateTimePredicate) {
+        } else if (predicate instanceof DateTimePredicate) {
 
-                DateTimePredicate p = (DateTimePredicate) predicate;
-                return asPredicate(currentMillisProducer, p).test(Values.getNumber(value).map(Double::longValue).orElse(null));
-            } else if (predicate instanceof GeofencePredicate) {
+            Predicate<Long> p = asPredicate(currentMillisProducer, (DateTimePredicate) predicate);
+            return value -> p.test(Values.getNumber(value).map(Double::longValue).orElse(null));
+        } else if (predicate instanceof GeofencePredicate) {
 
-                GeofencePredicate p = (GeofencePredicate) predicate;
-                return asPredicate(p).test(Optional.ofNullable(value)
-                        .flatMap(GeoJSONPoint::fromValue)
-                        .map(point -> new Coordinate(point.getX(), point.getY()))
-                        .orElse(null));
-            } else if (predicate instanceof ObjectValueKeyPredicate) {
+            Predicate<Coordinate> p = asPredicate((GeofencePredicate) predicate);
+            return value -> p.test(Optional.ofNullable(value)
+                    .flatMap(GeoJSONPoint::fromValue)
+                    .map(point -> new Coordinate(point.getX(), point.getY()))
+                    .orElse(null));
+        } else if (predicate instanceof ObjectValueKeyPredicate) {
 
-                ObjectValueKeyPredicate p = (ObjectValueKeyPredicate) predicate;
-                return asPredicate(p).test(Optional.ofNullable(value)
-                        .flatMap(Values::getObject)
-                        .orElse(null));
-            }  else if (predicate instanceof ArrayPredicate) {
+            Predicate<ObjectValue> p = asPredicate((ObjectValueKeyPredicate) predicate);
+            return value -> p.test(Optional.ofNullable(value)
+                    .flatMap(Values::getObject)
+                    .orElse(null));
+        }  else if (predicate instanceof ArrayPredicate) {
 
-                ArrayPredicate p = (ArrayPredicate) predicate;
-                return asPredicate(p).test(Optional.ofNullable(value)
-                        .flatMap(Values::getArray)
-                        .orElse(null));
-            } else if (predicate instanceof CalendarEventPredicate) {
+            Predicate<ArrayValue> p = asPredicate((ArrayPredicate) predicate);
+            return value -> p.test(Optional.ofNullable(value)
+                    .flatMap(Values::getArray)
+                    .orElse(null));
+        } else if (predicate instanceof CalendarEventPredicate) {
 
-                CalendarEventPredicate p = (CalendarEventPredicate) predicate;
-                return asPredicate(p).test(Values.getObject(value).flatMap(CalendarEvent::fromValue).orElse(null));
-            } else {
-                // TODO Implement more
+            Predicate<CalendarEvent> p = asPredicate((CalendarEventPredicate) predicate);
+            return value -> p.test(Values.getObject(value).flatMap(CalendarEvent::fromValue).orElse(null));
+        } else {
+            // TODO Implement more
+            return value -> {
                 throw new UnsupportedOperationException(
                         "Restriction by attribute value not implemented in rules matching for " + predicate.getClass()
                 );
-            }
-        };
+            };
+        }
     }
 
     public static Predicate<CalendarEvent> asPredicate(CalendarEventPredicate p) {
@@ -535,14 +691,19 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
 
     public static Predicate<Meta> asPredicate(Supplier<Long> currentMillisProducer, MetaPredicate predicate) {
 
+        Predicate<String> itemNamePredicate = predicate.itemNamePredicate != null
+            ? StringPredicate.asPredicate(predicate.itemNamePredicate) : null;
+        Predicate<Value> itemValuePredicate = predicate.itemValuePredicate != null
+            ? asPredicate(currentMillisProducer, predicate.itemValuePredicate) : null;
+
         Predicate<MetaItem> metaItemPredicate = metaItem -> {
-            if (predicate.itemNamePredicate != null) {
-                if (!metaItem.getName().map(name -> StringPredicate.asPredicate(predicate.itemNamePredicate).test(name)).orElse(false)) {
+            if (itemNamePredicate != null) {
+                if (!metaItem.getName().map(itemNamePredicate::test).orElse(false)) {
                     return false;
                 }
             }
-            if (predicate.itemValuePredicate != null) {
-                if (!metaItem.getValue().map(value -> asPredicate(currentMillisProducer, predicate.itemValuePredicate).test(value)).orElse(false)) {
+            if (itemValuePredicate != null) {
+                if (!metaItem.getValue().map(itemValuePredicate::test).orElse(false)) {
                     return false;
                 }
             }
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * A collection of {@link AssetState}s keyed by {@link AttributeRef}, with secondary indexes by asset identifier,
+ * asset type, realm, parent asset, attribute name and the assets in the path. Inserting, replacing and removing a
+ * state are constant time operations, including removal through {@link #iterator}. A state replaces any state of
+ * the same attribute, iteration order is the order in which states were last inserted or replaced.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class AssetStateStore extends AbstractCollection<AssetState> {
+
+    final protected Map<AttributeRef, AssetState> states = new LinkedHashMap<>();
+    final protected Map<String, Set<AssetState>> assetIdIndex = new HashMap<>();
+    final protected Map<String, Set<AssetState>> assetTypeIndex = new HashMap<>();
+    final protected Map<String, Set<AssetState>> realmIndex = new HashMap<>();
+    final protected Map<String, Set<AssetState>> parentIdIndex = new HashMap<>();
+    final protected Map<String, Set<AssetState>> attributeNameIndex = new HashMap<>();
+    final protected Map<String, Set<AssetState>> pathIndex = new HashMap<>();
+
+    public static AttributeRef getAttributeRef(AssetState assetState) {
+        return new AttributeRef(assetState.getId(), assetState.getAttributeName());
+    }
+
+    /**
+     * Inserts the state or replaces the state of the same attribute.
+     *
+     * @return the replaced state or <code>null</code> if the state was inserted.
+     */
+    public AssetState put(AssetState assetState) {
+        AttributeRef attributeRef = getAttributeRef(assetState);
+        AssetState previous = remove(attributeRef);
+        states.put(attributeRef, assetState);
+        index(assetState);
+        return previous;
+    }
+
+    /**
+     * @return the removed state or <code>null</code> if there was no state of the attribute.
+     */
+    public AssetState remove(AttributeRef attributeRef) {
+        AssetState previous = states.remove(attributeRef);
+        if (previous != null) {
+            unindex(previous);
+        }
+        return previous;
+    }
+
+    public AssetState get(AttributeRef attributeRef) {
+        return states.get(attributeRef);
+    }
+
+    public Set<AssetState> getByAssetId(String assetId) {
+        return lookup(assetIdIndex, assetId);
+    }
+
+    public Set<AssetState> getByAssetType(String assetType) {
+        return lookup(assetTypeIndex, assetType);
+    }
+
+    public Set<AssetState> getByRealm(String realm) {
+        return lookup(realmIndex, realm);
+    }
+
+    public Set<AssetState> getByParentId(String parentId) {
+        return lookup(parentIdIndex, parentId);
+    }
+
+    public Set<AssetState> getByAttributeName(String attributeName) {
+        return lookup(attributeNameIndex, attributeName);
+    }
+
+    /**
+     * @return the states of the given asset and all its descendants.
+     */
+    public Set<AssetState> getInPath(String assetId) {
+        return lookup(pathIndex, assetId);
+    }
+
+    @Override
+    public boolean add(AssetState assetState) {
+        put(assetState);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof AssetState && remove(getAttributeRef((AssetState) o)) != null;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof AssetState && states.containsKey(getAttributeRef((AssetState) o));
+    }
+
+    @Override
+    public Iterator<AssetState> iterator() {
+        Iterator<AssetState> iterator = states.values().iterator();
+        return new Iterator<AssetState>() {
+            AssetState last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public AssetState next() {
+                return last = iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                unindex(last);
+            }
+        };
+    }
+
+    @Override
+    public Spliterator<AssetState> spliterator() {
+        return states.values().spliterator();
+    }
+
+    @Override
+    public int size() {
+        return states.size();
+    }
+
+    @Override
+    public void clear() {
+        states.clear();
+        assetIdIndex.clear();
+        assetTypeIndex.clear();
+        realmIndex.clear();
+        parentIdIndex.clear();
+        attributeNameIndex.clear();
+        pathIndex.clear();
+    }
+
+    protected void index(AssetState assetState) {
+        forEachIndexKey(assetState, (index, key) -> index.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(assetState));
+    }
+
+    protected void unindex(AssetState assetState) {
+        forEachIndexKey(assetState, (index, key) -> {
+            Set<AssetState> indexed = index.get(key);
+            if (indexed != null && indexed.remove(assetState) && indexed.isEmpty()) {
+                index.remove(key);
+            }
+        });
+    }
+
+    protected void forEachIndexKey(AssetState assetState, BiConsumer<Map<String, Set<AssetState>>, String> consumer) {
+        consumer.accept(assetIdIndex, assetState.getId());
+        if (assetState.getTypeString() != null)
+            consumer.accept(assetTypeIndex, assetState.getTypeString());
+        if (assetState.getRealm() != null)
+            consumer.accept(realmIndex, assetState.getRealm());
+        if (assetState.getParentId() != null)
+            consumer.accept(parentIdIndex, assetState.getParentId());
+        consumer.accept(attributeNameIndex, assetState.getAttributeName());
+        if (assetState.getPath() != null) {
+            for (String pathAssetId : assetState.getPath()) {
+                consumer.accept(pathIndex, pathAssetId);
+            }
+        }
+    }
+
+    protected static Set<AssetState> lookup(Map<String, Set<AssetState>> index, String key) {
+        Set<AssetState> indexed = key != null ? index.get(key) : null;
+        return indexed != null ? Collections.unmodifiableSet(indexed) : Collections.emptySet();
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.kohsuke.groovy.sandbox.SandboxTransformer;
+import org.openremote.model.rules.Ruleset;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compiled Groovy and JavaScript rules, shared by all deployments of the same source code within the same scope.
+ * Compiled rulesets are looked up by a hash of their language, {@link #getScope scope} and source code, each
+ * deployment must {@link #acquire} the compiled ruleset it executes and {@link #release} it when undeployed. Groovy
+ * rulesets are compiled in their own class loader, so classes defined by a ruleset don't conflict with the classes of
+ * other rulesets or of a previous version of the ruleset.
+ * <p>
+ * The static state of Groovy classes is shared by all instances of a class, so Groovy rulesets are scoped to the
+ * ruleset they were stored as and are never shared by the rulesets of different realms or assets with the same source
+ * code. Each evaluation of a compiled JavaScript ruleset has its own global scope, JavaScript rulesets are shared by
+ * all deployments of the same source code.
+ * <p>
+ * Compiled rulesets that are no longer used by any deployment are retained up to the idle capacity, so a ruleset that
+ * is redeployed without changes (or {@link #precompile}d) isn't compiled again; the class loader of an evicted
+ * ruleset is closed. A compiled ruleset of a previous version of a ruleset is evicted and closed as soon as it is
+ * idle once another version of the ruleset has been acquired. Rulesets are compiled outside of any lock, concurrent
+ * acquisitions of the same source code wait for a single compilation.
+ */
+public class CompiledRulesetCache {
+
+    private static final Logger LOG = Logger.getLogger(CompiledRulesetCache.class.getName());
+
+    public static final int IDLE_CAPACITY_DEFAULT = 1000;
+
+    public static class CompiledRuleset {
+
+        final protected String key;
+        final protected Ruleset.Lang lang;
+        final protected GroovyClassLoader classLoader;
+        final protected Class<?> scriptClass;
+        final protected ScriptEngine scriptEngine;
+        final protected CompiledScript compiledScript;
+
+        protected CompiledRuleset(String key, GroovyClassLoader classLoader, Class<?> scriptClass) {
+            this.key = key;
+            this.lang = Ruleset.Lang.GROOVY;
+            this.classLoader = classLoader;
+            this.scriptClass = scriptClass;
+            this.scriptEngine = null;
+            this.compiledScript = null;
+        }
+
+        protected CompiledRuleset(String key, ScriptEngine scriptEngine, CompiledScript compiledScript) {
+            this.key = key;
+            this.lang = Ruleset.Lang.JAVASCRIPT;
+            this.classLoader = null;
+            this.scriptClass = null;
+            this.scriptEngine = scriptEngine;
+            this.compiledScript = compiledScript;
+        }
+
+        public Class<?> getScriptClass() {
+            return scriptClass;
+        }
+
+        /**
+         * A compiled script can be evaluated with any script context of its engine, each evaluation with a new
+         * context has its own global scope.
+         */
+        public ScriptEngine getScriptEngine() {
+            return scriptEngine;
+        }
+
+        public CompiledScript getCompiledScript() {
+            return compiledScript;
+        }
+
+        protected void close() {
+            if (classLoader != null) {
+                classLoader.clearCache();
+                try {
+                    classLoader.close();
+                } catch (IOException ex) {
+                    LOG.log(Level.FINE, "Error closing class loader of compiled ruleset: " + key, ex);
+                }
+            }
+        }
+    }
+
+    protected static class Entry {
+        final protected FutureTask<CompiledRuleset> compilation;
+        // The rulesets that acquired this entry, JavaScript entries can be shared by several rulesets
+        final protected Set<String> rulesets = new HashSet<>();
+        protected int references;
+
+        protected Entry(FutureTask<CompiledRuleset> compilation) {
+            this.compilation = compilation;
+        }
+    }
+
+    final protected ScriptEngineManager scriptEngineManager;
+    final protected CompilerConfiguration groovyConfiguration = new CompilerConfiguration()
+        .addCompilationCustomizers(new SandboxTransformer());
+    final protected int idleCapacity;
+    final protected Map<String, Entry> entries = new HashMap<>();
+    final protected LinkedHashMap<String, Entry> idleEntries;
+    // The keys of the entries of each ruleset and the key of the version of each ruleset that was acquired last
+    final protected Map<String, Set<String>> rulesetEntryKeys = new HashMap<>();
+    final protected Map<String, String> rulesetLatestKeys = new HashMap<>();
+
+    public CompiledRulesetCache(ScriptEngineManager scriptEngineManager, int idleCapacity) {
+        this.scriptEngineManager = scriptEngineManager;
+        this.idleCapacity = idleCapacity;
+        this.idleEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= CompiledRulesetCache.this.idleCapacity) {
+                    return false;
+                }
+                entries.remove(eldest.getKey());
+                removeRulesetEntryKeys(eldest.getKey(), eldest.getValue());
+                closeWhenCompiled(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Get the compiled rules of the ruleset, compiling them if they are not in the cache; the compiled ruleset must be
+     * {@link #release}d when it is no longer used.
+     */
+    public CompiledRuleset acquire(Ruleset ruleset) throws Exception {
+        return acquire(ruleset.getLang(), getScope(ruleset), getSource(ruleset), getRulesetKey(ruleset));
+    }
+
+    /**
+     * Get the compiled source code of the scope, compiling it if it is not in the cache; the compiled ruleset must be
+     * {@link #release}d when it is no longer used.
+     */
+    public CompiledRuleset acquire(Ruleset.Lang lang, String scope, String source) throws Exception {
+        return acquire(lang, scope, source, null);
+    }
+
+    protected CompiledRuleset acquire(Ruleset.Lang lang, String scope, String source, String rulesetKey) throws Exception {
+        String key = getKey(lang, scope, source);
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(new FutureTask<>(() -> compile(key, lang, source)));
+                entries.put(key, entry);
+            } else {
+                idleEntries.remove(key);
+            }
+            entry.references++;
+            if (rulesetKey != null) {
+                entry.rulesets.add(rulesetKey);
+                rulesetEntryKeys.computeIfAbsent(rulesetKey, k -> new HashSet<>()).add(key);
+                if (!key.equals(rulesetLatestKeys.put(rulesetKey, key))) {
+                    removeStaleEntries(rulesetKey);
+                }
+            }
+        }
+
+        // Does nothing if the compilation is already running or done
+        entry.compilation.run();
+
+        try {
+            return entry.compilation.get();
+        } catch (ExecutionException ex) {
+            synchronized (this) {
+                // Don't cache failures, the entry is gone once all concurrent acquisitions have failed
+                if (--entry.references == 0 && entries.get(key) == entry) {
+                    entries.remove(key);
+                    removeRulesetEntryKeys(key, entry);
+                }
+            }
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    public synchronized void release(CompiledRuleset compiledRuleset) {
+        Entry entry = entries.get(compiledRuleset.key);
+        if (entry == null || entry.references == 0) {
+            return;
+        }
+        if (--entry.references == 0) {
+            if (isStale(compiledRuleset.key, entry)) {
+                removeEntry(compiledRuleset.key, entry);
+            } else {
+                idleEntries.put(compiledRuleset.key, entry);
+            }
+        }
+    }
+
+    /**
+     * Compile the Groovy and JavaScript rulesets in parallel on the executor, using at most the given number of its
+     * threads, and keep them in the cache so they don't have to be compiled when deployed; blocks until all rulesets
+     * are compiled.
+     */
+    public void precompile(Collection<? extends Ruleset> rulesets, ExecutorService executor, int threads) {
+        List<Ruleset> compilable = new ArrayList<>();
+        for (Ruleset ruleset : rulesets) {
+            if ((ruleset.getLang() == Ruleset.Lang.GROOVY || ruleset.getLang() == Ruleset.Lang.JAVASCRIPT)
+                && ruleset.getRules() != null && !ruleset.getRules().isEmpty()) {
+                compilable.add(ruleset);
+            }
+        }
+        if (compilable.isEmpty()) {
+            return;
+        }
+
+        int workers = Math.max(1, Math.min(threads, compilable.size()));
+        LOG.info("Compiling " + compilable.size() + " ruleset(s) with " + workers + " thread(s)");
+        long start = System.currentTimeMillis();
+        // Each worker takes rulesets from the queue, so the shared executor isn't flooded with compilations
+        Queue<Ruleset> queue = new ConcurrentLinkedQueue<>(compilable);
+        List<Future<?>> futures = new ArrayList<>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(() -> {
+                    Ruleset ruleset;
+                    while ((ruleset = queue.poll()) != null) {
+                        try {
+                            release(acquire(ruleset));
+                        } catch (Exception ex) {
+                            // Reported when the ruleset is deployed
+                            LOG.log(Level.FINE, "Error compiling ruleset: " + ruleset, ex);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            queue.clear();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOG.log(Level.WARNING, "Error compiling rulesets", ex);
+        }
+        LOG.info("Compiled " + compilable.size() + " ruleset(s) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return the source code that is compiled for the ruleset.
+     */
+    public static String getSource(Ruleset ruleset) {
+        if (ruleset.getLang() == Ruleset.Lang.JAVASCRIPT) {
+            return RulesetDeployment.JAVASCRIPT_HEADER + ruleset.getRules();
+        }
+        return ruleset.getRules();
+    }
+
+    /**
+     * @return the scope in which the compiled rules of the ruleset can be shared, Groovy rulesets are only shared by
+     * deployments of the same stored ruleset.
+     */
+    public static String getScope(Ruleset ruleset) {
+        if (ruleset.getLang() == Ruleset.Lang.GROOVY) {
+            return ruleset.getClass().getSimpleName() + ":" + ruleset.getId();
+        }
+        return null;
+    }
+
+    /**
+     * @return the ruleset whose versions replace each other in the cache, or <code>null</code> if the ruleset hasn't
+     * been stored.
+     */
+    protected static String getRulesetKey(Ruleset ruleset) {
+        if (ruleset.getId() == null) {
+            return null;
+        }
+        return ruleset.getClass().getSimpleName() + ":" + ruleset.getId();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    protected CompiledRuleset compile(String key, Ruleset.Lang lang, String source) throws Exception {
+        switch (lang) {
+            case GROOVY:
+                GroovyClassLoader classLoader = new GroovyClassLoader(CompiledRulesetCache.class.getClassLoader(), groovyConfiguration);
+                try {
+                    Class<?> scriptClass = classLoader.parseClass(source);
+                    return new CompiledRuleset(key, classLoader, scriptClass);
+                } catch (Exception ex) {
+                    classLoader.close();
+                    throw ex;
+                }
+            case JAVASCRIPT:
+                ScriptEngine scriptEngine = scriptEngineManager.getEngineByName("nashorn");
+                return new CompiledRuleset(key, scriptEngine, ((Compilable) scriptEngine).compile(source));
+            default:
+                throw new IllegalArgumentException("Rules language can't be compiled: " + lang);
+        }
+    }
+
+    /**
+     * An entry is stale when another version of each of the rulesets that acquired it has been acquired since.
+     */
+    protected boolean isStale(String key, Entry entry) {
+        if (entry.rulesets.isEmpty()) {
+            return false;
+        }
+        for (String rulesetKey : entry.rulesets) {
+            if (key.equals(rulesetLatestKeys.get(rulesetKey))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected void removeStaleEntries(String rulesetKey) {
+        for (String key : new ArrayList<>(rulesetEntryKeys.get(rulesetKey))) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.references == 0 && isStale(key, entry)) {
+                idleEntries.remove(key);
+                removeEntry(key, entry);
+            }
+        }
+    }
+
+    protected void removeEntry(String key, Entry entry) {
+        entries.remove(key);
+        removeRulesetEntryKeys(key, entry);
+        closeWhenCompiled(entry);
+    }
+
+    protected void removeRulesetEntryKeys(String key, Entry entry) {
+        for (String rulesetKey : entry.rulesets) {
+            Set<String> keys = rulesetEntryKeys.get(rulesetKey);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                rulesetEntryKeys.remove(rulesetKey);
+                rulesetLatestKeys.remove(rulesetKey);
+            }
+        }
+    }
+
+    protected void closeWhenCompiled(Entry entry) {
+        if (!entry.compilation.isDone()) {
+            return;
+        }
+        try {
+            entry.compilation.get().close();
+        } catch (InterruptedException | ExecutionException ignored) {
+        }
+    }
+
+    protected static String getKey(Ruleset.Lang lang, String scope, String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(lang.name().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (scope != null) {
+                digest.update(scope.getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
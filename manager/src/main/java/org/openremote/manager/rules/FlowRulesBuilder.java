@@ -10,12 +10,12 @@ import org.openremote.model.rules.*;
 import org.openremote.model.rules.flow.*;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class FlowRulesBuilder {
     private AssetStorageService assetStorageService;
     private Map<String, Long> triggerMap = new LinkedHashMap<>();
     private List<NodeCollection> nodeCollections = new ArrayList<>();
+    private Set<String> attributeNames = new HashSet<>();
     private Assets assetsFacade;
     private Users usersFacade;
     private Notifications notificationFacade;
@@ -49,11 +49,24 @@ public class FlowRulesBuilder {
         int count = 0;
         List<Rule> rules = new ArrayList<>();
         for (NodeCollection collection : nodeCollections) {
+            FlowGraph graph;
+            try {
+                graph = new FlowGraph(collection, assetsFacade, usersFacade, notificationFacade, historicDatapointsFacade, predictedDatapointsFacade);
+            } catch (Exception e) {
+                RulesEngine.RULES_LOG.severe("Flow rule error: " + e.getMessage());
+                continue;
+            }
+            for (Node node : collection.getNodes()) {
+                NodeModel model = NodeModel.valueOf(node.getName());
+                if (model == NodeModel.READ_ATTRIBUTE || model == NodeModel.WRITE_ATTRIBUTE) {
+                    attributeNames.add(graph.getInfo(node).getInternalValue(0, AssetAttributeInternalValue.class).getAttributeName());
+                }
+            }
             for (Node node : collection.getNodes()) {
                 if (node.getType() != NodeType.OUTPUT) continue;
                 try {
                     RulesEngine.RULES_LOG.info("Flow rule created");
-                    rules.add(createRule(collection.getName() + " - " + count, collection, node));
+                    rules.add(createRule(collection.getName() + " - " + count, collection, graph, node));
                     count++;
                 } catch (Exception e) {
                     RulesEngine.RULES_LOG.severe("Flow rule error: " + e.getMessage());
@@ -63,8 +76,8 @@ public class FlowRulesBuilder {
         return rules.toArray(new Rule[0]);
     }
 
-    private Rule createRule(String name, NodeCollection collection, Node outputNode) throws Exception {
-        Object implementationResult = NodeModel.getImplementationFor(outputNode.getName()).execute(new NodeExecutionRequestInfo(collection, outputNode, null, null, assetsFacade, usersFacade, notificationFacade, historicDatapointsFacade, predictedDatapointsFacade));
+    private Rule createRule(String name, NodeCollection collection, FlowGraph graph, Node outputNode) throws Exception {
+        Object implementationResult = NodeModel.getImplementationFor(outputNode.getName()).execute(graph.getInfo(outputNode));
 
         if (implementationResult == null)
             throw new NullPointerException(outputNode.getName() + " node returns null");
@@ -74,12 +87,14 @@ public class FlowRulesBuilder {
 
         RulesBuilder.Action action = (RulesBuilder.Action) implementationResult;
 
+        List<Node> connectedTree = graph.getUpstreamNodes(outputNode);
+
         RulesBuilder.Condition condition = facts -> {
-            List<Node> connectedTree = backtrackFrom(collection, outputNode);
+            graph.update(facts);
 
             return connectedTree.stream().anyMatch(node -> {
                 NodeTriggerFunction function = NodeModel.getTriggerFunctionFor(node.getName());
-                return function.satisfies(new NodeTriggerParameters(name, facts, this, collection, node));
+                return function.satisfies(new NodeTriggerParameters(name, facts, this, collection, node, graph.getInfo(node)));
             });
         };
 
@@ -108,23 +123,14 @@ public class FlowRulesBuilder {
                 build();
     }
 
-    private List<Node> backtrackFrom(NodeCollection collection, Node node) {
-        List<Node> total = new ArrayList<>();
-        List<Node> children = new ArrayList<>();
-
-        for (NodeSocket s : node.getInputs()) {
-            children.addAll(Arrays.stream(collection.getConnections()).filter(c -> c.getTo().equals(s.getId())).map(c -> collection.getNodeById(collection.getSocketById(c.getFrom()).getNodeId())).collect(Collectors.toList()));
-        }
-
-        for (Node child : children) {
-            total.add(child);
-            total.addAll(backtrackFrom(collection, child));
-        }
-
-        return total;
-    }
-
     public Map<String, Long> getTriggerMap() {
         return triggerMap;
     }
+
+    /**
+     * @return the names of the attributes read or written by the built rules.
+     */
+    public Set<String> getAttributeNames() {
+        return attributeNames;
+    }
 }
@@ -20,18 +20,26 @@
 package org.openremote.manager.rules;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.vividsolutions.jts.geom.Coordinate;
 import org.openremote.container.persistence.PersistenceEvent;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetStorageService;
 import org.openremote.manager.concurrent.ManagerExecutorService;
+import org.openremote.manager.rules.geofence.GeofenceIndex;
 import org.openremote.model.asset.Asset;
 import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.geo.GeoJSONPoint;
 import org.openremote.model.notification.EmailNotificationMessage;
 import org.openremote.model.notification.Notification;
 import org.openremote.model.query.AssetQuery;
 import org.openremote.model.query.LogicGroup;
 import org.openremote.model.query.UserQuery;
 import org.openremote.model.query.filter.AttributePredicate;
+import org.openremote.model.query.filter.CalendarEventPredicate;
+import org.openremote.model.query.filter.DateTimePredicate;
+import org.openremote.model.query.filter.GeofencePredicate;
+import org.openremote.model.query.filter.NewAttributePredicate;
+import org.openremote.model.query.filter.ValuePredicate;
 import org.openremote.model.rules.*;
 import org.openremote.model.rules.json.*;
 import org.openremote.model.util.TextUtil;
@@ -52,6 +60,7 @@ import static org.openremote.container.Container.JSON;
 import static org.openremote.container.Container.LOG;
 import static org.openremote.container.util.Util.distinctByKey;
 import static org.openremote.manager.rules.AssetQueryPredicate.groupIsEmpty;
+import static org.openremote.model.attribute.AttributeType.LOCATION;
 import static org.openremote.model.query.filter.LocationAttributePredicate.getLocationPredicates;
 
 public class JsonRulesBuilder extends RulesBuilder {
@@ -79,10 +88,21 @@ public class JsonRulesBuilder extends RulesBuilder {
         int limit;
         LogicGroup<AttributePredicate> attributePredicates = null;
         Predicate<AssetState> assetStatePredicate = null;
+        AssetQueryPredicate assetQueryPredicate = null;
         Set<AssetState> unfilteredAssetStates = new HashSet<>();
+        // Results of the attribute predicates for the unfiltered asset states, updated with the changed asset states
+        // unless all asset states have to be evaluated again; non-matching asset states are only kept when unmatched
+        // asset states are tracked
+        Set<AssetState> matchingAssetStates = new HashSet<>();
+        Set<AssetState> nonMatchingAssetStates = new HashSet<>();
+        Set<AssetState> changedAssetStates = new HashSet<>();
+        boolean evaluateAll = true;
+        boolean timeDependent;
         Set<AssetState> previouslyMatchedAssetStates = new HashSet<>();
         Set<AssetState> previouslyUnmatchedAssetStates;
         Predicate<Long> timePredicate;
+        // Set if only location asset states inside (or outside if negated) of this geofence can match
+        GeofencePredicate geofence;
         RuleConditionEvaluationResult lastEvaluationResult;
 
         public RuleConditionState(RuleCondition ruleCondition, boolean trackUnmatched, TimerService timerService) throws Exception {
@@ -142,6 +162,9 @@ public class JsonRulesBuilder extends RulesBuilder {
                     // don't support it here either)
                     attributePredicates.groups = null;
                     assetStatePredicate = AssetQueryPredicate.asPredicate(timerService::getCurrentTimeMillis, attributePredicates);
+                    // Results of predicates relative to the current time can change without any asset state change
+                    timeDependent = isTimeDependent(attributePredicates);
+                    geofence = getRequiredGeofence(attributePredicates);
                 }
                 ruleCondition.assets.orderBy = null;
                 ruleCondition.assets.limit = 0;
@@ -158,20 +181,37 @@ public class JsonRulesBuilder extends RulesBuilder {
                 // Clear last trigger to ensure update runs again
                 lastEvaluationResult = null;
 
-                if (event == null || event.cause == PersistenceEvent.Cause.CREATE) {
+                if (assetQueryPredicate == null) {
+                    // The query doesn't change once the condition has been set up, compile it only once
+                    assetQueryPredicate = new AssetQueryPredicate(timerService, facts.assetStorageService, ruleCondition.assets);
+                }
+
+                if (event == null) {
                     // Do a complete refresh of unfiltered asset states based on the asset query (without attribute predicates)
-                    unfilteredAssetStates = facts.matchAssetState(ruleCondition.assets).collect(Collectors.toSet());
+                    unfilteredAssetStates = facts.matchAssetState(assetQueryPredicate).collect(Collectors.toSet());
+                    evaluateAll = true;
                 } else {
-                    // Replace or remove asset state as required
+                    // Insert, replace or remove asset state as required
                     switch (event.cause) {
+                        case CREATE:
+                            // The asset query only depends on the asset state itself, no need to match all facts
+                            if (assetQueryPredicate.test(event.assetState)) {
+                                unfilteredAssetStates.remove(event.assetState);
+                                unfilteredAssetStates.add(event.assetState);
+                                markChanged(event.assetState);
+                            }
+                            break;
                         case UPDATE:
                             // Only insert if fact was already in there (i.e. it matches the asset type constraints)
                             if (unfilteredAssetStates.remove(event.assetState)) {
                                 unfilteredAssetStates.add(event.assetState);
+                                markChanged(event.assetState);
                             }
                             break;
                         case DELETE:
-                            unfilteredAssetStates.remove(event.assetState);
+                            if (unfilteredAssetStates.remove(event.assetState)) {
+                                markChanged(event.assetState);
+                            }
                             break;
                     }
                 }
@@ -183,6 +223,42 @@ public class JsonRulesBuilder extends RulesBuilder {
             }
         }
 
+        void markChanged(AssetState assetState) {
+            // Keep the latest instance, equality is by asset ID and attribute name
+            changedAssetStates.remove(assetState);
+            changedAssetStates.add(assetState);
+        }
+
+        /**
+         * Applies the attribute predicates to the asset states changed since the last evaluation, or to all
+         * unfiltered asset states if required.
+         */
+        void evaluateAttributePredicates() {
+            if (evaluateAll || timeDependent) {
+                matchingAssetStates.clear();
+                nonMatchingAssetStates.clear();
+                unfilteredAssetStates.forEach(this::evaluateAttributePredicates);
+            } else {
+                changedAssetStates.forEach(assetState -> {
+                    matchingAssetStates.remove(assetState);
+                    nonMatchingAssetStates.remove(assetState);
+                    if (unfilteredAssetStates.contains(assetState)) {
+                        evaluateAttributePredicates(assetState);
+                    }
+                });
+            }
+            changedAssetStates.clear();
+            evaluateAll = false;
+        }
+
+        void evaluateAttributePredicates(AssetState assetState) {
+            if (assetStatePredicate.test(assetState)) {
+                matchingAssetStates.add(assetState);
+            } else if (trackUnmatched) {
+                nonMatchingAssetStates.add(assetState);
+            }
+        }
+
         void update(Map<String, Long> nextRecurAssetIdMap) {
 
             // Last trigger is cleared by rule RHS execution if a match is already found then skip the update
@@ -201,6 +277,10 @@ public class JsonRulesBuilder extends RulesBuilder {
                 return;
             }
 
+            if (attributePredicates != null) {
+                evaluateAttributePredicates();
+            }
+
             if (unfilteredAssetStates.isEmpty()) {
                 // Maybe assets have been deleted so remove any previous match data
                 previouslyMatchedAssetStates.clear();
@@ -212,46 +292,23 @@ public class JsonRulesBuilder extends RulesBuilder {
                 return;
             }
 
+            Set<AssetState> matchingAssetStates;
             List<AssetState> matchedAssetStates;
             List<AssetState> unmatchedAssetStates = Collections.emptyList();
             Collection<String> unmatchedAssetIds = Collections.emptyList();
 
             if (attributePredicates == null) {
+                matchingAssetStates = unfilteredAssetStates;
                 matchedAssetStates = new ArrayList<>(unfilteredAssetStates);
             } else {
-
-                Map<Boolean, List<AssetState>> results;
-                boolean isAndGroup = attributePredicates.operator == null || attributePredicates.operator == LogicGroup.Operator.AND;
-
-                if (isAndGroup) {
-
-                    // ANDs need to be applied in the context of an entire asset as don't make any sense otherwise
-                    results = new HashMap<>();
-                    ArrayList<AssetState> matched = new ArrayList<>();
-                    ArrayList<AssetState> unmatched = new ArrayList<>();
-                    results.put(true, matched);
-                    results.put(false, unmatched);
-
-                    unfilteredAssetStates.stream().collect(Collectors.groupingBy(AssetState::getId)).forEach((id, states) -> {
-
-                        Map<Boolean, List<AssetState>> assetResults = states.stream().collect(Collectors.groupingBy(assetStatePredicate::test));
-                        matched.addAll(assetResults.getOrDefault(true, Collections.emptyList()));
-                        unmatched.addAll(assetResults.getOrDefault(false, Collections.emptyList()));
-                    });
-
-                } else {
-
-                    results = unfilteredAssetStates.stream().collect(Collectors.groupingBy(assetStatePredicate::test));
-
-                }
-
-                matchedAssetStates = results.getOrDefault(true, Collections.emptyList());
-                unmatchedAssetStates = results.getOrDefault(false, Collections.emptyList());
+                matchingAssetStates = this.matchingAssetStates;
+                matchedAssetStates = new ArrayList<>(matchingAssetStates);
 
                 if (trackUnmatched) {
+                    unmatchedAssetStates = new ArrayList<>(nonMatchingAssetStates);
 
                     // Clear out previous unmatched that now match
-                    previouslyUnmatchedAssetStates.removeIf(matchedAssetStates::contains);
+                    previouslyUnmatchedAssetStates.removeIf(matchingAssetStates::contains);
 
                     // Filter out previous un-matches to avoid re-triggering
                     unmatchedAssetStates.removeIf(previouslyUnmatchedAssetStates::contains);
@@ -262,7 +319,7 @@ public class JsonRulesBuilder extends RulesBuilder {
             // Remove previous matches where the asset state no longer matches
             previouslyMatchedAssetStates.removeIf(previousAssetState -> {
 
-                boolean noLongerMatches = !matchedAssetStates.contains(previousAssetState);
+                boolean noLongerMatches = !matchingAssetStates.contains(previousAssetState);
 
                 if (noLongerMatches) {
                     log(Level.FINER, "Rule trigger previously matched asset state no longer matches so resetting: " + previousAssetState);
@@ -296,8 +353,9 @@ public class JsonRulesBuilder extends RulesBuilder {
                 Stream<AssetState> unmatchedAssetStateStream = unmatchedAssetStates.stream().filter(distinctByKey(AssetState::getId));
 
                 // Filter out unmatched asset ids that are in the matched list
+                Set<String> matchedAssetIdSet = new HashSet<>(matchedAssetIds);
                 unmatchedAssetIds = unmatchedAssetStateStream
-                        .filter(assetState -> !matchedAssetIds.contains(assetState.getId()))
+                        .filter(assetState -> !matchedAssetIdSet.contains(assetState.getId()))
                         .map(AssetState::getId)
                         .collect(Collectors.toList());
             }
@@ -323,6 +381,49 @@ public class JsonRulesBuilder extends RulesBuilder {
         }
     }
 
+    /**
+     * @return the geofence of the location attribute that an asset state must match for the group to match, if any.
+     */
+    protected static GeofencePredicate getRequiredGeofence(LogicGroup<AttributePredicate> group) {
+        if (group.operator == LogicGroup.Operator.OR || group.groups != null && !group.groups.isEmpty()) {
+            return null;
+        }
+        return group.getItems().stream()
+            .filter(predicate -> predicate.name != null
+                && predicate.name.match == AssetQuery.Match.EXACT
+                && predicate.name.caseSensitive
+                && !predicate.name.negate
+                && LOCATION.getAttributeName().equals(predicate.name.value)
+                && predicate.value instanceof GeofencePredicate)
+            .map(predicate -> (GeofencePredicate) predicate.value)
+            .findFirst()
+            .orElse(null);
+    }
+
+    protected static boolean isTimeDependent(LogicGroup<AttributePredicate> group) {
+        if (group.getItems().stream().anyMatch(JsonRulesBuilder::isTimeDependent)) {
+            return true;
+        }
+        return group.groups != null && group.groups.stream().anyMatch(JsonRulesBuilder::isTimeDependent);
+    }
+
+    protected static boolean isTimeDependent(AttributePredicate predicate) {
+        if (isTimeDependent(predicate.value)) {
+            return true;
+        }
+        if (predicate instanceof NewAttributePredicate) {
+            NewAttributePredicate newAttributePredicate = (NewAttributePredicate) predicate;
+            return isTimeDependent(newAttributePredicate.lastValue)
+                || (newAttributePredicate.meta != null
+                && Arrays.stream(newAttributePredicate.meta).anyMatch(metaPredicate -> isTimeDependent(metaPredicate.itemValuePredicate)));
+        }
+        return false;
+    }
+
+    protected static boolean isTimeDependent(ValuePredicate predicate) {
+        return predicate instanceof DateTimePredicate || predicate instanceof CalendarEventPredicate;
+    }
+
     /**
      * This contains the results of a rule condition trigger evaluation.
      */
@@ -485,6 +586,12 @@ public class JsonRulesBuilder extends RulesBuilder {
     final protected BiConsumer<Runnable, Long> scheduledActionConsumer;
     final protected Map<String, RuleState> ruleStateMap = new HashMap<>();
     final protected JsonRule[] jsonRules;
+    // Conditions that can only match location asset states within a geofence are only updated when a location
+    // changes inside of their bounds, all other conditions are updated with every asset state change
+    final protected GeofenceIndex<RuleConditionState> geofenceIndex = new GeofenceIndex<>();
+    final protected List<RuleConditionState> geofenceConditionStates = new ArrayList<>();
+    final protected List<RuleConditionState> otherConditionStates = new ArrayList<>();
+    final protected Map<AttributeRef, Coordinate> locations = new HashMap<>();
 
     public JsonRulesBuilder(Ruleset ruleset, TimerService timerService,
                             AssetStorageService assetStorageService, ManagerExecutorService executorService,
@@ -532,7 +639,123 @@ public class JsonRulesBuilder extends RulesBuilder {
     }
 
     public void onAssetStatesChanged(RulesFacts facts, RulesEngine.AssetStateChangeEvent event) {
-        ruleStateMap.values().forEach(triggerStateMap -> triggerStateMap.conditionStateMap.values().forEach(ruleConditionState -> ruleConditionState.updateUnfilteredAssetStates(facts, event)));
+        otherConditionStates.forEach(ruleConditionState -> ruleConditionState.updateUnfilteredAssetStates(facts, event));
+
+        if (geofenceConditionStates.isEmpty()) {
+            return;
+        }
+
+        if (event == null) {
+            locations.clear();
+            geofenceConditionStates.forEach(ruleConditionState -> ruleConditionState.updateUnfilteredAssetStates(facts, null));
+            return;
+        }
+
+        if (event.cause != PersistenceEvent.Cause.UPDATE) {
+            geofenceConditionStates.forEach(ruleConditionState -> ruleConditionState.updateUnfilteredAssetStates(facts, event));
+            locations.remove(new AttributeRef(event.assetState.getId(), event.assetState.getAttributeName()));
+            return;
+        }
+
+        // Any other attribute can't match, and neither can a location that stays outside of the bounds of a
+        // geofence; the asset state instance held by the condition is out of date but its result is the same
+        if (!LOCATION.getAttributeName().equals(event.assetState.getAttributeName())) {
+            return;
+        }
+
+        AttributeRef attributeRef = new AttributeRef(event.assetState.getId(), event.assetState.getAttributeName());
+        Coordinate location = getCoordinate(event.assetState);
+        Coordinate previousLocation = location != null ? locations.put(attributeRef, location) : locations.remove(attributeRef);
+
+        Collection<RuleConditionState> candidates;
+        if (location == null || previousLocation == null) {
+            candidates = geofenceConditionStates;
+        } else {
+            candidates = new LinkedHashSet<>(geofenceIndex.getCandidates(previousLocation.x, previousLocation.y));
+            candidates.addAll(geofenceIndex.getCandidates(location.x, location.y));
+        }
+        candidates.forEach(ruleConditionState -> ruleConditionState.updateUnfilteredAssetStates(facts, event));
+    }
+
+    protected static Coordinate getCoordinate(AssetState assetState) {
+        return assetState.getValue()
+            .flatMap(GeoJSONPoint::fromValue)
+            .map(point -> new Coordinate(point.getX(), point.getY()))
+            .orElse(null);
+    }
+
+    /**
+     * @return the names of the attributes whose asset states can be matched or read by the rules, or <code>null</code>
+     * if the rules can match asset states of any attribute.
+     */
+    public Set<String> getAttributeNames() {
+        Set<String> attributeNames = new HashSet<>();
+
+        for (RuleState ruleState : ruleStateMap.values()) {
+            for (RuleConditionState ruleConditionState : ruleState.conditionStateMap.values()) {
+                if (ruleConditionState.ruleCondition.assets == null) {
+                    continue;
+                }
+                // Unmatched asset states are all other asset states of the matching assets
+                if (ruleConditionState.trackUnmatched || !addAttributeNames(ruleConditionState.attributePredicates, attributeNames)) {
+                    return null;
+                }
+            }
+
+            for (RuleAction[] ruleActions : new RuleAction[][] {ruleState.rule.then, ruleState.rule.otherwise, ruleState.rule.onStart, ruleState.rule.onStop}) {
+                if (ruleActions == null) {
+                    continue;
+                }
+                for (RuleAction ruleAction : ruleActions) {
+                    if (ruleAction.target != null && ruleAction.target.matchedAssets != null
+                        && ruleAction.target.matchedAssets.attributes != null
+                        && !addAttributeNames(ruleAction.target.matchedAssets.attributes, attributeNames)) {
+                        return null;
+                    }
+                    if (ruleAction instanceof RuleActionUpdateAttribute) {
+                        RuleActionUpdateAttribute attributeUpdateAction = (RuleActionUpdateAttribute) ruleAction;
+                        // Only the IDs of the assets matched by the target are used to get the asset states to update
+                        if (ruleAction.target != null && ruleAction.target.assets != null
+                            && ruleAction.target.assets.attributes != null
+                            && !addAttributeNames(ruleAction.target.assets.attributes, attributeNames)) {
+                            return null;
+                        }
+                        if (!TextUtil.isNullOrEmpty(attributeUpdateAction.attributeName)) {
+                            attributeNames.add(attributeUpdateAction.attributeName);
+                        }
+                    }
+                }
+            }
+        }
+
+        return attributeNames;
+    }
+
+    /**
+     * @return <code>false</code> if the predicates don't only match attributes by exact name.
+     */
+    protected static boolean addAttributeNames(LogicGroup<AttributePredicate> attributePredicates, Set<String> attributeNames) {
+        if (attributePredicates == null || attributePredicates.items == null || attributePredicates.items.isEmpty()) {
+            return false;
+        }
+        for (AttributePredicate attributePredicate : attributePredicates.items) {
+            if (attributePredicate.name == null
+                || attributePredicate.name.match != AssetQuery.Match.EXACT
+                || !attributePredicate.name.caseSensitive
+                || attributePredicate.name.negate
+                || TextUtil.isNullOrEmpty(attributePredicate.name.value)) {
+                return false;
+            }
+            attributeNames.add(attributePredicate.name.value);
+        }
+        if (attributePredicates.groups != null) {
+            for (LogicGroup<AttributePredicate> group : attributePredicates.groups) {
+                if (!addAttributeNames(group, attributeNames)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     protected JsonRulesBuilder add(JsonRule rule) throws Exception {
@@ -545,6 +768,15 @@ public class JsonRulesBuilder extends RulesBuilder {
         ruleStateMap.put(rule.name, ruleState);
         addRuleConditionStates(rule.when, rule.otherwise != null, 0, ruleState.conditionStateMap);
 
+        ruleState.conditionStateMap.values().forEach(ruleConditionState -> {
+            if (ruleConditionState.geofence != null) {
+                geofenceIndex.add(ruleConditionState.geofence, ruleConditionState);
+                geofenceConditionStates.add(ruleConditionState);
+            } else {
+                otherConditionStates.add(ruleConditionState);
+            }
+        });
+
         Condition condition = buildLhsCondition(rule, ruleState);
         Action action = buildRhsAction(rule, ruleState);
 
@@ -633,6 +865,10 @@ public class JsonRulesBuilder extends RulesBuilder {
                 long nextRecur = rule.recurrence == null || rule.recurrence.mins == null ? Long.MAX_VALUE : currentTime + (rule.recurrence.mins * 60000);
 
                 if (nextRecur > currentTime) {
+                    if (nextRecur != Long.MAX_VALUE) {
+                        // Make sure the rule is evaluated again when the recurrence period ends
+                        facts.wakeUpAt(nextRecur);
+                    }
                     if (recurPerAsset) {
                         ruleState.thenMatchedAssetIds.forEach(assetId -> ruleState.nextRecurAssetIdMap.put(assetId, nextRecur));
                     } else {
@@ -833,10 +1069,8 @@ public class JsonRulesBuilder extends RulesBuilder {
             List<AssetState> matchingAssetStates = matchingAssetIds
                 .stream()
                 .map(assetId ->
-                        facts.getAssetStates()
-                                .stream()
-                                .filter(state -> state.getId().equals(assetId) && state.getAttributeName().equals(attributeUpdateAction.attributeName))
-                                .findFirst().orElseGet(() -> {
+                        Optional.ofNullable(facts.getAssetStates().get(new AttributeRef(assetId, attributeUpdateAction.attributeName)))
+                                .orElseGet(() -> {
                                     log(Level.WARNING, "Failed to find attribute in rule states for attribute update: " + new AttributeRef(assetId, attributeUpdateAction.attributeName));
                                     return null;
                         }))
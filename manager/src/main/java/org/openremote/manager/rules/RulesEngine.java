@@ -21,6 +21,7 @@ package org.openremote.manager.rules;
 
 import org.jeasy.rules.core.InferenceRulesEngine;
 import org.jeasy.rules.core.RulesEngineParameters;
+import org.openremote.container.concurrent.ExecutionLane;
 import org.openremote.container.persistence.PersistenceEvent;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetProcessingService;
@@ -49,7 +50,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.model.rules.RulesetStatus.*;
 
 public class RulesEngine<T extends Ruleset> {
@@ -100,6 +100,12 @@ public class RulesEngine<T extends Ruleset> {
     // Separate logger for periodic stats printer
     public static final Logger STATS_LOG = Logger.getLogger("org.openremote.rules.RulesEngineStats");
 
+    // How often a due expiry is checked when the pseudo clock is used, the clock can be advanced at any time
+    public static final int PSEUDO_CLOCK_EXPIRY_CHECK_MILLIS = 500;
+
+    // Record execution metrics of rulesets, see RulesService.RULES_PROFILING
+    public static boolean PROFILING_ENABLED = true;
+
     // Here to facilitate testing
     protected static BiConsumer<RulesEngine<?>, RulesetDeployment> PAUSE_SCHEDULER = RulesEngine::schedulePause;
     protected static BiConsumer<RulesEngine<?>, RulesetDeployment> UNPAUSE_SCHEDULER = RulesEngine::scheduleUnpause;
@@ -117,6 +123,11 @@ public class RulesEngine<T extends Ruleset> {
     final protected HistoricDatapoints historicFacade;
     final protected AssetLocationPredicateProcessor assetLocationPredicatesConsumer;
 
+    // Fact changes and firings of this engine are executed serially in its lane, concurrently with other engines
+    // (up to the number of threads of the executor service)
+    final protected ExecutionLane lane;
+    // Notifications that require the global lock are delivered in order, outside of the lane
+    final protected ExecutionLane callbackLane;
     final protected Map<Long, RulesetDeployment> deployments = new LinkedHashMap<>();
     final protected RulesFacts facts;
     final protected InferenceRulesEngine engine;
@@ -125,12 +136,16 @@ public class RulesEngine<T extends Ruleset> {
     protected long lastFireTimestamp;
     protected boolean trackLocationPredicates;
     protected ScheduledFuture<?> fireTimer;
+    protected ScheduledFuture<?> expiryTimer;
+    protected long expiryTimerTimestamp;
     protected ScheduledFuture<?> statsTimer;
     protected Map<Long, ScheduledFuture<?>> pauseTimers = new HashMap<>();
     protected Map<Long, ScheduledFuture<?>> unpauseTimers = new HashMap<>();
 
     // Only used to optimize toString(), contains the details of this engine
     protected String deploymentInfo;
+    // Names of the attributes used by the deployed rules, null if any attribute can be used
+    protected volatile Set<String> attributeNames = Collections.emptySet();
 
     // Only used in tests to prevent scheduled firing of engine
     protected boolean disableTemporaryFactExpiration = false;
@@ -158,6 +173,8 @@ public class RulesEngine<T extends Ruleset> {
         this.historicFacade = new HistoricFacade<>(id, assetDatapointService);
         this.predictedFacade = new PredictedFacade<>(id, assetPredictedDatapointService);
         this.assetLocationPredicatesConsumer = assetLocationPredicatesConsumer;
+        this.lane = new ExecutionLane(getClass().getSimpleName() + " " + id, executorService);
+        this.callbackLane = new ExecutionLane(getClass().getSimpleName() + " " + id + " callbacks", executorService);
 
         this.facts = new RulesFacts(timerService, assetStorageService, assetsFacade, this, RULES_LOG);
         engine = new InferenceRulesEngine(
@@ -172,17 +189,23 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     /**
-     * @return a shallow copy of the asset state facts.
+     * @return a shallow copy of the asset state facts, including queued changes.
      */
     public Set<AssetState> getAssetStates() {
-        return new HashSet<>(facts.getAssetStates());
+        return lane.withLockReturning(toString() + "::getAssetStates", () -> {
+            lane.drain();
+            return new HashSet<>(facts.getAssetStates());
+        });
     }
 
     /**
-     * @return a shallow copy of the asset event facts.
+     * @return a shallow copy of the asset event facts, including queued changes.
      */
     public List<TemporaryFact<AssetState>> getAssetEvents() {
-        return new ArrayList<>(facts.getAssetEvents());
+        return lane.withLockReturning(toString() + "::getAssetEvents", () -> {
+            lane.drain();
+            return new ArrayList<>(facts.getAssetEvents());
+        });
     }
 
     public boolean isRunning() {
@@ -229,118 +252,130 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void addRuleset(T ruleset) {
+        lane.withLock(toString() + "::addRuleset", () -> {
 
-        // Check for previous version of this ruleset
-        RulesetDeployment deployment = deployments.get(ruleset.getId());
-        boolean wasRunning = this.running;
+            // Check for previous version of this ruleset
+            RulesetDeployment deployment = deployments.get(ruleset.getId());
+            boolean wasRunning = this.running;
 
-        stop();
+            stop();
 
-        if (deployment != null) {
-            removeRuleset(deployment.ruleset);
-        }
+            if (deployment != null) {
+                removeRuleset(deployment.ruleset);
+            }
 
-        deployment = new RulesetDeployment(ruleset, timerService, assetStorageService, executorService, assetsFacade, usersFacade, notificationFacade, historicFacade, predictedFacade);
-        boolean compiled;
+            deployment = new RulesetDeployment(ruleset, timerService, assetStorageService, executorService, lane, assetsFacade, usersFacade, notificationFacade, historicFacade, predictedFacade);
+            boolean compiled;
 
-        if (TextUtil.isNullOrEmpty(ruleset.getRules())) {
-            LOG.finest("Ruleset is empty so no rules to deploy: " + ruleset.getName());
-            deployment.setStatus(EMPTY);
-            publishRulesetStatus(deployment);
-        } else if (!ruleset.isEnabled()) {
-            LOG.finest("Ruleset is disabled: " + ruleset.getName());
-            deployment.setStatus(DISABLED);
-            publishRulesetStatus(deployment);
-        } else {
-            deployment.updateValidity();
-            if (deployment.hasExpired()) {
-                LOG.fine("Ruleset validity period has expired: " + ruleset.getName());
-                deployment.setStatus(EXPIRED);
+            if (TextUtil.isNullOrEmpty(ruleset.getRules())) {
+                LOG.finest("Ruleset is empty so no rules to deploy: " + ruleset.getName());
+                deployment.setStatus(EMPTY);
+                publishRulesetStatus(deployment);
+            } else if (!ruleset.isEnabled()) {
+                LOG.finest("Ruleset is disabled: " + ruleset.getName());
+                deployment.setStatus(DISABLED);
                 publishRulesetStatus(deployment);
-                compiled = true;
             } else {
-                compiled = deployment.compile();
-            }
+                deployment.updateValidity();
+                if (deployment.hasExpired()) {
+                    LOG.fine("Ruleset validity period has expired: " + ruleset.getName());
+                    deployment.setStatus(EXPIRED);
+                    publishRulesetStatus(deployment);
+                    compiled = true;
+                } else {
+                    compiled = deployment.compile();
+                }
 
-            if (!compiled) {
-                LOG.log(Level.SEVERE, "Ruleset compilation error: " + ruleset.getName(), deployment.getError());
-                deployment.setStatus(COMPILATION_ERROR);
-                publishRulesetStatus(deployment);
-            } else if (running) {
-                startRuleset(deployment);
+                if (!compiled) {
+                    LOG.log(Level.SEVERE, "Ruleset compilation error: " + ruleset.getName(), deployment.getError());
+                    deployment.setStatus(COMPILATION_ERROR);
+                    publishRulesetStatus(deployment);
+                } else if (running) {
+                    startRuleset(deployment);
+                }
             }
-        }
 
-        deployments.put(ruleset.getId(), deployment);
-        updateDeploymentInfo();
+            deployments.put(ruleset.getId(), deployment);
+            updateDeploymentInfo();
+            updateAttributeNames();
 
-        if (wasRunning) {
-            start();
-        }
+            if (wasRunning) {
+                start();
+            }
+        });
     }
 
     /**
      * @return <code>true</code> if this rules engine has no deployments.
      */
     public boolean removeRuleset(Ruleset ruleset) {
-        RulesetDeployment deployment = deployments.remove(ruleset.getId());
+        return lane.withLockReturning(toString() + "::removeRuleset", () -> {
+            RulesetDeployment deployment = deployments.remove(ruleset.getId());
 
-        if (deployment == null) {
-            LOG.finer("Ruleset cannot be retracted as it was never deployed: " + ruleset);
-            return deployments.size() == 0;
-        }
+            if (deployment == null) {
+                LOG.finer("Ruleset cannot be retracted as it was never deployed: " + ruleset);
+                return deployments.size() == 0;
+            }
 
-        stopRuleset(deployment);
+            stopRuleset(deployment);
+            deployment.release();
 
-        deployment.setStatus(REMOVED);
-        publishRulesetStatus(deployment);
-        deployments.remove(ruleset.getId());
+            deployment.setStatus(REMOVED);
+            publishRulesetStatus(deployment);
+            deployments.remove(ruleset.getId());
 
-        ScheduledFuture<?> timer = pauseTimers.remove(ruleset.getId());
-        if (timer != null) timer.cancel(true);
-        timer = unpauseTimers.remove(ruleset.getId());
-        if (timer != null) timer.cancel(true);
+            ScheduledFuture<?> timer = pauseTimers.remove(ruleset.getId());
+            if (timer != null) timer.cancel(true);
+            timer = unpauseTimers.remove(ruleset.getId());
+            if (timer != null) timer.cancel(true);
 
-        updateDeploymentInfo();
-        start();
+            updateDeploymentInfo();
+            updateAttributeNames();
+            start();
 
-        return deployments.size() == 0;
+            return deployments.size() == 0;
+        });
     }
 
     public void start() {
-        if (running) {
-            return;
-        }
+        lane.withLock(toString() + "::start", () -> {
+            // Apply any queued fact changes before rulesets are started
+            lane.drain();
 
-        if (deployments.size() == 0) {
-            LOG.finest("No rulesets so nothing to start");
-            return;
-        }
+            if (running) {
+                return;
+            }
 
-        if (!canStart()) {
-            LOG.fine("Cannot start rules engine one or more rulesets in an error state");
-            return;
-        }
+            if (deployments.size() == 0) {
+                LOG.finest("No rulesets so nothing to start");
+                return;
+            }
+
+            if (!canStart()) {
+                LOG.fine("Cannot start rules engine one or more rulesets in an error state");
+                return;
+            }
 
-        LOG.info("Starting: " + this);
-        running = true;
-        trackLocationPredicates(true);
+            LOG.info("Starting: " + this);
+            running = true;
+            trackLocationPredicates(true);
 
-        deployments.values().forEach(this::startRuleset);
+            deployments.values().forEach(this::startRuleset);
 
-        updateDeploymentInfo();
-        publishRulesEngineStatus();
-        scheduleFire();
+            updateDeploymentInfo();
+            publishRulesEngineStatus();
+            scheduleFire();
 
-        // Start a background stats printer if INFO level logging is enabled
-        if (STATS_LOG.isLoggable(Level.INFO) || STATS_LOG.isLoggable(Level.FINEST)) {
-            if (STATS_LOG.isLoggable(Level.FINEST)) {
-                LOG.info("On " + this + ", enabling periodic statistics output at INFO level every 30 seconds on category: " + STATS_LOG.getName());
-            } else {
-                LOG.info("On " + this + ", enabling periodic full memory dump at FINEST level every 30 seconds on category: " + STATS_LOG.getName());
+            // Start a background stats printer if INFO level logging is enabled
+            if (STATS_LOG.isLoggable(Level.INFO) || STATS_LOG.isLoggable(Level.FINEST)) {
+                if (STATS_LOG.isLoggable(Level.FINEST)) {
+                    LOG.info("On " + this + ", enabling periodic statistics output at INFO level every 30 seconds on category: " + STATS_LOG.getName());
+                } else {
+                    LOG.info("On " + this + ", enabling periodic full memory dump at FINEST level every 30 seconds on category: " + STATS_LOG.getName());
+                }
+                statsTimer = executorService.scheduleAtFixedRate(this::printSessionStats, 3, 30, TimeUnit.SECONDS);
             }
-            statsTimer = executorService.scheduleAtFixedRate(this::printSessionStats, 3, 30, TimeUnit.SECONDS);
-        }
+        });
     }
 
     protected void trackLocationPredicates(boolean track) {
@@ -362,32 +397,38 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void stop(boolean systemShutdownInProgress) {
-        if (!running) {
-            return;
-        }
-        LOG.info("Stopping: " + this);
-        if (fireTimer != null) {
-            fireTimer.cancel(true);
-            fireTimer = null;
-        }
-        if (statsTimer != null) {
-            statsTimer.cancel(true);
-            statsTimer = null;
-        }
-        pauseTimers.values().forEach(pauseTimer -> pauseTimer.cancel(true));
-        pauseTimers.clear();
-        unpauseTimers.values().forEach(unpauseTimer -> unpauseTimer.cancel(true));
-        unpauseTimers.clear();
+        lane.withLock(toString() + "::stop", () -> {
+            if (!running) {
+                return;
+            }
+            LOG.info("Stopping: " + this);
+            if (fireTimer != null) {
+                fireTimer.cancel(true);
+                fireTimer = null;
+            }
+            if (expiryTimer != null) {
+                expiryTimer.cancel(true);
+                expiryTimer = null;
+            }
+            if (statsTimer != null) {
+                statsTimer.cancel(true);
+                statsTimer = null;
+            }
+            pauseTimers.values().forEach(pauseTimer -> pauseTimer.cancel(true));
+            pauseTimers.clear();
+            unpauseTimers.values().forEach(unpauseTimer -> unpauseTimer.cancel(true));
+            unpauseTimers.clear();
 
-        deployments.values().forEach(this::stopRuleset);
-        running = false;
+            deployments.values().forEach(this::stopRuleset);
+            running = false;
 
-        if (!systemShutdownInProgress && assetLocationPredicatesConsumer != null) {
-            assetLocationPredicatesConsumer.accept(this, null);
-        }
+            if (!systemShutdownInProgress && assetLocationPredicatesConsumer != null) {
+                callbackLane.submit(() -> assetLocationPredicatesConsumer.accept(this, null));
+            }
 
-        updateDeploymentInfo();
-        publishRulesEngineStatus();
+            updateDeploymentInfo();
+            publishRulesEngineStatus();
+        });
     }
 
     protected void startRuleset(RulesetDeployment deployment) {
@@ -434,31 +475,23 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void scheduleFire() {
-        withLock(toString() + "::scheduleFire", () -> {
+        lane.withLock(toString() + "::scheduleFire", () -> {
             // Schedule a firing within the guaranteed expiration time (so not immediately), and
             // only if the last firing is done. This effectively limits how often the rules engine
             // will fire, only once within the guaranteed minimum expiration time.
             if (fireTimer == null || fireTimer.isDone()) {
                 LOG.fine("Scheduling rules firing on: " + this);
                 fireTimer = executorService.schedule(
-                    () -> withLock(RulesEngine.this.toString() + "::fire", () -> {
+                    () -> lane.withLock(RulesEngine.this.toString() + "::fire", () -> {
 
-                        // Are temporary facts present before rules are fired?
-                        boolean hadTemporaryFactsBefore = facts.hasTemporaryFacts();
+                        // Apply queued fact changes
+                        lane.drain();
 
-                        // Process rules for all deployments
+                        // Process rules for all deployments, this removes expired temporary facts first
                         fireAllDeployments();
 
-                        // If there are temporary facts, or if there were some before and
-                        // now they are gone, schedule a new firing to guarantee processing
-                        // of expired and removed temporary facts
-                        if ((facts.hasTemporaryFacts() || (hadTemporaryFactsBefore && !facts.hasTemporaryFacts()))
-                            && !disableTemporaryFactExpiration) {
-                            LOG.fine("Temporary facts require firing rules on: " + this);
-                            executorService.schedule(this::scheduleFire, 0);
-                        } else if (!disableTemporaryFactExpiration) {
-                            LOG.fine("No temporary facts present/changed when firing rules on: " + this);
-                        }
+                        // Wake up when the next temporary fact expires or rule recurrence ends
+                        scheduleExpiry();
 
                     }),
                     TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS
@@ -467,6 +500,62 @@ public class RulesEngine<T extends Ruleset> {
         });
     }
 
+    /**
+     * Schedules a firing for the next due entry of the expiry queue of the facts, unless an earlier one has
+     * already been scheduled. The firing happens at the due time, as {@link #scheduleFire} delays firings by
+     * {@link TemporaryFact#GUARANTEED_MIN_EXPIRATION_MILLIS}. With a pseudo clock, which can be advanced at any time,
+     * the clock is checked every {@link #PSEUDO_CLOCK_EXPIRY_CHECK_MILLIS} and the engine only fires once the entry
+     * is due.
+     */
+    protected void scheduleExpiry() {
+        if (disableTemporaryFactExpiration || !running) {
+            return;
+        }
+
+        long nextExpiry = facts.getNextExpiryTimestamp();
+
+        if (nextExpiry == Long.MAX_VALUE) {
+            LOG.fine("No temporary facts present when firing rules on: " + this);
+            return;
+        }
+
+        if (expiryTimer != null && !expiryTimer.isDone()) {
+            if (expiryTimerTimestamp <= nextExpiry) {
+                return;
+            }
+            expiryTimer.cancel(false);
+        }
+
+        expiryTimerTimestamp = nextExpiry;
+
+        if (timerService.getClock() == TimerService.Clock.PSEUDO) {
+            LOG.fine("Temporary facts require firing rules when the pseudo clock reaches " + nextExpiry + " on: " + this);
+            expiryTimer = executorService.schedule(this::checkExpiryDue, PSEUDO_CLOCK_EXPIRY_CHECK_MILLIS);
+            return;
+        }
+
+        long delay = Math.max(nextExpiry - timerService.getCurrentTimeMillis() - TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS, 0);
+
+        LOG.fine("Temporary facts require firing rules in " + (delay + TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS) + "ms on: " + this);
+        expiryTimer = executorService.schedule(this::scheduleFire, delay);
+    }
+
+    /**
+     * Fires the engine if the pseudo clock has reached the scheduled expiry, otherwise checks again later.
+     */
+    protected void checkExpiryDue() {
+        lane.withLock(toString() + "::checkExpiryDue", () -> {
+            if (!running) {
+                return;
+            }
+            if (timerService.getCurrentTimeMillis() >= expiryTimerTimestamp) {
+                scheduleFire();
+            } else {
+                expiryTimer = executorService.schedule(this::checkExpiryDue, PSEUDO_CLOCK_EXPIRY_CHECK_MILLIS);
+            }
+        });
+    }
+
     private void fireDeployments(Collection<RulesetDeployment> deploymentList) {
         if (!running) {
             return;
@@ -500,8 +589,13 @@ public class RulesEngine<T extends Ruleset> {
                     facts.reset();
 
                     long startTimestamp = System.currentTimeMillis();
+                    long startNanos = System.nanoTime();
                     lastFireTimestamp = startTimestamp;
+                    facts.setProfiler(deployment.getProfiler());
                     engine.fire(deployment.getRules(), facts);
+                    if (deployment.getProfiler() != null) {
+                        deployment.getProfiler().recordFiring(startTimestamp, System.nanoTime() - startNanos);
+                    }
                     RULES_LOG.fine("Rules executed in: " + (System.currentTimeMillis() - startTimestamp) + "ms");
                 }
 
@@ -520,6 +614,7 @@ public class RulesEngine<T extends Ruleset> {
             } finally {
                 // Reset facts after this firing (loop detection etc.)
                 facts.reset();
+                facts.setProfiler(null);
             }
         }
 
@@ -531,7 +626,9 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     protected void fireAllDeploymentsWithPredictedData() {
-        fireDeployments(deployments.values().stream().filter(RulesetDeployment::isTriggerOnPredictedData).collect(Collectors.toList()));
+        lane.submit(() ->
+            fireDeployments(deployments.values().stream().filter(RulesetDeployment::isTriggerOnPredictedData).collect(Collectors.toList()))
+        );
     }
 
     protected void notifyAssetStatesChanged(AssetStateChangeEvent event) {
@@ -542,31 +639,46 @@ public class RulesEngine<T extends Ruleset> {
         }
     }
 
+    /**
+     * Queues the change in the inbox of this engine, it is applied in the lane of the engine.
+     */
     public void updateOrInsertAssetState(AssetState assetState, boolean insert) {
-        facts.putAssetState(assetState);
-        // Make sure location predicate tracking is activated before notifying the deployments otherwise they won't report location predicates
-        trackLocationPredicates(trackLocationPredicates || (insert && assetState.getAttributeName().equals(AttributeType.LOCATION.getAttributeName())));
-        notifyAssetStatesChanged(new AssetStateChangeEvent(insert ? PersistenceEvent.Cause.CREATE : PersistenceEvent.Cause.UPDATE, assetState));
-        if (running) {
-            scheduleFire();
-        }
+        lane.submit(() -> {
+            facts.putAssetState(assetState);
+            // Make sure location predicate tracking is activated before notifying the deployments otherwise they won't report location predicates
+            trackLocationPredicates(trackLocationPredicates || (insert && assetState.getAttributeName().equals(AttributeType.LOCATION.getAttributeName())));
+            notifyAssetStatesChanged(new AssetStateChangeEvent(insert ? PersistenceEvent.Cause.CREATE : PersistenceEvent.Cause.UPDATE, assetState));
+            if (running) {
+                scheduleFire();
+            }
+        });
     }
 
+    /**
+     * Queues the change in the inbox of this engine, it is applied in the lane of the engine.
+     */
     public void removeAssetState(AssetState assetState) {
-        facts.removeAssetState(assetState);
-        // Make sure location predicate tracking is activated before notifying the deployments otherwise they won't report location predicates
-        trackLocationPredicates(trackLocationPredicates || assetState.getAttributeName().equals(AttributeType.LOCATION.getAttributeName()));
-        notifyAssetStatesChanged(new AssetStateChangeEvent(PersistenceEvent.Cause.DELETE, assetState));
-        if (running) {
-            scheduleFire();
-        }
+        lane.submit(() -> {
+            facts.removeAssetState(assetState);
+            // Make sure location predicate tracking is activated before notifying the deployments otherwise they won't report location predicates
+            trackLocationPredicates(trackLocationPredicates || assetState.getAttributeName().equals(AttributeType.LOCATION.getAttributeName()));
+            notifyAssetStatesChanged(new AssetStateChangeEvent(PersistenceEvent.Cause.DELETE, assetState));
+            if (running) {
+                scheduleFire();
+            }
+        });
     }
 
+    /**
+     * Queues the change in the inbox of this engine, it is applied in the lane of the engine.
+     */
     public void insertAssetEvent(String expires, AssetState assetState) {
-        facts.insertAssetEvent(expires, assetState);
-        if (running) {
-            scheduleFire();
-        }
+        lane.submit(() -> {
+            facts.insertAssetEvent(expires, assetState);
+            if (running) {
+                scheduleFire();
+            }
+        });
     }
 
     protected void updateDeploymentInfo() {
@@ -577,8 +689,51 @@ public class RulesEngine<T extends Ruleset> {
         );
     }
 
+    protected void updateAttributeNames() {
+        Set<String> attributeNames = new HashSet<>();
+        for (RulesetDeployment deployment : deployments.values()) {
+            Set<String> deploymentAttributeNames = deployment.getAttributeNames();
+            if (deploymentAttributeNames == null) {
+                this.attributeNames = null;
+                return;
+            }
+            attributeNames.addAll(deploymentAttributeNames);
+        }
+        this.attributeNames = Collections.unmodifiableSet(attributeNames);
+    }
+
+    /**
+     * @return the names of the attributes whose asset states can be used by the deployed rules, <code>null</code> if
+     * asset states of any attribute can be used.
+     */
+    public Set<String> getAttributeNames() {
+        return attributeNames;
+    }
+
+    /**
+     * @return <code>true</code> if the deployed rules can use asset states of the attribute; asset states of other
+     * attributes don't have to be inserted into this engine.
+     */
+    public boolean isInterestedIn(String attributeName) {
+        Set<String> attributeNames = this.attributeNames;
+        return attributeNames == null || attributeNames.contains(attributeName);
+    }
+
+    /**
+     * @return a snapshot of the execution metrics of the deployed rulesets, empty if profiling is disabled.
+     */
+    public RulesetMetrics[] getMetrics() {
+        return lane.withLockReturning(toString() + "::getMetrics", () -> {
+            long timestamp = System.currentTimeMillis();
+            return deployments.values().stream()
+                .filter(deployment -> deployment.getProfiler() != null)
+                .map(deployment -> deployment.getProfiler().getMetrics(deployment.getId(), deployment.getName(), deployment.getStatus(), timestamp))
+                .toArray(RulesetMetrics[]::new);
+        });
+    }
+
     protected void printSessionStats() {
-        withLock(toString() + "::printSessionStats", () -> {
+        lane.withLock(toString() + "::printSessionStats", () -> {
             Collection<AssetState> assetStateFacts = facts.getAssetStates();
             Collection<TemporaryFact<AssetState>> assetEventFacts = facts.getAssetEvents();
             Map<String, Object> namedFacts = facts.getNamedFacts();
@@ -590,7 +745,8 @@ public class RulesEngine<T extends Ruleset> {
                 + ", AssetEvent: " + assetEventFacts.size()
                 + ", Named: " + namedFacts.size()
                 + ", Anonymous: " + anonFacts.size()
-                + ", Temporary: " + temporaryFactsCount);
+                + ", Temporary: " + temporaryFactsCount
+                + ", Queued changes: " + lane.getQueueSize());
 
             // Additional details if FINEST is enabled
             if (STATS_LOG.isLoggable(Level.FINEST)) {
@@ -605,7 +761,8 @@ public class RulesEngine<T extends Ruleset> {
      */
     protected void processLocationRules(List<AssetStateLocationPredicates> assetStateLocationPredicates) {
         if (assetLocationPredicatesConsumer != null) {
-            assetLocationPredicatesConsumer.accept(this, assetStateLocationPredicates);
+            // The consumer requires the global lock which must not be obtained in the lane
+            callbackLane.submit(() -> assetLocationPredicatesConsumer.accept(this, assetStateLocationPredicates));
         }
     }
 
@@ -618,7 +775,7 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     protected void publishRulesEngineStatus() {
-        withLock(getClass().getSimpleName() + "::publishRulesEngineStatus", () -> {
+        lane.withLock(getClass().getSimpleName() + "::publishRulesEngineStatus", () -> {
 
             String engineId = id == null ? null : id.getRealm().orElse(id.getAssetId().orElse(null));
             int compilationErrors = getCompilationErrorDeploymentCount();
@@ -642,7 +799,7 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     protected void publishRulesetStatus(RulesetDeployment deployment) {
-        withLock(getClass().getSimpleName() + "::publishRulesetStatus", () -> {
+        lane.withLock(getClass().getSimpleName() + "::publishRulesetStatus", () -> {
 
             Ruleset ruleset = deployment.ruleset;
             String engineId = id == null ? null : id.getRealm().orElse(id.getAssetId().orElse(null));
@@ -676,7 +833,7 @@ public class RulesEngine<T extends Ruleset> {
             return;
         }
 
-        withLock(getClass().getSimpleName() + ":pauseRuleset", () -> {
+        lane.withLock(getClass().getSimpleName() + ":pauseRuleset", () -> {
             LOG.info("Pausing ruleset: " + deployment.getRuleset().getName());
             stopRuleset(deployment);
             deployment.updateValidity();
@@ -706,7 +863,7 @@ public class RulesEngine<T extends Ruleset> {
             return;
         }
 
-        withLock(getClass().getSimpleName() + "::unpauseRuleset", () -> {
+        lane.withLock(getClass().getSimpleName() + "::unpauseRuleset", () -> {
             LOG.info("Un-pausing ruleset: " + deployment.getRuleset().getName());
             startRuleset(deployment);
         });
@@ -26,6 +26,7 @@ import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetStorageService;
 import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.attribute.AttributeExecuteStatus;
+import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.query.AssetQuery;
 import org.openremote.model.query.filter.GeofencePredicate;
 import org.openremote.model.rules.AssetState;
@@ -37,6 +38,7 @@ import org.openremote.model.value.Values;
 
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.logging.Level;
@@ -66,12 +68,40 @@ public class RulesFacts extends Facts implements RuleListener {
     final protected Assets assetsFacade;
     final protected Object loggingContext;
     final protected Logger LOG;
-    final protected Map<String, Collection<AssetState>> assetIdIndex = new HashMap<>();
-    final protected Map<String, Collection<AssetState>> assetTypeIndex = new HashMap<>();
     public RulesClock clock;
     protected int triggerCount;
+    // Profiling of the ruleset being fired, if enabled
+    protected RulesetProfiler profiler;
+    protected long evaluationStart;
+    protected long executionStart;
+    // Facts tested by the conditions of the rule being evaluated, counted as streams are consumed (in parallel)
+    final protected LongAdder factsScanned = new LongAdder();
     protected boolean trackLocationRules;
     protected Map<String, Set<GeofencePredicate>> assetStateLocationPredicateMap = null;
+    // Temporary facts and wake-up times ordered by the time they are due, the entry of a temporary fact is removed
+    // when the fact is removed or replaced; wake-ups at the same time are only queued once
+    final protected NavigableSet<Expiry> expiryQueue = new TreeSet<>(
+        Comparator.<Expiry>comparingLong(expiry -> expiry.timestamp).thenComparingLong(expiry -> expiry.sequence)
+    );
+    final protected Map<TemporaryFact<?>, Expiry> expiries = new IdentityHashMap<>();
+    protected long expirySequence;
+
+    /**
+     * A temporary fact (or a wake-up time if the fact is <code>null</code>) that is due at the timestamp.
+     */
+    protected static class Expiry {
+        final long timestamp;
+        final long sequence;
+        final String name;
+        final TemporaryFact<?> fact;
+
+        protected Expiry(long timestamp, long sequence, String name, TemporaryFact<?> fact) {
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+            this.name = name;
+            this.fact = fact;
+        }
+    }
 
     public RulesFacts(TimerService timerService, AssetStorageService assetStorageService, Assets assetsFacade, Object loggingContext, Logger logger) {
         this.timerService = timerService;
@@ -80,8 +110,9 @@ public class RulesFacts extends Facts implements RuleListener {
         this.loggingContext = loggingContext;
         this.LOG = logger;
 
-        asMap().put(ASSET_STATES, new ArrayDeque(INITIAL_CAPACITY));
-        asMap().put(ASSET_EVENTS, new ArrayDeque(INITIAL_CAPACITY));
+        asMap().put(ASSET_STATES, new AssetStateStore());
+        // Insertion ordered set, temporary facts are only equal to themselves so they can be removed in constant time
+        asMap().put(ASSET_EVENTS, new LinkedHashSet(INITIAL_CAPACITY));
         asMap().put(EXECUTION_VARS, new HashMap());
         asMap().put(ANONYMOUS_FACTS, new ArrayDeque(INITIAL_CAPACITY));
     }
@@ -112,9 +143,15 @@ public class RulesFacts extends Facts implements RuleListener {
         asMap().put(CLOCK, clock);
     }
 
-    @SuppressWarnings("unchecked")
-    public Collection<AssetState> getAssetStates() {
-        return (Collection<AssetState>) get(ASSET_STATES);
+    /**
+     * Set the profiler of the ruleset that is fired next, or <code>null</code> to stop profiling.
+     */
+    public void setProfiler(RulesetProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public AssetStateStore getAssetStates() {
+        return get(ASSET_STATES);
     }
 
     @SuppressWarnings("unchecked")
@@ -194,7 +231,14 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (UPDATE): " + name + " => " + fact + " - on: " + loggingContext);
         }
+        Object previousFact = asMap().get(name);
         super.put(name, fact);
+        if (previousFact instanceof TemporaryFact && previousFact != fact) {
+            cancelExpiry((TemporaryFact<?>) previousFact);
+        }
+        if (fact instanceof TemporaryFact) {
+            scheduleExpiry(name, (TemporaryFact<?>) fact);
+        }
         return this;
     }
 
@@ -204,6 +248,9 @@ public class RulesFacts extends Facts implements RuleListener {
         }
         getAnonymousFacts().remove(o);
         getAnonymousFacts().add(o);
+        if (o instanceof TemporaryFact) {
+            scheduleExpiry(ANONYMOUS_FACTS, (TemporaryFact<?>) o);
+        }
         return this;
     }
 
@@ -211,19 +258,7 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (UPDATE): " + assetState + " - on: " + loggingContext);
         }
-        getAssetStates().remove(assetState);
-        getAssetStates().add(assetState);
-
-        // Maintain index of all asset states for this asset by ID
-        assetIdIndex.putIfAbsent(assetState.getId(), new ArrayDeque<>());
-        assetIdIndex.get(assetState.getId()).remove(assetState);
-        assetIdIndex.get(assetState.getId()).add(assetState);
-
-        // Maintain index of all asset states for this asset by type
-        assetTypeIndex.putIfAbsent(assetState.getTypeString(), new ArrayDeque<>());
-        assetTypeIndex.get(assetState.getTypeString()).remove(assetState);
-        assetTypeIndex.get(assetState.getTypeString()).add(assetState);
-
+        getAssetStates().put(assetState);
         return this;
     }
 
@@ -232,19 +267,6 @@ public class RulesFacts extends Facts implements RuleListener {
             LOG.finest("Fact change (DELETE): " + assetState + " - on: " + loggingContext);
         }
         getAssetStates().remove(assetState);
-
-        // Maintain index of all asset states for this asset by ID
-        Collection<AssetState> assetIdIndexCollection = assetIdIndex.get(assetState.getId());
-        if (assetIdIndexCollection != null) {
-            assetIdIndexCollection.remove(assetState);
-        }
-
-        // Maintain index of all asset states for this asset by type
-        Collection<AssetState> assetTypeIndexCollection = assetTypeIndex.get(assetState.getTypeString());
-        if (assetTypeIndexCollection != null) {
-            assetTypeIndexCollection.remove(assetState);
-        }
-
         return this;
     }
 
@@ -258,6 +280,7 @@ public class RulesFacts extends Facts implements RuleListener {
             LOG.finest("Fact change (INSERT): " + fact + " - on: " + loggingContext);
         }
         getAssetEvents().add(fact);
+        scheduleExpiry(ASSET_EVENTS, fact);
         return this;
     }
 
@@ -274,7 +297,9 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public RulesFacts putTemporary(long expires, Object value) {
-        getAnonymousFacts().add(new TemporaryFact<>((long) getClock().getTimestamp(), expires, value));
+        TemporaryFact<Object> fact = new TemporaryFact<>((long) getClock().getTimestamp(), expires, value);
+        getAnonymousFacts().add(fact);
+        scheduleExpiry(ANONYMOUS_FACTS, fact);
         return this;
     }
 
@@ -307,14 +332,22 @@ public class RulesFacts extends Facts implements RuleListener {
 
     @Override
     public RulesFacts remove(String name) {
+        Object previousFact = asMap().get(name);
         super.remove(name);
+        if (previousFact instanceof TemporaryFact) {
+            cancelExpiry((TemporaryFact<?>) previousFact);
+        }
         return this;
     }
 
     public RulesFacts remove(Object fact) {
         getAnonymousFacts().removeIf(anonFact -> {
             if (anonFact instanceof TemporaryFact) {
-                anonFact = ((TemporaryFact) anonFact).getFact();
+                if (((TemporaryFact) anonFact).getFact().equals(fact)) {
+                    cancelExpiry((TemporaryFact<?>) anonFact);
+                    return true;
+                }
+                return false;
             }
             return anonFact.equals(fact);
         });
@@ -336,11 +369,19 @@ public class RulesFacts extends Facts implements RuleListener {
 
         logRule(rule, "Rule candidate", true, false);
 
+        if (profiler != null) {
+            factsScanned.reset();
+            evaluationStart = System.nanoTime();
+        }
+
         return true;
     }
 
     @Override
     public void afterEvaluate(Rule rule, Facts facts, boolean evaluationResult) {
+        if (profiler != null) {
+            profiler.recordEvaluation(rule, System.nanoTime() - evaluationStart, evaluationResult, factsScanned.sum());
+        }
         if (evaluationResult) {
             triggerCount++;
             if (triggerCount >= MAX_RULES_TRIGGERED_PER_EXECUTION) {
@@ -352,15 +393,26 @@ public class RulesFacts extends Facts implements RuleListener {
     @Override
     public void beforeExecute(Rule rule, Facts facts) {
         logRule(rule, "Rule triggered", false, true);
+
+        if (profiler != null) {
+            executionStart = System.nanoTime();
+        }
     }
 
     @Override
     public void onSuccess(Rule rule, Facts facts) {
         logRule(rule, "Rule executed", true, false);
+
+        if (profiler != null) {
+            profiler.recordAction(rule, System.nanoTime() - executionStart, false);
+        }
     }
 
     @Override
     public void onFailure(Rule rule, Facts facts, Exception exception) {
+        if (profiler != null) {
+            profiler.recordAction(rule, System.nanoTime() - executionStart, true);
+        }
         throw new RuntimeException("Error executing action of rule '" + rule.getName() + "': " + exception.getMessage(), exception);
     }
 
@@ -429,19 +481,30 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public Stream<AssetState> matchAssetState(AssetQuery assetQuery) {
+        return matchAssetState(new AssetQueryPredicate(timerService, assetStorageService, assetQuery));
+    }
 
-        if (trackLocationRules && assetQuery.attributes != null) {
-            storeLocationPredicates(getLocationPredicates(assetQuery.attributes));
+    /**
+     * Match with a compiled query, only the asset states found in the indexes for the query are tested.
+     */
+    public Stream<AssetState> matchAssetState(AssetQueryPredicate p) {
+
+        if (trackLocationRules && p.getQuery().attributes != null) {
+            storeLocationPredicates(getLocationPredicates(p.getQuery().attributes));
         }
 
-        Predicate<AssetState> p = new AssetQueryPredicate(timerService, assetStorageService, assetQuery);
-        return matchAssetState(p);
+        Collection<AssetState> candidates = p.getCandidates(getAssetStates());
+        if (candidates == getAssetStates()) {
+            // No index can be used, match against all asset states
+            return matchAssetState((Predicate<AssetState>) p);
+        }
+        return candidates.stream().filter(countScanned(p));
     }
 
     public Stream<AssetState> matchAssetState(Predicate<AssetState> p) {
         // Match against all asset states by default
         Stream<AssetState> assetStates = getAssetStates().stream();
-        return assetStates.parallel().filter(p);
+        return assetStates.parallel().filter(countScanned(p));
     }
 
     public Optional<TemporaryFact<AssetState>> matchFirstAssetEvent(AssetQuery assetQuery) {
@@ -455,7 +518,21 @@ public class RulesFacts extends Facts implements RuleListener {
     public Stream<TemporaryFact<AssetState>> matchAssetEvent(AssetQuery assetQuery) {
         Predicate<AssetState> p = new AssetQueryPredicate(timerService, assetStorageService, assetQuery);
         return getAssetEvents().stream().parallel()
-                .filter(fact -> matchFact(fact, AssetState.class, p).isPresent());
+                .filter(countScanned(fact -> matchFact(fact, AssetState.class, p).isPresent()));
+    }
+
+    /**
+     * Count the facts tested by the predicate while profiling, so only facts of a stream that are actually consumed
+     * (e.g. not after {@link Stream#findFirst} found a match) are counted.
+     */
+    protected <T> Predicate<T> countScanned(Predicate<T> p) {
+        if (profiler == null) {
+            return p;
+        }
+        return fact -> {
+            factsScanned.increment();
+            return p.test(fact);
+        };
     }
 
     public RulesFacts updateAssetState(String assetId, String attributeName, Value value) {
@@ -482,41 +559,66 @@ public class RulesFacts extends Facts implements RuleListener {
         return updateAssetState(assetId, attributeName, status.asValue());
     }
 
+    protected void scheduleExpiry(String name, TemporaryFact<?> fact) {
+        // Replace the entry if the same fact is put again, a fact is expired one millisecond after its expiration time
+        cancelExpiry(fact);
+        Expiry expiry = new Expiry(fact.getTimestamp() + fact.getExpirationMilliseconds() + 1, ++expirySequence, name, fact);
+        expiryQueue.add(expiry);
+        expiries.put(fact, expiry);
+    }
+
+    protected void cancelExpiry(TemporaryFact<?> fact) {
+        Expiry expiry = expiries.remove(fact);
+        if (expiry != null) {
+            expiryQueue.remove(expiry);
+        }
+    }
+
+    /**
+     * Request a firing of the rules engine at the given time, e.g. when a rule recurrence period ends. Expired
+     * wake-up times are removed with expired temporary facts.
+     */
+    public void wakeUpAt(long timestamp) {
+        // All wake-ups have the same sequence, so only one is queued per timestamp
+        expiryQueue.add(new Expiry(timestamp, 0, null, null));
+    }
+
+    /**
+     * @return the time when the next temporary fact expires or a wake-up is due, {@link Long#MAX_VALUE} if there is none.
+     */
+    public long getNextExpiryTimestamp() {
+        return expiryQueue.isEmpty() ? Long.MAX_VALUE : expiryQueue.first().timestamp;
+    }
+
+    /**
+     * Removes temporary facts that expired before the current clock time, only the due entries of the expiry queue
+     * are visited.
+     */
     public void removeExpiredTemporaryFacts() {
         long currentTimestamp = (long) getClock().getTimestamp();
-        getAssetEvents().removeIf(fact -> {
-            boolean result = fact.isExpired(currentTimestamp);
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + fact + " - on: " + loggingContext);
+        while (!expiryQueue.isEmpty() && expiryQueue.first().timestamp <= currentTimestamp) {
+            Expiry expiry = expiryQueue.pollFirst();
+            if (expiry.fact == null) {
+                continue;
             }
-            return result;
-        });
-        asMap().entrySet().removeIf(entry -> {
-            if (entry.getKey().equals(CLOCK)
-                    || entry.getKey().equals(ASSET_STATES)
-                    || entry.getKey().equals(ASSET_EVENTS)
-                    || entry.getKey().equals(EXECUTION_VARS)
-                    || entry.getKey().equals(ANONYMOUS_FACTS)
-                    || !(entry.getValue() instanceof TemporaryFact)) {
-                return false;
-            }
-            boolean result = ((TemporaryFact) entry.getValue()).isExpired(currentTimestamp);
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + entry.getValue() + " - on: " + loggingContext);
-            }
-            return result;
-        });
-        getAnonymousFacts().removeIf(fact -> {
-            boolean result = false;
-            if (fact instanceof TemporaryFact) {
-                TemporaryFact temporaryFact = (TemporaryFact) fact;
-                result = temporaryFact.isExpired((long) getClock().getTimestamp());
+            expiries.remove(expiry.fact);
+            boolean removed;
+            switch (expiry.name) {
+                case ASSET_EVENTS:
+                    removed = getAssetEvents().remove(expiry.fact);
+                    break;
+                case ANONYMOUS_FACTS:
+                    // Anonymous facts may be mutated or equal to other facts, only remove this instance
+                    removed = getAnonymousFacts().removeIf(fact -> fact == expiry.fact);
+                    break;
+                default:
+                    // Only remove the named fact if it hasn't been replaced
+                    removed = asMap().remove(expiry.name, expiry.fact);
             }
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + fact + " - on: " + loggingContext);
+            if (removed && LOG.isLoggable(Level.FINEST)) {
+                LOG.finest("Fact change (DELETE EXPIRED): " + expiry.fact + " - on: " + loggingContext);
             }
-            return result;
-        });
+        }
     }
 
     public boolean logFacts(Logger logger) {
@@ -611,26 +713,10 @@ public class RulesFacts extends Facts implements RuleListener {
 
     protected RulesFacts invalidateAssetStateAndDispatch(String assetId, String attributeName, Value value) {
         // Remove the asset state from the facts, it is invalid now
-        getAssetStates()
-                .removeIf(assetState -> {
-                    boolean invalid = assetState.getId().equals(assetId) && assetState.getAttributeName().equals(attributeName);
-                    if (invalid) {
-                        if (LOG.isLoggable(Level.FINEST)) {
-                            LOG.finest("Fact change (INTERNAL DELETE): " + assetState + " - on: " + loggingContext);
-                        }
-                        // Maintain index of all asset states for this asset by ID
-                        Collection<AssetState> assetIdIndexCollection = assetIdIndex.get(assetState.getId());
-                        if (assetIdIndexCollection != null) {
-                            assetIdIndexCollection.remove(assetState);
-                        }
-                        // Maintain index of all asset states for this asset by type
-                        Collection<AssetState> assetTypeIndexCollection = assetTypeIndex.get(assetState.getTypeString());
-                        if (assetTypeIndexCollection != null) {
-                            assetTypeIndexCollection.remove(assetState);
-                        }
-                    }
-                    return invalid;
-                });
+        AssetState invalidAssetState = getAssetStates().remove(new AttributeRef(assetId, attributeName));
+        if (invalidAssetState != null && LOG.isLoggable(Level.FINEST)) {
+            LOG.finest("Fact change (INTERNAL DELETE): " + invalidAssetState + " - on: " + loggingContext);
+        }
 
         // Dispatch the update to the asset processing service
         AttributeEvent attributeEvent = new AttributeEvent(assetId, attributeName, value);
@@ -647,7 +733,7 @@ public class RulesFacts extends Facts implements RuleListener {
             // Collect asset states only where the attribute is location (location predicates only make sense when the location
             // attribute is exposed to rules - we don't support RULE_EVENT facts just RULE_STATE
             if (assetStateLocationPredicateMap == null) {
-                Collection<AssetState> locationAssetStates = getAssetStates().stream().filter(assetState -> assetState.getAttributeName().equalsIgnoreCase(LOCATION.getAttributeName())).collect(Collectors.toSet());
+                Collection<AssetState> locationAssetStates = getAssetStates().getByAttributeName(LOCATION.getAttributeName());
                 assetStateLocationPredicateMap = new HashMap<>(locationAssetStates.size());
                 locationAssetStates.forEach(assetState -> assetStateLocationPredicateMap.put(assetState.getId(), new HashSet<>()));
             }
@@ -23,11 +23,17 @@ import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
 import org.openremote.container.ContainerHealthStatusProvider;
 import org.openremote.model.rules.AssetRuleset;
+import org.openremote.model.rules.RulesetMetrics;
 import org.openremote.model.rules.TenantRuleset;
 import org.openremote.model.value.ObjectValue;
 import org.openremote.model.value.Value;
 import org.openremote.model.value.Values;
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
 public class RulesHealthStatusProvider implements ContainerHealthStatusProvider {
 
     public static final String NAME = "rules";
@@ -133,6 +139,10 @@ public class RulesHealthStatusProvider implements ContainerHealthStatusProvider
         val.put("compilationErrorDeployments", compilationErrorDeployments);
 
         ObjectValue deployments = Values.createObject();
+        Map<Long, RulesetMetrics> metrics = new HashMap<>();
+        for (RulesetMetrics rulesetMetrics : rulesEngine.getMetrics()) {
+            metrics.put(rulesetMetrics.getId(), rulesetMetrics);
+        }
 
         for (Object obj : rulesEngine.deployments.values()) {
             RulesetDeployment deployment = (RulesetDeployment)obj;
@@ -140,6 +150,10 @@ public class RulesHealthStatusProvider implements ContainerHealthStatusProvider
             dVal.put("name", deployment.getName());
             dVal.put("status", deployment.getStatus().name());
             dVal.put("error", deployment.getError() != null ? deployment.getError().getMessage() : null);
+            RulesetMetrics rulesetMetrics = metrics.get(deployment.getId());
+            if (rulesetMetrics != null) {
+                dVal.put("metrics", getMetricsHealthStatus(rulesetMetrics));
+            }
             deployments.put(Long.toString(deployment.getId()), dVal);
         }
 
@@ -147,4 +161,21 @@ public class RulesHealthStatusProvider implements ContainerHealthStatusProvider
 
         return val;
     }
+
+    protected ObjectValue getMetricsHealthStatus(RulesetMetrics rulesetMetrics) {
+        ObjectValue val = Values.createObject();
+        val.put("firingsPerSecond", rulesetMetrics.getFiringsPerSecond());
+        val.put("firings", rulesetMetrics.getFiring().getCount());
+        val.put("firingTotalMillis", rulesetMetrics.getFiring().getTotal() / 1000);
+        val.put("firingP99Micros", rulesetMetrics.getFiring().getP99());
+
+        // The rule that took the most time, details of all rules are available through the rules resource
+        Arrays.stream(rulesetMetrics.getRules())
+            .max(Comparator.comparingDouble(rule -> rule.getEvaluation().getTotal() + rule.getAction().getTotal()))
+            .ifPresent(rule -> {
+                val.put("slowestRule", rule.getName());
+                val.put("slowestRuleTotalMillis", (rule.getEvaluation().getTotal() + rule.getAction().getTotal()) / 1000);
+            });
+        return val;
+    }
 }
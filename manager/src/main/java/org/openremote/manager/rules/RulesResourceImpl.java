@@ -102,6 +102,50 @@ public class RulesResourceImpl extends ManagerWebResource implements RulesResour
         return getEngineInfo(engine);
     }
 
+    @Override
+    public RulesetMetrics[] getGlobalEngineMetrics(RequestParams requestParams) {
+        if (!isSuperUser()) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+
+        return getEngineMetrics(rulesService.globalEngine);
+    }
+
+    @Override
+    public RulesetMetrics[] getTenantEngineMetrics(RequestParams requestParams, String realm) {
+        if (!isRealmAccessibleByUser(realm) || isRestrictedUser()) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+
+        return getEngineMetrics(rulesService.tenantEngines.get(realm));
+    }
+
+    @Override
+    public RulesetMetrics[] getAssetEngineMetrics(RequestParams requestParams, String assetId) {
+        Asset asset = assetStorageService.find(assetId, false);
+
+        if (asset == null)
+            return null;
+
+        if (!isRealmAccessibleByUser(asset.getRealm())) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+
+        if (isRestrictedUser() && !assetStorageService.isUserAsset(getUserId(), assetId)) {
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+
+        return getEngineMetrics(rulesService.assetEngines.get(assetId));
+    }
+
+    protected RulesetMetrics[] getEngineMetrics(RulesEngine<?> engine) {
+        if (engine == null) {
+            return null;
+        }
+
+        return engine.getMetrics();
+    }
+
     protected RulesEngineInfo getEngineInfo(RulesEngine engine) {
         if (engine == null) {
             return null;
@@ -67,8 +67,11 @@ import static java.util.logging.Level.FINEST;
 import static java.util.logging.Level.SEVERE;
 import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
+import static org.openremote.container.concurrent.ProcessingBarrier.withExclusive;
 import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
 import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.container.util.MapAccess.getString;
 import static org.openremote.model.asset.AssetAttribute.attributesFromJson;
 import static org.openremote.model.asset.AssetAttribute.getAddedOrModifiedAttributes;
@@ -98,8 +101,31 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
     public static final String RULE_EVENT_EXPIRES = "RULE_EVENT_EXPIRES";
     public static final String RULE_EVENT_EXPIRES_DEFAULT = "1h";
+    public static final String RULES_PROFILING = "RULES_PROFILING";
+    public static final boolean RULES_PROFILING_DEFAULT = true;
+    public static final String RULES_COMPILE_THREADS = "RULES_COMPILE_THREADS";
+    public static final int RULES_COMPILE_THREADS_DEFAULT = Math.max(Runtime.getRuntime().availableProcessors(), 2);
     private static final Logger LOG = Logger.getLogger(RulesService.class.getName());
 
+    /**
+     * The engines in scope of an asset, valid as long as the asset isn't moved and no engines are created or removed.
+     */
+    protected static class EngineRoute {
+        final protected String realm;
+        final protected String[] path;
+        final protected RulesEngine<?>[] engines;
+
+        protected EngineRoute(String realm, String[] path, RulesEngine<?>[] engines) {
+            this.realm = realm;
+            this.path = path;
+            this.engines = engines;
+        }
+
+        protected boolean isValidFor(AssetState assetState) {
+            return Objects.equals(realm, assetState.getRealm()) && Arrays.equals(path, assetState.getPath());
+        }
+    }
+
     protected List<GeofenceAssetAdapter> geofenceAssetAdapters = new ArrayList<>();
     protected final Map<String, RulesEngine<TenantRuleset>> tenantEngines = new HashMap<>();
     protected final Map<String, RulesEngine<AssetRuleset>> assetEngines = new HashMap<>();
@@ -122,8 +148,11 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     // Keep global list of asset states that have been pushed to any engines
     // The objects are already in memory inside the rule engines but keeping them
     // here means we can quickly insert facts into newly started engines
-    protected Set<AssetState> assetStates = new HashSet<>();
+    protected AssetStateStore assetStates = new AssetStateStore();
+    // Engines in scope of each asset with asset states, cleared when engines are created or removed
+    protected Map<String, EngineRoute> engineRoutes = new HashMap<>();
     protected String configEventExpires;
+    protected int configCompileThreads;
 
     @Override
     public int getPriority() {
@@ -174,6 +203,8 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
         geofenceAssetAdapters.sort(Comparator.comparingInt(GeofenceAssetAdapter::getPriority));
         container.getService(MessageBrokerService.class).getContext().addRoutes(this);
         configEventExpires = getString(container.getConfig(), RULE_EVENT_EXPIRES, RULE_EVENT_EXPIRES_DEFAULT);
+        configCompileThreads = getInteger(container.getConfig(), RULES_COMPILE_THREADS, RULES_COMPILE_THREADS_DEFAULT);
+        RulesEngine.PROFILING_ENABLED = getBoolean(container.getConfig(), RULES_PROFILING, RULES_PROFILING_DEFAULT);
 
         container.getService(ManagerWebService.class).getApiSingletons().add(
                 new FlowResourceImpl(
@@ -189,31 +220,31 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
         from(PERSISTENCE_TOPIC)
             .routeId("RulesetPersistenceChanges")
             .filter(isPersistenceEventForEntityType(Ruleset.class))
-            .process(exchange -> {
+            .process(exchange -> withExclusive(getClass().getSimpleName() + "::processRulesetChange", () -> {
                 PersistenceEvent persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
                 processRulesetChange((Ruleset) persistenceEvent.getEntity(), persistenceEvent.getCause());
-            });
+            }));
 
         // If any tenant was modified in the database then check its' status and undeploy, deploy or update any
         // associated rulesets
         from(PERSISTENCE_TOPIC)
             .routeId("RuleEngineTenantChanges")
             .filter(isPersistenceEventForEntityType(Tenant.class))
-            .process(exchange -> {
+            .process(exchange -> withExclusive(getClass().getSimpleName() + "::processTenantChange", () -> {
                 PersistenceEvent persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
                 Tenant tenant = (Tenant) persistenceEvent.getEntity();
                 processTenantChange(tenant, persistenceEvent.getCause());
-            });
+            }));
 
         // If any asset was modified in the database, detect changed attributes
         from(PERSISTENCE_TOPIC)
             .routeId("RuleEngineAssetChanges")
             .filter(isPersistenceEventForEntityType(Asset.class))
-            .process(exchange -> {
+            .process(exchange -> withExclusive(getClass().getSimpleName() + "::processAssetChange", () -> {
                 PersistenceEvent persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
                 final Asset eventAsset = (Asset) persistenceEvent.getEntity();
                 processAssetChange(eventAsset, persistenceEvent);
-            });
+            }));
     }
 
     @Override
@@ -228,17 +259,14 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
         }
 
-        LOG.info("Deploying global rulesets");
-        rulesetStorageService.findAll(
+        List<GlobalRuleset> globalRulesets = rulesetStorageService.findAll(
             GlobalRuleset.class,
             new RulesetQuery()
                 .setEnabledOnly(true)
                 .setFullyPopulate(true)
-        ).forEach(this::deployGlobalRuleset);
-
-        LOG.info("Deploying tenant rulesets");
+        );
         tenants = identityService.getIdentityProvider().getTenants();
-        rulesetStorageService.findAll(
+        List<TenantRuleset> tenantRulesets = rulesetStorageService.findAll(
             TenantRuleset.class,
             new RulesetQuery()
                 .setEnabledOnly(true)
@@ -247,16 +275,29 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             .filter(rd ->
                 Arrays.stream(tenants)
                     .anyMatch(tenant -> rd.getRealm().equals(tenant.getRealm()))
-            ).forEach(this::deployTenantRuleset);
+            ).collect(Collectors.toList());
+        List<AssetRuleset> assetRulesets = rulesetStorageService.findAll(
+            AssetRuleset.class,
+            new RulesetQuery()
+                .setEnabledOnly(true)
+                .setFullyPopulate(true));
+
+        // Compile scripts in parallel, deployments (serialized by engine locks) then get the compiled rules
+        List<Ruleset> rulesets = new ArrayList<>(globalRulesets.size() + tenantRulesets.size() + assetRulesets.size());
+        rulesets.addAll(globalRulesets);
+        rulesets.addAll(tenantRulesets);
+        rulesets.addAll(assetRulesets);
+        RulesetDeployment.compiledRulesets.precompile(rulesets, executorService, configCompileThreads);
+
+        LOG.info("Deploying global rulesets");
+        globalRulesets.forEach(this::deployGlobalRuleset);
+
+        LOG.info("Deploying tenant rulesets");
+        tenantRulesets.forEach(this::deployTenantRuleset);
 
         LOG.info("Deploying asset rulesets");
         // Group by asset ID then tenant and check tenant is enabled
-        deployAssetRulesets(
-            rulesetStorageService.findAll(
-                AssetRuleset.class,
-                new RulesetQuery()
-                    .setEnabledOnly(true)
-                    .setFullyPopulate(true)))
+        deployAssetRulesets(assetRulesets)
             .count();//Needed in order to execute the stream. TODO: can this be done differently?
 
         LOG.info("Loading all assets with fact attributes to initialize state of rules engines");
@@ -302,6 +343,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                 globalEngine.stop(true);
                 globalEngine = null;
             }
+            engineRoutes.clear();
         });
     }
 
@@ -373,6 +415,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                     entry.getValue().getId().getRealm().map(realm -> realm.equals(tenant.getRealm())).orElse(
                         false)
                 );
+                engineRoutes.clear();
 
             } else {
                 // Create tenant rules engines for this tenant if it has any rulesets
@@ -486,6 +529,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                             LOG.fine("Asset was persisted (" + persistenceEvent.getCause() + "), retracting fact: " + assetState);
                             retractAssetState(assetState);
                         });
+                    engineRoutes.remove(asset.getId());
                     break;
             }
         });
@@ -504,29 +548,22 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             } else {
                 if (ruleset instanceof GlobalRuleset) {
 
-                    boolean isNewEngine = globalEngine == null;
+                    Set<String> previousAttributeNames = globalEngine != null ? globalEngine.getAttributeNames() : Collections.emptySet();
                     RulesEngine<GlobalRuleset> engine = deployGlobalRuleset((GlobalRuleset) ruleset);
 
-                    if (isNewEngine) {
-                        // Push all existing facts into the engine
-                        assetStates.forEach(assetState -> engine.updateOrInsertAssetState(assetState, true));
-                    }
+                    // Push all existing facts the engine is now interested in into the engine
+                    insertAssetStates(engine, previousAttributeNames, assetStates);
 
                     engine.start();
 
                 } else if (ruleset instanceof TenantRuleset) {
 
-                    boolean isNewEngine = !tenantEngines.containsKey(((TenantRuleset)ruleset).getRealm());
+                    RulesEngine<TenantRuleset> existingEngine = tenantEngines.get(((TenantRuleset)ruleset).getRealm());
+                    Set<String> previousAttributeNames = existingEngine != null ? existingEngine.getAttributeNames() : Collections.emptySet();
                     RulesEngine<TenantRuleset> engine = deployTenantRuleset((TenantRuleset) ruleset);
 
-                    if (isNewEngine) {
-                        // Push all existing facts into the engine
-                        assetStates.forEach(assetState -> {
-                            if (assetState.getRealm().equals(((TenantRuleset) ruleset).getRealm())) {
-                                engine.updateOrInsertAssetState(assetState, true);
-                            }
-                        });
-                    }
+                    // Push all existing facts the engine is now interested in into the engine
+                    insertAssetStates(engine, previousAttributeNames, assetStates.getByRealm(((TenantRuleset) ruleset).getRealm()));
 
                     engine.start();
 
@@ -534,14 +571,12 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
                     // Must reload from the database, the ruleset might not be completely hydrated on CREATE or UPDATE
                     AssetRuleset assetRuleset = rulesetStorageService.find(AssetRuleset.class, ruleset.getId());
-                    boolean isNewEngine = !assetEngines.containsKey(((AssetRuleset)ruleset).getAssetId());
+                    RulesEngine<AssetRuleset> existingEngine = assetEngines.get(((AssetRuleset)ruleset).getAssetId());
+                    Set<String> previousAttributeNames = existingEngine != null ? existingEngine.getAttributeNames() : Collections.emptySet();
                     RulesEngine<AssetRuleset> engine = deployAssetRuleset(assetRuleset);
 
-                    if (isNewEngine) {
-                        // Push all existing facts for this asset (and it's children into the engine)
-                        getAssetStatesInScope(((AssetRuleset) ruleset).getAssetId())
-                            .forEach(assetState -> engine.updateOrInsertAssetState(assetState, true));
-                    }
+                    // Push all existing facts for this asset (and it's children) the engine is now interested in into the engine
+                    insertAssetStates(engine, previousAttributeNames, assetStates.getInPath(((AssetRuleset) ruleset).getAssetId()));
 
                     engine.start();
                 }
@@ -573,6 +608,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             }
 
             globalEngine.addRuleset(ruleset);
+            engineRoutes.clear();
 
             return globalEngine;
         });
@@ -587,6 +623,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             if (globalEngine.removeRuleset(ruleset)) {
                 globalEngine.stop();
                 globalEngine = null;
+                engineRoutes.clear();
             }
         });
     }
@@ -613,6 +650,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                     ));
 
             tenantRulesEngine.addRuleset(ruleset);
+            engineRoutes.clear();
 
             return tenantRulesEngine;
         });
@@ -628,6 +666,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             if (rulesEngine.removeRuleset(ruleset)) {
                 rulesEngine.stop();
                 tenantEngines.remove(ruleset.getRealm());
+                engineRoutes.clear();
             }
         });
     }
@@ -688,6 +727,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                     ));
 
             assetRulesEngine.addRuleset(ruleset);
+            engineRoutes.clear();
 
             return assetRulesEngine;
         });
@@ -703,6 +743,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             if (rulesEngine.removeRuleset(ruleset)) {
                 rulesEngine.stop();
                 assetEngines.remove(ruleset.getAssetId());
+                engineRoutes.clear();
             }
         });
     }
@@ -710,24 +751,28 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     protected void insertAssetEvent(AssetState assetState, String expires) {
         withLock(getClass().getSimpleName() + "::insertAssetEvent", () -> {
             // Get the chain of rule engines that we need to pass through
-            List<RulesEngine<?>> rulesEngines = getEnginesInScope(assetState.getRealm(), assetState.getPath());
+            RulesEngine<?>[] rulesEngines = getEnginesInScope(assetState);
 
             // Check that all engines in the scope are available
-            if (rulesEngines.stream().anyMatch(RulesEngine::isError)) {
-                LOG.severe("At least one rules engine is in an error state, skipping: " + assetState);
-                if (LOG.isLoggable(FINEST)) {
-                    for (RulesEngine<?> rulesEngine : rulesEngines) {
-                        if (rulesEngine.isError()) {
-                            LOG.log(FINEST, "Rules engine error state: " + rulesEngine, rulesEngine.getError());
+            for (RulesEngine<?> rulesEngine : rulesEngines) {
+                if (rulesEngine.isError()) {
+                    LOG.severe("At least one rules engine is in an error state, skipping: " + assetState);
+                    if (LOG.isLoggable(FINEST)) {
+                        for (RulesEngine<?> engine : rulesEngines) {
+                            if (engine.isError()) {
+                                LOG.log(FINEST, "Rules engine error state: " + engine, engine.getError());
+                            }
                         }
                     }
+                    return;
                 }
-                return;
             }
 
-            // Pass through each engine
+            // Pass through each engine with rules that can use the event
             for (RulesEngine<?> rulesEngine : rulesEngines) {
-                rulesEngine.insertAssetEvent(expires, assetState);
+                if (rulesEngine.isInterestedIn(assetState.getAttributeName())) {
+                    rulesEngine.insertAssetEvent(expires, assetState);
+                }
             }
         });
     }
@@ -739,41 +784,73 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             LOG.fine("Updating asset state: " + assetState);
 
             // Get the chain of rule engines that we need to pass through
-            List<RulesEngine<?>> rulesEngines = getEnginesInScope(assetState.getRealm(), assetState.getPath());
+            RulesEngine<?>[] rulesEngines = getEnginesInScope(assetState);
 
-            // Remove asset state with same attribute ref as new state, add new state
-            boolean inserted = !assetStates.remove(assetState);
-            assetStates.add(assetState);
+            // Replace asset state with same attribute ref as new state
+            boolean inserted = assetStates.put(assetState) == null;
 
-            // Pass through each rules engine
+            // Pass through each rules engine with rules that can use the asset state
             for (RulesEngine<?> rulesEngine : rulesEngines) {
-                rulesEngine.updateOrInsertAssetState(assetState, inserted);
+                if (rulesEngine.isInterestedIn(assetState.getAttributeName())) {
+                    rulesEngine.updateOrInsertAssetState(assetState, inserted);
+                }
             }
         });
     }
 
     protected void retractAssetState(AssetState assetState) {
         // Get the chain of rule engines that we need to pass through
-        List<RulesEngine<?>> rulesEngines = getEnginesInScope(assetState.getRealm(), assetState.getPath());
+        RulesEngine<?>[] rulesEngines = getEnginesInScope(assetState);
 
         // Remove asset state with same attribute ref
         assetStates.remove(assetState);
 
-        if (rulesEngines.size() == 0) {
+        if (rulesEngines.length == 0) {
             LOG.fine("Ignoring as there are no matching rules engines: " + assetState);
         }
 
-        // Pass through each rules engine
+        // Pass through each rules engine, also engines no longer interested in the asset state might still have it
         for (RulesEngine<?> rulesEngine : rulesEngines) {
             rulesEngine.removeAssetState(assetState);
         }
     }
 
     protected List<AssetState> getAssetStatesInScope(String assetId) {
-        return assetStates
-            .stream()
-            .filter(assetState -> Arrays.asList(assetState.getPath()).contains(assetId))
-            .collect(Collectors.toList());
+        return new ArrayList<>(assetStates.getInPath(assetId));
+    }
+
+    /**
+     * Insert the asset states the engine is interested in, but wasn't interested in before its rulesets changed. Asset
+     * states the engine is no longer interested in are left in the engine until they are retracted, they can't be
+     * matched by its rules.
+     */
+    protected void insertAssetStates(RulesEngine<?> engine, Set<String> previousAttributeNames, Collection<AssetState> assetStates) {
+        if (previousAttributeNames == null) {
+            // Already has all asset states
+            return;
+        }
+        for (AssetState assetState : assetStates) {
+            if (!previousAttributeNames.contains(assetState.getAttributeName()) && engine.isInterestedIn(assetState.getAttributeName())) {
+                engine.updateOrInsertAssetState(assetState, true);
+            }
+        }
+    }
+
+    /**
+     * @return the engines in scope of the asset of the asset state, from the routes computed since engines were last
+     * created or removed.
+     */
+    protected RulesEngine<?>[] getEnginesInScope(AssetState assetState) {
+        EngineRoute engineRoute = engineRoutes.get(assetState.getId());
+        if (engineRoute == null || !engineRoute.isValidFor(assetState)) {
+            engineRoute = new EngineRoute(
+                assetState.getRealm(),
+                assetState.getPath(),
+                getEnginesInScope(assetState.getRealm(), assetState.getPath()).toArray(new RulesEngine<?>[0])
+            );
+            engineRoutes.put(assetState.getId(), engineRoute);
+        }
+        return engineRoute.engines;
     }
 
     protected List<RulesEngine<?>> getEnginesInScope(String realm, String[] assetPath) {
@@ -20,18 +20,17 @@
 package org.openremote.manager.rules;
 
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
 import groovy.lang.Script;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
-import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.jeasy.rules.api.Action;
 import org.jeasy.rules.api.Condition;
 import org.jeasy.rules.api.Rule;
 import org.jeasy.rules.api.Rules;
 import org.jeasy.rules.core.RuleBuilder;
 import org.kohsuke.groovy.sandbox.GroovyValueFilter;
-import org.kohsuke.groovy.sandbox.SandboxTransformer;
 import org.openremote.container.Container;
+import org.openremote.container.concurrent.ExecutionLane;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetStorageService;
 import org.openremote.manager.concurrent.ManagerExecutorService;
@@ -43,14 +42,15 @@ import org.openremote.model.util.Pair;
 import javax.script.*;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.manager.rules.AssetQueryPredicate.getNextOrActiveFromTo;
 
 public class RulesetDeployment {
@@ -95,7 +95,55 @@ public class RulesetDeployment {
     // Share one JS script engine manager, it's thread-safe
     static final protected ScriptEngineManager scriptEngineManager;
 
-    static final protected GroovyShell groovyShell;
+    // Compiled Groovy and JS rules are shared by deployments of the same source (Groovy only within the same ruleset),
+    // each Groovy ruleset has its own class loader so classes defined by a ruleset can be redefined by a new version
+    static final protected CompiledRulesetCache compiledRulesets;
+
+    // Default header/imports for all JS rules scripts
+    public static final String JAVASCRIPT_HEADER =
+        "load(\"nashorn:mozilla_compat.js\");\n" + // This provides importPackage
+        "\n" +
+        "importPackage(\n" +
+        "    \"java.util.stream\",\n" +
+        "    \"org.openremote.model.asset\",\n" +
+        "    \"org.openremote.model.attribute\",\n" +
+        "    \"org.openremote.model.value\",\n" +
+        "    \"org.openremote.model.rules\",\n" +
+        "    \"org.openremote.model.query\"\n" +
+        ");\n" +
+        "var Match = Java.type(\"org.openremote.model.query.AssetQuery$Match\");\n" +
+        "var Operator = Java.type(\"org.openremote.model.query.AssetQuery$Operator\");\n" +
+        "var NumberType = Java.type(\"org.openremote.model.query.AssetQuery$NumberType\");\n" +
+        "var StringPredicate = Java.type(\"org.openremote.model.query.filter.StringPredicate\");\n" +
+        "var BooleanPredicate = Java.type(\"org.openremote.model.query.filter.BooleanPredicate\");\n" +
+        "var StringArrayPredicate = Java.type(\"org.openremote.model.query.filter.StringArrayPredicate\");\n" +
+        "var DateTimePredicate = Java.type(\"org.openremote.model.query.filter.DateTimePredicate\");\n" +
+        "var NumberPredicate = Java.type(\"org.openremote.model.query.filter.NumberPredicate\");\n" +
+        "var ParentPredicate = Java.type(\"org.openremote.model.query.filter.ParentPredicate\");\n" +
+        "var PathPredicate = Java.type(\"org.openremote.model.query.filter.PathPredicate\");\n" +
+        "var TenantPredicate = Java.type(\"org.openremote.model.query.filter.TenantPredicate\");\n" +
+        "var AttributePredicate = Java.type(\"org.openremote.model.query.filter.AttributePredicate\");\n" +
+        "var AttributeExecuteStatus = Java.type(\"org.openremote.model.attribute.AttributeExecuteStatus\");\n" +
+        "var EXACT = Match.EXACT;\n" +
+        "var BEGIN = Match.BEGIN;\n" +
+        "var END = Match.END;\n" +
+        "var CONTAINS = Match.CONTAINS;\n" +
+        "var EQUALS = Operator.EQUALS;\n" +
+        "var GREATER_THAN = Operator.GREATER_THAN;\n" +
+        "var GREATER_EQUALS = Operator.GREATER_EQUALS;\n" +
+        "var LESS_THAN = Operator.LESS_THAN;\n" +
+        "var LESS_EQUALS = Operator.LESS_EQUALS;\n" +
+        "var BETWEEN = Operator.BETWEEN;\n" +
+        "var REQUEST_START = AttributeExecuteStatus.REQUEST_START;\n" +
+        "var REQUEST_REPEATING = AttributeExecuteStatus.REQUEST_REPEATING;\n" +
+        "var REQUEST_CANCEL = AttributeExecuteStatus.REQUEST_CANCEL;\n" +
+        "var READY = AttributeExecuteStatus.READY;\n" +
+        "var COMPLETED = AttributeExecuteStatus.COMPLETED;\n" +
+        "var RUNNING = AttributeExecuteStatus.RUNNING;\n" +
+        "var CANCELLED = AttributeExecuteStatus.CANCELLED;\n" +
+        "var ERROR = AttributeExecuteStatus.ERROR;\n" +
+        "var DISABLED = AttributeExecuteStatus.DISABLED;\n" +
+        "\n";
 
     static {
         scriptEngineManager = new ScriptEngineManager();
@@ -105,19 +153,7 @@ public class RulesetDeployment {
         scriptEngineManager.put("LOG", RulesEngine.RULES_LOG);
         scriptEngineManager.put("console", new JsConsole(RulesEngine.RULES_LOG));
 
-        /* TODO Sharing a static GroovyShell doesn't work, redeploying a ruleset which defines classes (e.g. Flight) is broken:
-
-        java.lang.RuntimeException: Error evaluating condition of rule '-Update flight facts when estimated landing time of flight asset is updated':
-        No signature of method: org.openremote.manager.setup.database.Script1$_run_closure2$_closure14$_closure17.doCall() is applicable for argument types: (org.openremote.manager.setup.database.Flight) values: [...]
-        Possible solutions: doCall(org.openremote.manager.setup.database.Flight), findAll(), findAll(), isCase(java.lang.Object), isCase(java.lang.Object)
-        The following classes appear as argument class and as parameter class, but are defined by different class loader:
-        org.openremote.manager.setup.database.Flight (defined by 'groovy.lang.GroovyClassLoader$InnerLoader@2cc34cd5' and 'groovy.lang.GroovyClassLoader$InnerLoader@1af957bc')
-        If one of the method suggestions matches the method you wanted to call,
-        then check your class loader setup.
-         */
-        groovyShell = new GroovyShell(
-                new CompilerConfiguration().addCompilationCustomizers(new SandboxTransformer())
-        );
+        compiledRulesets = new CompiledRulesetCache(scriptEngineManager, CompiledRulesetCache.IDLE_CAPACITY_DEFAULT);
     }
 
     final protected Ruleset ruleset;
@@ -125,6 +161,7 @@ public class RulesetDeployment {
     final protected AssetStorageService assetStorageService;
     final protected TimerService timerService;
     final protected ManagerExecutorService executorService;
+    final protected ExecutionLane lane;
     final protected Assets assetsFacade;
     final protected Users usersFacade;
     final protected Notifications notificationsFacade;
@@ -133,6 +170,8 @@ public class RulesetDeployment {
     final protected List<ScheduledFuture<?>> scheduledRuleActions = new ArrayList<>();
     protected RulesetStatus status = RulesetStatus.READY;
     protected Throwable error;
+    protected CompiledRulesetCache.CompiledRuleset compiledRuleset;
+    protected RulesetProfiler profiler;
     protected JsonRulesBuilder jsonRulesBuilder;
     protected FlowRulesBuilder flowRulesBuilder;
     protected CalendarEvent validity;
@@ -140,12 +179,13 @@ public class RulesetDeployment {
 
     public RulesetDeployment(Ruleset ruleset, TimerService timerService,
                              AssetStorageService assetStorageService, ManagerExecutorService executorService,
-                             Assets assetsFacade, Users usersFacade, Notifications notificationsFacade,
+                             ExecutionLane lane, Assets assetsFacade, Users usersFacade, Notifications notificationsFacade,
                              HistoricDatapoints historicDatapointsFacade, PredictedDatapoints predictedDatapointsFacade) {
         this.ruleset = ruleset;
         this.timerService = timerService;
         this.assetStorageService = assetStorageService;
         this.executorService = executorService;
+        this.lane = lane;
         this.assetsFacade = assetsFacade;
         this.usersFacade = usersFacade;
         this.notificationsFacade = notificationsFacade;
@@ -227,6 +267,10 @@ public class RulesetDeployment {
      * Called when a ruleset is started (allows for initialisation tasks)
      */
     public void start(RulesFacts facts) {
+        if (RulesEngine.PROFILING_ENABLED && profiler == null) {
+            profiler = new RulesetProfiler(System.currentTimeMillis());
+        }
+
         if (jsonRulesBuilder != null) {
             jsonRulesBuilder.start(facts);
         }
@@ -247,6 +291,16 @@ public class RulesetDeployment {
         }
     }
 
+    /**
+     * Called when this deployment is removed, releases the compiled rules.
+     */
+    public void release() {
+        if (compiledRuleset != null) {
+            compiledRulesets.release(compiledRuleset);
+            compiledRuleset = null;
+        }
+    }
+
     public void onAssetStatesChanged(RulesFacts facts, RulesEngine.AssetStateChangeEvent event) {
         if (jsonRulesBuilder != null) {
             jsonRulesBuilder.onAssetStatesChanged(facts, event);
@@ -254,9 +308,10 @@ public class RulesetDeployment {
     }
 
     protected void scheduleRuleAction(Runnable action, long delayMillis) {
-        withLock(toString() + "::scheduleRuleAction", () -> {
+        // Rule actions modify the facts of the engine so they are executed in its lane
+        lane.withLock(toString() + "::scheduleRuleAction", () -> {
             ScheduledFuture<?> future = executorService.schedule(() ->
-                    withLock(toString() + "::scheduledRuleActionFire", () -> {
+                    lane.withLock(toString() + "::scheduledRuleActionFire", () -> {
                         scheduledRuleActions.removeIf(Future::isDone);
                         action.run();
                     }), delayMillis);
@@ -283,74 +338,30 @@ public class RulesetDeployment {
 
     protected boolean compileRulesJavascript(Ruleset ruleset, Assets assetsFacade, Users usersFacade, Notifications notificationsFacade, HistoricDatapoints historicDatapointsFacade, PredictedDatapoints predictedDatapointsFacade) {
         // TODO https://github.com/pfisterer/scripting-sandbox/blob/master/src/main/java/de/farberg/scripting/sandbox/ScriptingSandbox.java
-        ScriptEngine scriptEngine = scriptEngineManager.getEngineByName("nashorn");
-        ScriptContext newContext = new SimpleScriptContext();
-        newContext.setBindings(scriptEngine.createBindings(), ScriptContext.ENGINE_SCOPE);
-        Bindings engineScope = newContext.getBindings(ScriptContext.ENGINE_SCOPE);
-
-        engineScope.put("assets", assetsFacade);
-        engineScope.put("users", usersFacade);
-        engineScope.put("notifications", notificationsFacade);
-        engineScope.put("historicDatapoints", historicDatapointsFacade);
-        engineScope.put("predictedDatapoints", predictedDatapointsFacade);
-
-        String script = ruleset.getRules();
-
-        // Default header/imports for all rules scripts
-        script = "load(\"nashorn:mozilla_compat.js\");\n" + // This provides importPackage
-                "\n" +
-                "importPackage(\n" +
-                "    \"java.util.stream\",\n" +
-                "    \"org.openremote.model.asset\",\n" +
-                "    \"org.openremote.model.attribute\",\n" +
-                "    \"org.openremote.model.value\",\n" +
-                "    \"org.openremote.model.rules\",\n" +
-                "    \"org.openremote.model.query\"\n" +
-                ");\n" +
-                "var Match = Java.type(\"org.openremote.model.query.AssetQuery$Match\");\n" +
-                "var Operator = Java.type(\"org.openremote.model.query.AssetQuery$Operator\");\n" +
-                "var NumberType = Java.type(\"org.openremote.model.query.AssetQuery$NumberType\");\n" +
-                "var StringPredicate = Java.type(\"org.openremote.model.query.filter.StringPredicate\");\n" +
-                "var BooleanPredicate = Java.type(\"org.openremote.model.query.filter.BooleanPredicate\");\n" +
-                "var StringArrayPredicate = Java.type(\"org.openremote.model.query.filter.StringArrayPredicate\");\n" +
-                "var DateTimePredicate = Java.type(\"org.openremote.model.query.filter.DateTimePredicate\");\n" +
-                "var NumberPredicate = Java.type(\"org.openremote.model.query.filter.NumberPredicate\");\n" +
-                "var ParentPredicate = Java.type(\"org.openremote.model.query.filter.ParentPredicate\");\n" +
-                "var PathPredicate = Java.type(\"org.openremote.model.query.filter.PathPredicate\");\n" +
-                "var TenantPredicate = Java.type(\"org.openremote.model.query.filter.TenantPredicate\");\n" +
-                "var AttributePredicate = Java.type(\"org.openremote.model.query.filter.AttributePredicate\");\n" +
-                "var AttributeExecuteStatus = Java.type(\"org.openremote.model.attribute.AttributeExecuteStatus\");\n" +
-                "var EXACT = Match.EXACT;\n" +
-                "var BEGIN = Match.BEGIN;\n" +
-                "var END = Match.END;\n" +
-                "var CONTAINS = Match.CONTAINS;\n" +
-                "var EQUALS = Operator.EQUALS;\n" +
-                "var GREATER_THAN = Operator.GREATER_THAN;\n" +
-                "var GREATER_EQUALS = Operator.GREATER_EQUALS;\n" +
-                "var LESS_THAN = Operator.LESS_THAN;\n" +
-                "var LESS_EQUALS = Operator.LESS_EQUALS;\n" +
-                "var BETWEEN = Operator.BETWEEN;\n" +
-                "var REQUEST_START = AttributeExecuteStatus.REQUEST_START;\n" +
-                "var REQUEST_REPEATING = AttributeExecuteStatus.REQUEST_REPEATING;\n" +
-                "var REQUEST_CANCEL = AttributeExecuteStatus.REQUEST_CANCEL;\n" +
-                "var READY = AttributeExecuteStatus.READY;\n" +
-                "var COMPLETED = AttributeExecuteStatus.COMPLETED;\n" +
-                "var RUNNING = AttributeExecuteStatus.RUNNING;\n" +
-                "var CANCELLED = AttributeExecuteStatus.CANCELLED;\n" +
-                "var ERROR = AttributeExecuteStatus.ERROR;\n" +
-                "var DISABLED = AttributeExecuteStatus.DISABLED;\n" +
-                "\n"
-                + script;
+        Bindings engineScope = null;
 
         try {
-            scriptEngine.eval(script, engineScope);
+            compiledRuleset = compiledRulesets.acquire(ruleset);
+            ScriptEngine scriptEngine = compiledRuleset.getScriptEngine();
+            engineScope = scriptEngine.createBindings();
+
+            engineScope.put("assets", assetsFacade);
+            engineScope.put("users", usersFacade);
+            engineScope.put("notifications", notificationsFacade);
+            engineScope.put("historicDatapoints", historicDatapointsFacade);
+            engineScope.put("predictedDatapoints", predictedDatapointsFacade);
+
+            // Each evaluation with new bindings has its own global scope
+            compiledRuleset.getCompiledScript().eval(engineScope);
 
             compileRulesJavascript((ScriptObjectMirror) engineScope.get("rules"));
             return true;
 
         } catch (Exception e) {
             setError(e);
-            engineScope.clear();
+            if (engineScope != null) {
+                engineScope.clear();
+            }
             return false;
         }
     }
@@ -428,7 +439,7 @@ public class RulesetDeployment {
         try {
             // TODO Implement sandbox
             // new DenyAll().register();
-            Script script = groovyShell.parse(ruleset.getRules());
+            compiledRuleset = compiledRulesets.acquire(ruleset);
             Binding binding = new Binding();
             RulesBuilder rulesBuilder = new RulesBuilder();
             binding.setVariable("LOG", RulesEngine.RULES_LOG);
@@ -438,7 +449,7 @@ public class RulesetDeployment {
             binding.setVariable("notifications", notificationFacade);
             binding.setVariable("historicDatapoints", historicDatapointsFacade);
             binding.setVariable("predictedDatapoints", predictedDatapointsFacade);
-            script.setBinding(binding);
+            Script script = InvokerHelper.createScript(compiledRuleset.getScriptClass(), binding);
             script.run();
             for (Rule rule : rulesBuilder.build()) {
                 RulesEngine.LOG.fine("Registering groovy rule: " + rule.getName());
@@ -470,6 +481,32 @@ public class RulesetDeployment {
         }
     }
 
+    /**
+     * @return the profiler of the rules, <code>null</code> if profiling is disabled or the ruleset was never started.
+     */
+    public RulesetProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @return the names of the attributes whose asset states can be used by the rules, <code>null</code> if asset
+     * states of any attribute can be used.
+     */
+    public Set<String> getAttributeNames() {
+        if (status == RulesetStatus.EMPTY || status == RulesetStatus.DISABLED || status == RulesetStatus.EXPIRED || status == RulesetStatus.COMPILATION_ERROR) {
+            return Collections.emptySet();
+        }
+        switch (ruleset.getLang()) {
+            case JSON:
+                return jsonRulesBuilder != null ? jsonRulesBuilder.getAttributeNames() : Collections.emptySet();
+            case FLOW:
+                return flowRulesBuilder != null ? flowRulesBuilder.getAttributeNames() : Collections.emptySet();
+            default:
+                // Scripts can use any fact
+                return null;
+        }
+    }
+
     public RulesetStatus getStatus() {
         return status;
     }
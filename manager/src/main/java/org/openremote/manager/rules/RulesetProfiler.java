@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.jeasy.rules.api.Rule;
+import org.openremote.model.rules.RulesetMetrics;
+import org.openremote.model.rules.RulesetStatus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records execution metrics of the rules of a {@link RulesetDeployment}: evaluation and action durations, matches,
+ * failures and facts scanned per rule, and firing durations and rate of the ruleset. Durations are recorded in
+ * histograms with power of two buckets, so recording is a few arithmetic operations without allocation.
+ * <p>
+ * Metrics are recorded in the lane of the rules engine, a {@link #getMetrics} snapshot must be taken while holding
+ * the lock of the lane.
+ */
+public class RulesetProfiler {
+
+    /**
+     * Histogram of durations in nanoseconds, bucket <code>i</code> counts durations in the range
+     * <code>[2^(i-1), 2^i)</code>.
+     */
+    public static class Histogram {
+        final protected long[] buckets = new long[64];
+        protected long count;
+        protected long total;
+        protected long max;
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(nanos)]++;
+            count++;
+            total += nanos;
+            if (nanos > max) {
+                max = nanos;
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the upper bound of the bucket of the percentile in nanoseconds.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : 1L << i, max);
+                }
+            }
+            return max;
+        }
+
+        public RulesetMetrics.Timing toTiming() {
+            return new RulesetMetrics.Timing(
+                count,
+                total / 1000d,
+                max / 1000d,
+                getPercentile(50) / 1000d,
+                getPercentile(90) / 1000d,
+                getPercentile(99) / 1000d
+            );
+        }
+    }
+
+    /**
+     * Counts events per second in a ring of one second slots covering the last minute.
+     */
+    public static class Rate {
+        public static final int SLOTS = 60;
+        final protected long[] counts = new long[SLOTS];
+        final protected long[] seconds = new long[SLOTS];
+
+        public void record(long timestampMillis) {
+            long second = timestampMillis / 1000;
+            int slot = (int) (second % SLOTS);
+            if (seconds[slot] != second) {
+                seconds[slot] = second;
+                counts[slot] = 0;
+            }
+            counts[slot]++;
+        }
+
+        public double getPerSecond(long timestampMillis) {
+            long second = timestampMillis / 1000;
+            long total = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (second - seconds[i] < SLOTS) {
+                    total += counts[i];
+                }
+            }
+            return total / (double) SLOTS;
+        }
+    }
+
+    public static class RuleProfile {
+        final protected String name;
+        final protected Histogram evaluation = new Histogram();
+        final protected Histogram action = new Histogram();
+        protected long matches;
+        protected long failures;
+        protected long factsScanned;
+
+        public RuleProfile(String name) {
+            this.name = name;
+        }
+
+        public RulesetMetrics.RuleMetrics toMetrics() {
+            return new RulesetMetrics.RuleMetrics(name, matches, failures, factsScanned, evaluation.toTiming(), action.toTiming());
+        }
+    }
+
+    final protected long deployedOn;
+    final protected Histogram firing = new Histogram();
+    final protected Rate firingRate = new Rate();
+    // Rule names are unique within a ruleset
+    final protected Map<Rule, RuleProfile> ruleProfiles = new LinkedHashMap<>();
+
+    public RulesetProfiler(long deployedOn) {
+        this.deployedOn = deployedOn;
+    }
+
+    public void recordFiring(long timestampMillis, long nanos) {
+        firing.record(nanos);
+        firingRate.record(timestampMillis);
+    }
+
+    public void recordEvaluation(Rule rule, long nanos, boolean matched, long factsScanned) {
+        RuleProfile profile = getProfile(rule);
+        profile.evaluation.record(nanos);
+        profile.factsScanned += factsScanned;
+        if (matched) {
+            profile.matches++;
+        }
+    }
+
+    public void recordAction(Rule rule, long nanos, boolean failed) {
+        RuleProfile profile = getProfile(rule);
+        profile.action.record(nanos);
+        if (failed) {
+            profile.failures++;
+        }
+    }
+
+    public RulesetMetrics getMetrics(long id, String name, RulesetStatus status, long timestampMillis) {
+        return new RulesetMetrics(
+            id,
+            name,
+            status,
+            deployedOn,
+            firingRate.getPerSecond(timestampMillis),
+            firing.toTiming(),
+            ruleProfiles.values().stream().map(RuleProfile::toMetrics).toArray(RulesetMetrics.RuleMetrics[]::new)
+        );
+    }
+
+    protected RuleProfile getProfile(Rule rule) {
+        RuleProfile profile = ruleProfiles.get(rule);
+        if (profile == null) {
+            profile = new RuleProfile(rule.getName());
+            ruleProfiles.put(rule, profile);
+        }
+        return profile;
+    }
+}
@@ -0,0 +1,184 @@
+package org.openremote.manager.rules.flow;
+
+import org.openremote.manager.rules.RulesFacts;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.rules.*;
+import org.openremote.model.rules.flow.*;
+
+import java.util.*;
+
+/**
+ * A {@link NodeCollection} compiled once for execution: connections are resolved to the input sockets of each node,
+ * every node has a reusable {@link NodeExecutionRequestInfo} (which caches converted internal values) and node
+ * outputs are memoised. Memoised outputs are only discarded for nodes downstream of an input node that reads a
+ * changed asset state, all other nodes only depend on their inputs and internals.
+ */
+public class FlowGraph {
+
+    final protected NodeCollection collection;
+    final protected Map<String, Node> nodes = new LinkedHashMap<>();
+    final protected Map<String, NodeSocket> sockets = new HashMap<>();
+    final protected Map<String, NodeExecutionRequestInfo> infos = new HashMap<>();
+    // Output socket ID to memoised value, a key with a null value is a memoised null
+    final protected Map<String, Object> outputValues = new HashMap<>();
+    final protected Map<String, Set<Node>> downstreamNodes = new HashMap<>();
+    final protected Map<String, List<Node>> upstreamNodes = new HashMap<>();
+    // Input nodes that read asset states and the asset state they have last seen
+    final protected Map<Node, AttributeRef> factInputs = new LinkedHashMap<>();
+    final protected Map<Node, AssetState> factInputStates = new HashMap<>();
+
+    public FlowGraph(NodeCollection collection, Assets assets, Users users, Notifications notifications,
+                     HistoricDatapoints historicDatapoints, PredictedDatapoints predictedDatapoints) {
+        this.collection = collection;
+
+        Map<String, List<NodeSocket>> connectedFrom = new HashMap<>();
+        Map<String, List<NodeSocket>> connectedTo = new HashMap<>();
+
+        for (Node node : collection.getNodes()) {
+            nodes.put(node.getId(), node);
+            for (NodeSocket socket : node.getInputs()) {
+                sockets.put(socket.getId(), socket);
+            }
+            for (NodeSocket socket : node.getOutputs()) {
+                sockets.put(socket.getId(), socket);
+            }
+        }
+
+        for (NodeConnection connection : collection.getConnections()) {
+            NodeSocket from = getSocket(connection.getFrom());
+            NodeSocket to = getSocket(connection.getTo());
+            connectedFrom.computeIfAbsent(to.getId(), id -> new ArrayList<>()).add(from);
+            connectedTo.computeIfAbsent(from.getId(), id -> new ArrayList<>()).add(to);
+        }
+
+        for (Node node : nodes.values()) {
+            List<NodeSocket> inputs = new ArrayList<>();
+            for (NodeSocket socket : node.getInputs()) {
+                inputs.addAll(connectedFrom.getOrDefault(socket.getId(), Collections.emptyList()));
+            }
+            List<NodeSocket> outputs = new ArrayList<>();
+            for (NodeSocket socket : node.getOutputs()) {
+                outputs.addAll(connectedTo.getOrDefault(socket.getId(), Collections.emptyList()));
+            }
+
+            NodeExecutionRequestInfo info = new NodeExecutionRequestInfo(
+                collection,
+                node.getOutputs().length > 0 ? 0 : -1,
+                node.getOutputs().length > 0 ? node.getOutputs()[0] : null,
+                node,
+                inputs.toArray(new NodeSocket[0]),
+                outputs.toArray(new NodeSocket[0]),
+                node.getInternals(),
+                null,
+                assets,
+                users,
+                notifications,
+                historicDatapoints,
+                predictedDatapoints
+            );
+            info.setGraph(this);
+            infos.put(node.getId(), info);
+
+            if (NodeModel.valueOf(node.getName()) == NodeModel.READ_ATTRIBUTE) {
+                AssetAttributeInternalValue internal = info.getInternalValue(0, AssetAttributeInternalValue.class);
+                factInputs.put(node, new AttributeRef(internal.getAssetId(), internal.getAttributeName()));
+            }
+        }
+
+        for (Node node : nodes.values()) {
+            collectUpstream(node, new HashSet<>());
+        }
+        for (Node node : nodes.values()) {
+            for (Node upstreamNode : upstreamNodes.get(node.getId())) {
+                downstreamNodes.computeIfAbsent(upstreamNode.getId(), id -> new HashSet<>()).add(node);
+            }
+        }
+    }
+
+    /**
+     * Discard memoised outputs of all nodes downstream of input nodes which read an asset state that has changed
+     * since the last update, must be called before nodes are evaluated with the given facts.
+     */
+    public void update(RulesFacts facts) {
+        infos.values().forEach(info -> info.setFacts(facts));
+
+        factInputs.forEach((node, attributeRef) -> {
+            AssetState assetState = facts.getAssetStates().get(attributeRef);
+            // Asset states are replaced when they change, an identity check is sufficient
+            if (!factInputStates.containsKey(node) || assetState != factInputStates.get(node)) {
+                factInputStates.put(node, assetState);
+                invalidate(node);
+            }
+        });
+    }
+
+    protected void invalidate(Node node) {
+        for (NodeSocket socket : node.getOutputs()) {
+            outputValues.remove(socket.getId());
+        }
+        for (Node downstreamNode : downstreamNodes.getOrDefault(node.getId(), Collections.emptySet())) {
+            for (NodeSocket socket : downstreamNode.getOutputs()) {
+                outputValues.remove(socket.getId());
+            }
+        }
+    }
+
+    /**
+     * @return the memoised value of the output socket, the node is executed if there is no memoised value.
+     */
+    public Object getOutputValue(NodeSocket outputSocket) {
+        if (outputValues.containsKey(outputSocket.getId())) {
+            return outputValues.get(outputSocket.getId());
+        }
+        Node node = getNode(outputSocket.getNodeId());
+        Object value = NodeModel.getImplementationFor(node.getName()).execute(getInfo(node));
+        outputValues.put(outputSocket.getId(), value);
+        return value;
+    }
+
+    public NodeExecutionRequestInfo getInfo(Node node) {
+        return infos.get(node.getId());
+    }
+
+    /**
+     * @return all nodes connected to the inputs of the node, directly or indirectly, in evaluation order.
+     */
+    public List<Node> getUpstreamNodes(Node node) {
+        return upstreamNodes.get(node.getId());
+    }
+
+    public Node getNode(String nodeId) {
+        Node node = nodes.get(nodeId);
+        if (node == null)
+            throw new IllegalArgumentException("Invalid node ID");
+        return node;
+    }
+
+    public NodeSocket getSocket(String socketId) {
+        NodeSocket socket = sockets.get(socketId);
+        if (socket == null)
+            throw new IllegalArgumentException("Invalid socket ID");
+        return socket;
+    }
+
+    protected List<Node> collectUpstream(Node node, Set<Node> visiting) {
+        List<Node> collected = upstreamNodes.get(node.getId());
+        if (collected != null)
+            return collected;
+        if (!visiting.add(node))
+            throw new IllegalArgumentException("Flow contains a cycle at node: " + node.getName());
+
+        Set<Node> upstream = new LinkedHashSet<>();
+        for (NodeSocket input : getInfo(node).getInputs()) {
+            Node inputNode = getNode(input.getNodeId());
+            // Inputs of a node are evaluated before the node itself
+            upstream.addAll(collectUpstream(inputNode, visiting));
+            upstream.add(inputNode);
+        }
+
+        visiting.remove(node);
+        collected = new ArrayList<>(upstream);
+        upstreamNodes.put(node.getId(), collected);
+        return collected;
+    }
+}
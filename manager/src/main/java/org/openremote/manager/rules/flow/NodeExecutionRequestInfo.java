@@ -1,12 +1,15 @@
 package org.openremote.manager.rules.flow;
 
+import org.openremote.container.Container;
 import org.openremote.manager.rules.RulesFacts;
 import org.openremote.model.rules.*;
 import org.openremote.model.rules.flow.*;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class NodeExecutionRequestInfo {
@@ -22,6 +25,9 @@ public class NodeExecutionRequestInfo {
 
     private RulesFacts facts;
 
+    private FlowGraph graph;
+    private Map<Integer, Object> internalValues;
+
     private Assets assets;
     private Users users;
     private Notifications notifications;
@@ -98,12 +104,28 @@ public class NodeExecutionRequestInfo {
 
     public Object getValueFromInput(int index) {
         NodeSocket aSocket = getInputs()[index];
+        if (graph != null)
+            return graph.getOutputValue(aSocket);
         Node aNode = getCollection().getNodeById(aSocket.getNodeId());
         return NodeModel.getImplementationFor(aNode.getName()).execute(
             new NodeExecutionRequestInfo(getCollection(), aNode, aSocket, getFacts(), getAssets(), getUsers(), getNotifications(), getHistoricDatapoints(), getPredictedDatapoints())
         );
     }
 
+    /**
+     * @return the value of the internal converted to the given type, converted values are cached.
+     */
+    public <T> T getInternalValue(int index, Class<T> type) {
+        if (internalValues == null)
+            internalValues = new HashMap<>();
+        Object value = internalValues.get(index);
+        if (!type.isInstance(value)) {
+            value = Container.JSON.convertValue(getInternals()[index].getValue(), type);
+            internalValues.put(index, value);
+        }
+        return type.cast(value);
+    }
+
     public NodeDataType getTypeFromInput(int index) {
         NodeSocket aSocket = getInputs()[index];
         return aSocket.getType();
@@ -163,6 +185,7 @@ public class NodeExecutionRequestInfo {
 
     public void setInternals(NodeInternal[] internals) {
         this.internals = internals;
+        this.internalValues = null;
     }
 
     public Assets getAssets() {
@@ -208,4 +231,12 @@ public class NodeExecutionRequestInfo {
     public void setFacts(RulesFacts facts) {
         this.facts = facts;
     }
+
+    public FlowGraph getGraph() {
+        return graph;
+    }
+
+    public void setGraph(FlowGraph graph) {
+        this.graph = graph;
+    }
 }
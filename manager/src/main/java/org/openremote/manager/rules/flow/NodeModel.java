@@ -4,15 +4,11 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import org.openremote.container.Container;
 import org.openremote.manager.rules.RulesBuilder;
 import org.openremote.manager.rules.RulesEngine;
-import org.openremote.model.query.AssetQuery;
+import org.openremote.model.attribute.AttributeRef;
 import org.openremote.model.rules.AssetState;
 import org.openremote.model.rules.flow.*;
 import org.openremote.model.value.*;
 
-import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
-
 public enum NodeModel {
     READ_ATTRIBUTE(
             new Node(NodeType.INPUT, new NodeInternal[]{
@@ -22,26 +18,20 @@ public enum NodeModel {
                     new NodeSocket("value", NodeDataType.ANY)
             }),
             info -> {
-                AssetAttributeInternalValue assetAttributePair = Container.JSON.convertValue(info.getInternals()[0].getValue(), AssetAttributeInternalValue.class);
-                String assetId = assetAttributePair.getAssetId();
-                String attributeName = assetAttributePair.getAttributeName();
-                Optional<AssetState> readValue = info.getFacts().matchFirstAssetState(new AssetQuery().ids(assetId).attributeName(attributeName));
-                if (!readValue.isPresent()) return null;
-                return readValue.get().getValue().orElse(null);
+                AssetAttributeInternalValue assetAttributePair = info.getInternalValue(0, AssetAttributeInternalValue.class);
+                AssetState readValue = info.getFacts().getAssetStates().get(new AttributeRef(assetAttributePair.getAssetId(), assetAttributePair.getAttributeName()));
+                if (readValue == null) return null;
+                return readValue.getValue().orElse(null);
             },
             params -> {
-                AssetAttributeInternalValue internal = Container.JSON.convertValue(params.getNode().getInternals()[0].getValue(), AssetAttributeInternalValue.class);
-                String assetId = internal.getAssetId();
-                String attributeName = internal.getAttributeName();
-                List<AssetState> allAssets = params.getFacts().matchAssetState(new AssetQuery().ids(assetId).attributeName(attributeName)
-                ).collect(Collectors.toList());
-
-                return allAssets.stream().anyMatch(state -> {
-                    long timestamp = state.getTimestamp();
-                    long triggerStamp = params.getBuilder().getTriggerMap().getOrDefault(params.getRuleName(), -1L);
-                    if (triggerStamp == -1L) return true; //The flow has never been executed
-                    return timestamp > triggerStamp && state.isValueChanged();
-                });
+                AssetAttributeInternalValue internal = params.getInternalValue(0, AssetAttributeInternalValue.class);
+                AssetState state = params.getFacts().getAssetStates().get(new AttributeRef(internal.getAssetId(), internal.getAttributeName()));
+                if (state == null) return false;
+
+                long timestamp = state.getTimestamp();
+                long triggerStamp = params.getBuilder().getTriggerMap().getOrDefault(params.getRuleName(), -1L);
+                if (triggerStamp == -1L) return true; //The flow has never been executed
+                return timestamp > triggerStamp && state.isValueChanged();
             }
     ),
 
@@ -57,12 +47,12 @@ public enum NodeModel {
                     RulesEngine.LOG.warning("Flow rule error: node " + info.getNode().getName() + " receives invalid value");
                     return;
                 }
-                AssetAttributeInternalValue assetAttributePair = Container.JSON.convertValue(info.getInternals()[0].getValue(), AssetAttributeInternalValue.class);
-                Optional<AssetState> existingValue = info.getFacts().matchFirstAssetState(new AssetQuery().ids(assetAttributePair.getAssetId()).attributeName(assetAttributePair.getAttributeName()));
+                AssetAttributeInternalValue assetAttributePair = info.getInternalValue(0, AssetAttributeInternalValue.class);
+                AssetState existingValue = info.getFacts().getAssetStates().get(new AttributeRef(assetAttributePair.getAssetId(), assetAttributePair.getAttributeName()));
 
-                if (existingValue.isPresent())
-                    if (existingValue.get().getValue().isPresent())
-                        if (existingValue.get().getValue().get().equals(value)) return;
+                if (existingValue != null)
+                    if (existingValue.getValue().isPresent())
+                        if (existingValue.getValue().get().equals(value)) return;
 
                 try {
                     if (value instanceof Value) {
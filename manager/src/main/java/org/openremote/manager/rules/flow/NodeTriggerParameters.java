@@ -1,5 +1,6 @@
 package org.openremote.manager.rules.flow;
 
+import org.openremote.container.Container;
 import org.openremote.manager.rules.FlowRulesBuilder;
 import org.openremote.manager.rules.RulesFacts;
 import org.openremote.model.rules.flow.Node;
@@ -11,6 +12,7 @@ public class NodeTriggerParameters {
     private FlowRulesBuilder builder;
     private NodeCollection collection;
     private Node node;
+    private NodeExecutionRequestInfo info;
 
     public NodeTriggerParameters(String ruleName, RulesFacts facts, FlowRulesBuilder builder, NodeCollection collection, Node node) {
         this.ruleName = ruleName;
@@ -20,6 +22,11 @@ public class NodeTriggerParameters {
         this.node = node;
     }
 
+    public NodeTriggerParameters(String ruleName, RulesFacts facts, FlowRulesBuilder builder, NodeCollection collection, Node node, NodeExecutionRequestInfo info) {
+        this(ruleName, facts, builder, collection, node);
+        this.info = info;
+    }
+
     public String getRuleName() {
         return ruleName;
     }
@@ -39,4 +46,13 @@ public class NodeTriggerParameters {
     public Node getNode() {
         return node;
     }
+
+    /**
+     * @return the value of the internal of the node converted to the given type, cached if the node is compiled.
+     */
+    public <T> T getInternalValue(int index, Class<T> type) {
+        if (info != null)
+            return info.getInternalValue(index, type);
+        return Container.JSON.convertValue(node.getInternals()[index].getValue(), type);
+    }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules.geofence;
+
+import com.vividsolutions.jts.geom.Envelope;
+import org.openremote.model.query.filter.GeofencePredicate;
+import org.openremote.model.query.filter.RadialGeofencePredicate;
+import org.openremote.model.query.filter.RectangularGeofencePredicate;
+
+import java.util.*;
+
+/**
+ * A grid index over the bounding boxes of {@link GeofencePredicate}s, used to find the candidate geofences of a
+ * location without testing every geofence. The index is conservative: every geofence that may match a location is a
+ * candidate, candidates still have to be tested exactly. Negated geofences match everything outside of their bounds so
+ * they are always candidates, as are geofences covering too many cells of the grid.
+ * <p>
+ * Not thread-safe, the index is owned by a single rules engine.
+ */
+public class GeofenceIndex<T> {
+
+    /**
+     * Mean earth radius in metres, for spherical approximations of distances.
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+    public static final double DEFAULT_CELL_SIZE_DEGREES = 0.1;
+    public static final int MAX_CELLS_PER_ENTRY = 1024;
+
+    final protected double cellSize;
+    final protected Map<Long, List<T>> cells = new HashMap<>();
+    final protected List<T> unbounded = new ArrayList<>();
+    final protected Map<T, List<Long>> entryCells = new HashMap<>();
+
+    public GeofenceIndex() {
+        this(DEFAULT_CELL_SIZE_DEGREES);
+    }
+
+    public GeofenceIndex(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public void add(GeofencePredicate geofence, T entry) {
+        remove(entry);
+        Envelope bounds = geofence.negated ? null : getBounds(geofence);
+        if (bounds == null || getCellCount(bounds) > MAX_CELLS_PER_ENTRY) {
+            unbounded.add(entry);
+            entryCells.put(entry, Collections.emptyList());
+            return;
+        }
+
+        List<Long> keys = new ArrayList<>();
+        for (long x = cell(bounds.getMinX()); x <= cell(bounds.getMaxX()); x++) {
+            for (long y = cell(bounds.getMinY()); y <= cell(bounds.getMaxY()); y++) {
+                long key = key(x, y);
+                cells.computeIfAbsent(key, k -> new ArrayList<>()).add(entry);
+                keys.add(key);
+            }
+        }
+        entryCells.put(entry, keys);
+    }
+
+    public void remove(T entry) {
+        List<Long> keys = entryCells.remove(entry);
+        if (keys == null) {
+            return;
+        }
+        if (keys.isEmpty()) {
+            unbounded.remove(entry);
+        }
+        for (Long key : keys) {
+            List<T> entries = cells.get(key);
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    public boolean contains(T entry) {
+        return entryCells.containsKey(entry);
+    }
+
+    /**
+     * @return the entries whose geofence may match the location, the collection is backed by the index and must not
+     * be modified.
+     */
+    public Collection<T> getCandidates(double lng, double lat) {
+        List<T> entries = cells.get(key(cell(lng), cell(lat)));
+        if (entries == null) {
+            return unbounded;
+        }
+        if (unbounded.isEmpty()) {
+            return entries;
+        }
+        List<T> candidates = new ArrayList<>(entries.size() + unbounded.size());
+        candidates.addAll(entries);
+        candidates.addAll(unbounded);
+        return candidates;
+    }
+
+    public int size() {
+        return entryCells.size();
+    }
+
+    protected long cell(double degrees) {
+        return (long) Math.floor(degrees / cellSize);
+    }
+
+    protected long getCellCount(Envelope bounds) {
+        return (cell(bounds.getMaxX()) - cell(bounds.getMinX()) + 1) * (cell(bounds.getMaxY()) - cell(bounds.getMinY()) + 1);
+    }
+
+    protected static long key(long x, long y) {
+        return (x << 32) ^ (y & 0xffffffffL);
+    }
+
+    /**
+     * @return the bounding box of the area inside of the geofence in degrees (x is longitude, y is latitude), or
+     * <code>null</code> if the area cannot be bounded.
+     */
+    public static Envelope getBounds(GeofencePredicate geofence) {
+        if (geofence instanceof RadialGeofencePredicate) {
+            RadialGeofencePredicate radial = (RadialGeofencePredicate) geofence;
+            // Pad the spherical bounds so they also contain the circle on the ellipsoid
+            double latDelta = Math.toDegrees(radial.radius * 1.01 / EARTH_RADIUS);
+            double latMin = radial.lat - latDelta;
+            double latMax = radial.lat + latDelta;
+            if (latMin <= -90 || latMax >= 90) {
+                return null;
+            }
+            double lngDelta = latDelta / Math.cos(Math.toRadians(Math.max(Math.abs(latMin), Math.abs(latMax))));
+            if (radial.lng - lngDelta < -180 || radial.lng + lngDelta > 180) {
+                // Crosses the antimeridian, rare enough to not be worth splitting
+                return null;
+            }
+            return new Envelope(radial.lng - lngDelta, radial.lng + lngDelta, latMin, latMax);
+        } else if (geofence instanceof RectangularGeofencePredicate) {
+            RectangularGeofencePredicate rectangular = (RectangularGeofencePredicate) geofence;
+            return new Envelope(rectangular.lngMin, rectangular.lngMax, rectangular.latMin, rectangular.latMax);
+        }
+        return null;
+    }
+
+    /**
+     * @return the haversine distance in metres between two points on a sphere with the mean earth radius, which is
+     * within 0.5% of the orthodromic distance on the WGS84 ellipsoid.
+     */
+    public static double getHaversineDistance(double lng1, double lat1, double lng2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+            + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
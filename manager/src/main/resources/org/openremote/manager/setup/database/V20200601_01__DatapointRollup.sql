@@ -0,0 +1,33 @@
+/*
+  ############################# TABLES #############################
+ */
+
+/*
+  Aggregates of numeric and boolean datapoints per minute, hour and day, maintained by the
+  AssetDatapointService when DATA_POINTS_ROLLUP is enabled. Booleans are aggregated as 1 and 0.
+ */
+create table ASSET_DATAPOINT_ROLLUP (
+  ENTITY_ID      varchar(36)                not null,
+  ATTRIBUTE_NAME varchar(255)               not null,
+  RESOLUTION     varchar(10)                not null,
+  TIMESTAMP      timestamp                  not null,
+  VALUE_COUNT    int8                       not null,
+  VALUE_MIN      float8,
+  VALUE_MAX      float8,
+  VALUE_SUM      float8,
+  VALUE_LAST     float8,
+  primary key (ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, TIMESTAMP)
+);
+
+/*
+  ############################# CONSTRAINTS #############################
+ */
+
+alter table ASSET_DATAPOINT_ROLLUP
+  add foreign key (ENTITY_ID) references ASSET (ID) on delete cascade;
+
+/*
+  ############################# INDICES #############################
+ */
+
+create index ASSET_DATAPOINT_ROLLUP_RESOLUTION_TIMESTAMP on ASSET_DATAPOINT_ROLLUP(RESOLUTION, TIMESTAMP);
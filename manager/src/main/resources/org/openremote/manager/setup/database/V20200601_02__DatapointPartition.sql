@@ -0,0 +1,27 @@
+/*
+  ############################# FUNCTIONS #############################
+ */
+
+/*
+  Creates a child table of ASSET_DATAPOINT holding the datapoints of the time range [FROM_TS, TO_TS), used by the
+  AssetDatapointService when DATA_POINTS_PARTITION is enabled. Concurrent calls are serialised with an advisory
+  lock so the function can be called by writers that find a partition missing. Does nothing if the table exists.
+ */
+create or replace function CREATE_ASSET_DATAPOINT_PARTITION(PARTITION_NAME text, FROM_TS timestamp, TO_TS timestamp)
+  returns void as
+$$
+begin
+  perform pg_advisory_xact_lock(hashtext('ASSET_DATAPOINT_PARTITION'));
+  if to_regclass(lower(PARTITION_NAME)) is null then
+    execute format(
+      'create table %I (' ||
+      '  check (TIMESTAMP >= %L and TIMESTAMP < %L),' ||
+      '  primary key (TIMESTAMP, ENTITY_ID, ATTRIBUTE_NAME),' ||
+      '  foreign key (ENTITY_ID) references ASSET (ID) on delete cascade' ||
+      ') inherits (ASSET_DATAPOINT)',
+      lower(PARTITION_NAME), FROM_TS, TO_TS
+    );
+  end if;
+end;
+$$
+language plpgsql;
@@ -0,0 +1,37 @@
+/*
+  ############################# TABLES #############################
+ */
+
+/*
+  The identifiers of the asset and all its parents, starting with the asset and ending with the root asset. Stored
+  by the AssetStorageService when an asset is created or moved (the paths of its descendants are updated in the same
+  transaction), so the path doesn't have to be computed recursively when assets are queried.
+ */
+alter table ASSET
+  add column PATH text[];
+
+update ASSET
+  set PATH = GET_ASSET_TREE_PATH(ID);
+
+alter table ASSET
+  alter column PATH set not null;
+
+/*
+  ############################# FUNCTIONS #############################
+ */
+
+/*
+  Kept for queries that still call the function, the path is no longer computed recursively.
+ */
+create or replace function GET_ASSET_TREE_PATH(ASSET_ID text)
+  returns text [] as
+$$
+  select PATH from ASSET where ID = ASSET_ID;
+$$
+language sql stable;
+
+/*
+  ############################# INDICES #############################
+ */
+
+create index ASSET_PATH on ASSET using gin (PATH);
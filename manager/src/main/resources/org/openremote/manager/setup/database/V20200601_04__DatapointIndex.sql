@@ -0,0 +1,121 @@
+/*
+  ############################# TABLES #############################
+ */
+
+/*
+  The number (booleans as 1 and 0) of numeric and boolean datapoints, so aggregations don't have to parse the
+  VALUE. Numeric, so averages and sums have the same precision as the VALUE::text::numeric casts they replace. Set by
+  the ASSET_DATAPOINT_NUMBER_VALUE trigger, null for other values and datapoints written before this migration
+  (queries fall back to VALUE).
+ */
+alter table ASSET_DATAPOINT
+  add column NUMBER_VALUE numeric;
+
+/*
+  Predicted datapoints are averaged like datapoints, set by the ASSET_PREDICTED_DATAPOINT_NUMBER_VALUE trigger.
+ */
+alter table ASSET_PREDICTED_DATAPOINT
+  add column NUMBER_VALUE numeric;
+
+/*
+  ############################# CONSTRAINTS #############################
+ */
+
+/*
+  Datapoints are queried per attribute and time range, so the primary key starts with the attribute. The primary keys
+  of existing partitions (child tables of ASSET_DATAPOINT) are changed as well.
+ */
+do
+$$
+declare
+  T text;
+begin
+  for T in
+    select 'ASSET_DATAPOINT'
+    union all
+    select 'ASSET_PREDICTED_DATAPOINT'
+    union all
+    select C.RELNAME from PG_INHERITS I join PG_CLASS C on C.OID = I.INHRELID
+    where I.INHPARENT = 'ASSET_DATAPOINT'::regclass
+  loop
+    execute format('alter table %I drop constraint %I', lower(T), lower(T) || '_pkey');
+    execute format('alter table %I add primary key (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP)', lower(T));
+    execute format('create index %I on %I using brin (TIMESTAMP)', lower(T) || '_timestamp', lower(T));
+  end loop;
+end;
+$$;
+
+/*
+  ############################# FUNCTIONS #############################
+ */
+
+create or replace function SET_ASSET_DATAPOINT_NUMBER_VALUE()
+  returns trigger as
+$$
+begin
+  NEW.NUMBER_VALUE := case jsonb_typeof(NEW.VALUE)
+    when 'number' then NEW.VALUE::text::numeric
+    when 'boolean' then case when NEW.VALUE::text::boolean is true then 1 else 0 end
+  end;
+  return NEW;
+end;
+$$
+language plpgsql;
+
+/*
+  Replaces the function of V20200601_02, partitions get the same primary key, time index and trigger as the
+  ASSET_DATAPOINT table.
+ */
+create or replace function CREATE_ASSET_DATAPOINT_PARTITION(PARTITION_NAME text, FROM_TS timestamp, TO_TS timestamp)
+  returns void as
+$$
+begin
+  perform pg_advisory_xact_lock(hashtext('ASSET_DATAPOINT_PARTITION'));
+  if to_regclass(lower(PARTITION_NAME)) is null then
+    execute format(
+      'create table %I (' ||
+      '  check (TIMESTAMP >= %L and TIMESTAMP < %L),' ||
+      '  primary key (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP),' ||
+      '  foreign key (ENTITY_ID) references ASSET (ID) on delete cascade' ||
+      ') inherits (ASSET_DATAPOINT)',
+      lower(PARTITION_NAME), FROM_TS, TO_TS
+    );
+    execute format('create index %I on %I using brin (TIMESTAMP)', lower(PARTITION_NAME) || '_timestamp', lower(PARTITION_NAME));
+    execute format(
+      'create trigger ASSET_DATAPOINT_NUMBER_VALUE before insert on %I for each row execute procedure SET_ASSET_DATAPOINT_NUMBER_VALUE()',
+      lower(PARTITION_NAME)
+    );
+  end if;
+end;
+$$
+language plpgsql;
+
+/*
+  ############################# TRIGGERS #############################
+ */
+
+do
+$$
+declare
+  T text;
+begin
+  for T in
+    select 'ASSET_DATAPOINT'
+    union all
+    select C.RELNAME from PG_INHERITS I join PG_CLASS C on C.OID = I.INHRELID
+    where I.INHPARENT = 'ASSET_DATAPOINT'::regclass
+  loop
+    execute format(
+      'create trigger ASSET_DATAPOINT_NUMBER_VALUE before insert on %I for each row execute procedure SET_ASSET_DATAPOINT_NUMBER_VALUE()',
+      lower(T)
+    );
+  end loop;
+end;
+$$;
+
+/*
+  Predicted datapoints are upserted, so the number is also set when the value of an existing row is replaced.
+ */
+create trigger ASSET_PREDICTED_DATAPOINT_NUMBER_VALUE
+  before insert or update of VALUE on ASSET_PREDICTED_DATAPOINT
+  for each row execute procedure SET_ASSET_DATAPOINT_NUMBER_VALUE();
@@ -0,0 +1,100 @@
+/*
+  ############################# TABLES #############################
+ */
+
+/*
+  Attribute data that asset queries filter on, derived from ATTRIBUTES by the ASSET_ATTRIBUTE_INDEX trigger so it can
+  be indexed: the names of the attributes, the meta items (name and value) of all attributes and the point of the
+  location attribute. Storing a value that didn't change doesn't modify the indexes, attribute value updates remain
+  eligible for HOT updates unless the location changes.
+ */
+alter table ASSET
+  add column ATTRIBUTE_NAMES text[],
+  add column ATTRIBUTE_META jsonb,
+  add column LOCATION geometry(Point, 4326);
+
+/*
+  ############################# FUNCTIONS #############################
+ */
+
+/*
+  Most updates of ATTRIBUTES only store attribute values, on update the attribute names, meta items and location are
+  then compared with the previous row instead of being derived again from the whole document. On update, NEW holds the
+  previous ATTRIBUTE_NAMES, ATTRIBUTE_META and LOCATION, they are kept when nothing they are derived from changed.
+ */
+create or replace function SET_ASSET_ATTRIBUTE_INDEX()
+  returns trigger as
+$$
+begin
+  if TG_OP = 'UPDATE' and not exists(
+    select 1
+    from jsonb_each(coalesce(NEW.ATTRIBUTES, '{}'::jsonb)) as NA
+      full join jsonb_each(coalesce(OLD.ATTRIBUTES, '{}'::jsonb)) as OA on OA.KEY = NA.KEY
+    where NA.KEY is null
+      or OA.KEY is null
+      or NA.VALUE -> 'meta' is distinct from OA.VALUE -> 'meta'
+      or (NA.KEY = 'location' and NA.VALUE -> 'value' is distinct from OA.VALUE -> 'value')
+  ) then
+    return NEW;
+  end if;
+
+  NEW.ATTRIBUTE_NAMES := array(select jsonb_object_keys(coalesce(NEW.ATTRIBUTES, '{}'::jsonb)));
+  NEW.ATTRIBUTE_META := coalesce((
+    select jsonb_agg(jsonb_build_object('name', AM.VALUE -> 'name', 'value', AM.VALUE -> 'value'))
+    from jsonb_each(coalesce(NEW.ATTRIBUTES, '{}'::jsonb)) as AX,
+      jsonb_array_elements(case jsonb_typeof(AX.VALUE -> 'meta') when 'array' then AX.VALUE -> 'meta' else '[]'::jsonb end) as AM
+  ), '[]'::jsonb);
+  NEW.LOCATION := case
+    when jsonb_typeof(NEW.ATTRIBUTES #> '{location,value,coordinates,0}') = 'number'
+      and jsonb_typeof(NEW.ATTRIBUTES #> '{location,value,coordinates,1}') = 'number'
+    then ST_SetSRID(ST_MakePoint(
+      (NEW.ATTRIBUTES #>> '{location,value,coordinates,0}')::float8,
+      (NEW.ATTRIBUTES #>> '{location,value,coordinates,1}')::float8
+    ), 4326)
+  end;
+  return NEW;
+end;
+$$
+language plpgsql;
+
+/*
+  ############################# TRIGGERS #############################
+ */
+
+/*
+  Existing assets are indexed before the triggers are created, the update trigger doesn't call the function for
+  updates that store the same attributes.
+ */
+update ASSET
+  set ATTRIBUTE_NAMES = array(select jsonb_object_keys(coalesce(ATTRIBUTES, '{}'::jsonb))),
+    ATTRIBUTE_META = coalesce((
+      select jsonb_agg(jsonb_build_object('name', AM.VALUE -> 'name', 'value', AM.VALUE -> 'value'))
+      from jsonb_each(coalesce(ATTRIBUTES, '{}'::jsonb)) as AX,
+        jsonb_array_elements(case jsonb_typeof(AX.VALUE -> 'meta') when 'array' then AX.VALUE -> 'meta' else '[]'::jsonb end) as AM
+    ), '[]'::jsonb),
+    LOCATION = case
+      when jsonb_typeof(ATTRIBUTES #> '{location,value,coordinates,0}') = 'number'
+        and jsonb_typeof(ATTRIBUTES #> '{location,value,coordinates,1}') = 'number'
+      then ST_SetSRID(ST_MakePoint(
+        (ATTRIBUTES #>> '{location,value,coordinates,0}')::float8,
+        (ATTRIBUTES #>> '{location,value,coordinates,1}')::float8
+      ), 4326)
+    end;
+
+create trigger ASSET_ATTRIBUTE_INDEX before insert on ASSET
+  for each row execute procedure SET_ASSET_ATTRIBUTE_INDEX();
+
+/*
+  Updates that store the same attributes (e.g. a merge of an asset that only changes its name) don't call the function
+  at all.
+ */
+create trigger ASSET_ATTRIBUTE_INDEX_UPDATE before update of ATTRIBUTES on ASSET
+  for each row when (OLD.ATTRIBUTES is distinct from NEW.ATTRIBUTES) execute procedure SET_ASSET_ATTRIBUTE_INDEX();
+
+/*
+  ############################# INDICES #############################
+ */
+
+create index ASSET_ATTRIBUTE_NAMES on ASSET using gin (ATTRIBUTE_NAMES);
+create index ASSET_ATTRIBUTE_META on ASSET using gin (ATTRIBUTE_META jsonb_path_ops);
+create index ASSET_LOCATION on ASSET using gist (LOCATION);
@@ -0,0 +1,13 @@
+/*
+  ############################# INDICES #############################
+ */
+
+/*
+  Asset queries are restricted to a realm and paginated by the order by property and identifier of the assets (see
+  AssetStorageService#appendAfterCondition), these indexes return a page of a realm without sorting all its assets.
+  Descending pages use a backward scan of the same index.
+ */
+create index ASSET_REALM_CREATED_ON on ASSET(REALM, CREATED_ON, ID);
+create index ASSET_REALM_NAME on ASSET(REALM, NAME, ID);
+create index ASSET_REALM_ASSET_TYPE on ASSET(REALM, ASSET_TYPE, ID);
+create index ASSET_REALM_PARENT_ID on ASSET(REALM, PARENT_ID, ID);
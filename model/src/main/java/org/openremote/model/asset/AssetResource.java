@@ -19,6 +19,7 @@
  */
 package org.openremote.model.asset;
 
+import com.google.gwt.core.shared.GwtIncompatible;
 import jsinterop.annotations.JsType;
 import org.openremote.model.Constants;
 import org.openremote.model.attribute.AttributeRef;
@@ -30,6 +31,7 @@ import org.openremote.model.query.AssetQuery;
 import javax.annotation.security.RolesAllowed;
 import javax.validation.Valid;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
 
 import java.util.List;
 
@@ -263,6 +265,21 @@ public interface AssetResource {
     @SuppressWarnings("unusable-by-js")
     Asset[] queryAssets(@BeanParam RequestParams requestParams, AssetQuery query);
 
+    /**
+     * Retrieve assets using an {@link AssetQuery} like {@link #queryAssets}, the assets are written to the response as
+     * they are read from the database instead of being collected first. Large results can also be retrieved in pages
+     * by setting {@link AssetQuery#limit} and the identifier of the last asset of the previous page as
+     * {@link AssetQuery#after}.
+     */
+    @POST
+    @Path("query/stream")
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @RolesAllowed({Constants.READ_ASSETS_ROLE})
+    @SuppressWarnings({"unusable-by-js"})
+    @GwtIncompatible
+    Response streamQueryAssets(@BeanParam RequestParams requestParams, AssetQuery query);
+
     /**
      * Retrieve public assets using an {@link AssetQuery}.
      * <p>
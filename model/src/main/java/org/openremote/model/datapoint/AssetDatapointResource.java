@@ -39,6 +39,10 @@ public interface AssetDatapointResource {
      * regular user tries to access an asset in a realm different than its authenticated realm, or if the user is
      * restricted and the asset is not linked to the user. A 400 status is returned if the asset attribute does
      * not have datapoint storage enabled.
+     * <p>
+     * Optionally the datapoints can be downsampled to at most <code>maxPoints</code> datapoints with a
+     * {@link DatapointAlgorithm}, when only an algorithm is given the number of points is the number of
+     * intervals in the time range.
      */
     @GET
     @Path("{assetId}/attribute/{attributeName}")
@@ -51,6 +55,8 @@ public interface AssetDatapointResource {
                                    @PathParam("attributeName") String attributeName,
                                    @QueryParam("interval") DatapointInterval datapointInterval,
                                    @QueryParam("fromTimestamp") long fromTimestamp,
-                                   @QueryParam("toTimestamp") long toTimestamp);
+                                   @QueryParam("toTimestamp") long toTimestamp,
+                                   @QueryParam("maxPoints") int maxPoints,
+                                   @QueryParam("algorithm") DatapointAlgorithm algorithm);
 
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.datapoint;
+
+/**
+ * Algorithms for reducing the number of historical datapoints of a numeric attribute in a time range.
+ */
+public enum DatapointAlgorithm {
+
+    /**
+     * Average value of each bucket, the datapoint timestamp is the start of the bucket.
+     */
+    AVG,
+
+    /**
+     * Minimum value of each bucket.
+     */
+    MIN,
+
+    /**
+     * Maximum value of each bucket.
+     */
+    MAX,
+
+    /**
+     * First value of each bucket.
+     */
+    FIRST,
+
+    /**
+     * Last value of each bucket.
+     */
+    LAST,
+
+    /**
+     * Minimum and maximum values of each bucket in the order they occurred, this preserves peaks. Uses half as many
+     * buckets as the other algorithms so the number of datapoints stays within the requested maximum.
+     */
+    MIN_MAX,
+
+    /**
+     * Largest-Triangle-Three-Buckets, selects the datapoint of each bucket that best preserves the visual shape of
+     * the series.
+     */
+    LTTB
+}
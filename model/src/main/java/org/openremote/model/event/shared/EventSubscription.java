@@ -35,6 +35,11 @@ import java.util.function.Consumer;
  * <p>
  * A subscription can optionally contain a {@link #subscriptionId} which allows a client
  * to have multiple subscriptions for the same event type.
+ * <p>
+ * A subscription can optionally limit the delivery rate with {@link #deliveryIntervalMillis}; events are then
+ * delivered at most once per interval, events triggered in between are collected and delivered together in one
+ * {@link TriggeredEventSubscription}. Of several {@link org.openremote.model.attribute.AttributeEvent}s for the
+ * same attribute only the latest is delivered.
  */
 public class EventSubscription<E extends SharedEvent> {
 
@@ -45,6 +50,7 @@ public class EventSubscription<E extends SharedEvent> {
     protected String eventType;
     protected EventFilter<E> filter;
     protected String subscriptionId;
+    protected Integer deliveryIntervalMillis;
     @JsonIgnore
     protected boolean subscribed;
 
@@ -125,6 +131,18 @@ public class EventSubscription<E extends SharedEvent> {
         return subscriptionId;
     }
 
+    public Integer getDeliveryIntervalMillis() {
+        return deliveryIntervalMillis;
+    }
+
+    /**
+     * @param deliveryIntervalMillis The minimum time between deliveries of events, <code>null</code> or
+     *                               <code>0</code> delivers every event immediately.
+     */
+    public void setDeliveryIntervalMillis(Integer deliveryIntervalMillis) {
+        this.deliveryIntervalMillis = deliveryIntervalMillis;
+    }
+
     public void setSubscribed(boolean subscribed) {
         this.subscribed = subscribed;
     }
@@ -139,6 +157,7 @@ public class EventSubscription<E extends SharedEvent> {
             "eventType='" + eventType + '\'' +
             ", filter=" + filter +
             ", subscriptionId='" + subscriptionId + '\'' +
+            ", deliveryIntervalMillis=" + deliveryIntervalMillis +
             '}';
     }
 }
@@ -249,7 +249,13 @@ public class AssetQuery {
     public MetaPredicate[] attributeMeta;
     // Ordering
     public OrderBy orderBy;
+    // Pagination
     public int limit;
+    /**
+     * The identifier of the last asset of the previous page, only assets ordered after this asset are returned (keyset
+     * pagination on the {@link #orderBy} property and the asset identifier).
+     */
+    public String after;
 
     public AssetQuery() {
     }
@@ -422,6 +428,16 @@ public class AssetQuery {
         return this;
     }
 
+    public AssetQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public AssetQuery after(String assetId) {
+        this.after = assetId;
+        return this;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
@@ -436,6 +452,8 @@ public class AssetQuery {
                 ", attribute=" + (attributes != null ? attributes.toString() : "null") +
                 ", attributeMeta=" + Arrays.toString(attributeMeta) +
                 ", orderBy=" + orderBy +
+                ", limit=" + limit +
+                ", after='" + after + '\'' +
                 ", recursive=" + recursive +
                 '}';
     }
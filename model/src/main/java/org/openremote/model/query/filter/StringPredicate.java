@@ -71,6 +71,8 @@ public class StringPredicate implements ValuePredicate {
     }
 
     public static Predicate<String> asPredicate(StringPredicate predicate) {
+        String shouldMatch = predicate.value == null || predicate.caseSensitive
+            ? predicate.value : predicate.value.toUpperCase(Locale.ROOT);
         return string -> {
             if (string == null && predicate.value == null)
                 return !predicate.negate;
@@ -79,7 +81,6 @@ public class StringPredicate implements ValuePredicate {
             if (predicate.value == null)
                 return predicate.negate;
 
-            String shouldMatch = predicate.caseSensitive ? predicate.value : predicate.value.toUpperCase(Locale.ROOT);
             String have = predicate.caseSensitive ? string : string.toUpperCase(Locale.ROOT);
 
             switch (predicate.match) {
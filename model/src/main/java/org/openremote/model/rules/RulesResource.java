@@ -67,6 +67,42 @@ public interface RulesResource {
     @SuppressWarnings("unusable-by-js")
     RulesEngineInfo getAssetEngineInfo(@BeanParam RequestParams requestParams, @PathParam("assetId") String assetId);
 
+    /**
+     * Retrieve execution metrics of the rulesets deployed in the global rules engine (if engine doesn't exist then
+     * will return null). Only the superuser can perform this operation.
+     */
+    @GET
+    @Path("metrics/global")
+    @Produces(APPLICATION_JSON)
+    @SuccessStatusCode(200)
+    @RolesAllowed({Constants.READ_RULES_ROLE})
+    @SuppressWarnings("unusable-by-js")
+    RulesetMetrics[] getGlobalEngineMetrics(@BeanParam RequestParams requestParams);
+
+    /**
+     * Retrieve execution metrics of the rulesets deployed in the specified tenant rules engine (if engine doesn't
+     * exist then will return null).
+     */
+    @GET
+    @Path("metrics/tenant/{realm}")
+    @Produces(APPLICATION_JSON)
+    @SuccessStatusCode(200)
+    @RolesAllowed({Constants.READ_RULES_ROLE})
+    @SuppressWarnings("unusable-by-js")
+    RulesetMetrics[] getTenantEngineMetrics(@BeanParam RequestParams requestParams, @PathParam("realm") String realm);
+
+    /**
+     * Retrieve execution metrics of the rulesets deployed in the specified asset rules engine (if engine doesn't exist
+     * then will return null).
+     */
+    @GET
+    @Path("metrics/asset/{assetId}")
+    @Produces(APPLICATION_JSON)
+    @SuccessStatusCode(200)
+    @RolesAllowed({Constants.READ_RULES_ROLE})
+    @SuppressWarnings("unusable-by-js")
+    RulesetMetrics[] getAssetEngineMetrics(@BeanParam RequestParams requestParams, @PathParam("assetId") String assetId);
+
     /**
      * Retrieve global rules. Only the superuser can perform this operation, a 403 status is returned if a regular user
      * tries to access global rulesets.
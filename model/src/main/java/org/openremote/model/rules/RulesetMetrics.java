@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.rules;
+
+/**
+ * Execution metrics of a deployed ruleset and its rules, collected since the ruleset was deployed.
+ */
+public class RulesetMetrics {
+
+    /**
+     * Summary of a histogram of durations, all times are in microseconds; percentiles are the upper bound of the
+     * histogram bucket they fall into.
+     */
+    public static class Timing {
+        protected long count;
+        protected double total;
+        protected double max;
+        protected double p50;
+        protected double p90;
+        protected double p99;
+
+        protected Timing() {
+        }
+
+        public Timing(long count, double total, double max, double p50, double p90, double p99) {
+            this.count = count;
+            this.total = total;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getTotal() {
+            return total;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "count=" + count +
+                ", total=" + total +
+                ", max=" + max +
+                ", p50=" + p50 +
+                ", p90=" + p90 +
+                ", p99=" + p99 +
+                '}';
+        }
+    }
+
+    public static class RuleMetrics {
+        protected String name;
+        protected long matches;
+        protected long failures;
+        protected long factsScanned;
+        protected Timing evaluation;
+        protected Timing action;
+
+        protected RuleMetrics() {
+        }
+
+        public RuleMetrics(String name, long matches, long failures, long factsScanned, Timing evaluation, Timing action) {
+            this.name = name;
+            this.matches = matches;
+            this.failures = failures;
+            this.factsScanned = factsScanned;
+            this.evaluation = evaluation;
+            this.action = action;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getMatches() {
+            return matches;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the number of facts passed to matching during evaluations of the rule.
+         */
+        public long getFactsScanned() {
+            return factsScanned;
+        }
+
+        public Timing getEvaluation() {
+            return evaluation;
+        }
+
+        public Timing getAction() {
+            return action;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "name='" + name + '\'' +
+                ", matches=" + matches +
+                ", failures=" + failures +
+                ", factsScanned=" + factsScanned +
+                ", evaluation=" + evaluation +
+                ", action=" + action +
+                '}';
+        }
+    }
+
+    protected long id;
+    protected String name;
+    protected RulesetStatus status;
+    protected long deployedOn;
+    protected double firingsPerSecond;
+    protected Timing firing;
+    protected RuleMetrics[] rules;
+
+    protected RulesetMetrics() {
+    }
+
+    public RulesetMetrics(long id, String name, RulesetStatus status, long deployedOn, double firingsPerSecond, Timing firing, RuleMetrics[] rules) {
+        this.id = id;
+        this.name = name;
+        this.status = status;
+        this.deployedOn = deployedOn;
+        this.firingsPerSecond = firingsPerSecond;
+        this.firing = firing;
+        this.rules = rules;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public RulesetStatus getStatus() {
+        return status;
+    }
+
+    public long getDeployedOn() {
+        return deployedOn;
+    }
+
+    /**
+     * @return the average number of firings per second in the last minute.
+     */
+    public double getFiringsPerSecond() {
+        return firingsPerSecond;
+    }
+
+    public Timing getFiring() {
+        return firing;
+    }
+
+    public RuleMetrics[] getRules() {
+        return rules;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "id=" + id +
+            ", name='" + name + '\'' +
+            ", status=" + status +
+            ", firingsPerSecond=" + firingsPerSecond +
+            ", firing=" + firing +
+            ", rules=" + (rules != null ? rules.length : 0) +
+            '}';
+    }
+}
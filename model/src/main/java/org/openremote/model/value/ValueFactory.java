@@ -33,4 +33,11 @@ public interface ValueFactory {
     ObjectValue createObject();
 
     <T extends Value> Optional<T> parse(String jsonString) throws ValueException;
+
+    /**
+     * Parses a JSON object but only indexes its members, a member value is parsed when it is accessed. Members
+     * that haven't been accessed are serialised by copying their original JSON text, which must be strict JSON
+     * (e.g. as produced by the database).
+     */
+    Optional<ObjectValue> parseObjectLazily(String jsonString) throws ValueException;
 }
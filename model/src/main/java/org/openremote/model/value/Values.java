@@ -83,6 +83,10 @@ public class Values {
         return instance().parse(jsonString);
     }
 
+    public static Optional<ObjectValue> parseObjectLazily(String jsonString) throws ValueException {
+        return instance().parseObjectLazily(jsonString);
+    }
+
     public static native <T extends Value> Optional<T> fromAny(Any any) /*-{
         // TODO This makes a copy which is inefficient, need twice the memory. We need a better JSON API to share with Java and JS.
         return @org.openremote.model.value.Values::parse(Ljava/lang/String;)(JSON.stringify(any));
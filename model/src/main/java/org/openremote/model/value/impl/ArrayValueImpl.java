@@ -203,7 +203,12 @@ public class ArrayValueImpl extends ValueImpl implements ArrayValue {
 
     @Override
     public ArrayValue deepCopy() {
-        return Values.<ArrayValue>parse(toJson()).orElseThrow(() -> new IllegalStateException("Error copying array value"));
+        ArrayValueImpl copy = new ArrayValueImpl(factory);
+        copy.values.ensureCapacity(values.size());
+        for (Value value : values) {
+            copy.values.add(deepCopyOf(value));
+        }
+        return copy;
     }
 
     @Override
@@ -55,7 +55,7 @@ public class ObjectValueImpl extends ValueImpl implements ObjectValue {
 
     @Override
     public Optional<Value> get(String key) {
-        return map.containsKey(key) ? Optional.ofNullable(map.get(key)) : Optional.empty();
+        return map.containsKey(key) ? Optional.ofNullable(resolve(key)) : Optional.empty();
     }
 
     @Override
@@ -161,9 +161,37 @@ public class ObjectValueImpl extends ValueImpl implements ObjectValue {
         return this;
     }
 
+    /**
+     * Stores the unparsed JSON text of a member, it's parsed when the member is accessed.
+     */
+    void putRaw(String key, String json) {
+        map.put(key, "null".equals(json) ? null : new RawValue(json));
+    }
+
+    protected Value resolve(String key) {
+        Value value = map.get(key);
+        if (value instanceof RawValue) {
+            value = ((RawValue) value).parse(factory);
+            map.put(key, value);
+        }
+        return value;
+    }
+
+    protected void resolveAll() {
+        for (Map.Entry<String, Value> entry : map.entrySet()) {
+            if (entry.getValue() instanceof RawValue) {
+                entry.setValue(((RawValue) entry.getValue()).parse(factory));
+            }
+        }
+    }
+
     @Override
     public ObjectValue deepCopy() {
-        return Values.<ObjectValue>parse(toJson()).orElseThrow(() -> new IllegalStateException("Error copying object value"));
+        ObjectValueImpl copy = new ObjectValueImpl(factory);
+        for (Map.Entry<String, Value> entry : map.entrySet()) {
+            copy.map.put(entry.getKey(), deepCopyOf(entry.getValue()));
+        }
+        return copy;
     }
 
     @Override
@@ -178,8 +206,8 @@ public class ObjectValueImpl extends ValueImpl implements ObjectValue {
             for (String key : stringifyOrder(keys())) {
                 objCtx.setCurrentKey(key);
                 if (visitor.visitKey(objCtx.getCurrentKey(), objCtx)) {
-                    Optional<Value> value = get(key);
-                    visitor.accept(value.orElse(null), objCtx);
+                    // Unparsed members are visited as raw JSON text
+                    visitor.accept(map.get(key), objCtx);
                     objCtx.setFirst(false);
                 }
             }
@@ -202,6 +230,7 @@ public class ObjectValueImpl extends ValueImpl implements ObjectValue {
 
     @Override
     public int hashCode() {
+        resolveAll();
         int result = 31;
         result = result * 3;
         result = result * map.hashCode();
@@ -213,6 +242,8 @@ public class ObjectValueImpl extends ValueImpl implements ObjectValue {
         if (!(that instanceof ObjectValueImpl))
             return false;
         ObjectValueImpl thatImpl = (ObjectValueImpl) that;
+        resolveAll();
+        thatImpl.resolveAll();
 
         Set<String> thisKeys = this.map.keySet().stream()
             .filter(key -> ignoreKeyPredicate == null || !ignoreKeyPredicate.test(key))
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.value.impl;
+
+import org.openremote.model.value.Value;
+import org.openremote.model.value.ValueException;
+import org.openremote.model.value.ValueFactory;
+import org.openremote.model.value.ValueType;
+
+/**
+ * The unparsed JSON text of an object member, see {@link ValueFactory#parseObjectLazily}. Only held by
+ * {@link ObjectValueImpl}, which parses the text when the member is accessed and copies it verbatim when
+ * the object is serialised.
+ */
+class RawValue extends ValueImpl {
+
+    final protected String json;
+
+    RawValue(String json) {
+        this.json = json;
+    }
+
+    Value parse(ValueFactory factory) throws ValueException {
+        return factory.parse(json).orElse(null);
+    }
+
+    @Override
+    public ValueType getType() {
+        switch (json.charAt(0)) {
+            case '{':
+                return ValueType.OBJECT;
+            case '[':
+                return ValueType.ARRAY;
+            case '"':
+                return ValueType.STRING;
+            case 't':
+            case 'f':
+                return ValueType.BOOLEAN;
+            default:
+                return ValueType.NUMBER;
+        }
+    }
+
+    @Override
+    public String toJson() throws ValueException {
+        return json;
+    }
+
+    @Override
+    public void traverse(ValueVisitor visitor, ValueContext ctx) throws ValueException {
+        visitor.visitRaw(json, ctx);
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+}
@@ -63,4 +63,12 @@ public class ValueFactoryImpl implements ValueFactory {
         }
         return Optional.ofNullable(new ValueTokenizer(this, jsonString).nextValue());
     }
+
+    @Override
+    public Optional<ObjectValue> parseObjectLazily(String jsonString) throws ValueException {
+        if (jsonString == null || jsonString.isEmpty() || NULL_LITERAL.equals(jsonString)) {
+            return Optional.empty();
+        }
+        return Optional.of(new ValueTokenizer(this, jsonString).parseObjectLazily());
+    }
 }
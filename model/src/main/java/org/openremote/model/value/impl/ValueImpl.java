@@ -19,6 +19,8 @@ import com.google.gwt.core.client.GWT;
 import com.google.gwt.core.client.JsonUtils;
 import jsinterop.base.Any;
 import jsinterop.base.Js;
+import org.openremote.model.value.ArrayValue;
+import org.openremote.model.value.ObjectValue;
 import org.openremote.model.value.Value;
 import org.openremote.model.value.ValueException;
 
@@ -35,4 +37,18 @@ public abstract class ValueImpl implements Value {
 
     public abstract void traverse(ValueVisitor visitor, ValueContext ctx) throws ValueException;
 
+    /**
+     * Copies object and array values structurally, the immutable string, number, boolean and unparsed values
+     * are shared.
+     */
+    protected static Value deepCopyOf(Value value) {
+        if (value instanceof ObjectValue) {
+            return ((ObjectValue) value).deepCopy();
+        }
+        if (value instanceof ArrayValue) {
+            return ((ArrayValue) value).deepCopy();
+        }
+        return value;
+    }
+
 }
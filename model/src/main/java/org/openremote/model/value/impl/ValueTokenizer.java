@@ -265,6 +265,88 @@ class ValueTokenizer {
         }
     }
 
+    /**
+     * Parses the members of an object without parsing their values, see {@link ValueFactory#parseObjectLazily}.
+     */
+    ObjectValue parseObjectLazily() throws ValueException {
+        final ObjectValueImpl object = (ObjectValueImpl) valueFactory.createObject();
+        int c = nextNonWhitespace();
+        if (c != '{') {
+            throw new ValueException("Payload does not begin with '{'.  Got " + c + "(" + (char) c + ")");
+        }
+
+        while (true) {
+            c = nextNonWhitespace();
+            switch (c) {
+                case '}':
+                    return object;
+                case '"':
+                    back(c);
+                    final String key = nextString(c);
+                    if (nextNonWhitespace() != ':') {
+                        throw new ValueException("Invalid object: expecting \":\"");
+                    }
+                    object.putRaw(key, nextRawValue());
+                    switch (nextNonWhitespace()) {
+                        case ',':
+                            break;
+                        case '}':
+                            return object;
+                        default:
+                            throw new ValueException("Invalid object: expecting } or ,");
+                    }
+                    break;
+                case ',':
+                    break;
+                default:
+                    throw new ValueException("Invalid object: expecting quoted key");
+            }
+        }
+    }
+
+    /**
+     * Skips the next value and returns its JSON text, nested values are only checked for balanced brackets.
+     */
+    String nextRawValue() throws ValueException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '"':
+                int stringStart = position - 1;
+                back(c);
+                nextString(c);
+                return json.substring(stringStart, position);
+            case '{':
+            case '[':
+                int start = position - 1;
+                int depth = 1;
+                while (depth > 0) {
+                    c = next();
+                    switch (c) {
+                        case INVALID_CHAR:
+                            throw new ValueException("Invalid value: closing bracket is not found");
+                        case '"':
+                            back(c);
+                            nextString(c);
+                            break;
+                        case '{':
+                        case '[':
+                            depth++;
+                            break;
+                        case '}':
+                        case ']':
+                            depth--;
+                            break;
+                    }
+                }
+                return json.substring(start, position);
+            default:
+                back(c);
+                String literal = nextUntilOneOf(STOPCHARS);
+                // Validate the literal, NaN and undefined are turned into null
+                return getValueForLiteral(literal) == null ? "null" : literal;
+        }
+    }
+
     private NumberValue getNumberForLiteral(String literal)
         throws ValueException {
         try {
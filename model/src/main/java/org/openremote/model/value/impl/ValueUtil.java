@@ -105,6 +105,15 @@ public class ValueUtil {
             sb.append(NULL_LITERAL);
         }
 
+        @Override
+        public void visitRaw(String json, ValueContext ctx) throws ValueException {
+            if (pretty) {
+                super.visitRaw(json, ctx);
+            } else {
+                sb.append(json);
+            }
+        }
+
         @Override
         public boolean visit(ArrayValue array, ValueContext ctx) throws ValueException {
             checkCycle(array);
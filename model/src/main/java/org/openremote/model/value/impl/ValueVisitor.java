@@ -124,6 +124,13 @@ class ValueVisitor {
     public void visitNull(ValueContext ctx) {
     }
 
+    /**
+     * Called for the unparsed JSON text of a lazily parsed object member, parses and visits the value by default.
+     */
+    public void visitRaw(String json, ValueContext ctx) throws ValueException {
+        accept(ValueFactoryImpl.INSTANCE.parse(json).orElse(null), ctx);
+    }
+
     /**
      * Called for arrays present in an object. Return true if array
      * elements should be visited.
@@ -1,23 +1,38 @@
 package org.openremote.test.assets
 
+import org.hibernate.Session
 import org.openremote.agent.protocol.simulator.SimulatorProtocol
+import org.openremote.container.persistence.PersistenceService
 import org.openremote.manager.asset.AssetStorageService
 import org.openremote.manager.datapoint.AssetDatapointService
+import org.openremote.manager.predicted.AssetPredictedDatapointService
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.attribute.AttributeEvent
 import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.attribute.MetaItem
+import org.openremote.model.attribute.MetaItemType
 import org.openremote.model.datapoint.DatapointInterval
 import org.openremote.model.value.Values
 import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
+import java.sql.Connection
+import java.sql.Timestamp
 import java.time.Instant
 import java.util.concurrent.TimeUnit
 
 import static java.util.concurrent.TimeUnit.HOURS
 import static java.util.concurrent.TimeUnit.SECONDS
 import static org.openremote.manager.datapoint.AssetDatapointService.DATA_POINTS_MAX_AGE_DAYS
+import static org.openremote.manager.datapoint.AssetDatapointService.DATA_POINTS_PARTITION
+import static org.openremote.manager.datapoint.AssetDatapointService.DATA_POINTS_ROLLUP
+import static org.openremote.manager.datapoint.AssetDatapointService.DATA_POINTS_ROLLUP_DELAY_MILLIS
+import static org.openremote.manager.datapoint.AssetDatapointService.DATA_POINTS_WRITE_BUFFER_SIZE
+import static org.openremote.manager.datapoint.AssetDatapointService.DATA_POINTS_WRITE_FLUSH_MILLIS
 import static org.openremote.manager.setup.builtin.ManagerDemoSetup.thingLightToggleAttributeName
 
 class AssetDatapointTest extends Specification implements ManagerContainerTrait {
@@ -105,15 +120,65 @@ class AssetDatapointTest extends Specification implements ManagerContainerTrait
         and: "the aggregated datapoints should match"
         conditions.eventually {
             def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+            def fromTimestamp = getClockTimeOf(container)
             def aggregatedDatapoints = assetDatapointService.getValueDatapoints(
                     thing.getAttribute("light1PowerConsumption").orElseThrow({ new RuntimeException("Missing attribute")}),
                     DatapointInterval.MINUTE,
-                    getClockTimeOf(container),
-                    getClockTimeOf(container) + 3600000
+                    fromTimestamp,
+                    fromTimestamp + 3600000
             )
-            assert aggregatedDatapoints.size() == 61
+            // The buckets of [from, to), a partial first minute adds a bucket
+            assert aggregatedDatapoints.size() == ((fromTimestamp.intdiv(1000) % 60 == 0) ? 60 : 61)
         }
 
+        when: "the stored numbers and the plans of datapoint queries are retrieved, preferring index scans on the small data set"
+        def persistenceService = container.getService(PersistenceService.class)
+        def assetPredictedDatapointService = container.getService(AssetPredictedDatapointService.class)
+        assetPredictedDatapointService.updateValue(managerDemoSetup.thingId, "light1PowerConsumption", Values.create(1.1d), getClockTimeOf(container))
+        assetPredictedDatapointService.updateValue(managerDemoSetup.thingId, "light1PowerConsumption", Values.create(2.2d), getClockTimeOf(container))
+        def numberValues = { String table ->
+            persistenceService.doReturningTransaction { em ->
+                em.createNativeQuery("select NUMBER_VALUE from " + table + " where ENTITY_ID = :id and ATTRIBUTE_NAME = :name order by TIMESTAMP desc")
+                    .setParameter("id", managerDemoSetup.thingId)
+                    .setParameter("name", "light1PowerConsumption")
+                    .getResultList()
+            }
+        }
+        def explain = { String table ->
+            persistenceService.doReturningTransaction { em ->
+                em.unwrap(Session.class).doReturningWork { Connection connection ->
+                    connection.createStatement().execute("set local enable_seqscan = off")
+                    connection.createStatement().execute("set local enable_bitmapscan = off")
+                    def st = connection.prepareStatement("explain select TIMESTAMP, VALUE from " + table +
+                        " where ENTITY_ID = ? and ATTRIBUTE_NAME = ? and TIMESTAMP >= ? and TIMESTAMP <= ? order by TIMESTAMP asc")
+                    st.setString(1, managerDemoSetup.thingId)
+                    st.setString(2, "light1PowerConsumption")
+                    st.setTimestamp(3, new Timestamp(datapoint1ExpectedTimestamp))
+                    st.setTimestamp(4, new Timestamp(datapoint3ExpectedTimestamp))
+                    def rs = st.executeQuery()
+                    def plan = []
+                    while (rs.next()) {
+                        plan.add(rs.getString(1))
+                    }
+                    plan.join("\n").toLowerCase()
+                }
+            }
+        }
+        def datapointNumbers = numberValues("ASSET_DATAPOINT")
+        def predictedNumbers = numberValues("ASSET_PREDICTED_DATAPOINT")
+        def datapointPlan = explain("ASSET_DATAPOINT")
+        def predictedPlan = explain("ASSET_PREDICTED_DATAPOINT")
+
+        then: "the numbers should be stored with the precision of the values"
+        datapointNumbers.take(3) == [15.5G, 14.4G, 13.3G]
+        predictedNumbers[0] == 2.2G
+
+        and: "the attribute and time range should be looked up in the primary keys"
+        datapointPlan.contains("index scan using asset_datapoint_pkey")
+        datapointPlan.readLines().find { it.contains("index cond") }.contains("timestamp")
+        predictedPlan.contains("index scan using asset_predicted_datapoint_pkey")
+        predictedPlan.readLines().find { it.contains("index cond") }.contains("timestamp")
+
         // ------------------------------------
         // Test boolean data point storage
         // ------------------------------------
@@ -169,13 +234,15 @@ class AssetDatapointTest extends Specification implements ManagerContainerTrait
         and: "the aggregated datapoints should match"
         conditions.eventually {
             def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+            def fromTimestamp = getClockTimeOf(container)
             def aggregatedDatapoints = assetDatapointService.getValueDatapoints(
                     thing.getAttribute(thingLightToggleAttributeName).orElseThrow({ new RuntimeException("Missing attribute")}),
                     DatapointInterval.MINUTE,
-                    getClockTimeOf(container),
-                    getClockTimeOf(container) + 3600000
+                    fromTimestamp,
+                    fromTimestamp + 3600000
             )
-            assert aggregatedDatapoints.size() == 61
+            // The buckets of [from, to), a partial first minute adds a bucket
+            assert aggregatedDatapoints.size() == ((fromTimestamp.intdiv(1000) % 60 == 0) ? 60 : 61)
         }
 
         // ------------------------------------
@@ -270,4 +337,301 @@ class AssetDatapointTest extends Specification implements ManagerContainerTrait
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
+
+    def "Test buffered datapoint storage"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, initialDelay: 1, delay: 1)
+
+        when: "the demo agent and thing have been deployed with a data point write buffer"
+        def serverPort = findEphemeralPort()
+        def container = startContainerWithPseudoClock defaultConfig(serverPort) << [(DATA_POINTS_WRITE_BUFFER_SIZE): "100", (DATA_POINTS_WRITE_FLUSH_MILLIS): "200"], defaultServices()
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def simulatorProtocol = container.getService(SimulatorProtocol.class)
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetDatapointService = container.getService(AssetDatapointService.class)
+
+        then: "the simulator elements should have the initial state"
+        conditions.eventually {
+            def state = simulatorProtocol.getValue(managerDemoSetup.thingId, "light1PowerConsumption")
+            assert Values.getNumber(state.orElse(null)).orElse(null) == 12.345d
+        }
+
+        when: "a simulated sensor receives several new values"
+        def expectedTimestamps = []
+        [13.3d, 14.4d, 15.5d].each {
+            advancePseudoClock(10, SECONDS, container)
+            expectedTimestamps.add(0, getClockTimeOf(container))
+            simulatorProtocol.putValue(managerDemoSetup.thingId, "light1PowerConsumption", Values.create(it))
+            conditions.eventually {
+                def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+                assert thing.getAttribute("light1PowerConsumption").flatMap { it.getValueAsNumber() }.orElse(null) == it
+            }
+        }
+
+        then: "the buffered datapoints should be written"
+        conditions.eventually {
+            assert assetDatapointService.getWriteBufferDepth() == 0
+            def datapoints = assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, "light1PowerConsumption"))
+            assert datapoints.size() >= 3
+            assert Values.getNumber(datapoints.get(0).value).orElse(null) == 15.5d
+            assert datapoints.get(0).timestamp == expectedTimestamps[0]
+            assert Values.getNumber(datapoints.get(1).value).orElse(null) == 14.4d
+            assert datapoints.get(1).timestamp == expectedTimestamps[1]
+            assert Values.getNumber(datapoints.get(2).value).orElse(null) == 13.3d
+            assert datapoints.get(2).timestamp == expectedTimestamps[2]
+        }
+
+        when: "a datapoint is stored in a transaction that is rolled back"
+        def persistenceService = container.getService(PersistenceService.class)
+        def flushedCount = assetDatapointService.getWriteBufferFlushedCount()
+        def rolledBackAttribute = new AssetAttribute(managerDemoSetup.thingId, "light1PowerConsumption", AttributeValueType.NUMBER, Values.create(99d), getClockTimeOf(container))
+        rolledBackAttribute.setMeta(new MetaItem(MetaItemType.STORE_DATA_POINTS, Values.create(true)))
+        try {
+            persistenceService.doTransaction { em ->
+                assetDatapointService.processAssetUpdate(em, null, rolledBackAttribute, AttributeEvent.Source.SENSOR)
+                throw new IllegalStateException("Rolling back test transaction")
+            }
+        } catch (IllegalStateException ignored) {
+        }
+
+        then: "the datapoint should not be buffered or written"
+        assetDatapointService.getWriteBufferDepth() == 0
+        assetDatapointService.getWriteBufferFlushedCount() == flushedCount
+        !assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, "light1PowerConsumption")).any {
+            Values.getNumber(it.value).orElse(null) == 99d
+        }
+
+        when: "the scheduled flush is stopped and a datapoint that can't be written is committed with a valid datapoint"
+        assetDatapointService.writeBufferFlushScheduledFuture.cancel(false)
+        def orphanAttribute = new AssetAttribute("doesnotexist", "orphan", AttributeValueType.NUMBER, Values.create(1d), getClockTimeOf(container))
+        orphanAttribute.setMeta(new MetaItem(MetaItemType.STORE_DATA_POINTS, Values.create(true)))
+        advancePseudoClock(10, SECONDS, container)
+        def validAttribute = new AssetAttribute(managerDemoSetup.thingId, "light1PowerConsumption", AttributeValueType.NUMBER, Values.create(16.6d), getClockTimeOf(container))
+        validAttribute.setMeta(new MetaItem(MetaItemType.STORE_DATA_POINTS, Values.create(true)))
+        persistenceService.doTransaction { em ->
+            assetDatapointService.processAssetUpdate(em, null, orphanAttribute, AttributeEvent.Source.SENSOR)
+            assetDatapointService.processAssetUpdate(em, null, validAttribute, AttributeEvent.Source.SENSOR)
+        }
+
+        then: "the datapoints should be buffered"
+        assetDatapointService.getWriteBufferDepth() == 2
+
+        when: "the buffer is flushed"
+        assetDatapointService.flushWriteBuffer()
+
+        then: "the valid datapoint should be written and the datapoint that can't be written discarded"
+        assetDatapointService.getWriteBufferDepth() == 0
+        assetDatapointService.getWriteBufferFlushedCount() == flushedCount + 1
+        assetDatapointService.writeBufferFailedWrites.isEmpty()
+        Values.getNumber(assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, "light1PowerConsumption")).get(0).value).orElse(null) == 16.6d
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
+
+    def "Test datapoint rollups"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, initialDelay: 1, delay: 1)
+
+        when: "the demo agent and thing have been deployed with data point rollups enabled"
+        def serverPort = findEphemeralPort()
+        def container = startContainerWithPseudoClock defaultConfig(serverPort) << [(DATA_POINTS_ROLLUP): "true", (DATA_POINTS_ROLLUP_DELAY_MILLIS): "0"], defaultServices()
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def simulatorProtocol = container.getService(SimulatorProtocol.class)
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetDatapointService = container.getService(AssetDatapointService.class)
+
+        then: "the simulator elements should have the initial state"
+        conditions.eventually {
+            def state = simulatorProtocol.getValue(managerDemoSetup.thingId, "light1PowerConsumption")
+            assert Values.getNumber(state.orElse(null)).orElse(null) == 12.345d
+        }
+
+        when: "a simulated sensor receives several new values"
+        def startTimestamp = getClockTimeOf(container)
+        [10d, 20d, 30d].each {
+            advancePseudoClock(10, SECONDS, container)
+            simulatorProtocol.putValue(managerDemoSetup.thingId, "light1PowerConsumption", Values.create(it))
+            conditions.eventually {
+                def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+                assert thing.getAttribute("light1PowerConsumption").flatMap { it.getValueAsNumber() }.orElse(null) == it
+            }
+        }
+
+        and: "the data points are rolled up"
+        advancePseudoClock(2, TimeUnit.MINUTES, container)
+        assetDatapointService.rollupDataPoints()
+
+        then: "the rollup watermark should have advanced"
+        assetDatapointService.getRollupWatermark() > startTimestamp
+
+        and: "the aggregated datapoints read from the rollups should match the aggregated raw datapoints"
+        def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+        def attribute = thing.getAttribute("light1PowerConsumption").orElseThrow({ new RuntimeException("Missing attribute")})
+        def rollupDatapoints = assetDatapointService.getValueDatapoints(
+            attribute,
+            DatapointInterval.HOUR,
+            startTimestamp - 3600000,
+            startTimestamp + 3600000
+        )
+        assetDatapointService.rollupEnabled = false
+        def rawDatapoints = assetDatapointService.getValueDatapoints(
+            attribute,
+            DatapointInterval.HOUR,
+            startTimestamp - 3600000,
+            startTimestamp + 3600000
+        )
+        assetDatapointService.rollupEnabled = true
+        rollupDatapoints.findAll { it.value != null }.size() >= 1
+        rollupDatapoints.size() == rawDatapoints.size()
+        rollupDatapoints.eachWithIndex { datapoint, i ->
+            assert datapoint.timestamp == rawDatapoints[i].timestamp
+            assert Math.abs(Values.getNumber(datapoint.value).orElse(0d) - Values.getNumber(rawDatapoints[i].value).orElse(0d)) < 0.001d
+        }
+
+        when: "a late data point with a timestamp before the rollup watermark is stored"
+        def watermark = assetDatapointService.getRollupWatermark()
+        def lateAttribute = assetStorageService.find(managerDemoSetup.thingId, true).getAttribute("light1PowerConsumption").get()
+        lateAttribute.setValue(Values.create(1000d), startTimestamp + 5000)
+        container.getService(PersistenceService.class).doTransaction { em ->
+            assetDatapointService.processAssetUpdate(em, thing, lateAttribute, AttributeEvent.Source.SENSOR)
+        }
+
+        and: "the data points are rolled up again"
+        assetDatapointService.rollupDataPoints()
+
+        then: "the late data point should be included in the aggregated datapoints read from the rollups"
+        assetDatapointService.getRollupWatermark() >= watermark
+        def lateRollupDatapoints = assetDatapointService.getValueDatapoints(
+            attribute,
+            DatapointInterval.HOUR,
+            startTimestamp - 3600000,
+            startTimestamp + 3600000
+        )
+        assetDatapointService.rollupEnabled = false
+        def lateRawDatapoints = assetDatapointService.getValueDatapoints(
+            attribute,
+            DatapointInterval.HOUR,
+            startTimestamp - 3600000,
+            startTimestamp + 3600000
+        )
+        assetDatapointService.rollupEnabled = true
+        lateRollupDatapoints.size() == lateRawDatapoints.size()
+        lateRollupDatapoints.eachWithIndex { datapoint, i ->
+            assert datapoint.timestamp == lateRawDatapoints[i].timestamp
+            assert Math.abs(Values.getNumber(datapoint.value).orElse(0d) - Values.getNumber(lateRawDatapoints[i].value).orElse(0d)) < 0.001d
+        }
+        lateRollupDatapoints.any { Values.getNumber(it.value).orElse(0d) > 30d }
+
+        when: "data points are stored in minutes after the start of a minute and rolled up"
+        def minuteStart = getClockTimeOf(container) - getClockTimeOf(container) % 60000 + 60000
+        [[30, 1d], [50, 2d], [70, 4d], [100, 8d], [130, 16d], [190, 32d], [220, 64d]].each { offsetSeconds, value ->
+            def datapointAttribute = assetStorageService.find(managerDemoSetup.thingId, true).getAttribute("light1PowerConsumption").get()
+            datapointAttribute.setValue(Values.create(value), minuteStart + offsetSeconds * 1000)
+            container.getService(PersistenceService.class).doTransaction { em ->
+                assetDatapointService.processAssetUpdate(em, thing, datapointAttribute, AttributeEvent.Source.SENSOR)
+            }
+        }
+        advancePseudoClock(minuteStart + 360000 - getClockTimeOf(container), TimeUnit.MILLISECONDS, container)
+        assetDatapointService.rollupDataPoints()
+
+        and: "the datapoints of a time range that starts and ends within a minute are aggregated"
+        def alignedRollupDatapoints = assetDatapointService.getValueDatapoints(
+            attribute,
+            DatapointInterval.MINUTE,
+            minuteStart + 40000,
+            minuteStart + 200000
+        )
+        assetDatapointService.rollupEnabled = false
+        def alignedRawDatapoints = assetDatapointService.getValueDatapoints(
+            attribute,
+            DatapointInterval.MINUTE,
+            minuteStart + 40000,
+            minuteStart + 200000
+        )
+        assetDatapointService.rollupEnabled = true
+
+        then: "the partial first and last minute should only contain the datapoints in the time range"
+        assetDatapointService.getRollupWatermark() > minuteStart + 240000
+        [alignedRollupDatapoints, alignedRawDatapoints].every { datapoints ->
+            datapoints.collect { Values.getNumber(it.value).orElse(null) } == [2d, 6d, 16d, 32d]
+        }
+        alignedRollupDatapoints.collect { it.timestamp } == alignedRawDatapoints.collect { it.timestamp }
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
+
+    def "Test partitioned datapoint storage and purging"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, initialDelay: 1, delay: 1)
+
+        when: "the demo agent and thing have been deployed with daily data point partitions"
+        def serverPort = findEphemeralPort()
+        def container = startContainerWithPseudoClock defaultConfig(serverPort) << [(DATA_POINTS_MAX_AGE_DAYS): "1", (DATA_POINTS_PARTITION): "DAY"], defaultServices()
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def simulatorProtocol = container.getService(SimulatorProtocol.class)
+        def assetDatapointService = container.getService(AssetDatapointService.class)
+
+        then: "the partitions should have been created"
+        conditions.eventually {
+            assert assetDatapointService.getPartitionCount() >= 3
+        }
+
+        and: "data points without a partition should be written to the parent table"
+        assetDatapointService.getDatapointTable(getClockTimeOf(container) + TimeUnit.DAYS.toMillis(365)) == "ASSET_DATAPOINT"
+
+        when: "the simulated sensors receive new values"
+        advancePseudoClock(10, SECONDS, container)
+        def expectedTimestamp = getClockTimeOf(container)
+        simulatorProtocol.putValue(managerDemoSetup.thingId, "light1PowerConsumption", Values.create(13.3d))
+        simulatorProtocol.putValue(managerDemoSetup.thingId, thingLightToggleAttributeName, Values.create(true))
+
+        then: "the datapoints should be stored"
+        conditions.eventually {
+            def datapoints = assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, "light1PowerConsumption"))
+            assert Values.getNumber(datapoints.get(0).value).orElse(null) == 13.3d
+            assert datapoints.get(0).timestamp == expectedTimestamp
+            def toggleDatapoints = assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, thingLightToggleAttributeName))
+            assert toggleDatapoints.get(0).timestamp == expectedTimestamp
+        }
+
+        when: "the daily data point purge routine executes 3 days later"
+        advancePseudoClock(3, TimeUnit.DAYS, container)
+        assetDatapointService.purgeDataPoints()
+
+        then: "all data points should be purged for the power sensor"
+        conditions.eventually {
+            def datapoints = assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, "light1PowerConsumption"))
+            assert datapoints.isEmpty()
+        }
+
+        and: "the partition of the data points should have been dropped at the default max age"
+        def partition = assetDatapointService.getPartitionName(assetDatapointService.getPartitionStart(expectedTimestamp))
+        container.getService(PersistenceService.class).doReturningTransaction { em ->
+            em.createNativeQuery("select to_regclass('" + partition + "') is null").getSingleResult()
+        }
+
+        and: "the data points of the toggle sensor with a custom max age of 7 days should be kept"
+        conditions.eventually {
+            def datapoints = assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, thingLightToggleAttributeName))
+            assert datapoints.get(0).timestamp == expectedTimestamp
+        }
+
+        when: "the daily data point purge routine executes 5 days later"
+        advancePseudoClock(5, TimeUnit.DAYS, container)
+        assetDatapointService.purgeDataPoints()
+
+        then: "the expired partitions should have been dropped"
+        conditions.eventually {
+            def datapoints = assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, thingLightToggleAttributeName))
+            assert datapoints.isEmpty()
+        }
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
 }
@@ -1,5 +1,10 @@
 package org.openremote.test.assets
 
+import org.openremote.container.persistence.PersistenceService
+import org.openremote.manager.asset.AssetCache
+import org.openremote.manager.asset.AssetProcessingService
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.asset.AttributeValueBuffer
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.KeycloakDemoSetup
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
@@ -7,15 +12,22 @@ import org.openremote.model.asset.AssetResource
 import org.openremote.model.asset.Asset
 import org.openremote.model.asset.AssetAttribute
 import org.openremote.model.asset.AssetType
+import org.openremote.model.attribute.AttributeEvent
 import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.query.filter.PathPredicate
 import org.openremote.model.value.Values
 import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
 import javax.ws.rs.WebApplicationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 
 import static org.openremote.container.util.MapAccess.getString
+import static org.openremote.manager.asset.AssetStorageService.ASSET_ATTRIBUTE_WRITE_FLUSH_MILLIS
 import static org.openremote.manager.security.ManagerIdentityProvider.SETUP_ADMIN_PASSWORD
 import static org.openremote.manager.security.ManagerIdentityProvider.SETUP_ADMIN_PASSWORD_DEFAULT
 import static org.openremote.model.Constants.*
@@ -148,4 +160,285 @@ class AssetIntegrityTest extends Specification implements ManagerContainerTrait
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
+
+    def "Test asset cache consistency"() {
+        given: "the server container is started"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetProcessingService = container.getService(AssetProcessingService.class)
+        def persistenceService = container.getService(PersistenceService.class)
+        def assetCache = assetStorageService.getAssetCache()
+
+        and: "an asset with a child asset"
+        def parentAsset = new Asset("Cache Parent", AssetType.ROOM, null, keycloakDemoSetup.masterTenant.realm)
+        parentAsset.setAttributes(
+            new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(20))
+        )
+        parentAsset = assetStorageService.merge(parentAsset)
+        def childAsset = assetStorageService.merge(new Asset("Cache Child", AssetType.THING, parentAsset))
+
+        when: "the asset and its child are loaded, the asset twice"
+        assetStorageService.find(childAsset.id, true)
+        assetStorageService.find(parentAsset.id, true)
+        def hits = assetCache.getHits()
+        def loadedAsset = assetStorageService.find(parentAsset.id, true)
+
+        then: "the second load should be served by the cache"
+        assetCache.getHits() == hits + 1
+        loadedAsset.getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 20d
+
+        when: "the loaded asset is modified without storing it"
+        loadedAsset.setName("Not Stored")
+
+        then: "the cached asset should be unchanged"
+        assetStorageService.find(parentAsset.id, true).name == "Cache Parent"
+
+        when: "an attribute event is processed"
+        assetProcessingService.sendAttributeEvent(new AttributeEvent(parentAsset.id, "temperature", Values.create(21)))
+
+        then: "the cached asset should have the new attribute value"
+        conditions.eventually {
+            def asset = assetStorageService.find(parentAsset.id, true)
+            assert asset.getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 21d
+        }
+
+        when: "an attribute value is stored in a transaction that is rolled back"
+        def valueBeforeCommit = null
+        persistenceService.doTransaction { em ->
+            assert assetStorageService.storeAttributeValue(em, parentAsset.id, "temperature", Values.create(99), Long.toString(System.currentTimeMillis()))
+            valueBeforeCommit = assetStorageService.find(parentAsset.id, true).getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null)
+            throw new IllegalStateException("Rollback")
+        }
+
+        then: "the uncommitted value should never be visible to readers"
+        thrown(IllegalStateException)
+        valueBeforeCommit == 21d
+        assetStorageService.find(parentAsset.id, true).getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 21d
+
+        when: "the asset is renamed"
+        loadedAsset = assetStorageService.find(parentAsset.id, true)
+        loadedAsset.setName("Cache Parent Renamed")
+        assetStorageService.merge(loadedAsset)
+
+        then: "the asset and its child should be loaded with the new name"
+        assetStorageService.find(parentAsset.id, true).name == "Cache Parent Renamed"
+        assetStorageService.find(parentAsset.id, true).getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 21d
+        assetStorageService.find(childAsset.id, true).parentName == "Cache Parent Renamed"
+
+        when: "the asset is moved below another asset"
+        def rootAsset = assetStorageService.merge(new Asset("Cache Root", AssetType.BUILDING, null, keycloakDemoSetup.masterTenant.realm))
+        loadedAsset = assetStorageService.find(parentAsset.id, true)
+        loadedAsset.setParentId(rootAsset.id)
+        assetStorageService.merge(loadedAsset)
+
+        then: "the stored paths of the asset and its child should include the new parent"
+        assetStorageService.find(parentAsset.id, true).path == [parentAsset.id, rootAsset.id] as String[]
+        assetStorageService.find(childAsset.id, true).path == [childAsset.id, parentAsset.id, rootAsset.id] as String[]
+        assetStorageService.findAll(new AssetQuery().paths(new PathPredicate([rootAsset.id] as String[]))).size() == 3
+
+        when: "a child asset is stored while the asset is being moved back to the root by another transaction"
+        def moveLocked = new CountDownLatch(1)
+        def releaseMove = new CountDownLatch(1)
+        def mover = Thread.start {
+            persistenceService.doTransaction { em ->
+                assetStorageService.lockPath(em, parentAsset.id)
+                em.createNativeQuery("update ASSET set PARENT_ID = null, PATH = array[ID] where ID = :id")
+                    .setParameter("id", parentAsset.id)
+                    .executeUpdate()
+                assetStorageService.updateDescendantPaths(em, parentAsset.id, [parentAsset.id] as String[])
+                moveLocked.countDown()
+                releaseMove.await(10, TimeUnit.SECONDS)
+            }
+        }
+        assert moveLocked.await(10, TimeUnit.SECONDS)
+        def newChildFuture = CompletableFuture.supplyAsync {
+            assetStorageService.merge(new Asset("Cache Child 2", AssetType.THING, parentAsset))
+        }
+        Thread.sleep(500)
+        def storedDuringMove = newChildFuture.isDone()
+        releaseMove.countDown()
+        mover.join()
+        def newChild = newChildFuture.get(10, TimeUnit.SECONDS)
+
+        then: "the child asset should wait for the move and be stored with the moved path"
+        !storedDuringMove
+        newChild.path == [newChild.id, parentAsset.id] as String[]
+        assetStorageService.findAll(new AssetQuery().paths(new PathPredicate([rootAsset.id] as String[]))).size() == 1
+
+        when: "the child asset is deleted"
+        assetStorageService.delete([childAsset.id])
+
+        then: "the child asset should be gone"
+        assetStorageService.find(childAsset.id, true) == null
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
+
+    def "Test asset cache invalidation per asset"() {
+        given: "an asset cache with a parent, its child and another asset"
+        def assetCache = new AssetCache(10)
+        def asset = { String id, String parentId, String[] path ->
+            def attributes = Values.createObject()
+            attributes.put("temperature", Values.createObject().put("value", Values.create(20)))
+            new Asset(id, 0, new Date(), id, AssetType.THING.type, false, parentId, null, null, "master", path, attributes)
+        }
+        def parent = asset("parent", null, ["parent"] as String[])
+        def child = asset("child", "parent", ["child", "parent"] as String[])
+        def other = asset("other", null, ["other"] as String[])
+
+        when: "the assets are loaded while the attribute value of another asset is updated"
+        def loadGeneration = assetCache.getGeneration()
+        assetCache.updateAttributeValue("unrelated", "temperature", Values.create(21), null)
+        assetCache.put(parent, loadGeneration)
+        assetCache.put(child, loadGeneration)
+        assetCache.put(other, loadGeneration)
+
+        then: "all assets should be cached"
+        assetCache.getSize() == 3
+
+        when: "the assets are loaded again while the attribute value of the parent is updated"
+        assetCache.clear()
+        loadGeneration = assetCache.getGeneration()
+        assetCache.updateAttributeValue("parent", "temperature", Values.create(21), null)
+        assetCache.put(parent, loadGeneration)
+        assetCache.put(child, loadGeneration)
+        assetCache.put(other, loadGeneration)
+
+        then: "only the stale load of the parent should be rejected"
+        assetCache.get("parent") == null
+        assetCache.get("child") != null
+        assetCache.get("other") != null
+
+        when: "the parent is loaded again and then invalidated while the child and the other asset are loaded"
+        assetCache.put(parent, assetCache.getGeneration())
+        assetCache.invalidate("child")
+        loadGeneration = assetCache.getGeneration()
+        assetCache.invalidate("parent")
+        assetCache.put(child, loadGeneration)
+        assetCache.put(other, loadGeneration)
+
+        then: "the stale load of the child should be rejected"
+        assetCache.get("parent") == null
+        assetCache.get("child") == null
+        assetCache.get("other") != null
+
+        when: "the child is cached and the parent is invalidated"
+        assetCache.put(child, assetCache.getGeneration())
+        assetCache.invalidate("parent")
+
+        then: "the cached child should be removed with its parent"
+        assetCache.get("child") == null
+        assetCache.get("other") != null
+        assetCache.descendants.isEmpty()
+    }
+
+    def "Test buffered attribute value storage"() {
+        given: "the server container is started with an attribute value buffer that isn't flushed during the test"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort) << [(ASSET_ATTRIBUTE_WRITE_FLUSH_MILLIS): "600000"], defaultServices())
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetProcessingService = container.getService(AssetProcessingService.class)
+        def attributeValueBuffer = assetStorageService.getAttributeValueBuffer()
+        def persistenceService = container.getService(PersistenceService.class)
+
+        and: "an asset with an attribute"
+        def asset = new Asset("Buffered Room", AssetType.ROOM, null, keycloakDemoSetup.masterTenant.realm)
+        asset.setAttributes(
+            new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(20))
+        )
+        asset = assetStorageService.merge(asset)
+
+        when: "several attribute events are processed"
+        [21, 22, 23].each {
+            assetProcessingService.sendAttributeEvent(new AttributeEvent(asset.id, "temperature", Values.create(it)))
+        }
+
+        then: "only the latest value should be buffered and loaded assets should have it"
+        conditions.eventually {
+            assert attributeValueBuffer.getCoalesced() >= 2
+            assetStorageService.invalidateCachedAsset(asset.id)
+            assert assetStorageService.find(asset.id, true).getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 23d
+        }
+
+        when: "the buffer is flushed"
+        assetStorageService.flushAttributeValues()
+        assetStorageService.invalidateCachedAsset(asset.id)
+
+        then: "the latest value should be stored"
+        assetStorageService.getAttributeValueFlushedCount() >= 1
+        assetStorageService.find(asset.id, true).getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 23d
+
+        when: "a newer value is buffered and then a value older than the buffered value"
+        assetProcessingService.sendAttributeEvent(new AttributeEvent(asset.id, "temperature", Values.create(24)))
+        conditions.eventually {
+            assert attributeValueBuffer.getSize() == 1
+        }
+        def olderValueBuffered = attributeValueBuffer.put(asset.id, "temperature", Values.create(1), "1")
+        assetStorageService.invalidateCachedAsset(asset.id)
+
+        then: "the older value should be rejected"
+        !olderValueBuffered
+        attributeValueBuffer.getSize() == 1
+        assetStorageService.find(asset.id, true).getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 24d
+
+        when: "values of an attribute and an asset that don't exist are stored"
+        def timestamp = Long.toString(System.currentTimeMillis())
+        def missingAttributeStored = persistenceService.doReturningTransaction { em ->
+            assetStorageService.storeAttributeValue(em, asset.id, "missing", Values.create(1), timestamp)
+        }
+        def missingAssetStored = persistenceService.doReturningTransaction { em ->
+            assetStorageService.storeAttributeValue(em, "0123456789012345678901", "temperature", Values.create(1), timestamp)
+        }
+
+        then: "they should not be buffered"
+        !missingAttributeStored
+        !missingAssetStored
+        attributeValueBuffer.getSize() == 1
+
+        when: "the buffer is flushed with a value of another asset that can't be written"
+        def otherAsset = new Asset("Buffered Other Room", AssetType.ROOM, null, keycloakDemoSetup.masterTenant.realm)
+        otherAsset.setAttributes(
+            new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(20))
+        )
+        otherAsset = assetStorageService.merge(otherAsset)
+        attributeValueBuffer.put(otherAsset.id, "temperature", Values.create(30), "\"not a timestamp\"")
+        assetStorageService.flushAttributeValues()
+        assetStorageService.invalidateCachedAsset(asset.id)
+
+        then: "the values of the other assets should be stored and the failed value should be retried"
+        attributeValueBuffer.getSize() == 1
+        assetStorageService.find(asset.id, true).getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 24d
+
+        when: "the failed value fails to be written too often"
+        4.times { assetStorageService.flushAttributeValues() }
+
+        then: "it should be discarded"
+        attributeValueBuffer.getSize() == 0
+        assetStorageService.find(otherAsset.id, true).getAttribute("temperature").flatMap { it.getValueAsNumber() }.orElse(null) == 20d
+
+        when: "a value is requeued after a newer value of the attribute has been buffered"
+        def buffer = new AttributeValueBuffer()
+        buffer.put(asset.id, "temperature", Values.create(1), "1000")
+        def drained = buffer.drain()
+        buffer.put(asset.id, "temperature", Values.create(2), "2000")
+        buffer.requeue(asset.id, drained[asset.id])
+        buffer.requeue("otherAsset", ["temperature": new AttributeValueBuffer.PendingValue(Values.create(3), "1000")])
+        buffer.drainWritten()
+        def requeued = buffer.drain()
+
+        then: "the newer value should be kept and values without a newer value requeued"
+        buffer.getSize() == 0
+        Values.getNumber(requeued[asset.id]["temperature"].value).orElse(null) == 2d
+        Values.getNumber(requeued["otherAsset"]["temperature"].value).orElse(null) == 3d
+        requeued["otherAsset"]["temperature"].failedWrites == 1
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
 }
@@ -1,6 +1,7 @@
 package org.openremote.test.assets
 
 import org.openremote.agent.protocol.AbstractProtocol
+import org.openremote.container.concurrent.ProcessingBarrier
 import org.openremote.manager.agent.AgentService
 import org.openremote.manager.asset.*
 import org.openremote.manager.datapoint.AssetDatapointService
@@ -21,6 +22,7 @@ import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
 import javax.persistence.EntityManager
+import java.util.concurrent.ConcurrentHashMap
 import java.util.logging.Logger
 
 class AssetProcessingTest extends Specification implements ManagerContainerTrait {
@@ -306,4 +308,82 @@ class AssetProcessingTest extends Specification implements ManagerContainerTrait
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
+
+    def "Check partitioned processing of attribute events"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+
+        when: "the container is started with several asset queue partitions"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort) << [(AssetProcessingService.ASSET_QUEUE_PARTITIONS): "4"], defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetProcessingService = container.getService(AssetProcessingService.class)
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+
+        then: "the container should be running and initialised"
+        conditions.eventually {
+            assert noEventProcessedIn(assetProcessingService, 500)
+        }
+
+        when: "a processor records the processed values and processing threads of each asset"
+        Map<String, List<Double>> processedValues = new ConcurrentHashMap<>()
+        Map<String, Set<String>> processingThreads = new ConcurrentHashMap<>()
+        AssetUpdateProcessor recordingProcessor = new AssetUpdateProcessor() {
+            @Override
+            boolean processAssetUpdate(EntityManager em, Asset asset, AssetAttribute attribute, AttributeEvent.Source source) throws AssetProcessingException {
+                if (attribute.nameOrThrow == "counter") {
+                    processedValues.computeIfAbsent(asset.id, { Collections.synchronizedList([]) }).add(attribute.valueAsNumber.orElse(null))
+                    processingThreads.computeIfAbsent(asset.id, { ConcurrentHashMap.newKeySet() }).add(Thread.currentThread().name)
+                }
+                false
+            }
+        }
+        assetProcessingService.processors.add(0, recordingProcessor)
+
+        and: "assets in at least two different partitions are created"
+        def timestamp = getClockTimeOf(container) - 10000
+        def assets = []
+        while (assets.size() < 8 || assets.collect { assetProcessingService.getPartition(new AttributeEvent(it.id, "counter")) }.unique().size() < 2) {
+            def asset = new Asset("Partitioned Thing " + assets.size(), AssetType.THING, null, keycloakDemoSetup.masterTenant.realm)
+            asset.setAttributes(new AssetAttribute("counter", AttributeValueType.NUMBER, Values.create(0), timestamp))
+            assets.add(assetStorageService.merge(asset))
+        }
+
+        and: "a sequence of attribute events is sent for each asset"
+        (1..20).each { i ->
+            assets.each { asset ->
+                assetProcessingService.sendAttributeEvent(new AttributeEvent(asset.id, "counter", Values.create(i), timestamp + i))
+            }
+        }
+
+        then: "the events of each asset should be processed in order by a single partition"
+        conditions.eventually {
+            assets.each { asset ->
+                assert processedValues[asset.id] == (1..20).collect { it as Double }
+                assert processingThreads[asset.id].size() == 1
+            }
+        }
+
+        and: "the events of assets in different partitions should be processed by different threads"
+        assets.groupBy { assetProcessingService.getPartition(new AttributeEvent(it.id, "counter")) }
+            .collect { partition, partitionAssets -> processingThreads[partitionAssets[0].id].first() }
+            .unique().size() > 1
+
+        and: "the stored values should be the last values"
+        assets.every { asset ->
+            assetStorageService.find(asset.id, true).getAttribute("counter").flatMap { it.valueAsNumber }.orElse(null) == 20d
+        }
+
+        when: "the exclusive side of the barrier is requested while holding the shared side"
+        ProcessingBarrier.withShared("test", {
+            ProcessingBarrier.withExclusive("test", {})
+        })
+
+        then: "the request should fail"
+        thrown(IllegalStateException)
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
 }
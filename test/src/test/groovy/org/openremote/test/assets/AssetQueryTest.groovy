@@ -1,14 +1,22 @@
 package org.openremote.test.assets
 
+import org.hibernate.Session
+import org.hibernate.jdbc.ReturningWork
 import org.openremote.container.Container
+import org.openremote.container.message.MessageBrokerService
 import org.openremote.container.persistence.PersistenceService
+import org.openremote.container.timer.TimerService
+import org.openremote.container.web.GZIPEncodingInterceptor
 import org.openremote.manager.asset.AssetProcessingService
+import org.openremote.manager.asset.AssetResourceImpl
 import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.security.ManagerIdentityService
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.KeycloakDemoSetup
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
 import org.openremote.model.asset.Asset
 import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.asset.AssetResource
 import org.openremote.model.asset.AssetType
 import org.openremote.model.attribute.AttributeType
 import org.openremote.model.attribute.AttributeValueType
@@ -27,12 +35,26 @@ import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
 import javax.persistence.EntityManager
+import javax.servlet.http.HttpServletRequest
+import javax.ws.rs.WebApplicationException
+import javax.ws.rs.core.HttpHeaders
+import javax.ws.rs.core.MultivaluedHashMap
+import javax.ws.rs.core.StreamingOutput
+import javax.ws.rs.ext.WriterInterceptorContext
+import java.sql.Connection
+import java.sql.SQLException
 import java.time.Instant
 import java.time.ZoneOffset
 import java.time.ZonedDateTime
+import java.util.function.Consumer
 import java.util.function.Function
+import java.util.zip.GZIPInputStream
 
 import static java.time.format.DateTimeFormatter.ISO_ZONED_DATE_TIME
+import static org.openremote.container.util.MapAccess.getString
+import static org.openremote.manager.security.ManagerIdentityProvider.SETUP_ADMIN_PASSWORD
+import static org.openremote.manager.security.ManagerIdentityProvider.SETUP_ADMIN_PASSWORD_DEFAULT
+import static org.openremote.model.Constants.*
 import static org.openremote.model.asset.AssetType.THING
 import static org.openremote.model.attribute.AttributeValueType.TIMESTAMP_ISO8601
 import static org.openremote.model.query.AssetQuery.*
@@ -56,10 +78,12 @@ class AssetQueryTest extends Specification implements ManagerContainerTrait {
     static AssetProcessingService assetProcessingService
     @Shared
     static PersistenceService persistenceService
+    @Shared
+    static int serverPort
 
     def setupSpec() {
         given: "the server container is started"
-        def serverPort = findEphemeralPort()
+        serverPort = findEphemeralPort()
         container = startContainer(defaultConfig(serverPort), defaultServices())
         managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
         keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
@@ -1022,4 +1046,246 @@ class AssetQueryTest extends Specification implements ManagerContainerTrait {
         assets.size() == 1
         assets[0].id == lobby.id
     }
+
+    /**
+     * Returns the plan of the query, preferring index scans on the small demo data set.
+     */
+    protected String explain(AssetQuery query) {
+        query.access = PRIVATE
+        persistenceService.doReturningTransaction(new Function<EntityManager, String>() {
+            @Override
+            String apply(EntityManager em) {
+                em.unwrap(Session.class).doReturningWork(new ReturningWork<String>() {
+                    @Override
+                    String execute(Connection connection) throws SQLException {
+                        connection.createStatement().execute("set local enable_seqscan = off")
+                        def preparedQuery = assetStorageService.buildQuery(query).key
+                        def st = connection.prepareStatement("explain " + preparedQuery.querySql)
+                        preparedQuery.apply(st)
+                        def rs = st.executeQuery()
+                        def plan = []
+                        while (rs.next()) {
+                            plan.add(rs.getString(1))
+                        }
+                        plan.join("\n")
+                    }
+                })
+            }
+        })
+    }
+
+    def "Attribute index queries"() {
+
+        expect: "an attribute name query to use the attribute names index"
+        explain(
+            new AssetQuery()
+                .attributes(new AttributePredicate(new StringPredicate("openingDate"), new ValueNotEmptyPredicate()))
+        ).toLowerCase().contains("asset_attribute_names")
+
+        and: "an agent link query to use the attribute meta index"
+        explain(
+            new AssetQuery()
+                .attributeMeta(
+                    new RefPredicate(
+                        MetaItemType.AGENT_LINK,
+                        managerDemoSetup.agentId,
+                        managerDemoSetup.agentProtocolConfigName
+                    )
+                )
+        ).toLowerCase().contains("asset_attribute_meta")
+
+        and: "a location query to use the location index"
+        explain(
+            new AssetQuery()
+                .attributes(new LocationAttributePredicate(new RadialGeofencePredicate(10, 51.44541688237109d, 5.460315214821094d)))
+        ).toLowerCase().contains("asset_location")
+
+        and: "the indexed columns to match the attributes"
+        assetStorageService.findAll(
+            new AssetQuery()
+                .select(selectExcludePathAndAttributes())
+                .attributeMeta(
+                    new RefPredicate(
+                        MetaItemType.AGENT_LINK,
+                        managerDemoSetup.agentId,
+                        managerDemoSetup.agentProtocolConfigName
+                    )
+                )
+        ).collect { it.id } == [managerDemoSetup.thingId]
+
+        when: "the attributes of an asset are updated in the database"
+        def indexColumns = {
+            persistenceService.doReturningTransaction({ EntityManager em ->
+                em.createNativeQuery(
+                    "select array_to_string(ATTRIBUTE_NAMES, ','), cast(ATTRIBUTE_META as text), ST_AsText(LOCATION) from ASSET where ID = ?1"
+                ).setParameter(1, managerDemoSetup.thingId).getSingleResult() as List
+            } as Function<EntityManager, List>)
+        }
+        def updateAttributes = { String attributes ->
+            persistenceService.doTransaction({ EntityManager em ->
+                em.createNativeQuery("update ASSET set ATTRIBUTES = " + attributes + " where ID = ?1")
+                    .setParameter(1, managerDemoSetup.thingId).executeUpdate()
+            } as Consumer<EntityManager>)
+        }
+        def originalAttributes = persistenceService.doReturningTransaction({ EntityManager em ->
+            em.createNativeQuery("select cast(ATTRIBUTES as text) from ASSET where ID = ?1")
+                .setParameter(1, managerDemoSetup.thingId).getSingleResult() as String
+        } as Function<EntityManager, String>)
+        def originalColumns = indexColumns()
+        updateAttributes("jsonb_set(ATTRIBUTES, '{light1Toggle,value}', 'false')")
+        def valueUpdateColumns = indexColumns()
+        updateAttributes("jsonb_set(ATTRIBUTES, '{location,value,coordinates}', '[5.46, 51.45]')")
+        def locationUpdateColumns = indexColumns()
+        updateAttributes("ATTRIBUTES - 'light1Toggle'")
+        def removeUpdateColumns = indexColumns()
+        updateAttributes("cast('" + originalAttributes.replace("'", "''") + "' as jsonb)")
+
+        then: "the indexed columns should only change when the attribute names, meta or location change"
+        originalColumns[0].split(",").contains("light1Toggle")
+        valueUpdateColumns == originalColumns
+        locationUpdateColumns[0] == originalColumns[0]
+        locationUpdateColumns[1] == originalColumns[1]
+        locationUpdateColumns[2] == "POINT(5.46 51.45)"
+        !removeUpdateColumns[0].split(",").contains("light1Toggle")
+        originalColumns[1].contains("Light 1 Toggle")
+        !removeUpdateColumns[1].contains("Light 1 Toggle")
+        indexColumns() == originalColumns
+    }
+
+    def "Paginated queries"() {
+
+        given: "a function to get the identifiers of all assets of a realm in pages of a few assets"
+        def realmQuery = { OrderBy orderBy ->
+            new AssetQuery()
+                .select(selectExcludePathAndAttributes())
+                .tenant(new TenantPredicate(keycloakDemoSetup.tenantBuilding.realm))
+                .orderBy(orderBy)
+        }
+        def queryPages = { OrderBy orderBy ->
+            def ids = []
+            def page = assetStorageService.findAll(realmQuery(orderBy).limit(3))
+            while (!page.isEmpty()) {
+                assert page.size() <= 3
+                ids.addAll(page.collect { it.id })
+                page = assetStorageService.findAll(realmQuery(orderBy).limit(3).after(page.last().id))
+            }
+            ids
+        }
+
+        expect: "the pages to contain all assets in the order of the unpaginated query"
+        [
+            new OrderBy(CREATED_ON),
+            new OrderBy(CREATED_ON, true),
+            new OrderBy(NAME),
+            new OrderBy(OrderBy.Property.ASSET_TYPE, true),
+            new OrderBy(OrderBy.Property.PARENT_ID),
+            new OrderBy(OrderBy.Property.PARENT_ID, true)
+        ].every { orderBy ->
+            def ids = assetStorageService.findAll(realmQuery(orderBy)).collect { it.id }
+            ids.size() > 3 && queryPages(orderBy) == ids
+        }
+
+        and: "a page after an asset that doesn't exist to be empty"
+        assetStorageService.findAll(realmQuery(new OrderBy(NAME)).after("doesnotexist")).isEmpty()
+        assetStorageService.findAll(realmQuery(new OrderBy(OrderBy.Property.PARENT_ID)).after("doesnotexist")).isEmpty()
+
+        and: "a page to be read from the realm and order by property index"
+        explain(
+            realmQuery(new OrderBy(NAME)).limit(3).after(managerDemoSetup.apartment1Id)
+        ).toLowerCase().contains("asset_realm_name")
+        explain(
+            realmQuery(new OrderBy(CREATED_ON, true)).limit(3).after(managerDemoSetup.apartment1Id)
+        ).toLowerCase().contains("asset_realm_created_on")
+
+        when: "the assets of the realm are streamed"
+        def streamedIds = []
+        assetStorageService.findAll(realmQuery(new OrderBy(NAME)), { Asset asset -> streamedIds.add(asset.id) } as Consumer<Asset>)
+
+        then: "the same assets should be passed to the consumer in order"
+        streamedIds == assetStorageService.findAll(realmQuery(new OrderBy(NAME))).collect { it.id }
+    }
+
+    def "Stream assets"() {
+
+        given: "the asset resource of the superuser"
+        def accessToken = authenticate(
+            container,
+            MASTER_REALM,
+            KEYCLOAK_CLIENT_ID,
+            MASTER_REALM_ADMIN_USER,
+            getString(container.getConfig(), SETUP_ADMIN_PASSWORD, SETUP_ADMIN_PASSWORD_DEFAULT)
+        ).token
+        def assetResource = getClientApiTarget(serverUri(serverPort), MASTER_REALM, accessToken).proxy(AssetResource.class)
+        def realmQuery = {
+            new AssetQuery()
+                .select(selectExcludePathAndAttributes())
+                .tenant(new TenantPredicate(keycloakDemoSetup.tenantBuilding.realm))
+                .orderBy(new OrderBy(NAME))
+        }
+        def invalidQuery = {
+            realmQuery()
+                .attributes(new AttributePredicate(new StringPredicate("test"), new CalendarEventPredicate(new Date())))
+        }
+
+        when: "the assets of a realm are streamed"
+        def response = assetResource.streamQueryAssets(null, realmQuery())
+
+        then: "the response should contain the assets of the query"
+        response.status == 200
+        response.readEntity(Asset[].class).collect { it.id } == assetStorageService.findAll(realmQuery()).collect { it.id }
+
+        when: "an invalid query is streamed"
+        response = assetResource.streamQueryAssets(null, invalidQuery())
+
+        then: "the request should be rejected before the response is written"
+        response.status == 400
+
+        when: "the streamed response is written with compression"
+        def resource = new AssetResourceImpl(
+            container.getService(TimerService.class),
+            container.getService(ManagerIdentityService.class),
+            assetStorageService,
+            container.getService(MessageBrokerService.class)
+        ) {
+            @Override
+            boolean isSuperUser() {
+                return true
+            }
+
+            @Override
+            boolean isRestrictedUser() {
+                return false
+            }
+
+            @Override
+            boolean isTenantActiveAndAccessible(String realm) {
+                return true
+            }
+        }
+        resource.request = Stub(HttpServletRequest)
+        def output = (StreamingOutput) resource.streamQueryAssets(null, realmQuery()).entity
+        def compressed = new ByteArrayOutputStream()
+        def headers = new MultivaluedHashMap<String, Object>()
+        OutputStream outputStream = compressed
+        def context = Stub(WriterInterceptorContext) {
+            getProperty(HttpHeaders.CONTENT_ENCODING) >> "gzip"
+            getHeaders() >> headers
+            getOutputStream() >> { outputStream }
+            setOutputStream(_) >> { OutputStream os -> outputStream = os }
+            proceed() >> { output.write(outputStream) }
+        }
+        new GZIPEncodingInterceptor(true).aroundWriteTo(context)
+
+        then: "the compressed response should contain the assets of the query"
+        headers.getFirst(HttpHeaders.CONTENT_ENCODING) == "gzip"
+        Container.JSON.readValue(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())), Asset[].class)
+            .collect { it.id } == assetStorageService.findAll(realmQuery()).collect { it.id }
+
+        when: "an invalid query is streamed"
+        resource.streamQueryAssets(null, invalidQuery())
+
+        then: "an exception should be thrown instead of a response"
+        WebApplicationException ex = thrown()
+        ex.response.status == 400
+    }
 }
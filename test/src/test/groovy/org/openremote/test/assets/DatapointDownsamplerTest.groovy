@@ -0,0 +1,90 @@
+package org.openremote.test.assets
+
+import org.openremote.manager.datapoint.DatapointDownsampler
+import org.openremote.model.datapoint.DatapointAlgorithm
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+class DatapointDownsamplerTest extends Specification {
+
+    def "Downsample with bucket aggregation"() {
+
+        when: "a linear series is averaged into 10 buckets"
+        def downsampler = DatapointDownsampler.create(DatapointAlgorithm.AVG, true, 0, 99, 10)
+        (0..99).each { downsampler.accept(it, (double) it, Values.create(it)) }
+        def datapoints = downsampler.finish()
+
+        then: "each bucket should hold the average at the start of the bucket"
+        datapoints.length == 10
+        datapoints[0].timestamp == 0
+        Values.getNumber(datapoints[0].value).orElse(null) == 4.5d
+        datapoints[9].timestamp == 90
+        Values.getNumber(datapoints[9].value).orElse(null) == 94.5d
+
+        when: "a series with peaks is decimated with min max into 5 buckets of two points"
+        downsampler = DatapointDownsampler.create(DatapointAlgorithm.MIN_MAX, true, 0, 99, 10)
+        (0..99).each {
+            double number = it == 55 ? 100d : it == 57 ? -100d : 0d
+            downsampler.accept(it, number, Values.create(number))
+        }
+        datapoints = downsampler.finish()
+
+        then: "the peaks should be preserved in the order they occurred"
+        datapoints.length == 6
+        datapoints[2].timestamp == 55
+        Values.getNumber(datapoints[2].value).orElse(null) == 100d
+        datapoints[3].timestamp == 57
+        Values.getNumber(datapoints[3].value).orElse(null) == -100d
+    }
+
+    def "Downsample with largest triangle three buckets"() {
+
+        when: "a flat series with a single peak is downsampled to 10 points"
+        def downsampler = DatapointDownsampler.create(DatapointAlgorithm.LTTB, true, 0, 1000, 10)
+        (0..999).each {
+            double number = it == 500 ? 1000d : 0d
+            downsampler.accept(it, number, Values.create(number))
+        }
+        def datapoints = downsampler.finish()
+
+        then: "the first, last and peak datapoints should be selected"
+        datapoints.length <= 10
+        datapoints[0].timestamp == 0
+        datapoints[datapoints.length - 1].timestamp == 999
+        datapoints.find { it.timestamp == 500 } != null
+    }
+
+    def "Downsample non-numeric values"() {
+
+        when: "a string series is downsampled with an algorithm requiring numbers"
+        def downsampler = DatapointDownsampler.create(DatapointAlgorithm.AVG, false, 0, 99, 2)
+        (0..99).each { downsampler.accept(it, null, Values.create("value" + it)) }
+        def datapoints = downsampler.finish()
+
+        then: "the last value of each bucket should be used"
+        datapoints.length == 2
+        datapoints[0].timestamp == 49
+        Values.getString(datapoints[0].value).orElse(null) == "value49"
+        datapoints[1].timestamp == 99
+        Values.getString(datapoints[1].value).orElse(null) == "value99"
+    }
+
+    def "Downsampled series don't exceed the maximum number of points"() {
+
+        expect: "no more datapoints than requested for every algorithm"
+        DatapointAlgorithm.values().each { algorithm ->
+            [1, 2, 3, 7, 10, 64].each { maxPoints ->
+                [[0L, 99L], [0L, 100L], [1000L, 1999L], [5L, 5L]].each { range ->
+                    def downsampler = DatapointDownsampler.create(algorithm, true, range[0], range[1], maxPoints)
+                    (range[0]..range[1]).each {
+                        double number = Math.sin(it / 3d) * (it % 7)
+                        downsampler.accept(it, number, Values.create(number))
+                    }
+                    def datapoints = downsampler.finish()
+                    assert datapoints.length <= maxPoints: "$algorithm with $maxPoints points in $range returned ${datapoints.length}"
+                    assert datapoints.length > 0
+                }
+            }
+        }
+    }
+}
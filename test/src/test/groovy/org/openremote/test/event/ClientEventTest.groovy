@@ -19,9 +19,17 @@
  */
 package org.openremote.test.event
 
+import org.apache.camel.impl.DefaultCamelContext
+import org.apache.camel.impl.DefaultExchange
+import org.openremote.container.Container
+import org.openremote.container.timer.TimerService
+import org.openremote.container.web.ConnectionConstants
 import org.openremote.manager.agent.AgentService
 import org.openremote.manager.asset.AssetProcessingService
 import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.concurrent.ManagerExecutorService
+import org.openremote.manager.event.EventSubscriptions
+import org.openremote.manager.event.SharedTriggeredEventSubscription
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
 import org.openremote.model.asset.AssetFilter
@@ -31,6 +39,7 @@ import org.openremote.model.asset.agent.ConnectionStatus
 import org.openremote.model.attribute.AttributeEvent
 import org.openremote.model.attribute.AttributeRef
 import org.openremote.model.attribute.MetaItem
+import org.openremote.model.event.TriggeredEventSubscription
 import org.openremote.model.event.shared.EventSubscription
 import org.openremote.model.event.shared.SharedEvent
 import org.openremote.model.geo.GeoJSONPoint
@@ -41,6 +50,9 @@ import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
 import static org.openremote.container.util.MapAccess.getString
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_QUEUE
 import static org.openremote.manager.event.ClientEventService.WEBSOCKET_EVENTS
@@ -227,10 +239,119 @@ class ClientEventTest extends Specification implements ManagerContainerTrait, Gw
             assert Values.getBoolean((collectedSharedEvents[0] as AttributeEvent).value.get()).get() == !currentValue
         }
 
+        when: "coalesced events are delivered to a session that has been closed"
+        internalClientEventService.sendToSession("closedSession", new TriggeredEventSubscription<>([], "sub1"))
+
+        then: "the delivery should be skipped"
+        noExceptionThrown()
+
         cleanup: "the client should be stopped"
         if (clientEventService != null) clientEventService.close()
 
         and: "the server should be stopped"
         stopContainer(container)
     }
-}
\ No newline at end of file
+
+    def "Indexed event subscriptions share the serialised event"() {
+
+        given: "event subscriptions of several sessions"
+        def eventSubscriptions = new EventSubscriptions(new TimerService(clock: TimerService.Clock.REAL), null, null)
+        List<TriggeredEventSubscription> internalReceived = []
+        eventSubscriptions.createOrUpdate("assetSession", false, new EventSubscription<>(AttributeEvent.class, new AssetFilter().setAssetIds("asset1"), "sub1"))
+        eventSubscriptions.createOrUpdate("otherAssetSession", false, new EventSubscription<>(AttributeEvent.class, new AssetFilter().setAssetIds("asset2")))
+        eventSubscriptions.createOrUpdate("realmSession", false, new EventSubscription<>(AttributeEvent.class, new AssetFilter().setRealm(MASTER_REALM)))
+        eventSubscriptions.createOrUpdate("otherRealmSession", false, new EventSubscription<>(AttributeEvent.class, new AssetFilter().setRealm("other")))
+        eventSubscriptions.createOrUpdate("internalSession", false, new EventSubscription<>(AttributeEvent.class, null, { internalReceived.add(it) }))
+
+        when: "an attribute event is split for subscribers"
+        def event = new AttributeEvent("asset1", "attribute1", Values.create(123)).setRealm(MASTER_REALM)
+        def exchange = new DefaultExchange(new DefaultCamelContext())
+        exchange.getIn().setBody(event)
+        def messages = eventSubscriptions.splitForSubscribers(exchange)
+
+        then: "only the matching sessions should receive the event"
+        messages.collect { it.getHeader(ConnectionConstants.SESSION_KEY) } as Set == ["assetSession", "realmSession"] as Set
+        internalReceived.size() == 1
+        internalReceived[0].events[0] == event
+
+        and: "all messages should share the serialised event and serialise to the same JSON as before"
+        def triggered = messages.collect { it.getBody(SharedTriggeredEventSubscription.class) }
+        triggered[0].eventJson.is(triggered[1].eventJson)
+        triggered.every {
+            def expected = Container.JSON.writeValueAsString(new TriggeredEventSubscription<>(it.events, it.subscriptionId))
+            Container.JSON.readTree(it.toJson()) == Container.JSON.readTree(expected)
+        }
+
+        when: "the subscriptions of a session are cancelled"
+        eventSubscriptions.cancelAll("assetSession")
+        messages = eventSubscriptions.splitForSubscribers(exchange)
+
+        then: "the session should no longer receive the event"
+        messages.collect { it.getHeader(ConnectionConstants.SESSION_KEY) } == ["realmSession"]
+    }
+
+    def "Event subscriptions with a delivery interval coalesce events"() {
+
+        given: "event subscriptions with a delivery interval and an executor that records scheduled flushes"
+        def timerService = new TimerService(clock: TimerService.Clock.PSEUDO)
+        List<Runnable> scheduledFlushes = []
+        List<Long> scheduledDelays = []
+        def executorService = new ManagerExecutorService() {
+            @Override
+            ScheduledFuture<?> schedule(Runnable runnable, long delayMillis) {
+                scheduledFlushes.add(runnable)
+                scheduledDelays.add(delayMillis)
+                return null
+            }
+        }
+        List<Object[]> sent = []
+        def eventSubscriptions = new EventSubscriptions(timerService, executorService, { sessionKey, data -> sent.add([sessionKey, data] as Object[]) })
+        def subscription = new EventSubscription<>(AttributeEvent.class, new AssetFilter().setAssetIds("asset1"), "sub1")
+        subscription.setDeliveryIntervalMillis(1000)
+        eventSubscriptions.createOrUpdate("coalescedSession", false, subscription)
+        def split = { AttributeEvent event ->
+            def exchange = new DefaultExchange(new DefaultCamelContext())
+            exchange.getIn().setBody(event.setRealm(MASTER_REALM))
+            eventSubscriptions.splitForSubscribers(exchange)
+        }
+
+        when: "the first event is split for subscribers"
+        def messages = split(new AttributeEvent("asset1", "attribute1", Values.create(1)))
+
+        then: "it should be delivered immediately"
+        messages.size() == 1
+        scheduledFlushes.isEmpty()
+
+        when: "more events arrive within the delivery interval"
+        timerService.getClock().advanceTime(200, TimeUnit.MILLISECONDS)
+        def messages2 = split(new AttributeEvent("asset1", "attribute1", Values.create(2)))
+        def messages3 = split(new AttributeEvent("asset1", "attribute2", Values.create(3)))
+        def messages4 = split(new AttributeEvent("asset1", "attribute1", Values.create(4)))
+
+        then: "they should be held and a single flush should be scheduled for the end of the interval"
+        messages2.isEmpty() && messages3.isEmpty() && messages4.isEmpty()
+        scheduledFlushes.size() == 1
+        scheduledDelays[0] == 800L
+        sent.isEmpty()
+
+        when: "the flush runs"
+        timerService.getClock().advanceTime(800, TimeUnit.MILLISECONDS)
+        scheduledFlushes[0].run()
+
+        then: "the latest event of each attribute should be delivered together in order"
+        sent.size() == 1
+        sent[0][0] == "coalescedSession"
+        def triggered = sent[0][1] as TriggeredEventSubscription
+        triggered.subscriptionId == "sub1"
+        triggered.events.collect { (it as AttributeEvent).attributeName } == ["attribute2", "attribute1"]
+        triggered.events.collect { Values.getNumber((it as AttributeEvent).value.get()).get() } == [3d, 4d]
+
+        when: "an event arrives within the interval after the flush and the session is then closed"
+        split(new AttributeEvent("asset1", "attribute1", Values.create(5)))
+        eventSubscriptions.cancelAll("coalescedSession")
+        scheduledFlushes[1].run()
+
+        then: "the pending event should be discarded"
+        sent.size() == 1
+    }
+}
@@ -159,4 +159,73 @@ class ModelValueTest extends Specification {
         differentValues1.hashCode() != differentValues2.hashCode()
     }
 
+    def "Deep copy values"() {
+
+        given:
+        ObjectValue nested = Values.createObject()
+        nested.put("nestedA", "N-AAA")
+        nested.put("nestedB", (Value)null)
+        ArrayValue array = Values.createArray()
+        array.add(1)
+        array.add(nested)
+        array.add((Value)null)
+        ObjectValue original = Values.createObject()
+        original.put("fieldA", "AAA")
+        original.put("fieldB", 123)
+        original.put("fieldC", array)
+        original.put("fieldD", nested)
+
+        when: "the object is copied"
+        ObjectValue copy = original.deepCopy()
+
+        then: "the copy should be equal but not share any containers"
+        copy == original
+        copy.toJson() == original.toJson()
+        !copy.is(original)
+        !copy.getArray("fieldC").get().is(array)
+        !copy.getObject("fieldD").get().is(nested)
+        !copy.getArray("fieldC").get().getObject(1).get().is(nested)
+        copy.getObject("fieldD").get().keyContainsNull("nestedB")
+        copy.getArray("fieldC").get().indexContainsNull(2)
+
+        when: "the copy is modified"
+        copy.put("fieldA", "BBB")
+        copy.getObject("fieldD").get().put("nestedA", "N-BBB")
+        copy.getArray("fieldC").get().add(456)
+
+        then: "the original should be unchanged"
+        original.getString("fieldA").get() == "AAA"
+        nested.getString("nestedA").get() == "N-AAA"
+        array.length() == 3
+        copy != original
+    }
+
+    def "Lazily parse objects"() {
+
+        given:
+        String json = '{"attr1": {"type": "Number", "value": 1.5E12, "meta": [{"name": "a]b", "value": true}]}, ' +
+            '"attr2": {"type": "String", "value": "x\\"}"}, "attr3": null, "attr4": 123}'
+
+        when: "the object is parsed lazily"
+        ObjectValue lazyObject = Values.parseObjectLazily(json).get()
+
+        then: "it should be equal to the parsed object"
+        lazyObject == Values.<ObjectValue>parse(json).get()
+        lazyObject.keys().length == 4
+        lazyObject.keyContainsNull("attr3")
+
+        when: "the object is parsed lazily and one member is modified"
+        lazyObject = Values.parseObjectLazily(json).get()
+        lazyObject.getObject("attr2").get().put("value", "y")
+
+        then: "untouched members should be serialised verbatim"
+        lazyObject.toJson() == '{"attr1":{"type": "Number", "value": 1.5E12, "meta": [{"name": "a]b", "value": true}]},' +
+            '"attr2":{"type":"String","value":"y"},"attr3":null,"attr4":123}'
+
+        and: "copies should be independent"
+        def copy = lazyObject.deepCopy()
+        copy.getObject("attr1").get().put("value", 2)
+        lazyObject.getObject("attr1").flatMap { it.getNumber("value") }.get() == 1.5E12d
+        copy.getObject("attr1").flatMap { it.getNumber("value") }.get() == 2d
+    }
 }
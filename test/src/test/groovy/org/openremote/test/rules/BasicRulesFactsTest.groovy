@@ -2,15 +2,31 @@ package org.openremote.test.rules
 
 import groovy.transform.EqualsAndHashCode
 import groovy.transform.ToString
+import org.jeasy.rules.api.Action
+import org.jeasy.rules.api.Condition
+import org.jeasy.rules.core.RuleBuilder
 import org.openremote.container.Container
 import org.openremote.container.timer.TimerService
 import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.rules.AssetQueryPredicate
 import org.openremote.manager.rules.RulesClock
 import org.openremote.manager.rules.RulesEngine
 import org.openremote.manager.rules.RulesFacts
+import org.openremote.manager.rules.RulesetProfiler
 import org.openremote.manager.rules.facade.AssetsFacade
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeRef
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.query.filter.StringPredicate
+import org.openremote.model.rules.AssetState
+import org.openremote.model.rules.RulesetStatus
+import org.openremote.model.value.Values
 import spock.lang.Specification
 
+import java.util.function.Predicate
 import java.util.stream.Collectors
 
 class BasicRulesFactsTest extends Specification {
@@ -398,4 +414,216 @@ class BasicRulesFactsTest extends Specification {
         assert !rulesFacts.hasTemporaryFacts()
         assert rulesFacts.match(AnonFact).count() == 0
     }
+
+    def "Track the next expiry of temporary facts"() {
+
+        expect: "nothing to expire"
+        rulesFacts.getNextExpiryTimestamp() == Long.MAX_VALUE
+
+        when: "temporary facts are added and a wake-up is requested"
+        rulesFacts.putTemporary("foo", "10s", "FOO")
+        rulesFacts.putTemporary("5s", new AnonFact("FOO1", 123, true))
+        rulesFacts.wakeUpAt(7000)
+
+        then: "the earliest expiry should be next"
+        rulesFacts.getNextExpiryTimestamp() == 5001
+
+        when: "a temporary named fact is replaced"
+        rulesFacts.setClock(new RulesClock(6000))
+        rulesFacts.putTemporary("foo", "10s", "FOO2")
+
+        and: "the clock is advanced past the expiry of the original fact"
+        rulesFacts.setClock(new RulesClock(12000))
+        rulesFacts.removeExpiredTemporaryFacts()
+
+        then: "only the replacement should be present"
+        rulesFacts.get("foo") == "FOO2"
+        rulesFacts.match(AnonFact).count() == 0
+        rulesFacts.getNextExpiryTimestamp() == 16001
+
+        when: "the clock is advanced past the expiry of the replacement"
+        rulesFacts.setClock(new RulesClock(16001))
+        rulesFacts.removeExpiredTemporaryFacts()
+
+        then: "all temporary facts should be gone"
+        !rulesFacts.hasTemporaryFacts()
+        rulesFacts.getNextExpiryTimestamp() == Long.MAX_VALUE
+    }
+
+    def "Remove the expiry of removed and replaced temporary facts"() {
+
+        when: "temporary facts are added"
+        def anonFact = new AnonFact("FOO1", 123, true)
+        rulesFacts.putTemporary("foo", "10s", "FOO")
+        rulesFacts.putTemporary("5s", anonFact)
+
+        then: "both should be queued"
+        rulesFacts.expiryQueue.size() == 2
+        rulesFacts.getNextExpiryTimestamp() == 5001
+
+        when: "the named fact is replaced and the anonymous fact is removed"
+        rulesFacts.putTemporary("foo", "20s", "FOO2")
+        rulesFacts.remove(anonFact)
+
+        then: "only the replacement should be queued"
+        rulesFacts.expiryQueue.size() == 1
+        rulesFacts.getNextExpiryTimestamp() == 20001
+
+        when: "the named fact is removed and the same wake-up is requested twice"
+        rulesFacts.remove("foo")
+        rulesFacts.wakeUpAt(7000)
+        rulesFacts.wakeUpAt(7000)
+
+        then: "only the wake-up should be queued once"
+        rulesFacts.expiryQueue.size() == 1
+        rulesFacts.getNextExpiryTimestamp() == 7000
+    }
+
+    def "Handle asset states"() {
+
+        given: "some asset states"
+        def parent = new Asset("parent1", 0, null, "Parent", "urn:test:parent", false, null, null, null, "realm1", ["parent1"] as String[], Values.createObject())
+        def child = new Asset("child1", 0, null, "Child", "urn:test:child", false, "parent1", "Parent", "urn:test:parent", "realm1", ["child1", "parent1"] as String[], Values.createObject())
+        def parentState = new AssetState(parent, new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(20)), AttributeEvent.Source.SENSOR)
+        def childState = new AssetState(child, new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(21)), AttributeEvent.Source.SENSOR)
+        def childOtherState = new AssetState(child, new AssetAttribute("humidity", AttributeValueType.NUMBER, Values.create(50)), AttributeEvent.Source.SENSOR)
+
+        when: "the asset states are added"
+        rulesFacts.putAssetState(parentState)
+        rulesFacts.putAssetState(childState)
+        rulesFacts.putAssetState(childOtherState)
+
+        then: "the asset states should be indexed"
+        assert rulesFacts.assetStates.size() == 3
+        assert rulesFacts.assetStates.get(new AttributeRef("child1", "temperature")).is(childState)
+        assert rulesFacts.assetStates.getByAssetId("child1") == [childState, childOtherState] as Set
+        assert rulesFacts.assetStates.getByAssetType("urn:test:child") == [childState, childOtherState] as Set
+        assert rulesFacts.assetStates.getByRealm("realm1").size() == 3
+        assert rulesFacts.assetStates.getByParentId("parent1") == [childState, childOtherState] as Set
+        assert rulesFacts.assetStates.getByAttributeName("temperature") == [parentState, childState] as Set
+        assert rulesFacts.assetStates.getInPath("parent1").size() == 3
+
+        when: "an asset state is replaced"
+        def updatedChildState = new AssetState(child, new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(22)), AttributeEvent.Source.SENSOR)
+        rulesFacts.putAssetState(updatedChildState)
+
+        then: "the new asset state should replace the old one in all indexes"
+        assert rulesFacts.assetStates.size() == 3
+        assert rulesFacts.assetStates.get(new AttributeRef("child1", "temperature")).is(updatedChildState)
+        assert rulesFacts.assetStates.getByAttributeName("temperature").find { it.id == "child1" }.is(updatedChildState)
+        assert rulesFacts.assetStates.last().is(updatedChildState)
+
+        when: "asset states are removed"
+        rulesFacts.removeAssetState(parentState)
+        rulesFacts.assetStates.removeIf { it.attributeName == "humidity" }
+
+        then: "they should be removed from all indexes"
+        assert rulesFacts.assetStates.size() == 1
+        assert rulesFacts.assetStates.getByAssetId("parent1").isEmpty()
+        assert rulesFacts.assetStates.getByAttributeName("humidity").isEmpty()
+        assert rulesFacts.assetStates.getInPath("parent1") == [updatedChildState] as Set
+    }
+
+    def "Match asset states with indexes"() {
+
+        given: "some asset states"
+        def parent = new Asset("parent1", 0, null, "Parent", "urn:test:parent", false, null, null, null, "realm1", ["parent1"] as String[], Values.createObject())
+        def child = new Asset("child1", 0, null, "Child", "urn:test:child", false, "parent1", "Parent", "urn:test:parent", "realm1", ["child1", "parent1"] as String[], Values.createObject())
+        def parentState = new AssetState(parent, new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(20)), AttributeEvent.Source.SENSOR)
+        def childState = new AssetState(child, new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(21)), AttributeEvent.Source.SENSOR)
+        def childOtherState = new AssetState(child, new AssetAttribute("humidity", AttributeValueType.NUMBER, Values.create(50)), AttributeEvent.Source.SENSOR)
+        rulesFacts.putAssetState(parentState)
+        rulesFacts.putAssetState(childState)
+        rulesFacts.putAssetState(childOtherState)
+
+        and: "a timer service for compiling queries"
+        def timerService = new TimerService()
+        timerService.clock = TimerService.Clock.PSEUDO
+
+        expect: "queries to only test the asset states found in the indexes"
+        def byId = new AssetQueryPredicate(timerService, null, new AssetQuery().ids("child1"))
+        assert byId.getCandidates(rulesFacts.assetStates) == [childState, childOtherState] as Set
+        assert rulesFacts.matchAssetState(byId).collect(Collectors.toSet()) == [childState, childOtherState] as Set
+
+        def byParentAndName = new AssetQueryPredicate(timerService, null, new AssetQuery().parents("parent1").attributeName("humidity"))
+        assert byParentAndName.getCandidates(rulesFacts.assetStates) == [childOtherState] as Set
+        assert rulesFacts.matchAssetState(byParentAndName).collect(Collectors.toList()) == [childOtherState]
+
+        def byNames = new AssetQueryPredicate(timerService, null, new AssetQuery().types("urn:test:parent").attributeNames("temperature", "humidity"))
+        assert byNames.getCandidates(rulesFacts.assetStates) == [parentState] as Set
+        assert rulesFacts.matchAssetState(byNames).collect(Collectors.toList()) == [parentState]
+
+        and: "queries that can't use an index to test all asset states"
+        def byNamePattern = new AssetQueryPredicate(timerService, null, new AssetQuery().names(new StringPredicate(AssetQuery.Match.BEGIN, "Chi")))
+        assert byNamePattern.getCandidates(rulesFacts.assetStates).is(rulesFacts.assetStates)
+        assert rulesFacts.matchAssetState(byNamePattern).collect(Collectors.toSet()) == [childState, childOtherState] as Set
+    }
+
+    def "Count the facts scanned by profiled rule evaluations"() {
+
+        given: "some asset states"
+        def asset = new Asset("asset1", 0, null, "Asset", "urn:test:asset", false, null, null, null, "realm1", ["asset1"] as String[], Values.createObject())
+        ["temperature", "humidity", "co2"].each {
+            rulesFacts.putAssetState(new AssetState(asset, new AssetAttribute(it, AttributeValueType.NUMBER, Values.create(1)), AttributeEvent.Source.SENSOR))
+        }
+        def timerService = new TimerService()
+        timerService.clock = TimerService.Clock.PSEUDO
+
+        and: "a profiled rule"
+        def profiler = new RulesetProfiler(0)
+        rulesFacts.setProfiler(profiler)
+        def rule = new RuleBuilder().name("Test rule").when({ facts -> true } as Condition).then({ facts -> } as Action).build()
+        def ruleMetrics = { profiler.getMetrics(1, "Test rules", RulesetStatus.DEPLOYED, 0).rules[0] }
+
+        when: "a condition stops at the first matching asset state"
+        rulesFacts.beforeEvaluate(rule, null)
+        rulesFacts.matchAssetState({ true } as Predicate<AssetState>).sequential().findFirst()
+        rulesFacts.afterEvaluate(rule, null, true)
+
+        then: "only the tested asset state should be counted"
+        ruleMetrics().factsScanned == 1
+        ruleMetrics().matches == 1
+        ruleMetrics().evaluation.count == 1
+
+        when: "a condition tests the candidates of an index and creates a stream it doesn't consume"
+        rulesFacts.beforeEvaluate(rule, null)
+        rulesFacts.matchAssetState(new AssetQueryPredicate(timerService, null, new AssetQuery().attributeNames("temperature", "humidity"))).count()
+        rulesFacts.matchAssetState({ true } as Predicate<AssetState>)
+        rulesFacts.matchAssetEvent(new AssetQuery())
+        rulesFacts.afterEvaluate(rule, null, false)
+
+        then: "only the candidates should be counted"
+        ruleMetrics().factsScanned == 3
+        ruleMetrics().matches == 1
+        ruleMetrics().evaluation.count == 2
+
+        when: "profiling is stopped"
+        rulesFacts.setProfiler(null)
+        rulesFacts.beforeEvaluate(rule, null)
+        rulesFacts.matchAssetState({ true } as Predicate<AssetState>).count()
+        rulesFacts.afterEvaluate(rule, null, true)
+
+        then: "nothing should be recorded"
+        ruleMetrics().factsScanned == 3
+        ruleMetrics().evaluation.count == 2
+    }
+
+    def "Record durations in histograms"() {
+
+        given: "a histogram"
+        def histogram = new RulesetProfiler.Histogram()
+
+        when: "durations are recorded"
+        99.times { histogram.record(1000) }
+        histogram.record(1000000)
+        histogram.record(-1)
+
+        then: "the percentiles should be the upper bounds of the buckets, limited by the maximum"
+        histogram.count == 101
+        histogram.getPercentile(50) == 1024
+        histogram.getPercentile(99) == 1024
+        histogram.getPercentile(100) == 1000000
+        histogram.toTiming().max == 1000d
+        histogram.toTiming().total == 1099d
+    }
 }
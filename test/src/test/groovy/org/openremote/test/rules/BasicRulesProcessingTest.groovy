@@ -1,5 +1,6 @@
 package org.openremote.test.rules
 
+import org.openremote.container.Container
 import org.openremote.manager.asset.AssetProcessingService
 import org.openremote.manager.asset.AssetStorageService
 import org.openremote.manager.rules.RulesEngine
@@ -16,9 +17,15 @@ import org.openremote.model.attribute.AttributeEvent
 import org.openremote.model.attribute.AttributeValueType
 import org.openremote.model.attribute.Meta
 import org.openremote.model.attribute.MetaItem
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.query.LogicGroup
 import org.openremote.model.rules.AssetRuleset
 import org.openremote.model.rules.Ruleset
 import org.openremote.model.rules.TenantRuleset
+import org.openremote.model.rules.json.JsonRule
+import org.openremote.model.rules.json.JsonRulesetDefinition
+import org.openremote.model.rules.json.RuleAction
+import org.openremote.model.rules.json.RuleCondition
 import org.openremote.model.value.Values
 import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
@@ -401,4 +408,151 @@ class BasicRulesProcessingTest extends Specification implements ManagerContainer
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
+
+    def "Route asset states to the engines in scope that use their attributes"() {
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 15, initialDelay: 0.5, delay: 0.5)
+
+        and: "the container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+        def rulesService = container.getService(RulesService.class)
+        def rulesetStorageService = container.getService(RulesetStorageService.class)
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def assetProcessingService = container.getService(AssetProcessingService.class)
+
+        and: "some test rulesets have been imported"
+        def rulesImport = new BasicRulesImport(rulesetStorageService, keycloakDemoSetup, managerDemoSetup)
+
+        and: "a way to get the value of an asset state in an engine"
+        def engineValue = { RulesEngine engine, String assetId, String attributeName ->
+            def assetState = engine.assetStates.find { it.id == assetId && it.attributeName == attributeName }
+            assetState != null ? assetState.value.orElse(null) : null
+        }
+
+        and: "a way to write JSON rules on the given attributes of rooms"
+        def roomRules = { String... attributeNames ->
+            def condition = new RuleCondition()
+            condition.assets = new AssetQuery().types(AssetType.ROOM).attributeNames(attributeNames)
+            def rule = new JsonRule()
+            rule.name = "Room attributes"
+            rule.when = new LogicGroup<>([condition])
+            rule.then = [] as RuleAction[]
+            def jsonRules = new JsonRulesetDefinition()
+            jsonRules.rules = [rule] as JsonRule[]
+            Container.JSON.writeValueAsString(jsonRules)
+        }
+
+        expect: "the rules engines to be ready with the demo asset states inserted"
+        conditions.eventually {
+            rulesImport.assertEnginesReady(rulesService, keycloakDemoSetup, managerDemoSetup)
+            assert rulesImport.apartment2Engine.assetStates.size() == DEMO_RULE_STATES_APARTMENT_2
+        }
+
+        and: "the engines with Groovy rules should be interested in any attribute"
+        rulesImport.globalEngine.attributeNames == null
+        rulesImport.apartment2Engine.attributeNames == null
+        rulesImport.apartment2Engine.isInterestedIn("co2Level")
+
+        when: "the CO2 level of the living room of apartment 2 changes"
+        assetProcessingService.sendAttributeEvent(
+            new AttributeEvent(managerDemoSetup.apartment2LivingroomId, "co2Level", Values.create(400))
+        )
+
+        then: "every engine in scope should receive it"
+        conditions.eventually {
+            assert engineValue(rulesImport.globalEngine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(400)
+            assert engineValue(rulesImport.tenantBuildingEngine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(400)
+            assert engineValue(rulesImport.apartment2Engine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(400)
+        }
+
+        when: "JSON rules on the presence in rooms are added to the smart building, above apartment 2"
+        def buildingRuleset = rulesetStorageService.merge(new AssetRuleset(
+            managerDemoSetup.smartBuildingId,
+            "Room presence rules",
+            Ruleset.Lang.JSON,
+            roomRules("presenceDetected")
+        ))
+        RulesEngine buildingEngine = null
+
+        then: "the new engine should only be interested in and have the asset states of the presence in rooms"
+        conditions.eventually {
+            buildingEngine = rulesService.assetEngines.get(managerDemoSetup.smartBuildingId)
+            assert buildingEngine != null
+            assert buildingEngine.isRunning()
+            assert buildingEngine.attributeNames == ["presenceDetected"] as Set
+            assert !buildingEngine.isInterestedIn("co2Level")
+            assert buildingEngine.assetStates.size() > 0
+            assert buildingEngine.assetStates.every { it.attributeName == "presenceDetected" }
+            assert engineValue(buildingEngine, managerDemoSetup.apartment2LivingroomId, "presenceDetected") == Values.create(false)
+        }
+
+        when: "the presence and CO2 level of the living room change, the engines in scope of which were routed before the engine was added"
+        assetProcessingService.sendAttributeEvent(
+            new AttributeEvent(managerDemoSetup.apartment2LivingroomId, "presenceDetected", Values.create(true))
+        )
+        assetProcessingService.sendAttributeEvent(
+            new AttributeEvent(managerDemoSetup.apartment2LivingroomId, "co2Level", Values.create(500))
+        )
+
+        then: "the new engine should receive the presence but not the CO2 level"
+        conditions.eventually {
+            assert engineValue(buildingEngine, managerDemoSetup.apartment2LivingroomId, "presenceDetected") == Values.create(true)
+            assert engineValue(rulesImport.apartment2Engine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(500)
+            assert engineValue(buildingEngine, managerDemoSetup.apartment2LivingroomId, "co2Level") == null
+        }
+
+        when: "the JSON rules are changed to also use the CO2 level of rooms"
+        buildingRuleset.setRules(roomRules("presenceDetected", "co2Level"))
+        buildingRuleset = rulesetStorageService.merge(buildingRuleset)
+
+        then: "the engine should receive the existing CO2 level asset states"
+        conditions.eventually {
+            assert buildingEngine.attributeNames == ["presenceDetected", "co2Level"] as Set
+            assert buildingEngine.deployments.values().every { it.status == DEPLOYED }
+            assert engineValue(buildingEngine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(500)
+            assert engineValue(buildingEngine, managerDemoSetup.apartment2LivingroomId, "presenceDetected") == Values.create(true)
+        }
+
+        when: "the living room is moved to apartment 3 and its CO2 level changes"
+        def livingRoom = assetStorageService.find(managerDemoSetup.apartment2LivingroomId, true)
+        livingRoom.setParentId(managerDemoSetup.apartment3Id)
+        assetStorageService.merge(livingRoom)
+        assetProcessingService.sendAttributeEvent(
+            new AttributeEvent(managerDemoSetup.apartment2LivingroomId, "co2Level", Values.create(600))
+        )
+
+        then: "the engines in scope of its new parent should receive it, the engine of its previous parent not"
+        conditions.eventually {
+            assert engineValue(rulesImport.apartment3Engine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(600)
+            assert engineValue(buildingEngine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(600)
+            assert engineValue(rulesImport.tenantBuildingEngine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(600)
+            assert engineValue(rulesImport.apartment2Engine, managerDemoSetup.apartment2LivingroomId, "co2Level") == Values.create(500)
+        }
+
+        when: "the JSON rules are deleted"
+        rulesetStorageService.delete(AssetRuleset.class, buildingRuleset.id)
+
+        then: "the engine of the smart building should be removed"
+        conditions.eventually {
+            assert rulesService.assetEngines.get(managerDemoSetup.smartBuildingId) == null
+        }
+
+        when: "the presence in the living room changes again"
+        assetProcessingService.sendAttributeEvent(
+            new AttributeEvent(managerDemoSetup.apartment2LivingroomId, "presenceDetected", Values.create(false))
+        )
+
+        then: "the engines still in scope should receive it, the removed engine not"
+        conditions.eventually {
+            assert engineValue(rulesImport.apartment3Engine, managerDemoSetup.apartment2LivingroomId, "presenceDetected") == Values.create(false)
+            assert engineValue(rulesImport.tenantBuildingEngine, managerDemoSetup.apartment2LivingroomId, "presenceDetected") == Values.create(false)
+        }
+        engineValue(buildingEngine, managerDemoSetup.apartment2LivingroomId, "presenceDetected") == Values.create(true)
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
 }
@@ -21,6 +21,7 @@ import static org.openremote.manager.security.ManagerIdentityProvider.SETUP_ADMI
 import static org.openremote.manager.security.ManagerIdentityProvider.SETUP_ADMIN_PASSWORD_DEFAULT
 import static org.openremote.model.Constants.*
 import static org.openremote.model.rules.Ruleset.Lang.GROOVY
+import static org.openremote.model.rules.RulesetStatus.DEPLOYED
 
 class BasicRulesetResourceTest extends Specification implements ManagerContainerTrait {
 
@@ -89,6 +90,30 @@ class BasicRulesetResourceTest extends Specification implements ManagerContainer
         ruleDefinitions[0].lang == GROOVY
         ruleDefinitions[0].meta.getBoolean("visible").orElse(false)
 
+        when: "the metrics of the global rules engine are retrieved"
+        def metrics = rulesetResource.getGlobalEngineMetrics(null)
+
+        then: "the deployed ruleset should be profiled"
+        metrics.length == 1
+        metrics[0].name == "Some global demo rules"
+        metrics[0].status == DEPLOYED
+        metrics[0].deployedOn > 0
+        metrics[0].firing != null
+
+        when: "the metrics of a tenant rules engine are retrieved"
+        metrics = rulesetResource.getTenantEngineMetrics(null, keycloakDemoSetup.tenantBuilding.realm)
+
+        then: "the deployed ruleset should be profiled"
+        metrics.length == 1
+        metrics[0].name == "Some building tenant demo rules"
+
+        when: "the metrics of an asset rules engine are retrieved"
+        metrics = rulesetResource.getAssetEngineMetrics(null, managerDemoSetup.apartment2Id)
+
+        then: "the deployed ruleset should be profiled"
+        metrics.length == 1
+        metrics[0].name == "Some apartment 2 demo rules"
+
         /* ############################################## WRITE ####################################### */
 
         when: "global ruleset is created"
@@ -337,6 +362,20 @@ class BasicRulesetResourceTest extends Specification implements ManagerContainer
         WebApplicationException ex = thrown()
         ex.response.status == 403
 
+        when: "the metrics of the global rules engine are retrieved"
+        rulesetResource.getGlobalEngineMetrics(null)
+
+        then: "access should be forbidden"
+        ex = thrown()
+        ex.response.status == 403
+
+        when: "the metrics of a tenant rules engine in a non-authenticated realm are retrieved"
+        rulesetResource.getTenantEngineMetrics(null, keycloakDemoSetup.tenantBuilding.realm)
+
+        then: "access should be forbidden"
+        ex = thrown()
+        ex.response.status == 403
+
         when: "some tenant rules are retrieved"
         def ruleDefinitions = rulesetResource.getTenantRulesets(null, keycloakDemoSetup.masterTenant.realm, null, false)
 
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.rules
+
+import org.codehaus.groovy.control.MultipleCompilationErrorsException
+import org.openremote.manager.rules.CompiledRulesetCache
+import org.openremote.model.rules.AssetRuleset
+import org.openremote.model.rules.Ruleset
+import org.openremote.model.rules.TenantRuleset
+import spock.lang.Specification
+
+import javax.script.ScriptEngineManager
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+class CompiledRulesetCacheTest extends Specification {
+
+    static final String GROOVY_SOURCE = "class Counter { static int count = 0 }\nCounter.count++"
+
+    AtomicInteger compilations = new AtomicInteger()
+
+    CompiledRulesetCache createCache(int idleCapacity) {
+        return new CompiledRulesetCache(new ScriptEngineManager(), idleCapacity) {
+            @Override
+            protected CompiledRulesetCache.CompiledRuleset compile(String key, Ruleset.Lang lang, String source) throws Exception {
+                compilations.incrementAndGet()
+                return super.compile(key, lang, source)
+            }
+        }
+    }
+
+    def "Share compiled rulesets until they are released"() {
+
+        given: "a cache"
+        def cache = createCache(10)
+
+        when: "the same source is acquired twice in the same scope"
+        def first = cache.acquire(Ruleset.Lang.GROOVY, "scope1", GROOVY_SOURCE)
+        def second = cache.acquire(Ruleset.Lang.GROOVY, "scope1", GROOVY_SOURCE)
+
+        then: "it should be compiled once and referenced twice"
+        first.is(second)
+        compilations.get() == 1
+        cache.size() == 1
+        cache.entries.values()[0].references == 2
+        cache.idleEntries.isEmpty()
+
+        when: "it is released once"
+        cache.release(first)
+
+        then: "it should still be in use"
+        cache.entries.values()[0].references == 1
+        cache.idleEntries.isEmpty()
+
+        when: "it is released again, and released more often than it was acquired"
+        cache.release(second)
+        cache.release(second)
+
+        then: "it should be idle"
+        cache.entries.values()[0].references == 0
+        cache.idleEntries.size() == 1
+
+        when: "it is acquired again"
+        def third = cache.acquire(Ruleset.Lang.GROOVY, "scope1", GROOVY_SOURCE)
+
+        then: "the idle compiled ruleset should be used without compiling the source again"
+        third.is(first)
+        compilations.get() == 1
+        cache.idleEntries.isEmpty()
+    }
+
+    def "Don't share compiled Groovy rulesets between rulesets"() {
+
+        given: "a cache and rulesets of different realms and assets with the same source code"
+        def cache = createCache(10)
+        def tenantRuleset1 = new TenantRuleset("realm1", "Counter", Ruleset.Lang.GROOVY, GROOVY_SOURCE).setId(1L)
+        def tenantRuleset2 = new TenantRuleset("realm2", "Counter", Ruleset.Lang.GROOVY, GROOVY_SOURCE).setId(2L)
+        def assetRuleset = new AssetRuleset("asset1", "Counter", Ruleset.Lang.GROOVY, GROOVY_SOURCE).setId(1L)
+
+        when: "the rulesets are acquired"
+        def compiled1 = cache.acquire(tenantRuleset1)
+        def compiled2 = cache.acquire(tenantRuleset2)
+        def compiled3 = cache.acquire(assetRuleset)
+
+        then: "each ruleset should have its own script classes"
+        compilations.get() == 3
+        ([compiled1, compiled2, compiled3].collect { it.scriptClass } as Set).size() == 3
+
+        and: "the same ruleset should share its compiled ruleset"
+        cache.acquire(tenantRuleset1).is(compiled1)
+
+        when: "JavaScript rulesets with the same source code are acquired"
+        def jsCompiled1 = cache.acquire(new TenantRuleset("realm1", "JS", Ruleset.Lang.JAVASCRIPT, "var x = 1;").setId(3L))
+        def jsCompiled2 = cache.acquire(new TenantRuleset("realm2", "JS", Ruleset.Lang.JAVASCRIPT, "var x = 1;").setId(4L))
+
+        then: "they should be shared as each evaluation has its own global scope"
+        jsCompiled1.is(jsCompiled2)
+        compilations.get() == 4
+    }
+
+    def "Evict the least recently used idle rulesets"() {
+
+        given: "a cache with an idle capacity of one"
+        def cache = createCache(1)
+
+        when: "two rulesets are acquired and released"
+        def compiled1 = cache.acquire(Ruleset.Lang.GROOVY, "scope1", "1")
+        def compiled2 = cache.acquire(Ruleset.Lang.GROOVY, "scope2", "2")
+        cache.release(compiled1)
+        cache.release(compiled2)
+
+        then: "the least recently released ruleset should be evicted"
+        cache.size() == 1
+        cache.idleEntries.size() == 1
+        compilations.get() == 2
+
+        when: "the evicted ruleset is acquired again"
+        def recompiled1 = cache.acquire(Ruleset.Lang.GROOVY, "scope1", "1")
+
+        then: "it should be compiled again"
+        !recompiled1.is(compiled1)
+        compilations.get() == 3
+
+        and: "rulesets in use should not be evicted"
+        cache.acquire(Ruleset.Lang.GROOVY, "scope2", "2").is(compiled2)
+        cache.size() == 2
+        cache.idleEntries.isEmpty()
+        compilations.get() == 3
+    }
+
+    def "Evict the compiled ruleset of a previous version of a ruleset"() {
+
+        given: "a cache and a deployed ruleset"
+        def cache = createCache(10)
+        def ruleset = new TenantRuleset("realm1", "Counter", Ruleset.Lang.GROOVY, "def x = 1").setId(1L)
+        def compiled1 = cache.acquire(ruleset)
+        def oldClassLoader = compiled1.classLoader
+
+        when: "the ruleset is edited, the new version deployed and the old version undeployed"
+        ruleset.setRules("def x = 2")
+        def compiled2 = cache.acquire(ruleset)
+        cache.release(compiled1)
+
+        then: "the compiled old version should be evicted and its class loader closed"
+        cache.size() == 1
+        cache.idleEntries.isEmpty()
+        oldClassLoader.loadedClasses.length == 0
+
+        when: "the ruleset is edited again, the old version undeployed before the new version is deployed"
+        ruleset.setRules("def x = 3")
+        cache.release(compiled2)
+        def compiled3 = cache.acquire(ruleset)
+
+        then: "the idle compiled old version should be evicted"
+        cache.size() == 1
+        cache.entries.values()[0].references == 1
+        cache.idleEntries.isEmpty()
+
+        when: "a JavaScript ruleset sharing its source with another ruleset is edited"
+        def jsRuleset1 = new TenantRuleset("realm1", "JS", Ruleset.Lang.JAVASCRIPT, "var x = 1;").setId(2L)
+        def jsRuleset2 = new TenantRuleset("realm2", "JS", Ruleset.Lang.JAVASCRIPT, "var x = 1;").setId(3L)
+        def jsCompiled1 = cache.acquire(jsRuleset1)
+        def jsCompiled2 = cache.acquire(jsRuleset2)
+        jsRuleset1.setRules("var x = 2;")
+        cache.acquire(jsRuleset1)
+        cache.release(jsCompiled1)
+        cache.release(jsCompiled2)
+
+        then: "the shared compiled ruleset should be kept for the other ruleset"
+        cache.size() == 3
+        cache.idleEntries.size() == 1
+        def compilationsBefore = compilations.get()
+        cache.acquire(jsRuleset2).is(jsCompiled2)
+        compilations.get() == compilationsBefore
+
+        cleanup:
+        cache.release(compiled3)
+    }
+
+    def "Don't cache compilation failures"() {
+
+        given: "a cache"
+        def cache = createCache(10)
+
+        when: "invalid source code is acquired"
+        cache.acquire(Ruleset.Lang.GROOVY, "scope1", "this is not { valid")
+
+        then: "the compilation error should be thrown and nothing cached"
+        thrown(MultipleCompilationErrorsException)
+        cache.size() == 0
+        cache.idleEntries.isEmpty()
+
+        when: "it is acquired again"
+        cache.acquire(Ruleset.Lang.GROOVY, "scope1", "this is not { valid")
+
+        then: "it should be compiled again"
+        thrown(MultipleCompilationErrorsException)
+        compilations.get() == 2
+        cache.size() == 0
+    }
+
+    def "Precompile rulesets on an executor"() {
+
+        given: "a cache, an executor and rulesets"
+        def cache = createCache(10)
+        ExecutorService executor = Executors.newFixedThreadPool(2)
+        def rulesets = (1..5).collect {
+            new TenantRuleset("realm1", "Ruleset " + it, Ruleset.Lang.GROOVY, "def x = " + it).setId(it as Long)
+        }
+        rulesets.add(new TenantRuleset("realm1", "Invalid", Ruleset.Lang.GROOVY, "this is not { valid").setId(6L))
+        rulesets.add(new TenantRuleset("realm1", "JSON", Ruleset.Lang.JSON, "{}").setId(7L))
+
+        when: "the rulesets are precompiled"
+        cache.precompile(rulesets, executor, 2)
+
+        then: "the compilable rulesets should be compiled and idle"
+        compilations.get() == 6
+        cache.size() == 5
+        cache.idleEntries.size() == 5
+
+        and: "the executor should still be usable"
+        !executor.isShutdown()
+
+        when: "a precompiled ruleset is acquired"
+        cache.acquire(rulesets[0])
+
+        then: "it should not be compiled again"
+        compilations.get() == 6
+
+        cleanup:
+        executor.shutdownNow()
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.rules
+
+import org.openremote.container.concurrent.ExecutionLane
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
+
+class ExecutionLaneTest extends Specification {
+
+    ExecutorService executor
+
+    def setup() {
+        executor = Executors.newFixedThreadPool(4)
+    }
+
+    def cleanup() {
+        executor.shutdownNow()
+    }
+
+    def "Execute the tasks of a lane one at a time in submission order"() {
+
+        given: "a lane"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.1)
+        def lane = new ExecutionLane("ordered", executor)
+        List<Integer> executed = new CopyOnWriteArrayList<>()
+        def active = new AtomicInteger()
+        def maxActive = new AtomicInteger()
+
+        when: "many tasks are submitted"
+        (0..<1000).each { i ->
+            lane.submit {
+                maxActive.accumulateAndGet(active.incrementAndGet(), { a, b -> Math.max(a, b) })
+                executed.add(i)
+                active.decrementAndGet()
+            }
+        }
+
+        then: "all tasks should be executed in order and never concurrently"
+        conditions.eventually {
+            assert executed.size() == 1000
+        }
+        executed == (0..<1000).toList()
+        maxActive.get() == 1
+        lane.getQueueSize() == 0
+    }
+
+    def "Lanes progress independently of each other"() {
+
+        given: "two lanes on the same executor"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.1)
+        def blockedLane = new ExecutionLane("blocked", executor)
+        def otherLane = new ExecutionLane("other", executor)
+        def release = new CountDownLatch(1)
+        List<String> executed = new CopyOnWriteArrayList<>()
+
+        when: "a task of one lane blocks and tasks are submitted to both lanes"
+        blockedLane.submit {
+            release.await(10, TimeUnit.SECONDS)
+            executed.add("blocked1")
+        }
+        blockedLane.submit { executed.add("blocked2") }
+        otherLane.submit { executed.add("other1") }
+        otherLane.submit { executed.add("other2") }
+
+        then: "the other lane should execute its tasks while the first lane is blocked"
+        conditions.eventually {
+            assert executed == ["other1", "other2"]
+        }
+        blockedLane.getQueueSize() == 1
+
+        when: "the blocked task is released"
+        release.countDown()
+
+        then: "the first lane should execute its remaining tasks"
+        conditions.eventually {
+            assert executed == ["other1", "other2", "blocked1", "blocked2"]
+        }
+    }
+
+    def "Recover after exceptions in tasks and in draining the lane"() {
+
+        given: "a lane that fails to obtain its lock for the first drain"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.1)
+        def lockFailures = new AtomicInteger(1)
+        def lane = new ExecutionLane("failing", executor) {
+            @Override
+            def <R> R withLockReturning(String info, Supplier<R> supplier) {
+                if (info.endsWith("::drain") && lockFailures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("Simulated lock timeout")
+                }
+                return super.withLockReturning(info, supplier)
+            }
+        }
+        List<String> executed = new CopyOnWriteArrayList<>()
+
+        when: "tasks are submitted and the first drain fails"
+        lane.submit { executed.add("task1") }
+
+        then: "the queued task should be executed by a rescheduled drain"
+        conditions.eventually {
+            assert executed == ["task1"]
+        }
+        lockFailures.get() < 0
+
+        when: "a task throws an exception"
+        lane.submit { throw new RuntimeException("Task failed") }
+        lane.submit { executed.add("task2") }
+
+        then: "the following tasks should still be executed"
+        conditions.eventually {
+            assert executed == ["task1", "task2"]
+        }
+
+        and: "new tasks should be executed later"
+        lane.submit { executed.add("task3") }
+        conditions.eventually {
+            assert executed == ["task1", "task2", "task3"]
+        }
+    }
+}
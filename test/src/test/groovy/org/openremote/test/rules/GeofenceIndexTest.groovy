@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.rules
+
+import org.openremote.container.Container
+import org.openremote.container.persistence.PersistenceEvent
+import org.openremote.container.timer.TimerService
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.rules.JsonRulesBuilder
+import org.openremote.manager.rules.RulesEngine
+import org.openremote.manager.rules.RulesFacts
+import org.openremote.manager.rules.geofence.GeofenceIndex
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.geo.GeoJSONPoint
+import org.openremote.model.query.filter.RadialGeofencePredicate
+import org.openremote.model.query.filter.RectangularGeofencePredicate
+import org.openremote.model.rules.AssetState
+import org.openremote.model.rules.Ruleset
+import org.openremote.model.rules.TenantRuleset
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+class GeofenceIndexTest extends Specification {
+
+    def setupSpec() {
+        // Init logging config
+        Container.LOG.info("Running test...")
+    }
+
+    def "Find candidate geofences of a location"() {
+
+        given: "an index with radial and rectangular geofences"
+        def index = new GeofenceIndex<String>()
+        index.add(new RadialGeofencePredicate(100, 51.446308, 5.454027), "radial")
+        index.add(new RectangularGeofencePredicate(51.0, 4.0, 51.2, 4.3), "rectangular")
+
+        expect: "locations inside of the bounding boxes to return the geofence as candidate"
+        index.getCandidates(5.454027, 51.446308) as List == ["radial"]
+        index.getCandidates(5.4548, 51.4468) as List == ["radial"]
+        index.getCandidates(4.1, 51.1) as List == ["rectangular"]
+        index.getCandidates(4.29, 51.01) as List == ["rectangular"]
+
+        and: "locations outside of the bounding boxes to have no candidates"
+        index.getCandidates(5.0, 51.0).isEmpty()
+        index.getCandidates(-5.454027, 51.446308).isEmpty()
+        index.getCandidates(4.1, -51.1).isEmpty()
+        index.getCandidates(4.5, 51.1).isEmpty()
+
+        when: "a geofence is removed"
+        index.remove("radial")
+
+        then: "it should no longer be a candidate"
+        index.getCandidates(5.454027, 51.446308).isEmpty()
+        !index.contains("radial")
+        index.size() == 1
+    }
+
+    def "Geofences that can't be bounded are always candidates"() {
+
+        given: "an index with geofences that are negated, cross the antimeridian or reach a pole"
+        def index = new GeofenceIndex<String>()
+        index.add(new RadialGeofencePredicate(100, 51.446308, 5.454027, true), "negated")
+        index.add(new RadialGeofencePredicate(10000, 0, 179.99), "antimeridian")
+        index.add(new RadialGeofencePredicate(10000, 89.99, 0), "pole")
+        index.add(new RectangularGeofencePredicate(-80, -170, 80, 170), "large")
+        index.add(new RadialGeofencePredicate(100, 51.446308, 5.454027), "bounded")
+
+        expect: "geofences that can't be bounded to have no bounding box"
+        GeofenceIndex.getBounds(new RadialGeofencePredicate(10000, 0, 179.99)) == null
+        GeofenceIndex.getBounds(new RadialGeofencePredicate(10000, 0, -179.99)) == null
+        GeofenceIndex.getBounds(new RadialGeofencePredicate(10000, 89.99, 0)) == null
+        GeofenceIndex.getBounds(new RadialGeofencePredicate(10000, -89.99, 0)) == null
+
+        and: "them to be candidates of any location"
+        index.getCandidates(0, 0) as Set == ["negated", "antimeridian", "pole", "large"] as Set
+        index.getCandidates(-179.999, 0) as Set == ["negated", "antimeridian", "pole", "large"] as Set
+        index.getCandidates(5.454027, 51.446308) as Set == ["negated", "antimeridian", "pole", "large", "bounded"] as Set
+    }
+
+    def "Skip geofence rule conditions when a location stays outside of their bounds"() {
+
+        given: "rule facts with the location and another attribute of an asset outside of a geofence"
+        def timerService = new TimerService(clock: TimerService.Clock.PSEUDO)
+        def rulesFacts = new RulesFacts(timerService, new AssetStorageService(), null, this, RulesEngine.RULES_LOG)
+        def console = new Asset("console1", 0, null, "Console", "urn:test:console", false, null, null, null, "realm1", ["console1"] as String[], Values.createObject())
+        def locationState = { double lng, double lat ->
+            new AssetState(console, new AssetAttribute("location", AttributeValueType.GEO_JSON_POINT, new GeoJSONPoint(lng, lat).toValue()), AttributeEvent.Source.SENSOR)
+        }
+        def temperatureState = new AssetState(console, new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(20)), AttributeEvent.Source.SENSOR)
+        rulesFacts.putAssetState(locationState(5.0, 51.0))
+        rulesFacts.putAssetState(temperatureState)
+
+        and: "a JSON rule with a condition that only matches locations inside of a geofence"
+        def rules = """{
+          "rules": [{
+            "name": "Inside geofence",
+            "when": {"items": [{"assets": {
+              "types": [{"predicateType": "string", "match": "EXACT", "value": "urn:test:console"}],
+              "attributes": {"items": [{
+                "name": {"predicateType": "string", "match": "EXACT", "value": "location"},
+                "value": {"predicateType": "radial", "radius": 100, "lat": 51.446308, "lng": 5.454027}
+              }]}
+            }}]},
+            "then": [{"action": "wait", "millis": 0}]
+          }]
+        }"""
+        def ruleset = new TenantRuleset("realm1", "Geofence rules", Ruleset.Lang.JSON, rules).setId(1L)
+        def builder = new JsonRulesBuilder(ruleset, timerService, new AssetStorageService(), null, null, null, null, null, null, null)
+        builder.start(rulesFacts)
+        def conditionState = builder.geofenceConditionStates[0]
+        def heldAssetState = { String attributeName -> conditionState.unfilteredAssetStates.find { it.attributeName == attributeName } }
+        def update = { AssetState assetState ->
+            rulesFacts.putAssetState(assetState)
+            builder.onAssetStatesChanged(rulesFacts, new RulesEngine.AssetStateChangeEvent(PersistenceEvent.Cause.UPDATE, assetState))
+        }
+
+        expect: "the condition to be indexed by its geofence"
+        builder.geofenceConditionStates.size() == 1
+        builder.otherConditionStates.isEmpty()
+        builder.geofenceIndex.contains(conditionState)
+        heldAssetState("location") != null
+
+        when: "the location is updated for the first time"
+        def outsideState = locationState(5.01, 51.0)
+        update(outsideState)
+
+        then: "the condition should be updated as the previous location isn't known"
+        heldAssetState("location").is(outsideState)
+
+        when: "the location moves outside of the geofence"
+        update(locationState(5.02, 51.0))
+
+        then: "the condition should be skipped"
+        heldAssetState("location").is(outsideState)
+
+        when: "another attribute is updated"
+        update(new AssetState(console, new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(21)), AttributeEvent.Source.SENSOR))
+
+        then: "the condition should be skipped"
+        heldAssetState("temperature").is(temperatureState)
+
+        when: "the location moves inside of the geofence"
+        def insideState = locationState(5.454027, 51.446308)
+        update(insideState)
+
+        then: "the condition should be updated"
+        heldAssetState("location").is(insideState)
+
+        when: "the location moves outside of the geofence again"
+        def leftState = locationState(5.02, 51.0)
+        update(leftState)
+
+        then: "the condition should be updated"
+        heldAssetState("location").is(leftState)
+    }
+}
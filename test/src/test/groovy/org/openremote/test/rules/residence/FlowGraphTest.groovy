@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.rules.residence
+
+import groovy.json.JsonOutput
+import org.openremote.container.Container
+import org.openremote.manager.rules.flow.FlowGraph
+import org.openremote.model.rules.flow.NodeCollection
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+class FlowGraphTest extends Specification {
+
+    static Map numberNode(String id, double value) {
+        [
+            id       : id,
+            name     : "NUMBER_INPUT",
+            type     : "INPUT",
+            internals: [[name: "value", picker: [type: "NUMBER"], value: value]],
+            inputs   : [],
+            outputs  : [[id: id + ".value", name: "value", type: "NUMBER", nodeId: id]]
+        ]
+    }
+
+    static Map addNode(String id) {
+        [
+            id       : id,
+            name     : "ADD_OPERATOR",
+            type     : "PROCESSOR",
+            internals: [],
+            inputs   : [
+                [id: id + ".a", name: "a", type: "NUMBER", nodeId: id],
+                [id: id + ".b", name: "b", type: "NUMBER", nodeId: id]
+            ],
+            outputs  : [[id: id + ".c", name: "c", type: "NUMBER", nodeId: id]]
+        ]
+    }
+
+    static FlowGraph createGraph(List<Map> nodes, List<List<String>> connections) {
+        def collection = Container.JSON.readValue(JsonOutput.toJson([
+            name       : "Test flow",
+            description: "",
+            nodes      : nodes,
+            connections: connections.collect { [from: it[0], to: it[1]] }
+        ]), NodeCollection.class)
+        return new FlowGraph(collection, null, null, null, null, null)
+    }
+
+    def "Evaluate nodes after the nodes they depend on"() {
+
+        given: "a flow adding three numbers, one of them connected to both inputs of another node"
+        def graph = createGraph(
+            [numberNode("n1", 2), numberNode("n2", 3), numberNode("n3", 4), addNode("add1"), addNode("add2"), addNode("add3")],
+            [
+                ["n1.value", "add1.a"],
+                ["n2.value", "add1.b"],
+                ["add1.c", "add2.a"],
+                ["n3.value", "add2.b"],
+                ["n1.value", "add3.a"],
+                ["n1.value", "add3.b"]
+            ]
+        )
+
+        expect: "the upstream nodes of each node to be ordered by their dependencies"
+        graph.getUpstreamNodes(graph.getNode("add2")).collect { it.id } == ["n1", "n2", "add1", "n3"]
+        graph.getUpstreamNodes(graph.getNode("add1")).collect { it.id } == ["n1", "n2"]
+        graph.getUpstreamNodes(graph.getNode("n1")).isEmpty()
+
+        and: "a node connected to both inputs of another node to be evaluated once"
+        graph.getUpstreamNodes(graph.getNode("add3")).collect { it.id } == ["n1"]
+
+        when: "the output of the last node is evaluated"
+        def output = graph.getSocket("add2.c")
+        def value = graph.getOutputValue(output)
+
+        then: "the nodes it depends on should have been evaluated first"
+        value == Values.create(9)
+        graph.outputValues.keySet() == ["n1.value", "n2.value", "add1.c", "n3.value", "add2.c"] as Set
+
+        and: "the output should be memoised"
+        graph.getOutputValue(output).is(value)
+        graph.getOutputValue(graph.getSocket("add3.c")) == Values.create(4)
+    }
+
+    def "Reject flows with a cycle"() {
+
+        when: "two nodes are connected to each other's inputs"
+        createGraph(
+            [numberNode("n1", 1), addNode("add1"), addNode("add2")],
+            [
+                ["n1.value", "add1.b"],
+                ["n1.value", "add2.b"],
+                ["add1.c", "add2.a"],
+                ["add2.c", "add1.a"]
+            ]
+        )
+
+        then: "the flow should be rejected"
+        def ex = thrown(IllegalArgumentException)
+        ex.message.contains("cycle")
+
+        when: "the output of a node is connected to its own input"
+        createGraph(
+            [numberNode("n1", 1), addNode("add1")],
+            [
+                ["n1.value", "add1.b"],
+                ["add1.c", "add1.a"]
+            ]
+        )
+
+        then: "the flow should be rejected"
+        ex = thrown(IllegalArgumentException)
+        ex.message.contains("cycle")
+    }
+
+    def "Handle nodes with a missing input"() {
+
+        when: "an input of a node isn't connected"
+        def graph = createGraph(
+            [numberNode("n1", 5), addNode("add1")],
+            [
+                ["n1.value", "add1.a"]
+            ]
+        )
+
+        then: "the node should only depend on its connected input"
+        graph.getUpstreamNodes(graph.getNode("add1")).collect { it.id } == ["n1"]
+        graph.getInfo(graph.getNode("add1")).inputs.length == 1
+
+        and: "the node should evaluate to its fallback value"
+        graph.getOutputValue(graph.getSocket("add1.c")) == Values.create(0)
+
+        when: "a node is connected to an input socket that doesn't exist"
+        createGraph(
+            [numberNode("n1", 5), addNode("add1")],
+            [
+                ["n1.value", "add1.x"]
+            ]
+        )
+
+        then: "the flow should be rejected"
+        def ex = thrown(IllegalArgumentException)
+        ex.message == "Invalid socket ID"
+    }
+}
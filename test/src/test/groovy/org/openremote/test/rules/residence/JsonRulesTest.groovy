@@ -3,12 +3,15 @@ package org.openremote.test.rules.residence
 import com.google.common.collect.Lists
 import com.google.firebase.messaging.Message
 import org.openremote.container.Container
+import org.openremote.container.persistence.PersistenceEvent
 import org.openremote.container.timer.TimerService
 import org.openremote.manager.asset.AssetProcessingService
 import org.openremote.manager.asset.AssetStorageService
 import org.openremote.manager.notification.EmailNotificationHandler
 import org.openremote.manager.notification.PushNotificationHandler
+import org.openremote.manager.rules.JsonRulesBuilder
 import org.openremote.manager.rules.RulesEngine
+import org.openremote.manager.rules.RulesFacts
 import org.openremote.manager.rules.RulesService
 import org.openremote.manager.rules.RulesetDeployment
 import org.openremote.manager.rules.RulesetStorageService
@@ -16,7 +19,10 @@ import org.openremote.manager.rules.geofence.ORConsoleGeofenceAssetAdapter
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.KeycloakDemoSetup
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
 import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeValueType
 import org.openremote.model.calendar.CalendarEvent
 import org.openremote.model.calendar.RecurrenceRule
 import org.openremote.model.console.ConsoleProvider
@@ -27,12 +33,17 @@ import org.openremote.model.notification.AbstractNotificationMessage
 import org.openremote.model.notification.Notification
 import org.openremote.model.notification.NotificationSendResult
 import org.openremote.model.notification.PushNotificationMessage
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.query.filter.DateTimePredicate
+import org.openremote.model.rules.AssetState
 import org.openremote.model.rules.Ruleset
 import org.openremote.model.rules.RulesetStatus
 import org.openremote.model.rules.TemporaryFact
 import org.openremote.model.rules.TenantRuleset
 import org.openremote.model.rules.json.JsonRulesetDefinition
+import org.openremote.model.rules.json.RuleCondition
 import org.openremote.model.value.ObjectValue
+import org.openremote.model.value.Values
 import org.openremote.test.ManagerContainerTrait
 import org.simplejavamail.email.Email
 import spock.lang.Specification
@@ -123,12 +134,16 @@ class JsonRulesTest extends Specification implements ManagerContainerTrait {
             getClass().getResource("/org/openremote/test/rules/BasicJsonRules.json").text)
         ruleset = rulesetStorageService.merge(ruleset)
 
-        expect: "the rule engines to become available and be running with asset states inserted and no longer tracking location rules"
+        expect: "the rule engines to become available and be running with the asset states used by the rules inserted and no longer tracking location rules"
         conditions.eventually {
             tenantBuildingEngine = rulesService.tenantEngines.get(keycloakDemoSetup.tenantBuilding.realm)
             assert tenantBuildingEngine != null
             assert tenantBuildingEngine.isRunning()
-            assert tenantBuildingEngine.assetStates.size() == DEMO_RULE_STATES_CUSTOMER_A
+            assert tenantBuildingEngine.attributeNames == ["location", "lightSwitchTriggerTimes", "plantsWaterLevels"] as Set
+            assert rulesService.assetStates.getByRealm(keycloakDemoSetup.tenantBuilding.realm).size() == DEMO_RULE_STATES_CUSTOMER_A
+            assert tenantBuildingEngine.assetStates.size() == rulesService.assetStates.getByRealm(keycloakDemoSetup.tenantBuilding.realm).count {
+                tenantBuildingEngine.isInterestedIn(it.attributeName)
+            }
             assert !tenantBuildingEngine.trackLocationPredicates
         }
 
@@ -471,4 +486,109 @@ class JsonRulesTest extends Specification implements ManagerContainerTrait {
         TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS = originalExpirationMillis
         stopContainer(container)
     }
+
+    def "Incremental rule condition evaluation matches a full evaluation"() {
+
+        given: "rule facts with some asset states"
+        def timerService = new TimerService(clock: TimerService.Clock.PSEUDO)
+        def rulesFacts = new RulesFacts(timerService, new AssetStorageService(), null, this, RulesEngine.RULES_LOG)
+        def now = timerService.getCurrentTimeMillis()
+        def room1 = new Asset("room1", 0, null, "Room 1", "urn:test:room", false, null, null, null, "realm1", ["room1"] as String[], Values.createObject())
+        def room2 = new Asset("room2", 0, null, "Room 2", "urn:test:room", false, null, null, null, "realm1", ["room2"] as String[], Values.createObject())
+        def thing = new Asset("thing1", 0, null, "Thing", "urn:test:thing", false, null, null, null, "realm1", ["thing1"] as String[], Values.createObject())
+        def assetState = { Asset asset, String name, double value ->
+            new AssetState(asset, new AssetAttribute(name, AttributeValueType.NUMBER, Values.create(value)), AttributeEvent.Source.SENSOR)
+        }
+        rulesFacts.putAssetState(assetState(room1, "temperature", 21))
+        rulesFacts.putAssetState(assetState(room1, "humidity", 50))
+        rulesFacts.putAssetState(assetState(room1, "lastSeen", now - 30 * 60000))
+
+        and: "rule conditions on room temperature and on a time relative to now"
+        def temperatureCondition = {
+            def condition = new RuleCondition()
+            condition.assets = new AssetQuery().types("urn:test:room").attributeValue("temperature", AssetQuery.Operator.GREATER_THAN, 20)
+            condition
+        }
+        def recentlySeenCondition = {
+            def condition = new RuleCondition()
+            condition.assets = new AssetQuery().types("urn:test:room").attributeValue("lastSeen", new DateTimePredicate(AssetQuery.Operator.GREATER_THAN, "-1h"))
+            condition
+        }
+
+        and: "incrementally evaluated condition states"
+        def incrementalStates = [temperatureCondition(), recentlySeenCondition()].collect {
+            def state = new JsonRulesBuilder.RuleConditionState(it, true, timerService)
+            state.updateUnfilteredAssetStates(rulesFacts, null)
+            state.update([:])
+            state
+        }
+
+        and: "a way to compare them with a full evaluation of fresh condition states"
+        def results = { state ->
+            def describe = { Collection<AssetState> assetStates -> assetStates.collect { [it.id, it.attributeName, it.value.map { it.toJson() }.orElse(null)] } as Set }
+            [describe(state.matchingAssetStates), describe(state.nonMatchingAssetStates)]
+        }
+        def fullResults = {
+            [temperatureCondition(), recentlySeenCondition()].collect {
+                def state = new JsonRulesBuilder.RuleConditionState(it, true, timerService)
+                state.updateUnfilteredAssetStates(rulesFacts, null)
+                state.update([:])
+                results(state)
+            }
+        }
+        def apply = { PersistenceEvent.Cause cause, AssetState changed ->
+            if (cause == PersistenceEvent.Cause.DELETE) {
+                rulesFacts.removeAssetState(changed)
+            } else {
+                rulesFacts.putAssetState(changed)
+            }
+            incrementalStates.each {
+                it.updateUnfilteredAssetStates(rulesFacts, new RulesEngine.AssetStateChangeEvent(cause, changed))
+                it.update([:])
+            }
+        }
+
+        expect: "the initial evaluation to match"
+        incrementalStates.collect { results(it) } == fullResults()
+        incrementalStates[0].getMatchedAssetIds() == ["room1"]
+
+        when: "asset states are added"
+        apply(PersistenceEvent.Cause.CREATE, assetState(room2, "temperature", 25))
+        apply(PersistenceEvent.Cause.CREATE, assetState(room2, "lastSeen", now - 2 * 3600000))
+        apply(PersistenceEvent.Cause.CREATE, assetState(thing, "temperature", 30))
+
+        then: "the incremental results should match a full evaluation"
+        incrementalStates.collect { results(it) } == fullResults()
+        incrementalStates[0].matchingAssetStates.collect { it.id } as Set == ["room1", "room2"] as Set
+
+        when: "asset states are updated"
+        apply(PersistenceEvent.Cause.UPDATE, assetState(room1, "temperature", 15))
+        apply(PersistenceEvent.Cause.UPDATE, assetState(room2, "lastSeen", now))
+        apply(PersistenceEvent.Cause.UPDATE, assetState(room1, "humidity", 55))
+
+        then: "the incremental results should match a full evaluation"
+        incrementalStates.collect { results(it) } == fullResults()
+        incrementalStates[0].matchingAssetStates.collect { it.id } == ["room2"]
+        incrementalStates[1].matchingAssetStates.collect { it.id } as Set == ["room1", "room2"] as Set
+
+        when: "asset states are removed"
+        apply(PersistenceEvent.Cause.DELETE, assetState(room2, "temperature", 25))
+        apply(PersistenceEvent.Cause.DELETE, assetState(thing, "temperature", 30))
+
+        then: "the incremental results should match a full evaluation"
+        incrementalStates.collect { results(it) } == fullResults()
+        incrementalStates[0].matchingAssetStates.isEmpty()
+
+        when: "time passes without any asset state change"
+        timerService.getClock().advanceTime(45, MINUTES)
+        incrementalStates.each {
+            // As if the rule action had been executed
+            it.lastEvaluationResult = null
+            it.update([:])
+        }
+
+        then: "the time dependent condition should be evaluated again and match a full evaluation"
+        incrementalStates.collect { results(it) } == fullResults()
+        incrementalStates[1].matchingAssetStates.collect { it.id } == ["room2"]
+    }
 }